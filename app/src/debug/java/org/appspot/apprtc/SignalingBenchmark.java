@@ -0,0 +1,301 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.AppRTCClient.RoomConnectionParameters;
+import org.appspot.apprtc.AppRTCClient.SignalingEvents;
+import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.signaling.LoopbackSignalingServer;
+import org.appspot.apprtc.util.LooperExecutor;
+
+import android.util.Log;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Call setup benchmark of the signaling path: N headless clients, each a real
+ * {@link WebSocketRTCClient} on its own {@link LooperExecutor}, against a
+ * {@link LoopbackSignalingServer} in the same process. There are no peer
+ * connections; the SDP and candidates are placeholders.
+ * <p/>
+ * <p>It measures, in order:
+ * <ul>
+ * <li>join: connectToRoom() to onConnectedToRoom() of each client, which
+ * includes the room join request, the TURN request and the WebSocket
+ * connect, and the time from there until every client already in the room
+ * got its "join";</li>
+ * <li>offer fan-out: the first client sends an offer to every other one, which
+ * answer right away; the time until the last offer and the last answer
+ * arrived, over ROUNDS rounds;</li>
+ * <li>candidates: every other client sends CANDIDATES_PER_CLIENT candidates to
+ * the first one, and the time until it got all of them;</li>
+ * <li>room: requestRoomInfo() to the client list of the last client;</li>
+ * <li>leave: the time until the first client saw every other one leave.</li>
+ * </ul>
+ * The result ends with the message counts and rates of the server.
+ * <p/>
+ * <p>Start it from a background thread; it blocks until done. Debug builds
+ * only; release builds have a stub that throws.
+ */
+public class SignalingBenchmark {
+    private static final String TAG = "SignalingBenchmark";
+    private static final long ROOM_ID = 1;
+    private static final int ROUNDS = 5;
+    private static final int CANDIDATES_PER_CLIENT = 8;
+    private static final long TIMEOUT_S = 30;
+    private static final String FAKE_SDP = "v=0\r\no=- 0 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n";
+
+    private enum Event { JOIN, OFFER, ANSWER, CANDIDATE, ROOM, LEAVE }
+
+    // Counts down the arrivals of one event kind, remembering the last one.
+    private static class Expectation {
+        private final Event event;
+        private final CountDownLatch latch;
+        // The only client to count arrivals at, or null for any.
+        private final Client receiver;
+        private volatile long lastArrivalNs;
+
+        private Expectation(Event event, int count, Client receiver) {
+            this.event = event;
+            this.latch = new CountDownLatch(count);
+            this.receiver = receiver;
+        }
+
+        // Returns the time of the last arrival.
+        private long await() throws InterruptedException, TimeoutException {
+            if (!latch.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+                throw new TimeoutException(event + ": " + latch.getCount() + " missing");
+            }
+            return lastArrivalNs;
+        }
+    }
+
+    private final LoopbackSignalingServer server;
+    private final List<Client> clients = new ArrayList<Client>();
+    private final Expectation[] expectations = new Expectation[Event.values().length];
+    private volatile String error;
+
+    private class Client implements SignalingEvents {
+        private final WebSocketRTCClient rtcClient;
+        private final CountDownLatch connected = new CountDownLatch(1);
+        private volatile long clientId = -1;
+        private volatile long connectedNs;
+
+        private Client() {
+            rtcClient = new WebSocketRTCClient(this, new LooperExecutor());
+        }
+
+        @Override
+        public void onConnectedToRoom(SignalingParameters params) {
+            clientId = params.clientId;
+            connectedNs = System.nanoTime();
+            connected.countDown();
+        }
+
+        @Override
+        public void onRemoteOffer(long peerId, SessionDescription sdp) {
+            arrived(Event.OFFER, this);
+            rtcClient.sendAnswerSdp(peerId,
+                    new SessionDescription(SessionDescription.Type.ANSWER, sdp.description));
+        }
+
+        @Override
+        public void onRemoteAnswer(long peerId, SessionDescription sdp) {
+            arrived(Event.ANSWER, this);
+        }
+
+        @Override
+        public void onClientJoin(long peerId, String deviceType) {
+            arrived(Event.JOIN, this);
+        }
+
+        @Override
+        public void onRemoteIceCandidate(long peerId, IceCandidate candidate) {
+            arrived(Event.CANDIDATE, this);
+        }
+
+        @Override
+        public void onRemoteLeave(long remoteLeaveId) {
+            arrived(Event.LEAVE, this);
+        }
+
+        @Override
+        public void onChannelClose() {
+        }
+
+        @Override
+        public void onChannelError(String description) {
+            Log.e(TAG, "Client " + clientId + ": " + description);
+            error = description;
+        }
+
+        @Override
+        public void selectClientItem(ClientInfo[] clientIdString) {
+            arrived(Event.ROOM, this);
+        }
+
+        @Override
+        public void connect(long masterId) {
+            arrived(Event.ROOM, this);
+        }
+
+        @Override
+        public void updateClientList(long peerId, String deviceType) {
+        }
+    }
+
+    private SignalingBenchmark(LoopbackSignalingServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Runs the benchmark with |clientCount| clients and returns the results.
+     */
+    public static String run(int clientCount) throws Exception {
+        LoopbackSignalingServer server = new LoopbackSignalingServer();
+        server.start();
+        // Start from a cold TURN cache, as a fresh install does.
+        TurnServerCache.getInstance().clear();
+        SignalingBenchmark benchmark = new SignalingBenchmark(server);
+        try {
+            return benchmark.runAll(Math.max(2, clientCount));
+        } finally {
+            for (Client client : benchmark.clients) {
+                client.rtcClient.disconnectFromRoom();
+            }
+            server.close();
+        }
+    }
+
+    private String runAll(int clientCount) throws Exception {
+        StringBuilder result = new StringBuilder();
+        RoomConnectionParameters parameters =
+                new RoomConnectionParameters(server.getRoomServerUrl(), ROOM_ID);
+
+        // Join one client after the other.
+        long[] joinNs = new long[clientCount];
+        long[] announceNs = new long[clientCount - 1];
+        for (int i = 0; i < clientCount; i++) {
+            Client client = new Client();
+            clients.add(client);
+            Expectation joins = expect(Event.JOIN, i, null);
+            long startNs = System.nanoTime();
+            client.rtcClient.connectToRoom(parameters);
+            if (!client.connected.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+                throw new TimeoutException("Join of client " + i + ": " + error);
+            }
+            joinNs[i] = client.connectedNs - startNs;
+            if (i > 0) {
+                announceNs[i - 1] = Math.max(0, joins.await() - client.connectedNs);
+            }
+        }
+        result.append("join: ").append(percentiles(joinNs));
+        result.append("\njoin announce: ").append(percentiles(announceNs));
+
+        // Offers from the first client to everybody else, answered right away.
+        Client first = clients.get(0);
+        long[] offerNs = new long[ROUNDS];
+        long[] answerNs = new long[ROUNDS];
+        long messagesBefore = server.getMessagesIn() + server.getMessagesOut();
+        long fanOutStartNs = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            Expectation offers = expect(Event.OFFER, clientCount - 1, null);
+            Expectation answers = expect(Event.ANSWER, clientCount - 1, first);
+            SessionDescription sdp = new SessionDescription(SessionDescription.Type.OFFER,
+                    FAKE_SDP + "a=round:" + round + "\r\n");
+            long startNs = System.nanoTime();
+            for (int i = 1; i < clientCount; i++) {
+                first.rtcClient.sendOfferSdp(clients.get(i).clientId, sdp, false);
+            }
+            offerNs[round] = offers.await() - startNs;
+            answerNs[round] = answers.await() - startNs;
+        }
+        long fanOutNs = System.nanoTime() - fanOutStartNs;
+        long fanOutMessages = server.getMessagesIn() + server.getMessagesOut() - messagesBefore;
+        result.append("\noffer fan-out: ").append(percentiles(offerNs));
+        result.append("\noffer/answer round trip: ").append(percentiles(answerNs));
+        result.append("\nfan-out server messages: ").append(fanOutMessages).append(", ")
+                .append(fanOutMessages * 1000000000L / Math.max(1, fanOutNs)).append("/s");
+
+        // Candidates from everybody else to the first client.
+        int candidateCount = (clientCount - 1) * CANDIDATES_PER_CLIENT;
+        Expectation candidates = expect(Event.CANDIDATE, candidateCount, first);
+        long startNs = System.nanoTime();
+        for (int i = 1; i < clientCount; i++) {
+            for (int c = 0; c < CANDIDATES_PER_CLIENT; c++) {
+                clients.get(i).rtcClient.sendLocalIceCandidate(first.clientId,
+                        new IceCandidate("audio", 0, "candidate:" + c
+                                + " 1 udp 2122260223 127.0.0.1 " + (50000 + c) + " typ host"));
+            }
+        }
+        long candidatesNs = candidates.await() - startNs;
+        result.append("\ncandidates: ").append(candidateCount).append(" in ")
+                .append(candidatesNs / 1000000).append(" ms, ")
+                .append(candidateCount * 1000000000L / Math.max(1, candidatesNs)).append("/s");
+
+        // Client list.
+        Client last = clients.get(clientCount - 1);
+        Expectation room = expect(Event.ROOM, 1, last);
+        startNs = System.nanoTime();
+        last.rtcClient.requestRoomInfo();
+        result.append("\nroom: ").append((room.await() - startNs) / 1000).append(" us");
+
+        // Everybody but the first client leaves.
+        Expectation leaves = expect(Event.LEAVE, clientCount - 1, first);
+        startNs = System.nanoTime();
+        for (int i = clientCount - 1; i > 0; i--) {
+            clients.remove(i).rtcClient.disconnectFromRoom();
+        }
+        result.append("\nleave: ").append((leaves.await() - startNs) / 1000000).append(" ms");
+
+        result.append("\nserver: ").append(server.getStatistics());
+        Log.d(TAG, result.toString());
+        return result.toString();
+    }
+
+    private synchronized Expectation expect(Event event, int count, Client receiver) {
+        Expectation expectation = new Expectation(event, count, receiver);
+        expectations[event.ordinal()] = expectation;
+        return expectation;
+    }
+
+    // Counts an event at |receiver| if the current expectation of its kind
+    // wants it.
+    private synchronized void arrived(Event event, Client receiver) {
+        Expectation expectation = expectations[event.ordinal()];
+        if (expectation == null
+                || (expectation.receiver != null && expectation.receiver != receiver)) {
+            return;
+        }
+        expectation.lastArrivalNs = System.nanoTime();
+        expectation.latch.countDown();
+    }
+
+    // Median, 90th percentile and maximum of |valuesNs|, in milliseconds.
+    private static String percentiles(long[] valuesNs) {
+        if (valuesNs.length == 0) {
+            return "none";
+        }
+        long[] sorted = valuesNs.clone();
+        Arrays.sort(sorted);
+        return String.format("p50 %.2f p90 %.2f max %.2f ms (%d samples)",
+                sorted[sorted.length / 2] / 1e6, sorted[sorted.length * 9 / 10] / 1e6,
+                sorted[sorted.length - 1] / 1e6, sorted.length);
+    }
+}
@@ -0,0 +1,720 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embeddable stand-in for the room server, on 127.0.0.1, for benchmarking call
+ * setup without a network. It only uses the JDK, so it runs on a device and on
+ * a desktop JVM alike. It is part of debug builds and their unit tests only.
+ * <p/>
+ * <p>It serves:
+ * <ul>
+ * <li>POST /join/&lt;room id&gt;: the room join response RoomParametersFetcher
+ * parses, with a new client id, no ICE servers and the TURN URL below.</li>
+ * <li>GET /turn: TURN credentials as TurnServerCache expects them.</li>
+ * <li>/ws: the WebSocket signaling protocol of WebSocketChannelClient and
+ * WebSocketRTCClient. "register" announces the client to the room with a
+ * "join" message, "room" answers with the client list, "offer", "answer",
+ * "candidate" and "candidates" are forwarded to "to" with "from" set, and
+ * "leave" (or a connection not resumed within RESUME_GRACE_MS) sends "leave"
+ * to the rest of the room. Sequence numbers, acks and session resume work as
+ * described in {@link WebSocketSession}; every register is acknowledged, which
+ * confirms the session to the client, with "resumed" telling whether the
+ * session was still there.</li>
+ * </ul>
+ * <p/>
+ * <p>To test reconnects, dropConnection() cuts the WebSocket connection of a
+ * client the way a network failure would, expireSession() also forgets its
+ * session as if it had not come back in time, and setSessionsEnabled(false)
+ * makes the server behave like the production room server, which neither
+ * numbers nor acknowledges messages and ignores resume requests.
+ * <p/>
+ * <p>Every connection gets its own thread; the protocol state is guarded by the
+ * server's lock. getStatistics() reports message and byte counts and rates.
+ */
+public class LoopbackSignalingServer {
+    private static final int MAX_UNACKED = 256;
+    private static final long RESUME_GRACE_MS = 60000;
+    private static final int TURN_TTL_S = 86400;
+    private static final long FIRST_CLIENT_ID = 10000;
+
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    private final ServerSocket serverSocket;
+    private final Timer expiryTimer = new Timer("LoopbackSignalingServer", true);
+    private final Map<Long, Map<Long, Session>> rooms = new HashMap<Long, Map<Long, Session>>();
+    private final Map<Long, Session> sessions = new HashMap<Long, Session>();
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private long nextClientId = FIRST_CLIENT_ID;
+    // Guarded by the server lock.
+    private boolean sessionsEnabled = true;
+    private volatile boolean closed;
+
+    // Metrics.
+    private final long startNs = System.nanoTime();
+    private final AtomicLong httpRequests = new AtomicLong();
+    private final AtomicLong joins = new AtomicLong();
+    private final AtomicLong messagesIn = new AtomicLong();
+    private final AtomicLong messagesOut = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // A client that joined a room, with or without a WebSocket connection.
+    private static class Session {
+        private final long clientId;
+        private final long roomId;
+        private String device = "";
+        private boolean registered;
+        private Connection connection;
+        private TimerTask expiryTask;
+        // Highest seq received from the client, and messages sent to it that
+        // it did not acknowledge yet.
+        private long lastReceivedSeq;
+        private long nextSeq = 1;
+        private final LinkedList<Unacked> unacked = new LinkedList<Unacked>();
+
+        private Session(long clientId, long roomId) {
+            this.clientId = clientId;
+            this.roomId = roomId;
+        }
+    }
+
+    private static class Unacked {
+        private final long seq;
+        private final String message;
+
+        private Unacked(long seq, String message) {
+            this.seq = seq;
+            this.message = message;
+        }
+    }
+
+    public LoopbackSignalingServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Listens on |port| of 127.0.0.1, 0 for any free port. Call start() to
+     * accept connections.
+     */
+    public LoopbackSignalingServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 128, InetAddress.getByName("127.0.0.1"));
+    }
+
+    public void start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "LoopbackSignalingServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * The URL to use as the room server URL of RoomConnectionParameters.
+     */
+    public String getRoomServerUrl() {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    public void close() {
+        closed = true;
+        expiryTimer.cancel();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // continue
+        }
+        List<Connection> open;
+        synchronized (this) {
+            open = new ArrayList<Connection>(connections);
+        }
+        for (Connection connection : open) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Whether the server numbers, acknowledges and replays messages, true by
+     * default. With false, seq, ack and resume fields are ignored, and
+     * messages to a client that is away are lost.
+     */
+    public synchronized void setSessionsEnabled(boolean sessionsEnabled) {
+        this.sessionsEnabled = sessionsEnabled;
+    }
+
+    /**
+     * Closes the WebSocket connection of |clientId| without a close frame, as
+     * a network failure would. The session is kept for RESUME_GRACE_MS, so the
+     * client can reconnect and resume.
+     */
+    public void dropConnection(long clientId) {
+        Connection connection;
+        synchronized (this) {
+            Session session = sessions.get(clientId);
+            connection = session == null ? null : session.connection;
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes the WebSocket connection of |clientId| like dropConnection(), and
+     * ends its session right away, as if RESUME_GRACE_MS had passed. The rest
+     * of the room gets "leave"; the client registers as a new one.
+     */
+    public void expireSession(long clientId) {
+        Connection connection = null;
+        synchronized (this) {
+            Session session = sessions.get(clientId);
+            if (session != null) {
+                connection = session.connection;
+                if (connection != null) {
+                    connection.session = null;
+                }
+                leave(session);
+            }
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.get();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.get();
+    }
+
+    /**
+     * Message, byte and request counts since the server was created, with
+     * message rates over that time.
+     */
+    public String getStatistics() {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startNs) / 1e9);
+        int clients;
+        synchronized (this) {
+            clients = sessions.size();
+        }
+        return "{\"httpRequests\": " + httpRequests.get() + ", \"joins\": " + joins.get()
+                + ", \"clients\": " + clients
+                + ", \"messagesIn\": " + messagesIn.get()
+                + ", \"messagesOut\": " + messagesOut.get()
+                + ", \"messagesInPerSecond\": " + Math.round(messagesIn.get() / seconds)
+                + ", \"messagesOutPerSecond\": " + Math.round(messagesOut.get() / seconds)
+                + ", \"bytesIn\": " + bytesIn.get() + ", \"bytesOut\": " + bytesOut.get()
+                + ", \"dropped\": " + dropped.get() + "}";
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            final Connection connection = new Connection(socket);
+            synchronized (this) {
+                connections.add(connection);
+            }
+            Thread thread = new Thread(connection, "LoopbackSignalingConnection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // --------------------------------------------------------------------
+    // HTTP endpoints.
+
+    private String handleHttp(String method, String path) {
+        httpRequests.incrementAndGet();
+        if (method.equals("POST") && path.startsWith("/join/")) {
+            long roomId;
+            try {
+                roomId = Long.parseLong(path.substring("/join/".length()));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return join(roomId);
+        }
+        if (method.equals("GET") && path.equals("/turn")) {
+            return "{\"username\": \"loopback\", \"password\": \"loopback\", \"ttl\": "
+                    + TURN_TTL_S + ", \"uris\": [\"turn:127.0.0.1:3478?transport=udp\"]}";
+        }
+        return null;
+    }
+
+    private String join(long roomId) {
+        long clientId;
+        synchronized (this) {
+            clientId = nextClientId++;
+            Session session = new Session(clientId, roomId);
+            sessions.put(clientId, session);
+            getRoom(roomId).put(clientId, session);
+        }
+        joins.incrementAndGet();
+        String base = "127.0.0.1:" + getPort();
+        return "{\"room_id\": " + roomId + ", \"client_id\": " + clientId
+                + ", \"wss_url\": \"ws://" + base + "/ws\""
+                + ", \"wss_post_url\": \"http://" + base + "\""
+                + ", \"pc_config\": \"{\\\"iceServers\\\": []}\""
+                + ", \"turn_url\": \"http://" + base + "/turn\"}";
+    }
+
+    private Map<Long, Session> getRoom(long roomId) {
+        Map<Long, Session> room = rooms.get(roomId);
+        if (room == null) {
+            room = new LinkedHashMap<Long, Session>();
+            rooms.put(roomId, room);
+        }
+        return room;
+    }
+
+    // --------------------------------------------------------------------
+    // WebSocket signaling protocol. All methods below run under the server
+    // lock.
+
+    private synchronized void onWebSocketMessage(Connection connection, String text) {
+        Map<String, String> json = Json.parseObject(text);
+        if (json == null) {
+            dropped.incrementAndGet();
+            return;
+        }
+        String cmd = Json.stringValue(json.get("cmd"));
+        if ("register".equals(cmd)) {
+            bind(connection, json);
+        }
+        Session session = connection.session;
+        if (session == null) {
+            dropped.incrementAndGet();
+            return;
+        }
+        long ack = sessionsEnabled ? Json.longValue(json.get("ack")) : -1;
+        if (ack >= 0) {
+            onAck(session, ack);
+        }
+        boolean register = "register".equals(cmd);
+        boolean resumed = sessionsEnabled && register && "true".equals(json.get("resume"))
+                && session.registered;
+        if (resumed) {
+            // Everything the client missed while it was away.
+            for (Unacked message : session.unacked) {
+                connection.sendText(message.message);
+            }
+        }
+        long seq = sessionsEnabled ? Json.longValue(json.get("seq")) : -1;
+        boolean duplicate = seq >= 0 && seq <= session.lastReceivedSeq;
+        if (seq > session.lastReceivedSeq) {
+            session.lastReceivedSeq = seq;
+        }
+        if (seq >= 0 || (sessionsEnabled && register)) {
+            // The ack of a register tells the client that this server takes
+            // part in sessions, and whether it still had this one.
+            connection.sendText("{\"type\": \"ack\", \"ack\": " + session.lastReceivedSeq
+                    + (register ? ", \"resumed\": " + resumed : "") + "}");
+        }
+        if (duplicate) {
+            return;
+        }
+        if (cmd == null || cmd.equals("ack")) {
+            return;
+        }
+        if (cmd.equals("register")) {
+            if (!session.registered) {
+                session.registered = true;
+                for (Session member : getRoom(session.roomId).values()) {
+                    if (member != session && member.registered) {
+                        deliver(member, "\"type\": \"join\", \"id\": " + session.clientId
+                                + ", \"device\": " + Json.quote(session.device));
+                    }
+                }
+            }
+        } else if (cmd.equals("room")) {
+            StringBuilder clients = new StringBuilder();
+            for (Session member : getRoom(session.roomId).values()) {
+                if (clients.length() > 0) {
+                    clients.append(", ");
+                }
+                clients.append("{\"id\": ").append(member.clientId)
+                        .append(", \"device\": ").append(Json.quote(member.device)).append('}');
+            }
+            deliver(session, "\"type\": \"room\", \"clients\": [" + clients + "]");
+        } else if (cmd.equals("leave")) {
+            leave(session);
+        } else if (cmd.equals("offer") || cmd.equals("answer") || cmd.equals("candidate")
+                || cmd.equals("candidates")) {
+            Session target = sessions.get(Json.longValue(json.get("to")));
+            if (target == null || target.roomId != session.roomId) {
+                dropped.incrementAndGet();
+                return;
+            }
+            StringBuilder body = new StringBuilder();
+            body.append("\"type\": ").append(Json.quote(cmd)).append(", \"from\": ")
+                    .append(session.clientId);
+            for (Map.Entry<String, String> field : json.entrySet()) {
+                String key = field.getKey();
+                if (!key.equals("cmd") && !key.equals("to") && !key.equals("seq")
+                        && !key.equals("ack")) {
+                    body.append(", ").append(Json.quote(key)).append(": ").append(field.getValue());
+                }
+            }
+            deliver(target, body.toString());
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // Attaches |connection| to the session of the registering client.
+    private void bind(Connection connection, Map<String, String> json) {
+        long clientId = Json.longValue(json.get("clientid"));
+        long roomId = Json.longValue(json.get("roomid"));
+        Session session = sessions.get(clientId);
+        if (session == null) {
+            // A client that did not join through HTTP, or whose session expired.
+            session = new Session(clientId, roomId);
+            sessions.put(clientId, session);
+            getRoom(roomId).put(clientId, session);
+        }
+        if (session.expiryTask != null) {
+            session.expiryTask.cancel();
+            session.expiryTask = null;
+        }
+        if (session.connection != null && session.connection != connection) {
+            session.connection.session = null;
+            session.connection.close();
+        }
+        session.connection = connection;
+        connection.session = session;
+        String device = Json.stringValue(json.get("device"));
+        if (device != null) {
+            session.device = device;
+        }
+    }
+
+    private void leave(Session session) {
+        if (sessions.remove(session.clientId) == null) {
+            return;
+        }
+        if (session.expiryTask != null) {
+            session.expiryTask.cancel();
+        }
+        Map<Long, Session> room = getRoom(session.roomId);
+        room.remove(session.clientId);
+        for (Session member : room.values()) {
+            if (member.registered) {
+                deliver(member, "\"type\": \"leave\", \"id\": " + session.clientId);
+            }
+        }
+        if (room.isEmpty()) {
+            rooms.remove(session.roomId);
+        }
+    }
+
+    private synchronized void onConnectionClosed(Connection connection) {
+        connections.remove(connection);
+        final Session session = connection.session;
+        if (session == null || session.connection != connection) {
+            return;
+        }
+        session.connection = null;
+        if (closed) {
+            return;
+        }
+        // Keep the session for a resume.
+        session.expiryTask = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (LoopbackSignalingServer.this) {
+                    if (session.connection == null) {
+                        leave(session);
+                    }
+                }
+            }
+        };
+        expiryTimer.schedule(session.expiryTask, RESUME_GRACE_MS);
+    }
+
+    // Sends |body| (the fields of a JSON object, without braces) to |session|
+    // with the next seq, keeping it for replay until it is acknowledged.
+    private void deliver(Session session, String body) {
+        if (!sessionsEnabled) {
+            if (session.connection != null) {
+                session.connection.sendText("{" + body + "}");
+            }
+            return;
+        }
+        long seq = session.nextSeq++;
+        String message = "{\"seq\": " + seq + ", " + body + "}";
+        session.unacked.add(new Unacked(seq, message));
+        if (session.unacked.size() > MAX_UNACKED) {
+            session.unacked.removeFirst();
+        }
+        if (session.connection != null) {
+            session.connection.sendText(message);
+        }
+    }
+
+    private static void onAck(Session session, long ack) {
+        Iterator<Unacked> it = session.unacked.iterator();
+        while (it.hasNext() && it.next().seq <= ack) {
+            it.remove();
+        }
+    }
+
+    // --------------------------------------------------------------------
+    // Connections: HTTP/1.1 with keep-alive, upgraded to WebSocket on /ws.
+
+    private class Connection implements Runnable {
+        private final Socket socket;
+        private OutputStream out;
+        // Guarded by the server lock.
+        private Session session;
+
+        private Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+                while (true) {
+                    String requestLine = readLine(in);
+                    if (requestLine == null || requestLine.length() == 0) {
+                        break;
+                    }
+                    String[] parts = requestLine.split(" ");
+                    if (parts.length < 2) {
+                        break;
+                    }
+                    Map<String, String> headers = new HashMap<String, String>();
+                    String header;
+                    while ((header = readLine(in)) != null && header.length() > 0) {
+                        int colon = header.indexOf(':');
+                        if (colon > 0) {
+                            headers.put(header.substring(0, colon).trim().toLowerCase(),
+                                    header.substring(colon + 1).trim());
+                        }
+                    }
+                    String upgrade = headers.get("upgrade");
+                    if (upgrade != null && upgrade.equalsIgnoreCase("websocket")) {
+                        upgrade(headers.get("sec-websocket-key"));
+                        readFrames(in);
+                        break;
+                    }
+                    String contentLength = headers.get("content-length");
+                    if (contentLength != null) {
+                        readFully(in, new byte[Integer.parseInt(contentLength)]);
+                    }
+                    String body = handleHttp(parts[0], parts[1]);
+                    writeHttpResponse(body);
+                    if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // The client went away.
+            } catch (RuntimeException e) {
+                // A malformed request.
+            } finally {
+                close();
+                onConnectionClosed(this);
+            }
+        }
+
+        private void writeHttpResponse(String body) throws IOException {
+            byte[] bytes = body == null ? new byte[0] : body.getBytes("UTF-8");
+            String headers = (body == null ? "HTTP/1.1 404 Not Found\r\n" : "HTTP/1.1 200 OK\r\n")
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + bytes.length + "\r\n\r\n";
+            out.write(headers.getBytes("US-ASCII"));
+            out.write(bytes);
+            out.flush();
+        }
+
+        private void upgrade(String key) throws IOException {
+            String accept = WebSocketHandshake.acceptKey(key);
+            String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+            synchronized (out) {
+                out.write(response.getBytes("US-ASCII"));
+                out.flush();
+            }
+        }
+
+        private void readFrames(InputStream in) throws IOException {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            while (true) {
+                int b0 = in.read();
+                int b1 = in.read();
+                if (b0 < 0 || b1 < 0) {
+                    return;
+                }
+                boolean fin = (b0 & 0x80) != 0;
+                int opcode = b0 & 0x0F;
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    length = (in.read() << 8) | in.read();
+                } else if (length == 127) {
+                    length = 0;
+                    for (int i = 0; i < 8; i++) {
+                        length = (length << 8) | in.read();
+                    }
+                }
+                byte[] mask = null;
+                if ((b1 & 0x80) != 0) {
+                    mask = new byte[4];
+                    readFully(in, mask);
+                }
+                byte[] payload = new byte[(int) length];
+                readFully(in, payload);
+                if (mask != null) {
+                    for (int i = 0; i < payload.length; i++) {
+                        payload[i] ^= mask[i & 3];
+                    }
+                }
+                switch (opcode) {
+                    case OPCODE_TEXT:
+                    case OPCODE_CONTINUATION:
+                        message.write(payload);
+                        if (fin) {
+                            byte[] bytes = message.toByteArray();
+                            message.reset();
+                            messagesIn.incrementAndGet();
+                            bytesIn.addAndGet(bytes.length);
+                            onWebSocketMessage(this, new String(bytes, "UTF-8"));
+                        }
+                        break;
+                    case OPCODE_PING:
+                        sendFrame(OPCODE_PONG, payload);
+                        break;
+                    case OPCODE_CLOSE:
+                        sendFrame(OPCODE_CLOSE, payload);
+                        return;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        private void sendText(String text) {
+            try {
+                byte[] payload = text.getBytes("UTF-8");
+                sendFrame(OPCODE_TEXT, payload);
+                messagesOut.incrementAndGet();
+                bytesOut.addAndGet(payload.length);
+            } catch (IOException e) {
+                // The reader sees the connection go away too.
+                close();
+            }
+        }
+
+        // Writes one unmasked, unfragmented frame.
+        private void sendFrame(int opcode, byte[] payload) throws IOException {
+            synchronized (out) {
+                out.write(0x80 | opcode);
+                if (payload.length < 126) {
+                    out.write(payload.length);
+                } else if (payload.length < 65536) {
+                    out.write(126);
+                    out.write(payload.length >> 8);
+                    out.write(payload.length);
+                } else {
+                    out.write(127);
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        out.write((int) ((long) payload.length >> shift));
+                    }
+                }
+                out.write(payload);
+                out.flush();
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // continue
+            }
+        }
+    }
+
+    // --------------------------------------------------------------------
+    // Helpers.
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int count = in.read(buffer, read, buffer.length - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+    }
+
+    // Returns a CRLF terminated line without its terminator, or null at the end.
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+}
@@ -25,8 +25,6 @@ final class AutoFocusCallback implements Camera.AutoFocusCallback {
 
   private static final String TAG = AutoFocusCallback.class.getSimpleName();
 
-  private static final long AUTOFOCUS_INTERVAL_MS = 1500L;
-
   private Handler autoFocusHandler;
   private int autoFocusMessage;
 
@@ -38,10 +36,9 @@ final class AutoFocusCallback implements Camera.AutoFocusCallback {
   public void onAutoFocus(boolean success, Camera camera) {
     if (autoFocusHandler != null) {
       Message message = autoFocusHandler.obtainMessage(autoFocusMessage, success);
-      // Simulate continuous autofocus by sending a focus request every
-      // AUTOFOCUS_INTERVAL_MS milliseconds.
-      //Log.d(TAG, "Got auto-focus callback; requesting another");
-      autoFocusHandler.sendMessageDelayed(message, AUTOFOCUS_INTERVAL_MS);
+      // The decode pipeline decides when to focus next, from how sharp the frames are.
+      //Log.d(TAG, "Got auto-focus callback");
+      message.sendToTarget();
       autoFocusHandler = null;
     } else {
       Log.d(TAG, "Got auto-focus callback, but no handler for it");
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.camera;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * Remembers the camera parameters {@link CameraConfigurationManager} worked out, so that the
+ * next start of the scanner can apply them without parsing the camera's parameter strings.
+ *
+ * Entries are kept per camera and screen resolution in a small properties file. The whole file
+ * is dropped when its VERSION or the build fingerprint it was written under differ from the
+ * current ones, i.e. after a change to this format or an OS or firmware update.
+ *
+ * The file is read and written only on the executor passed in, so the camera can be opened on
+ * the UI thread: the constructor starts reading the file, get() answers from what was read and
+ * put() and remove() are written back in order after it.
+ */
+final class CameraConfigurationCache {
+
+  private static final String TAG = CameraConfigurationCache.class.getSimpleName();
+
+  private static final String FILE_NAME = "camera_config.properties";
+  // Bump when the cached values or the way they are computed change.
+  private static final int VERSION = 1;
+  private static final String KEY_VERSION = "version";
+  private static final String KEY_FINGERPRINT = "fingerprint";
+
+  /**
+   * The values cached for one camera and screen resolution.
+   */
+  static final class Entry {
+    int cameraWidth;
+    int cameraHeight;
+    int previewFormat;
+    String previewFormatString;
+    // Values for the "zoom" and "taking-picture-zoom" parameters, or null to leave them alone.
+    String zoom;
+    String takingPictureZoom;
+  }
+
+  private final File file;
+  private final String fingerprint;
+  private final Executor executor;
+  // Null until the file was read. Only changed on the executor, under the lock of this.
+  private Properties properties;
+
+  CameraConfigurationCache(File dir, String fingerprint, Executor executor) {
+    file = new File(dir, FILE_NAME);
+    this.fingerprint = fingerprint;
+    this.executor = executor;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        Properties loaded = load();
+        synchronized (CameraConfigurationCache.this) {
+          properties = loaded;
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the entry for |cameraId| at a |screenWidth| x |screenHeight| screen, or null if
+   * there is none or the file has not been read yet.
+   */
+  synchronized Entry get(String cameraId, int screenWidth, int screenHeight) {
+    if (properties == null) {
+      Log.d(TAG, "Camera configuration cache not read yet");
+      return null;
+    }
+    String prefix = prefix(cameraId, screenWidth, screenHeight);
+    String width = properties.getProperty(prefix + "width");
+    String height = properties.getProperty(prefix + "height");
+    String previewFormat = properties.getProperty(prefix + "previewFormat");
+    if (width == null || height == null || previewFormat == null) {
+      return null;
+    }
+    Entry entry = new Entry();
+    try {
+      entry.cameraWidth = Integer.parseInt(width);
+      entry.cameraHeight = Integer.parseInt(height);
+      entry.previewFormat = Integer.parseInt(previewFormat);
+    } catch (NumberFormatException nfe) {
+      Log.w(TAG, "Bad cache entry " + prefix);
+      return null;
+    }
+    entry.previewFormatString = properties.getProperty(prefix + "previewFormatString");
+    entry.zoom = properties.getProperty(prefix + "zoom");
+    entry.takingPictureZoom = properties.getProperty(prefix + "takingPictureZoom");
+    return entry;
+  }
+
+  void put(String cameraId, int screenWidth, int screenHeight, Entry entry) {
+    final String prefix = prefix(cameraId, screenWidth, screenHeight);
+    final String width = String.valueOf(entry.cameraWidth);
+    final String height = String.valueOf(entry.cameraHeight);
+    final String previewFormat = String.valueOf(entry.previewFormat);
+    final String previewFormatString = entry.previewFormatString;
+    final String zoom = entry.zoom;
+    final String takingPictureZoom = entry.takingPictureZoom;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (CameraConfigurationCache.this) {
+          properties.setProperty(prefix + "width", width);
+          properties.setProperty(prefix + "height", height);
+          properties.setProperty(prefix + "previewFormat", previewFormat);
+          setOrRemove(properties, prefix + "previewFormatString", previewFormatString);
+          setOrRemove(properties, prefix + "zoom", zoom);
+          setOrRemove(properties, prefix + "takingPictureZoom", takingPictureZoom);
+        }
+        save();
+      }
+    });
+  }
+
+  /**
+   * Forgets the entry for |cameraId| at a |screenWidth| x |screenHeight| screen, e.g. because
+   * the camera rejected it.
+   */
+  void remove(String cameraId, int screenWidth, int screenHeight) {
+    final String prefix = prefix(cameraId, screenWidth, screenHeight);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (CameraConfigurationCache.this) {
+          for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(prefix)) {
+              properties.remove(name);
+            }
+          }
+        }
+        save();
+      }
+    });
+  }
+
+  private static String prefix(String cameraId, int screenWidth, int screenHeight) {
+    return cameraId + '.' + screenWidth + 'x' + screenHeight + '.';
+  }
+
+  private static void setOrRemove(Properties properties, String name, String value) {
+    if (value != null) {
+      properties.setProperty(name, value);
+    } else {
+      properties.remove(name);
+    }
+  }
+
+  private Properties load() {
+    Properties properties = new Properties();
+    if (!file.exists()) {
+      return properties;
+    }
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      properties.load(in);
+    } catch (IOException e) {
+      Log.w(TAG, "Can not read " + file, e);
+      properties.clear();
+    } catch (IllegalArgumentException e) {
+      Log.w(TAG, "Can not read " + file, e);
+      properties.clear();
+    } finally {
+      close(in);
+    }
+    if (!String.valueOf(VERSION).equals(properties.getProperty(KEY_VERSION))
+        || !fingerprint.equals(properties.getProperty(KEY_FINGERPRINT))) {
+      if (!properties.isEmpty()) {
+        Log.d(TAG, "Dropping camera configuration cached for another version or build");
+      }
+      properties.clear();
+    }
+    return properties;
+  }
+
+  // Runs on the executor, the only thread that changes |properties|, so it can be written out
+  // without holding the lock get() takes.
+  private void save() {
+    synchronized (this) {
+      properties.setProperty(KEY_VERSION, String.valueOf(VERSION));
+      properties.setProperty(KEY_FINGERPRINT, fingerprint);
+    }
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(file);
+      properties.store(out, null);
+    } catch (IOException e) {
+      Log.w(TAG, "Can not write " + file, e);
+    } finally {
+      close(out);
+    }
+  }
+
+  private static void close(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // continue
+      }
+    }
+  }
+}
@@ -24,6 +24,8 @@ import android.util.Log;
 import android.view.Display;
 import android.view.WindowManager;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
 final class CameraConfigurationManager {
@@ -35,29 +37,68 @@ final class CameraConfigurationManager {
 
   private static final Pattern COMMA_PATTERN = Pattern.compile(",");
 
+  // Camera.open() opens the first back-facing camera.
+  private static final String CAMERA_ID = "back";
+
   private final Context context;
+  private final CameraConfigurationCache cache;
   private Point screenResolution;
   private Point cameraResolution;
   private int previewFormat;
   private String previewFormatString;
+  // Values for the "zoom" and "taking-picture-zoom" parameters, or null to leave them alone.
+  private String zoom;
+  private String takingPictureZoom;
+  private boolean fromCache;
 
   CameraConfigurationManager(Context context) {
     this.context = context;
+    // Started here, while the activity is created, so the file is usually read by the time the
+    // camera is opened.
+    cache = new CameraConfigurationCache(context.getFilesDir(), Build.FINGERPRINT,
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+          }
+        }));
   }
 
   /**
-   * Reads, one time, values from the camera that are needed by the app.
+   * Reads, one time, values from the camera that are needed by the app. If they were worked out
+   * before for this camera and screen, they come from the cache and the camera is not asked.
    */
   void initFromCameraParameters(Camera camera) {
-    Camera.Parameters parameters = camera.getParameters();
-    previewFormat = parameters.getPreviewFormat();
-    previewFormatString = parameters.get("preview-format");
-    Log.d(TAG, "Default preview format: " + previewFormat + '/' + previewFormatString);
     WindowManager manager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
     Display display = manager.getDefaultDisplay();
     screenResolution = new Point(display.getWidth(), display.getHeight());
     Log.d(TAG, "Screen resolution: " + screenResolution);
 
+    CameraConfigurationCache.Entry entry =
+        cache.get(CAMERA_ID, screenResolution.x, screenResolution.y);
+    if (entry != null) {
+      fromCache = true;
+      cameraResolution = new Point(entry.cameraWidth, entry.cameraHeight);
+      previewFormat = entry.previewFormat;
+      previewFormatString = entry.previewFormatString;
+      zoom = entry.zoom;
+      takingPictureZoom = entry.takingPictureZoom;
+      Log.d(TAG, "Cached camera resolution: " + cameraResolution);
+      return;
+    }
+    parseCameraParameters(camera);
+  }
+
+  // Works the values out from the camera's parameter strings and caches them.
+  private void parseCameraParameters(Camera camera) {
+    fromCache = false;
+    Camera.Parameters parameters = camera.getParameters();
+    previewFormat = parameters.getPreviewFormat();
+    previewFormatString = parameters.get("preview-format");
+    Log.d(TAG, "Default preview format: " + previewFormat + '/' + previewFormatString);
+
     Point screenResolutiobForCamera=new Point();
     screenResolutiobForCamera.x=screenResolution.x;
     screenResolutiobForCamera.y=screenResolution.y;
@@ -69,6 +110,16 @@ final class CameraConfigurationManager {
 
     cameraResolution = getCameraResolution(parameters, screenResolutiobForCamera);
     Log.d(TAG, "Camera resolution: " + screenResolution);
+    findZoom(parameters);
+
+    CameraConfigurationCache.Entry entry = new CameraConfigurationCache.Entry();
+    entry.cameraWidth = cameraResolution.x;
+    entry.cameraHeight = cameraResolution.y;
+    entry.previewFormat = previewFormat;
+    entry.previewFormatString = previewFormatString;
+    entry.zoom = zoom;
+    entry.takingPictureZoom = takingPictureZoom;
+    cache.put(CAMERA_ID, screenResolution.x, screenResolution.y, entry);
   }
 
   /**
@@ -76,8 +127,27 @@ final class CameraConfigurationManager {
    * We detect the preview format here so that buildLuminanceSource() can build an appropriate
    * LuminanceSource subclass. In the future we may want to force YUV420SP as it's the smallest,
    * and the planar Y can be used for barcode scanning without a copy in some cases.
+   *
+   * If the camera rejects values that came from the cache, they are dropped from it and the
+   * values parsed from the camera are applied instead.
    */
   void setDesiredCameraParameters(Camera camera) {
+    try {
+      applyCameraParameters(camera);
+    } catch (RuntimeException e) {
+      if (!fromCache) {
+        throw e;
+      }
+      Log.w(TAG, "Camera rejected cached parameters, parsing them again", e);
+      cache.remove(CAMERA_ID, screenResolution.x, screenResolution.y);
+      parseCameraParameters(camera);
+      applyCameraParameters(camera);
+    }
+    camera.setDisplayOrientation(90);
+
+  }
+
+  private void applyCameraParameters(Camera camera) {
     Camera.Parameters parameters = camera.getParameters();
     Log.d(TAG, "Setting preview size: " + cameraResolution);
     parameters.setPreviewSize(cameraResolution.x, cameraResolution.y);
@@ -85,8 +155,13 @@ final class CameraConfigurationManager {
     setZoom(parameters);
     //setSharpness(parameters);
     camera.setParameters(parameters);
-    camera.setDisplayOrientation(90);
+  }
 
+  /**
+   * Whether the values of initFromCameraParameters() came from the cache.
+   */
+  boolean isFromCache() {
+    return fromCache;
   }
 
   Point getCameraResolution() {
@@ -206,6 +281,17 @@ final class CameraConfigurationManager {
   }
 
   private void setZoom(Camera.Parameters parameters) {
+    if (zoom != null) {
+      parameters.set("zoom", zoom);
+    }
+    if (takingPictureZoom != null) {
+      parameters.set("taking-picture-zoom", takingPictureZoom);
+    }
+  }
+
+  private void findZoom(Camera.Parameters parameters) {
+    zoom = null;
+    takingPictureZoom = null;
 
     String zoomSupportedString = parameters.get("zoom-supported");
     if (zoomSupportedString != null && !Boolean.parseBoolean(zoomSupportedString)) {
@@ -259,13 +345,13 @@ final class CameraConfigurationManager {
     // Set zoom. This helps encourage the user to pull back.
     // Some devices like the Behold have a zoom parameter
     if (maxZoomString != null || motZoomValuesString != null) {
-      parameters.set("zoom", String.valueOf(tenDesiredZoom / 10.0));
+      zoom = String.valueOf(tenDesiredZoom / 10.0);
     }
 
     // Most devices, like the Hero, appear to expose this zoom parameter.
     // It takes on values like "27" which appears to mean 2.7x zoom
     if (takingPictureZoomMaxString != null) {
-      parameters.set("taking-picture-zoom", tenDesiredZoom);
+      takingPictureZoom = String.valueOf(tenDesiredZoom);
     }
   }
 
@@ -17,6 +17,7 @@
 package com.zijunlin.Zxing.camera;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
 import android.graphics.PixelFormat;
 import android.graphics.Point;
 import android.graphics.Rect;
@@ -46,6 +47,17 @@ public final class CameraManager {
 
   private static CameraManager cameraManager;
 
+  /**
+   * Receives every preview frame after {@link #startPreviewFrames}.
+   */
+  public interface PreviewFrameListener {
+    /**
+     * Called on the camera thread. |data| is one of the preview buffers and must be handed back
+     * through {@link #releasePreviewFrame} once it is no longer used.
+     */
+    void onPreviewFrame(byte[] data, int width, int height);
+  }
+
   static final int SDK_INT; // Later we can use Build.VERSION.SDK_INT
   static {
     int sdkInt;
@@ -118,17 +130,30 @@ public final class CameraManager {
    */
   public void openDriver(SurfaceHolder holder) throws IOException {
     if (camera == null) {
+      long start = System.currentTimeMillis();
       camera = Camera.open();
       if (camera == null) {
         throw new IOException();
       }
       camera.setPreviewDisplay(holder);
+      long opened = System.currentTimeMillis();
 
-      if (!initialized) {
-        initialized = true;
-        configManager.initFromCameraParameters(camera);
+      try {
+        if (!initialized) {
+          configManager.initFromCameraParameters(camera);
+          initialized = true;
+        }
+        // Falls back to parsed parameters if the camera rejects the cached ones.
+        configManager.setDesiredCameraParameters(camera);
+      } catch (RuntimeException e) {
+        // Leave nothing half configured for the next attempt.
+        camera.release();
+        camera = null;
+        throw e;
       }
-      configManager.setDesiredCameraParameters(camera);
+      Log.d(TAG, "Camera opened in " + (opened - start) + " ms, configured in "
+          + (System.currentTimeMillis() - opened) + " ms"
+          + (configManager.isFromCache() ? " from cache" : ""));
 
  //     SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
       //�Ƿ�ʹ��ǰ��
@@ -139,10 +164,18 @@ public final class CameraManager {
     }
   }
 
+  /**
+   * Whether the camera parameters were applied from the cache of an earlier start instead of
+   * being worked out from the camera's parameter strings.
+   */
+  public boolean isConfigurationCached() {
+    return configManager.isFromCache();
+  }
+
   /**
    * Closes the camera driver if still in use.
    */
-  public void closeDriver() {
+  public synchronized void closeDriver() {
     if (camera != null) {
       FlashlightManager.disableFlashlight();
       camera.release();
@@ -163,11 +196,13 @@ public final class CameraManager {
   /**
    * Tells the camera to stop drawing preview frames.
    */
-  public void stopPreview() {
+  public synchronized void stopPreview() {
     if (camera != null && previewing) {
       if (!useOneShotPreviewCallback) {
         camera.setPreviewCallback(null);
       }
+      camera.setPreviewCallbackWithBuffer(null);
+      previewCallback.setFrameListener(null);
       camera.stopPreview();
       previewCallback.setHandler(null, 0);
       autoFocusCallback.setHandler(null, 0);
@@ -194,6 +229,40 @@ public final class CameraManager {
     }
   }
 
+  /**
+   * Delivers every preview frame to |listener| until stopPreview(), using |bufferCount| recycled
+   * preview buffers instead of a new array per frame. The camera skips frames while all buffers
+   * are in use.
+   *
+   * @param listener Receives the frames; must return each buffer via releasePreviewFrame().
+   * @param bufferCount The number of preview buffers to allocate.
+   */
+  public synchronized void startPreviewFrames(PreviewFrameListener listener, int bufferCount) {
+    if (camera != null && previewing) {
+      Point cameraResolution = configManager.getCameraResolution();
+      int bitsPerPixel = ImageFormat.getBitsPerPixel(configManager.getPreviewFormat());
+      if (bitsPerPixel <= 0) {
+        // Unknown format, e.g. "yuv420p"; 16 bits is enough for any YUV layout.
+        bitsPerPixel = 16;
+      }
+      int size = cameraResolution.x * cameraResolution.y * bitsPerPixel / 8;
+      for (int i = 0; i < bufferCount; i++) {
+        camera.addCallbackBuffer(new byte[size]);
+      }
+      previewCallback.setFrameListener(listener);
+      camera.setPreviewCallbackWithBuffer(previewCallback);
+    }
+  }
+
+  /**
+   * Hands a buffer received by a {@link PreviewFrameListener} back to the camera.
+   */
+  public synchronized void releasePreviewFrame(byte[] data) {
+    if (camera != null && previewing) {
+      camera.addCallbackBuffer(data);
+    }
+  }
+
   /**
    * Asks the camera hardware to perform an autofocus.
    *
@@ -296,6 +365,16 @@ public final class CameraManager {
    */
   public PlanarYUVLuminanceSource buildLuminanceSource(byte[] data, int width, int height) {
     Rect rect = getFramingRectInPreview();
+    checkPreviewFormat();
+    return new PlanarYUVLuminanceSource(data, width, height, rect.left, rect.top,
+        rect.width(), rect.height());
+  }
+
+  /**
+   * Throws IllegalArgumentException if the preview format is not one whose Y channel is planar
+   * and comes first.
+   */
+  public void checkPreviewFormat() {
     int previewFormat = configManager.getPreviewFormat();
     String previewFormatString = configManager.getPreviewFormatString();
     switch (previewFormat) {
@@ -305,14 +384,12 @@ public final class CameraManager {
       // This format has never been seen in the wild, but is compatible as we only care
       // about the Y channel, so allow it.
       case PixelFormat.YCbCr_422_SP:
-        return new PlanarYUVLuminanceSource(data, width, height, rect.left, rect.top,
-            rect.width(), rect.height());
+        return;
       default:
         // The Samsung Moment incorrectly uses this variant instead of the 'sp' version.
         // Fortunately, it too has all the Y data up front, so we can read it.
         if ("yuv420p".equals(previewFormatString)) {
-          return new PlanarYUVLuminanceSource(data, width, height, rect.left, rect.top,
-            rect.width(), rect.height());
+          return;
         }
     }
     throw new IllegalArgumentException("Unsupported picture format: " +
@@ -16,8 +16,6 @@
 
 package com.zijunlin.Zxing.camera;
 
-import android.graphics.Bitmap;
-
 import com.google.zxing.LuminanceSource;
 
 /**
@@ -52,6 +50,37 @@ public final class PlanarYUVLuminanceSource extends LuminanceSource {
     this.top = top;
   }
 
+  /**
+   * Reads the rectangle |left|, |top|, |width| x |height| out of a landscape frame as if the
+   * frame were rotated 90 degrees clockwise, into |buffer|. The rectangle is in rotated
+   * coordinates, and the rest of the frame is never touched.
+   *
+   * @param data A landscape frame, Y plane first.
+   * @param dataWidth The width of the frame.
+   * @param dataHeight The height of the frame.
+   * @param buffer Receives the rotated crop. It must hold at least width * height bytes and can
+   *               be reused from one frame to the next.
+   * @return A source over |buffer|.
+   */
+  public static PlanarYUVLuminanceSource createRotated(byte[] data, int dataWidth, int dataHeight,
+      byte[] buffer, int left, int top, int width, int height) {
+    // The rotated frame is |dataHeight| wide and |dataWidth| high.
+    if (left < 0 || top < 0 || left + width > dataHeight || top + height > dataWidth) {
+      throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+    }
+    // Rotated pixel (x, y) is frame pixel (y, dataHeight - 1 - x), so each rotated column is a
+    // contiguous run of one frame row.
+    for (int x = 0; x < width; x++) {
+      int inputOffset = (dataHeight - 1 - left - x) * dataWidth + top;
+      int outputOffset = x;
+      for (int y = 0; y < height; y++) {
+        buffer[outputOffset] = data[inputOffset + y];
+        outputOffset += width;
+      }
+    }
+    return new PlanarYUVLuminanceSource(buffer, width, height, 0, 0, width, height);
+  }
+
   @Override
   public byte[] getRow(int y, byte[] row) {
     if (y < 0 || y >= getHeight()) {
@@ -109,25 +138,4 @@ public final class PlanarYUVLuminanceSource extends LuminanceSource {
   public int getDataHeight() {
     return dataHeight;
   }
-
-  public Bitmap renderCroppedGreyscaleBitmap() {
-    int width = getWidth();
-    int height = getHeight();
-    int[] pixels = new int[width * height];
-    byte[] yuv = yuvData;
-    int inputOffset = top * dataWidth + left;
-
-    for (int y = 0; y < height; y++) {
-      int outputOffset = y * width;
-      for (int x = 0; x < width; x++) {
-        int grey = yuv[inputOffset + x] & 0xff;
-        pixels[outputOffset + x] = 0xFF000000 | (grey * 0x00010101);
-      }
-      inputOffset += dataWidth;
-    }
-
-    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-    bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
-    return bitmap;
-  }
 }
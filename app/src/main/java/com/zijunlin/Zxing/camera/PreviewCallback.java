@@ -30,6 +30,7 @@ final class PreviewCallback implements Camera.PreviewCallback {
   private final boolean useOneShotPreviewCallback;
   private Handler previewHandler;
   private int previewMessage;
+  private CameraManager.PreviewFrameListener frameListener;
 
   PreviewCallback(CameraConfigurationManager configManager, boolean useOneShotPreviewCallback) {
     this.configManager = configManager;
@@ -41,8 +42,18 @@ final class PreviewCallback implements Camera.PreviewCallback {
     this.previewMessage = previewMessage;
   }
 
+  void setFrameListener(CameraManager.PreviewFrameListener frameListener) {
+    this.frameListener = frameListener;
+  }
+
   public void onPreviewFrame(byte[] data, Camera camera) {
     Point cameraResolution = configManager.getCameraResolution();
+    CameraManager.PreviewFrameListener listener = frameListener;
+    if (listener != null) {
+      // Buffered preview: every frame goes to the listener, which returns the buffer.
+      listener.onPreviewFrame(data, cameraResolution.x, cameraResolution.y);
+      return;
+    }
     if (!useOneShotPreviewCallback) {
       camera.setPreviewCallback(null);
     }
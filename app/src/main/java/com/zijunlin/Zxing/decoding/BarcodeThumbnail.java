@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+import android.graphics.Bitmap;
+
+/**
+ * Renders the luminance a barcode was found in as a small greyscale bitmap.
+ *
+ * The decode worker only hands over its crop buffer, so a successful decode no longer pays for
+ * a full size ARGB array and Bitmap on the decode thread. The thumbnail is rendered later on the
+ * UI thread, subsampled to at most MAX_SIZE pixels on the long side, into a bitmap that is
+ * reused from one scan to the next.
+ */
+final class BarcodeThumbnail {
+
+  private static final int MAX_SIZE = 128;
+
+  private int[] pixels;
+  private int thumbWidth;
+  private int thumbHeight;
+  private Bitmap bitmap;
+
+  /**
+   * @param luminance The cropped luminance, |width| x |height| bytes, row by row.
+   */
+  Bitmap render(byte[] luminance, int width, int height) {
+    if (!subsample(luminance, width, height)) {
+      return null;
+    }
+    if (bitmap == null || bitmap.isRecycled()
+        || bitmap.getWidth() != thumbWidth || bitmap.getHeight() != thumbHeight) {
+      bitmap = Bitmap.createBitmap(thumbWidth, thumbHeight, Bitmap.Config.ARGB_8888);
+    }
+    bitmap.setPixels(pixels, 0, thumbWidth, 0, 0, thumbWidth, thumbHeight);
+    return bitmap;
+  }
+
+  /**
+   * Subsamples |luminance| into the ARGB pixels render() puts into the bitmap. This part needs
+   * no Android classes, so benchmarks can time it on a desktop JVM.
+   *
+   * @return false if the crop is too small for a thumbnail.
+   */
+  boolean subsample(byte[] luminance, int width, int height) {
+    // Integer subsampling keeps this a plain copy loop.
+    int step = (Math.max(width, height) + MAX_SIZE - 1) / MAX_SIZE;
+    thumbWidth = width / step;
+    thumbHeight = height / step;
+    if (thumbWidth == 0 || thumbHeight == 0) {
+      return false;
+    }
+    int size = thumbWidth * thumbHeight;
+    if (pixels == null || pixels.length < size) {
+      pixels = new int[size];
+    }
+    for (int y = 0; y < thumbHeight; y++) {
+      int inputOffset = y * step * width;
+      int outputOffset = y * thumbWidth;
+      for (int x = 0; x < thumbWidth; x++) {
+        int grey = luminance[inputOffset + x * step] & 0xff;
+        pixels[outputOffset + x] = 0xFF000000 | (grey * 0x00010101);
+      }
+    }
+    return true;
+  }
+}
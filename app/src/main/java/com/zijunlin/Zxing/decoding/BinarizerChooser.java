@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+/**
+ * Picks the binarizer for each frame of the BINARIZER_ADAPTIVE profile.
+ *
+ * GlobalHistogramBinarizer is much cheaper than HybridBinarizer but needs even lighting and
+ * sharp edges, so it is only tried on frames that look like that: mean luminance in range, few
+ * saturated pixels (glare), no tile much darker than the brightest one (shadow), and steep
+ * steps between neighbouring pixels in most rows with contrast (focus). Among those, the
+ * binarizer with the better recent success rate is used, and the other one gets every
+ * EXPLORE_INTERVAL-th frame so its rate stays current. Only frames where the reader saw finder
+ * patterns count towards the rates; frames without a code say nothing about the binarizer.
+ *
+ * Used by one decode thread; not thread-safe.
+ */
+final class BinarizerChooser {
+
+  private static final int SAMPLE_STEP = 4;
+  private static final int TILES = 4;
+  private static final int MIN_MEAN = 40;
+  private static final int MAX_MEAN = 215;
+  private static final int SATURATED = 250;
+  private static final float MAX_SATURATED_FRACTION = 0.02f;
+  // The dimmest tile's white level must be at least this fraction of the brightest one's.
+  private static final float MIN_TILE_RATIO = 0.5f;
+  // A row is in focus if some step between neighbouring pixels is at least 1/SHARP_RATIO of
+  // its contrast; only rows with MIN_ROW_CONTRAST count.
+  private static final int SHARP_RATIO = 4;
+  private static final int MIN_ROW_CONTRAST = 64;
+  private static final int EXPLORE_INTERVAL = 8;
+  private static final float RATE_WEIGHT = 0.2f;
+
+  // Recent success rates, indexed by ScanProfile.BINARIZER_HYBRID and BINARIZER_GLOBAL.
+  private final float[] successRate = {0.5f, 0.5f};
+  private final int[] tileMax = new int[TILES * TILES];
+  private int suitableFrames;
+
+  /**
+   * @param luminance The cropped frame, |width| x |height| bytes, row by row.
+   * @return ScanProfile.BINARIZER_HYBRID or BINARIZER_GLOBAL.
+   */
+  int choose(byte[] luminance, int width, int height) {
+    if (!suitsGlobal(luminance, width, height)) {
+      return ScanProfile.BINARIZER_HYBRID;
+    }
+    int best = successRate[ScanProfile.BINARIZER_GLOBAL]
+        >= successRate[ScanProfile.BINARIZER_HYBRID]
+        ? ScanProfile.BINARIZER_GLOBAL : ScanProfile.BINARIZER_HYBRID;
+    if (++suitableFrames % EXPLORE_INTERVAL == 0) {
+      return best == ScanProfile.BINARIZER_GLOBAL
+          ? ScanProfile.BINARIZER_HYBRID : ScanProfile.BINARIZER_GLOBAL;
+    }
+    return best;
+  }
+
+  /**
+   * Reports how the frame decoded with |binarizer| went; |codeSeen| tells whether the reader
+   * found finder patterns in it.
+   */
+  void onDecoded(int binarizer, boolean found, boolean codeSeen) {
+    if (found || codeSeen) {
+      successRate[binarizer] += RATE_WEIGHT * ((found ? 1 : 0) - successRate[binarizer]);
+    }
+  }
+
+  private boolean suitsGlobal(byte[] luminance, int width, int height) {
+    if (width < TILES * SAMPLE_STEP || height < TILES * SAMPLE_STEP) {
+      return false;
+    }
+    for (int i = 0; i < tileMax.length; i++) {
+      tileMax[i] = 0;
+    }
+    long sum = 0;
+    int samples = 0;
+    int saturated = 0;
+    int contrastRows = 0;
+    int sharpRows = 0;
+    for (int y = 0; y < height; y += SAMPLE_STEP) {
+      int tileRow = y * TILES / height * TILES;
+      int offset = y * width;
+      int rowMin = 255;
+      int rowMax = 0;
+      int rowStep = 0;
+      for (int x = 0; x < width - 1; x += SAMPLE_STEP) {
+        int value = luminance[offset + x] & 0xff;
+        rowMin = Math.min(rowMin, value);
+        rowMax = Math.max(rowMax, value);
+        rowStep = Math.max(rowStep, Math.abs((luminance[offset + x + 1] & 0xff) - value));
+        sum += value;
+        samples++;
+        if (value >= SATURATED) {
+          saturated++;
+        }
+        int tile = tileRow + x * TILES / width;
+        if (value > tileMax[tile]) {
+          tileMax[tile] = value;
+        }
+      }
+      if (rowMax - rowMin >= MIN_ROW_CONTRAST) {
+        contrastRows++;
+        if (rowStep * SHARP_RATIO >= rowMax - rowMin) {
+          sharpRows++;
+        }
+      }
+    }
+    long mean = sum / samples;
+    if (mean < MIN_MEAN || mean > MAX_MEAN || saturated > samples * MAX_SATURATED_FRACTION
+        || sharpRows * 2 < contrastRows) {
+      return false;
+    }
+    int brightest = 0;
+    int dimmest = 255;
+    for (int value : tileMax) {
+      brightest = Math.max(brightest, value);
+      dimmest = Math.min(dimmest, value);
+    }
+    return dimmest >= brightest * MIN_TILE_RATIO;
+  }
+}
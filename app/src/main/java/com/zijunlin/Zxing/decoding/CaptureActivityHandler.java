@@ -45,7 +45,8 @@ public final class CaptureActivityHandler extends Handler {
   private static final String TAG = CaptureActivityHandler.class.getSimpleName();
 
   private final QrActivity activity;
-  private final DecodeThread decodeThread;
+  private final DecodePipeline decodePipeline;
+  private final BarcodeThumbnail thumbnail = new BarcodeThumbnail();
   private State state;
 
   private enum State {
@@ -55,45 +56,61 @@ public final class CaptureActivityHandler extends Handler {
   }
 
   public CaptureActivityHandler(QrActivity activity, Vector<BarcodeFormat> decodeFormats,
-      String characterSet) {
+      String characterSet, ScanProfile profile, boolean thumbnailEnabled) {
     this.activity = activity;
-    decodeThread = new DecodeThread(activity, decodeFormats, characterSet,
-        new ViewfinderResultPointCallback(activity.getViewfinderView()));
-    decodeThread.start();
+    decodePipeline = new DecodePipeline(activity, decodeFormats, characterSet,
+        new ViewfinderResultPointCallback(activity.getViewfinderView()), profile,
+        thumbnailEnabled);
     state = State.SUCCESS;
 
     // Start ourselves capturing previews and decoding.
     CameraManager.get().startPreview();
+    CameraManager.get().startPreviewFrames(decodePipeline, decodePipeline.getBufferCount());
     restartPreviewAndDecode();
   }
 
   @Override
   public void handleMessage(Message message) {
     switch (message.what) {
-      case R.id.auto_focus:
-        //Log.d(TAG, "Got auto-focus message");
-        // When one auto focus pass finishes, start another. This is the closest thing to
-        // continuous AF. It does seem to hunt a bit, but I'm not sure what else to do.
+      case R.id.request_auto_focus:
+        // The decode pipeline saw blurry frames or kept failing.
         if (state == State.PREVIEW) {
           CameraManager.get().requestAutoFocus(this, R.id.auto_focus);
         }
         break;
+      case R.id.auto_focus:
+        //Log.d(TAG, "Got auto-focus message");
+        decodePipeline.onFocusDone((Boolean) message.obj);
+        break;
       case R.id.restart_preview:
         Log.d(TAG, "Got restart preview message");
         restartPreviewAndDecode();
         break;
       case R.id.decode_succeeded:
         Log.d(TAG, "Got decode succeeded message");
+        if (state != State.PREVIEW) {
+          // Another worker already found it.
+          break;
+        }
         state = State.SUCCESS;
-        Bundle bundle = message.getData();
-        Bitmap barcode = bundle == null ? null :
-            (Bitmap) bundle.getParcelable(DecodeThread.BARCODE_BITMAP);
-        activity.handleDecode((Result) message.obj, barcode);
+        decodePipeline.pause();
+        Result result = (Result) message.obj;
+        Bundle bundle = message.peekData();
+        byte[] luminance = bundle == null ? null :
+            bundle.getByteArray(DecodeThread.BARCODE_LUMINANCE);
+        Bitmap barcode = null;
+        if (luminance != null) {
+          barcode = thumbnail.render(luminance, bundle.getInt(DecodeThread.BARCODE_WIDTH),
+              bundle.getInt(DecodeThread.BARCODE_HEIGHT));
+        }
+        // The result is stamped when the reader found it.
+        Log.d(TAG, "Result latency " + (System.currentTimeMillis() - result.getTimestamp())
+            + " ms, thumbnail " + (luminance != null ? "on" : "off"));
+        activity.handleDecode(result, barcode);
         break;
       case R.id.decode_failed:
-        // We're decoding as fast as possible, so when one decode fails, start another.
-        state = State.PREVIEW;
-        CameraManager.get().requestPreviewFrame(decodeThread.getHandler(), R.id.decode);
+        // We're decoding as fast as possible; the pipeline keeps feeding the workers new frames,
+        // so there is nothing to request here.
         break;
       case R.id.return_scan_result:
         Log.d(TAG, "Got return scan result message");
@@ -113,24 +130,19 @@ public final class CaptureActivityHandler extends Handler {
   public void quitSynchronously() {
     state = State.DONE;
     CameraManager.get().stopPreview();
-    Message quit = Message.obtain(decodeThread.getHandler(), R.id.quit);
-    quit.sendToTarget();
-    try {
-      decodeThread.join();
-    } catch (InterruptedException e) {
-      // continue
-    }
+    decodePipeline.quit();
 
     // Be absolutely sure we don't send any queued up messages
     removeMessages(R.id.decode_succeeded);
     removeMessages(R.id.decode_failed);
+    removeMessages(R.id.request_auto_focus);
   }
 
   private void restartPreviewAndDecode() {
     if (state == State.SUCCESS) {
       state = State.PREVIEW;
-      CameraManager.get().requestPreviewFrame(decodeThread.getHandler(), R.id.decode);
-      CameraManager.get().requestAutoFocus(this, R.id.auto_focus);
+      // The pipeline asks for the first autofocus itself.
+      decodePipeline.resume();
       activity.drawViewfinder();
     }
   }
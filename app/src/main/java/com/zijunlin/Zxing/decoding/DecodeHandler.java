@@ -16,23 +16,19 @@
 
 package com.zijunlin.Zxing.decoding;
 
+import android.graphics.Rect;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
-import com.google.zxing.BinaryBitmap;
 import com.google.zxing.DecodeHintType;
-import com.google.zxing.MultiFormatReader;
-import com.google.zxing.ReaderException;
 import com.google.zxing.Result;
-import com.google.zxing.common.HybridBinarizer;
 import org.appspot.apprtc.QrActivity;
 import org.appspot.apprtc.R;
 
 import com.zijunlin.Zxing.camera.CameraManager;
-import com.zijunlin.Zxing.camera.PlanarYUVLuminanceSource;
 
 import java.util.Hashtable;
 
@@ -41,12 +37,17 @@ final class DecodeHandler extends Handler {
   private static final String TAG = DecodeHandler.class.getSimpleName();
 
   private final QrActivity activity;
-  private final MultiFormatReader multiFormatReader;
+  private final RoiTracker roiTracker = new RoiTracker();
+  private final FrameDecoder frameDecoder;
+  private final DecodePipeline pipeline;
+  private final int index;
 
-  DecodeHandler(QrActivity activity, Hashtable<DecodeHintType, Object> hints) {
-    multiFormatReader = new MultiFormatReader();
-    multiFormatReader.setHints(hints);
+  DecodeHandler(QrActivity activity, Hashtable<DecodeHintType, Object> hints,
+      ScanProfile profile, DecodePipeline pipeline, int index) {
     this.activity = activity;
+    this.pipeline = pipeline;
+    this.index = index;
+    frameDecoder = new FrameDecoder(hints, profile, roiTracker);
   }
 
   @Override
@@ -54,7 +55,13 @@ final class DecodeHandler extends Handler {
     switch (message.what) {
       case R.id.decode:
         //Log.d(TAG, "Got decode message");
-        decode((byte[]) message.obj, message.arg1, message.arg2);
+        byte[] data = (byte[]) message.obj;
+        boolean found = decode(data, message.arg1, message.arg2);
+        // Hand the preview buffer back only once decoding is done with it.
+        pipeline.onFrameDone(index, data, found);
+        break;
+      case R.id.reset_region:
+        roiTracker.forgetPoints();
         break;
       case R.id.quit:
         Looper.myLooper().quit();
@@ -69,44 +76,37 @@ final class DecodeHandler extends Handler {
    * @param data   The YUV preview frame.
    * @param width  The width of the preview frame.
    * @param height The height of the preview frame.
+   * @return true if a barcode was found.
    */
-  private void decode(byte[] data, int width, int height) {
+  private boolean decode(byte[] data, int width, int height) {
     long start = System.currentTimeMillis();
-    Result rawResult = null;
-
-    //竖屏
-    byte[] rotatedData = new byte[data.length];
-    for (int y = 0; y < height; y++) {
-      for (int x = 0; x < width; x++)
-        rotatedData[x * height + height - y - 1] = data[x + y * width];
-    }
-    int tmp = width; // Here we are swapping, that's the difference to #11
-    width = height;
-    height = tmp;
-    data = rotatedData;
 
-    PlanarYUVLuminanceSource source = CameraManager.get().buildLuminanceSource(data, width, height);
-    BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
-    try {
-      rawResult = multiFormatReader.decodeWithState(bitmap);
-    } catch (ReaderException re) {
-      // continue
-    } finally {
-      multiFormatReader.reset();
-    }
+    //竖屏: only the framing rect is rotated out of the landscape frame.
+    CameraManager cameraManager = CameraManager.get();
+    cameraManager.checkPreviewFormat();
+    Rect rect = cameraManager.getFramingRectInPreview();
+    Result rawResult = frameDecoder.decode(data, width, height,
+        rect.left, rect.top, rect.width(), rect.height());
 
     if (rawResult != null) {
       long end = System.currentTimeMillis();
       Log.d(TAG, "Found barcode (" + (end - start) + " ms):\n" + rawResult.toString());
       Message message = Message.obtain(activity.getHandler(), R.id.decode_succeeded, rawResult);
-      Bundle bundle = new Bundle();
-      bundle.putParcelable(DecodeThread.BARCODE_BITMAP, source.renderCroppedGreyscaleBitmap());
-      message.setData(bundle);
+      if (pipeline.isThumbnailEnabled()) {
+        // The UI renders the thumbnail; give it the crop buffer and start a new one here.
+        Bundle bundle = new Bundle();
+        bundle.putInt(DecodeThread.BARCODE_WIDTH, frameDecoder.getCropWidth());
+        bundle.putInt(DecodeThread.BARCODE_HEIGHT, frameDecoder.getCropHeight());
+        bundle.putByteArray(DecodeThread.BARCODE_LUMINANCE, frameDecoder.takeLuminance());
+        message.setData(bundle);
+      }
       //Log.d(TAG, "Sending decode succeeded message...");
       message.sendToTarget();
+      return true;
     } else {
       Message message = Message.obtain(activity.getHandler(), R.id.decode_failed);
       message.sendToTarget();
+      return false;
     }
   }
 
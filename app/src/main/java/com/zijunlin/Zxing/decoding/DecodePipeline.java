@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.ResultPointCallback;
+import org.appspot.apprtc.QrActivity;
+import org.appspot.apprtc.R;
+
+import com.zijunlin.Zxing.camera.CameraManager;
+
+import java.util.Vector;
+
+/**
+ * Feeds preview frames to a small pool of decode threads.
+ *
+ * Frames arrive from the camera in a few recycled buffers. A frame goes to an idle worker right
+ * away; if all workers are busy it waits in a single slot, and a newer frame replaces it (the
+ * stale one is dropped and its buffer handed back to the camera). Each worker reports through the
+ * usual decode_succeeded / decode_failed messages and returns its buffer when done.
+ *
+ * The pipeline also asks the activity's handler for autofocus cycles when its
+ * {@link FocusScheduler} sees blurry frames or keeps failing to decode.
+ */
+final class DecodePipeline implements CameraManager.PreviewFrameListener {
+
+  private static final String TAG = DecodePipeline.class.getSimpleName();
+
+  private static final int MAX_WORKERS = 4;
+
+  private final QrActivity activity;
+  private final DecodeThread[] workers;
+  private final boolean[] busy;
+  private final FrameGate frameGate = new FrameGate();
+  private final FocusScheduler focusScheduler = new FocusScheduler();
+  private Rect framingRect;
+  private final boolean thumbnailEnabled;
+  private byte[] pendingFrame;
+  private int pendingWidth;
+  private int pendingHeight;
+  private boolean running;
+
+  private int framesCaptured;
+  private int framesDecoded;
+  private int framesDropped;
+  private long resumeTime;
+  private long timeToFirstDecode = -1;
+
+  DecodePipeline(QrActivity activity, Vector<BarcodeFormat> decodeFormats, String characterSet,
+      ResultPointCallback resultPointCallback, ScanProfile profile, boolean thumbnailEnabled) {
+    this.activity = activity;
+    this.thumbnailEnabled = thumbnailEnabled;
+    // Leave a core for the camera and the UI.
+    int count = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() - 1));
+    workers = new DecodeThread[count];
+    busy = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      workers[i] = new DecodeThread(activity, decodeFormats, characterSet, resultPointCallback,
+          profile, this, i);
+      workers[i].start();
+    }
+    Log.d(TAG, "Started " + count + " decode workers, scan profile " + profile);
+  }
+
+  /**
+   * One buffer per worker, one for the pending slot and one for the camera to fill.
+   */
+  int getBufferCount() {
+    return workers.length + 2;
+  }
+
+  /**
+   * Whether workers hand their luminance over for a thumbnail on success.
+   */
+  boolean isThumbnailEnabled() {
+    return thumbnailEnabled;
+  }
+
+  /**
+   * Starts handing frames to the workers, e.g. after a restart of the scan.
+   */
+  synchronized void resume() {
+    framingRect = CameraManager.get().getFramingRectInPreview();
+    // Each worker tracks the code in the frames it decodes; the new scan starts without points.
+    for (DecodeThread worker : workers) {
+      Message.obtain(worker.getHandler(), R.id.reset_region).sendToTarget();
+    }
+    frameGate.reset();
+    running = true;
+    resumeTime = System.currentTimeMillis();
+    focusScheduler.reset(resumeTime);
+    timeToFirstDecode = -1;
+  }
+
+  /**
+   * Stops handing out frames; frames arriving meanwhile go straight back to the camera.
+   */
+  synchronized void pause() {
+    running = false;
+    if (pendingFrame != null) {
+      CameraManager.get().releasePreviewFrame(pendingFrame);
+      pendingFrame = null;
+    }
+  }
+
+  /**
+   * Called with the outcome of an autofocus cycle the pipeline asked for.
+   */
+  synchronized void onFocusDone(boolean success) {
+    focusScheduler.onFocusDone(success);
+  }
+
+  @Override
+  public synchronized void onPreviewFrame(byte[] data, int width, int height) {
+    framesCaptured++;
+    if (!running) {
+      CameraManager.get().releasePreviewFrame(data);
+      return;
+    }
+    long now = System.currentTimeMillis();
+    boolean admitted = admit(data, width, height, now);
+    if (focusScheduler.shouldFocus(now)) {
+      Message.obtain(activity.getHandler(), R.id.request_auto_focus).sendToTarget();
+    }
+    if (!admitted) {
+      CameraManager.get().releasePreviewFrame(data);
+      return;
+    }
+    for (int i = 0; i < workers.length; i++) {
+      if (!busy[i]) {
+        dispatch(i, data, width, height);
+        return;
+      }
+    }
+    // Latest frame wins.
+    if (pendingFrame != null) {
+      framesDropped++;
+      CameraManager.get().releasePreviewFrame(pendingFrame);
+    }
+    pendingFrame = data;
+    pendingWidth = width;
+    pendingHeight = height;
+  }
+
+  /**
+   * Called by worker |index| once it is done with |data|.
+   */
+  synchronized void onFrameDone(int index, byte[] data, boolean found) {
+    framesDecoded++;
+    if (running) {
+      focusScheduler.onDecoded(found);
+    }
+    if (found && timeToFirstDecode < 0) {
+      timeToFirstDecode = System.currentTimeMillis() - resumeTime;
+      Log.d(TAG, "First decode after " + timeToFirstDecode + " ms. " + getStatistics());
+    }
+    busy[index] = false;
+    CameraManager.get().releasePreviewFrame(data);
+    if (running && pendingFrame != null) {
+      byte[] frame = pendingFrame;
+      pendingFrame = null;
+      dispatch(index, frame, pendingWidth, pendingHeight);
+    }
+  }
+
+  /**
+   * Stops all workers and waits for them to finish.
+   */
+  void quit() {
+    pause();
+    for (DecodeThread worker : workers) {
+      Message.obtain(worker.getHandler(), R.id.quit).sendToTarget();
+    }
+    for (DecodeThread worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        // continue
+      }
+    }
+    Log.d(TAG, "Decode pipeline stopped. " + getStatistics());
+  }
+
+  synchronized int getFramesCaptured() {
+    return framesCaptured;
+  }
+
+  synchronized int getFramesDecoded() {
+    return framesDecoded;
+  }
+
+  synchronized int getFramesDropped() {
+    return framesDropped;
+  }
+
+  /**
+   * Returns the time from resume() to the first successful decode, or -1.
+   */
+  synchronized long getTimeToFirstDecode() {
+    return timeToFirstDecode;
+  }
+
+  synchronized int getFramesRejected() {
+    return frameGate.getRejected();
+  }
+
+  private String getStatistics() {
+    return "Frames captured: " + framesCaptured + ", decoded: " + framesDecoded
+        + ", dropped: " + framesDropped + ", time to first decode: " + timeToFirstDecode + " ms"
+        + ", gate " + frameGate.getStatistics() + ", focus " + focusScheduler.getStatistics();
+  }
+
+  // Skips frames that are too dark, blurry or moving to decode, and tells the focus scheduler
+  // how sharp the frame was.
+  private boolean admit(byte[] data, int width, int height, long now) {
+    // The framing rect is in portrait coordinates; the gate reads the landscape frame, where
+    // it is rect.height() wide and rect.width() high.
+    Rect rect = framingRect;
+    int verdict = frameGate.admit(data, width, rect.top, height - rect.right,
+        rect.height(), rect.width(), now);
+    if (verdict != FrameGate.REJECTED_MOVING) {
+      focusScheduler.onFrame(frameGate.getSharpness());
+    }
+    return verdict == FrameGate.ADMITTED || verdict == FrameGate.FORCED;
+  }
+
+  private void dispatch(int index, byte[] data, int width, int height) {
+    busy[index] = true;
+    Handler handler = workers[index].getHandler();
+    Message.obtain(handler, R.id.decode, width, height, data).sendToTarget();
+  }
+}
@@ -35,23 +35,34 @@ import java.util.concurrent.CountDownLatch;
  */
 final class DecodeThread extends Thread {
 
-  public static final String BARCODE_BITMAP = "barcode_bitmap";
+  // The luminance of the decoded region, handed over for a thumbnail.
+  public static final String BARCODE_LUMINANCE = "barcode_luminance";
+  public static final String BARCODE_WIDTH = "barcode_width";
+  public static final String BARCODE_HEIGHT = "barcode_height";
 
   private final QrActivity activity;
   private final Hashtable<DecodeHintType, Object> hints;
+  private final ScanProfile profile;
+  private final DecodePipeline pipeline;
+  private final int index;
   private Handler handler;
   private final CountDownLatch handlerInitLatch;
 
   DecodeThread(QrActivity activity,
                Vector<BarcodeFormat> decodeFormats,
                String characterSet,
-               ResultPointCallback resultPointCallback) {
+               ResultPointCallback resultPointCallback,
+               ScanProfile profile,
+               DecodePipeline pipeline,
+               int index) {
+    super("DecodeThread-" + index);
 
     this.activity = activity;
+    this.profile = profile;
+    this.pipeline = pipeline;
+    this.index = index;
     handlerInitLatch = new CountDownLatch(1);
 
-    hints = new Hashtable<DecodeHintType, Object>(3);
-
 //    // The prefs can't change while the thread is running, so pick them up once here.
 //    if (decodeFormats == null || decodeFormats.isEmpty()) {
 //      SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(activity);
@@ -66,21 +77,7 @@ final class DecodeThread extends Thread {
 //        decodeFormats.addAll(DecodeFormatManager.DATA_MATRIX_FORMATS);
 //      }
 //    }
-    if (decodeFormats == null || decodeFormats.isEmpty()) {
-    	 decodeFormats = new Vector<BarcodeFormat>();
-    	 decodeFormats.addAll(DecodeFormatManager.ONE_D_FORMATS);
-    	 decodeFormats.addAll(DecodeFormatManager.QR_CODE_FORMATS);
-    	 decodeFormats.addAll(DecodeFormatManager.DATA_MATRIX_FORMATS);
-    	 
-    }
-    
-    hints.put(DecodeHintType.POSSIBLE_FORMATS, decodeFormats);
-
-    if (characterSet != null) {
-      hints.put(DecodeHintType.CHARACTER_SET, characterSet);
-    }
-
-    hints.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, resultPointCallback);
+    hints = FrameDecoder.buildHints(decodeFormats, characterSet, profile, resultPointCallback);
   }
 
   Handler getHandler() {
@@ -95,7 +92,7 @@ final class DecodeThread extends Thread {
   @Override
   public void run() {
     Looper.prepare();
-    handler = new DecodeHandler(activity, hints);
+    handler = new DecodeHandler(activity, hints, profile, pipeline, index);
     handlerInitLatch.countDown();
     Looper.loop();
   }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+/**
+ * Decides when to run an autofocus cycle, instead of running one every 1.5 s.
+ *
+ * It is fed the {@link FrameGate} sharpness of each preview frame and the outcome of each decode,
+ * and focuses
+ *   o once when scanning starts,
+ *   o after BLURRY_FRAMES frames in a row that are below SHARP or have lost half the sharpness
+ *     measured right after the last focus (the scene moved closer or further away),
+ *   o after FAILURE_LIMIT failed decodes in a row, right away if the image is not sharp and
+ *     otherwise only once the idle interval has passed. The idle interval starts at
+ *     IDLE_INTERVAL_MS and doubles up to MAX_IDLE_INTERVAL_MS each time a sharp image made such
+ *     a focus pointless, so a sharp image without a code does not keep the lens hunting.
+ * Cycles are at least MIN_INTERVAL_MS apart, and a cycle whose callback never arrives is given up
+ * after FOCUS_TIMEOUT_MS.
+ *
+ * Time is passed in by the caller, so a fake clock can drive it. The class has no Android
+ * dependencies and is not thread-safe; DecodePipeline calls it under its own lock.
+ */
+final class FocusScheduler {
+
+  static final int REASON_START = 0;
+  static final int REASON_BLUR = 1;
+  static final int REASON_FAILURES = 2;
+  private static final int REASON_COUNT = 3;
+
+  // Per mille of steep gradient samples; in-focus codes measure 60 and more.
+  private static final int SHARP = 50;
+  private static final float SHARPNESS_DROP = 0.5f;
+  private static final int BLURRY_FRAMES = 3;
+  private static final int FAILURE_LIMIT = 6;
+  private static final long MIN_INTERVAL_MS = 500;
+  private static final long IDLE_INTERVAL_MS = 1500;
+  private static final long MAX_IDLE_INTERVAL_MS = 12000;
+  private static final long FOCUS_TIMEOUT_MS = 3000;
+
+  private boolean startPending;
+  private boolean focusing;
+  private long focusStartMs;
+  private long lastFocusMs;
+  private long idleIntervalMs;
+  // Sharpness of the first measurable frame after the last focus, or -1.
+  private int referenceSharpness;
+  private int lastSharpness;
+  private int blurryFrames;
+  private int failures;
+  private final int[] counts = new int[REASON_COUNT];
+  private int timeouts;
+  private int focusFailures;
+
+  FocusScheduler() {
+    reset(0);
+  }
+
+  /**
+   * Starts over, e.g. when scanning restarts; the next shouldFocus() asks for a focus.
+   */
+  void reset(long nowMs) {
+    startPending = true;
+    focusing = false;
+    lastFocusMs = nowMs - MIN_INTERVAL_MS;
+    idleIntervalMs = IDLE_INTERVAL_MS;
+    referenceSharpness = -1;
+    lastSharpness = -1;
+    blurryFrames = 0;
+    failures = 0;
+  }
+
+  /**
+   * Reports the sharpness of a preview frame, as from FrameGate.getSharpness(); -1 if the frame
+   * was too dark or flat to tell. Frames that moved should not be reported: refocusing does not
+   * help against motion blur.
+   */
+  void onFrame(int sharpness) {
+    if (focusing || sharpness < 0) {
+      return;
+    }
+    lastSharpness = sharpness;
+    if (referenceSharpness < 0) {
+      referenceSharpness = sharpness;
+    }
+    if (sharpness < SHARP || sharpness < referenceSharpness * SHARPNESS_DROP) {
+      blurryFrames++;
+    } else {
+      blurryFrames = 0;
+    }
+  }
+
+  void onDecoded(boolean found) {
+    if (found) {
+      failures = 0;
+      idleIntervalMs = IDLE_INTERVAL_MS;
+    } else if (!focusing) {
+      failures++;
+    }
+  }
+
+  /**
+   * Reports that the focus cycle asked for by shouldFocus() has finished.
+   */
+  void onFocusDone(boolean success) {
+    focusing = false;
+    if (!success) {
+      focusFailures++;
+    }
+  }
+
+  /**
+   * Returns whether a focus cycle should start now; if so, it is taken as started.
+   */
+  boolean shouldFocus(long nowMs) {
+    if (focusing) {
+      if (nowMs - focusStartMs < FOCUS_TIMEOUT_MS) {
+        return false;
+      }
+      focusing = false;
+      timeouts++;
+    }
+    if (nowMs - lastFocusMs < MIN_INTERVAL_MS) {
+      return false;
+    }
+    boolean sharp = blurryFrames == 0 && lastSharpness >= SHARP;
+    int reason;
+    if (startPending) {
+      reason = REASON_START;
+    } else if (blurryFrames >= BLURRY_FRAMES) {
+      reason = REASON_BLUR;
+      idleIntervalMs = IDLE_INTERVAL_MS;
+    } else if (failures >= FAILURE_LIMIT && (!sharp || nowMs - lastFocusMs >= idleIntervalMs)) {
+      reason = REASON_FAILURES;
+      if (sharp) {
+        idleIntervalMs = Math.min(idleIntervalMs * 2, MAX_IDLE_INTERVAL_MS);
+      }
+    } else {
+      return false;
+    }
+    counts[reason]++;
+    startPending = false;
+    focusing = true;
+    focusStartMs = nowMs;
+    lastFocusMs = nowMs;
+    referenceSharpness = -1;
+    blurryFrames = 0;
+    failures = 0;
+    return true;
+  }
+
+  /**
+   * Returns how many focus cycles were started for |reason|.
+   */
+  int getCount(int reason) {
+    return counts[reason];
+  }
+
+  int getFocusCount() {
+    return counts[REASON_START] + counts[REASON_BLUR] + counts[REASON_FAILURES];
+  }
+
+  String getStatistics() {
+    return "start: " + counts[REASON_START] + ", blur: " + counts[REASON_BLUR]
+        + ", failures: " + counts[REASON_FAILURES] + ", timed out: " + timeouts
+        + ", unsuccessful: " + focusFailures;
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Binarizer;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.ResultPointCallback;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import com.zijunlin.Zxing.camera.PlanarYUVLuminanceSource;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Decodes the framing rectangle of one landscape preview frame for the portrait screen.
+ *
+ * This is the part of {@link DecodeHandler} that does not touch the camera or the message loop,
+ * so that DecodeBenchmark, in the unit tests, runs exactly the same code on a desktop JVM. One
+ * instance is used by one thread; it reuses its reader and crop buffer from one frame to the next.
+ */
+final class FrameDecoder {
+
+  // Finder patterns plus an alignment pattern; fewer points mean no code was really seen.
+  private static final int CODE_SEEN_POINTS = 3;
+
+  private final Hashtable<DecodeHintType, Object> hints;
+  private final ScanProfile profile;
+  // Exactly one of the readers is used, depending on the profile.
+  private final MultiFormatReader multiFormatReader;
+  private final QRCodeReader qrCodeReader;
+  private final BinarizerChooser binarizerChooser = new BinarizerChooser();
+  private final RoiTracker roiTracker;
+  // Result points reported for the current frame.
+  private int framePoints;
+  // Region of the framing rect decoded in the current frame: left, top, width, height.
+  private final int[] roi = new int[4];
+  // Rotated region of the current frame, reused from one frame to the next.
+  private byte[] cropBuffer;
+  private int cropWidth;
+  private int cropHeight;
+
+  /**
+   * Builds the reader hints the scanner uses. If |decodeFormats| is empty, the formats come from
+   * |profile|: QR codes only, or all supported formats.
+   */
+  static Hashtable<DecodeHintType, Object> buildHints(Vector<BarcodeFormat> decodeFormats,
+      String characterSet, ScanProfile profile, ResultPointCallback resultPointCallback) {
+    Hashtable<DecodeHintType, Object> hints = new Hashtable<DecodeHintType, Object>(4);
+    if (decodeFormats == null || decodeFormats.isEmpty()) {
+      decodeFormats = new Vector<BarcodeFormat>();
+      if (!profile.isQrOnly()) {
+        decodeFormats.addAll(DecodeFormatManager.ONE_D_FORMATS);
+      }
+      decodeFormats.addAll(DecodeFormatManager.QR_CODE_FORMATS);
+      if (!profile.isQrOnly()) {
+        decodeFormats.addAll(DecodeFormatManager.DATA_MATRIX_FORMATS);
+      }
+    }
+    hints.put(DecodeHintType.POSSIBLE_FORMATS, decodeFormats);
+    if (profile.isTryHarder()) {
+      hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+    }
+    if (characterSet != null) {
+      hints.put(DecodeHintType.CHARACTER_SET, characterSet);
+    }
+    if (resultPointCallback != null) {
+      hints.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, resultPointCallback);
+    }
+    return hints;
+  }
+
+  /**
+   * @param hints Hints from buildHints() for the same |profile|.
+   */
+  FrameDecoder(Hashtable<DecodeHintType, Object> hints, ScanProfile profile,
+      RoiTracker roiTracker) {
+    this.hints = hints;
+    this.profile = profile;
+    this.roiTracker = roiTracker;
+    // Points are reported relative to the decoded region; move them back into the framing
+    // rect before they are tracked and drawn.
+    final ResultPointCallback viewfinderCallback =
+        (ResultPointCallback) hints.get(DecodeHintType.NEED_RESULT_POINT_CALLBACK);
+    hints.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, new ResultPointCallback() {
+      @Override
+      public void foundPossibleResultPoint(ResultPoint point) {
+        if (roi[0] != 0 || roi[1] != 0) {
+          point = new ResultPoint(point.getX() + roi[0], point.getY() + roi[1]);
+        }
+        framePoints++;
+        FrameDecoder.this.roiTracker.addPoint(point.getX(), point.getY());
+        if (viewfinderCallback != null) {
+          viewfinderCallback.foundPossibleResultPoint(point);
+        }
+      }
+    });
+    if (profile.isQrOnly()) {
+      multiFormatReader = null;
+      qrCodeReader = new QRCodeReader();
+    } else {
+      multiFormatReader = new MultiFormatReader();
+      multiFormatReader.setHints(hints);
+      qrCodeReader = null;
+    }
+  }
+
+  /**
+   * Decodes one frame. The framing rect |rectLeft|, |rectTop|, |rectWidth| x |rectHeight| is in
+   * portrait (rotated) frame coordinates.
+   *
+   * @param data   A landscape preview frame, Y plane first.
+   * @param width  The width of the preview frame.
+   * @param height The height of the preview frame.
+   * @return The result, or null if nothing was found.
+   */
+  Result decode(byte[] data, int width, int height,
+      int rectLeft, int rectTop, int rectWidth, int rectHeight) {
+    // Recent result points narrow the decoded region down to where the code is.
+    roiTracker.setFrameSize(rectWidth, rectHeight);
+    boolean reduced = roiTracker.nextRegion(roi);
+    cropWidth = roi[2];
+    cropHeight = roi[3];
+    int area = cropWidth * cropHeight;
+    if (cropBuffer == null || cropBuffer.length < area) {
+      cropBuffer = new byte[area];
+    }
+    PlanarYUVLuminanceSource source = PlanarYUVLuminanceSource.createRotated(data, width, height,
+        cropBuffer, rectLeft + roi[0], rectTop + roi[1], cropWidth, cropHeight);
+    int binarizerType = profile.getBinarizer();
+    boolean adaptive = binarizerType == ScanProfile.BINARIZER_ADAPTIVE;
+    if (adaptive) {
+      binarizerType = binarizerChooser.choose(cropBuffer, cropWidth, cropHeight);
+    }
+    Result rawResult = decode(source, binarizerType);
+    if (adaptive) {
+      boolean codeSeen = framePoints >= CODE_SEEN_POINTS;
+      binarizerChooser.onDecoded(binarizerType, rawResult != null, codeSeen);
+      if (rawResult == null && codeSeen && binarizerType == ScanProfile.BINARIZER_GLOBAL) {
+        // A code is there but the cheap binarizer lost it; don't wait for the next frame.
+        rawResult = decode(source, ScanProfile.BINARIZER_HYBRID);
+        binarizerChooser.onDecoded(ScanProfile.BINARIZER_HYBRID, rawResult != null, true);
+      }
+    }
+    roiTracker.onDecoded(rawResult != null, reduced);
+    return rawResult;
+  }
+
+  private Result decode(PlanarYUVLuminanceSource source, int binarizerType) {
+    Binarizer binarizer = binarizerType == ScanProfile.BINARIZER_GLOBAL
+        ? new GlobalHistogramBinarizer(source) : new HybridBinarizer(source);
+    BinaryBitmap bitmap = new BinaryBitmap(binarizer);
+    framePoints = 0;
+    try {
+      if (qrCodeReader != null) {
+        return qrCodeReader.decode(bitmap, hints);
+      }
+      return multiFormatReader.decodeWithState(bitmap);
+    } catch (ReaderException re) {
+      return null;
+    } finally {
+      if (qrCodeReader != null) {
+        qrCodeReader.reset();
+      } else {
+        multiFormatReader.reset();
+      }
+    }
+  }
+
+  /**
+   * Hands over the luminance decoded last, getCropWidth() x getCropHeight() bytes; the next
+   * decode starts a new buffer.
+   */
+  byte[] takeLuminance() {
+    byte[] luminance = cropBuffer;
+    cropBuffer = null;
+    return luminance;
+  }
+
+  int getCropWidth() {
+    return cropWidth;
+  }
+
+  int getCropHeight() {
+    return cropHeight;
+  }
+}
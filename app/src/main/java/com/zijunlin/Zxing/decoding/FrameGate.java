@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+/**
+ * Decides cheaply whether a preview frame is worth a decode attempt.
+ *
+ * Only a GRID x GRID grid of samples of the region (plus a neighbour to the right and below
+ * each) is read from the Y plane of an NV21 frame. A frame is rejected if it is
+ *   o too dark: mean luminance below MIN_MEAN,
+ *   o flat: fewer than MIN_CONTRAST levels between the 5th and 95th percentile of the
+ *     luminance histogram,
+ *   o blurry: fewer than MIN_EDGE_SAMPLES samples whose gradient is at least 1/EDGE_RATIO of
+ *     that contrast and at least MIN_GRADIENT, so that sensor noise does not pass for edges,
+ *   o moving: the samples differ from the previous frame's by more than MAX_MOTION on average.
+ * However many frames are rejected, one is admitted at least every MAX_INTERVAL_MS, so the
+ * thresholds can never stop the scanner.
+ *
+ * The class has no Android dependencies and does not allocate in admit(). It keeps the previous
+ * frame's samples, so it must be fed one stream of frames from one thread.
+ */
+final class FrameGate {
+
+  static final int ADMITTED = 0;
+  static final int REJECTED_DARK = 1;
+  static final int REJECTED_FLAT = 2;
+  static final int REJECTED_BLURRY = 3;
+  static final int REJECTED_MOVING = 4;
+  static final int FORCED = 5;
+  private static final int VERDICT_COUNT = 6;
+
+  private static final int GRID = 32;
+  private static final int MIN_MEAN = 30;
+  private static final int MIN_CONTRAST = 32;
+  // In focus codes have 60 per mille and more samples on steep edges; codes blurred over half a
+  // module, which no longer decode, have less than 25.
+  private static final int EDGE_RATIO = 2;
+  private static final int MIN_GRADIENT = 32;
+  private static final int MIN_EDGE_SAMPLES = GRID * GRID / 40;
+  private static final int MAX_MOTION = 20;
+  private static final long MAX_INTERVAL_MS = 400;
+
+  private final int[] histogram = new int[256];
+  private final int[] samples = new int[GRID * GRID];
+  private final int[] previousSamples = new int[GRID * GRID];
+  private boolean hasPrevious;
+  private int sharpness = -1;
+  private long lastAdmitMs = Long.MIN_VALUE / 2;
+  private final int[] counts = new int[VERDICT_COUNT];
+
+  /**
+   * Judges the region |left|, |top|, |width| x |height| of |data|, a frame |dataWidth| pixels
+   * wide with the Y plane first.
+   *
+   * @return ADMITTED or FORCED if the frame should be decoded, or one of the REJECTED_ reasons.
+   */
+  int admit(byte[] data, int dataWidth, int left, int top, int width, int height, long nowMs) {
+    int verdict = judge(data, dataWidth, left, top, width, height);
+    if (verdict != ADMITTED && nowMs - lastAdmitMs >= MAX_INTERVAL_MS) {
+      verdict = FORCED;
+    }
+    if (verdict == ADMITTED || verdict == FORCED) {
+      lastAdmitMs = nowMs;
+    }
+    counts[verdict]++;
+    return verdict;
+  }
+
+  /**
+   * Forgets the previous frame and the last admission, e.g. when scanning restarts. The next
+   * frame is admitted whatever it looks like.
+   */
+  void reset() {
+    hasPrevious = false;
+    lastAdmitMs = Long.MIN_VALUE / 2;
+  }
+
+  /**
+   * Returns how many frames got |verdict|.
+   */
+  int getCount(int verdict) {
+    return counts[verdict];
+  }
+
+  int getAdmitted() {
+    return counts[ADMITTED] + counts[FORCED];
+  }
+
+  int getRejected() {
+    return counts[REJECTED_DARK] + counts[REJECTED_FLAT] + counts[REJECTED_BLURRY]
+        + counts[REJECTED_MOVING];
+  }
+
+  String getStatistics() {
+    return "admitted: " + counts[ADMITTED] + ", forced: " + counts[FORCED]
+        + ", dark: " + counts[REJECTED_DARK] + ", flat: " + counts[REJECTED_FLAT]
+        + ", blurry: " + counts[REJECTED_BLURRY] + ", moving: " + counts[REJECTED_MOVING];
+  }
+
+  /**
+   * Returns the per mille of samples with steep gradients in the frame judged last, or -1 if
+   * it was too dark or flat to tell.
+   */
+  int getSharpness() {
+    return sharpness;
+  }
+
+  /**
+   * Like admit(), but without the minimum cadence and without counting the verdict.
+   */
+  int judge(byte[] data, int dataWidth, int left, int top, int width, int height) {
+    if (width < 2 || height < 2) {
+      return ADMITTED;
+    }
+    // Gradients are taken over a quarter of the sample spacing, so that a blur of the same
+    // fraction of the code counts the same at any preview size. Keep that much room to the right
+    // and below each sample.
+    int span = Math.max(1, Math.min(width, height) / (GRID * 4));
+    int stepX = Math.max(1, (width - span) / GRID);
+    int stepY = Math.max(1, (height - span) / GRID);
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] = 0;
+    }
+    long sum = 0;
+    int count = 0;
+    for (int gy = 0; gy < GRID; gy++) {
+      int y = top + Math.min(gy * stepY, height - 1 - span);
+      int offset = y * dataWidth + left;
+      for (int gx = 0; gx < GRID; gx++) {
+        int value = data[offset + Math.min(gx * stepX, width - 1 - span)] & 0xff;
+        samples[count++] = value;
+        histogram[value]++;
+        sum += value;
+      }
+    }
+    int mean = (int) (sum / count);
+    int contrast = percentile(count * 95 / 100) - percentile(count * 5 / 100);
+    int verdict;
+    sharpness = -1;
+    if (mean < MIN_MEAN) {
+      verdict = REJECTED_DARK;
+    } else if (contrast < MIN_CONTRAST) {
+      verdict = REJECTED_FLAT;
+    } else {
+      int edges = countEdges(data, dataWidth, left, top, width, height, stepX, stepY, span,
+          Math.max(MIN_GRADIENT, contrast / EDGE_RATIO));
+      sharpness = edges * 1000 / count;
+      if (edges < MIN_EDGE_SAMPLES) {
+        verdict = REJECTED_BLURRY;
+      } else if (hasPrevious && motion(count) > MAX_MOTION) {
+        verdict = REJECTED_MOVING;
+      } else {
+        verdict = ADMITTED;
+      }
+    }
+    System.arraycopy(samples, 0, previousSamples, 0, count);
+    hasPrevious = true;
+    return verdict;
+  }
+
+  // Returns the luminance below which |rank| samples lie.
+  private int percentile(int rank) {
+    int seen = 0;
+    for (int value = 0; value < histogram.length; value++) {
+      seen += histogram[value];
+      if (seen > rank) {
+        return value;
+      }
+    }
+    return histogram.length - 1;
+  }
+
+  private int countEdges(byte[] data, int dataWidth, int left, int top, int width, int height,
+      int stepX, int stepY, int span, int minGradient) {
+    int edges = 0;
+    for (int gy = 0; gy < GRID; gy++) {
+      int offset = (top + Math.min(gy * stepY, height - 1 - span)) * dataWidth + left;
+      for (int gx = 0; gx < GRID; gx++) {
+        int index = offset + Math.min(gx * stepX, width - 1 - span);
+        int value = data[index] & 0xff;
+        int gradient = Math.abs((data[index + span] & 0xff) - value)
+            + Math.abs((data[index + span * dataWidth] & 0xff) - value);
+        if (gradient >= minGradient) {
+          edges++;
+        }
+      }
+    }
+    return edges;
+  }
+
+  private int motion(int count) {
+    long difference = 0;
+    for (int i = 0; i < count; i++) {
+      difference += Math.abs(samples[i] - previousSamples[i]);
+    }
+    return (int) (difference / count);
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+/**
+ * Picks the region of the framing rectangle to decode, from the result points (finder patterns
+ * and the like) the reader reported on recent frames.
+ *
+ * Once at least MIN_POINTS recent points are known, the region is their bounding box grown by
+ * MARGIN of its size on every side, but never smaller than MIN_FRACTION of the frame, and kept
+ * inside the frame. Points expire after POINT_TTL decodes. After MISS_LIMIT failed decodes in a
+ * row with a reduced region, or after a success, the points are forgotten and the whole frame is
+ * decoded again.
+ *
+ * All coordinates are in the frame (framing rectangle) coordinate system. The class has no
+ * Android dependencies and is not thread-safe; each decode worker has its own, fed with the
+ * points and outcomes of the frames that worker decodes.
+ */
+final class RoiTracker {
+
+  private static final int MAX_POINTS = 16;
+  private static final int MIN_POINTS = 2;
+  private static final int POINT_TTL = 6;
+  private static final int MISS_LIMIT = 4;
+  private static final float MARGIN = 0.5f;
+  private static final float MIN_FRACTION = 0.4f;
+
+  private final float[] pointX = new float[MAX_POINTS];
+  private final float[] pointY = new float[MAX_POINTS];
+  // Decode count at which each point was reported.
+  private final long[] pointTime = new long[MAX_POINTS];
+  private int nextPoint;
+  private int pointCount;
+  private long decodes;
+  private int missStreak;
+  private int frameWidth;
+  private int frameHeight;
+
+  /**
+   * Sets the frame size and forgets all points.
+   */
+  void reset(int frameWidth, int frameHeight) {
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    forgetPoints();
+  }
+
+  /**
+   * Resets the tracker if the frame is not |frameWidth| x |frameHeight|, e.g. before the first
+   * frame or when the preview size changed.
+   */
+  void setFrameSize(int frameWidth, int frameHeight) {
+    if (frameWidth != this.frameWidth || frameHeight != this.frameHeight) {
+      reset(frameWidth, frameHeight);
+    }
+  }
+
+  void addPoint(float x, float y) {
+    pointX[nextPoint] = x;
+    pointY[nextPoint] = y;
+    pointTime[nextPoint] = decodes;
+    nextPoint = (nextPoint + 1) % MAX_POINTS;
+    if (pointCount < MAX_POINTS) {
+      pointCount++;
+    }
+  }
+
+  /**
+   * Writes the region to decode next into |roi| as left, top, width, height.
+   *
+   * @return false if the whole frame should be decoded; |roi| holds the whole frame then too.
+   */
+  boolean nextRegion(int[] roi) {
+    roi[0] = 0;
+    roi[1] = 0;
+    roi[2] = frameWidth;
+    roi[3] = frameHeight;
+    float minX = Float.MAX_VALUE;
+    float minY = Float.MAX_VALUE;
+    float maxX = -Float.MAX_VALUE;
+    float maxY = -Float.MAX_VALUE;
+    int fresh = 0;
+    for (int i = 0; i < pointCount; i++) {
+      if (decodes - pointTime[i] > POINT_TTL) {
+        continue;
+      }
+      fresh++;
+      minX = Math.min(minX, pointX[i]);
+      minY = Math.min(minY, pointY[i]);
+      maxX = Math.max(maxX, pointX[i]);
+      maxY = Math.max(maxY, pointY[i]);
+    }
+    if (fresh < MIN_POINTS) {
+      return false;
+    }
+    int width = span(maxX - minX, frameWidth);
+    int height = span(maxY - minY, frameHeight);
+    if (width >= frameWidth && height >= frameHeight) {
+      return false;
+    }
+    roi[0] = clamp(Math.round((minX + maxX - width) / 2), frameWidth - width);
+    roi[1] = clamp(Math.round((minY + maxY - height) / 2), frameHeight - height);
+    roi[2] = width;
+    roi[3] = height;
+    return true;
+  }
+
+  /**
+   * Reports the outcome of a decode; |reduced| tells whether it used a region from nextRegion().
+   */
+  void onDecoded(boolean found, boolean reduced) {
+    decodes++;
+    if (found) {
+      forgetPoints();
+    } else if (reduced && ++missStreak >= MISS_LIMIT) {
+      // The code is probably no longer where the points say; look at everything again.
+      forgetPoints();
+    }
+  }
+
+  /**
+   * Forgets all points, e.g. when scanning restarts.
+   */
+  void forgetPoints() {
+    // The first pointCount slots are the known points, so new ones start at slot 0 again.
+    nextPoint = 0;
+    pointCount = 0;
+    missStreak = 0;
+  }
+
+  // Size of the region covering a point spread of |spread| in a frame of |frameSize|.
+  private static int span(float spread, int frameSize) {
+    int size = Math.round(spread * (1 + 2 * MARGIN));
+    size = Math.max(size, Math.round(frameSize * MIN_FRACTION));
+    return Math.min(size, frameSize);
+  }
+
+  private static int clamp(int value, int max) {
+    return Math.max(0, Math.min(value, max));
+  }
+}
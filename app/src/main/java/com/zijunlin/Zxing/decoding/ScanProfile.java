@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+/**
+ * How the scanner decodes frames: which reader and formats, whether the reader tries harder,
+ * and which binarizer it uses.
+ *
+ * The app only scans the room QR codes QrActivity parses, so the QR profiles skip
+ * MultiFormatReader and the 1D and Data Matrix readers altogether. ALL_FORMATS is what the
+ * scanner did before profiles existed. QR_TRY_HARDER is the default: on the DecodeBenchmark
+ * corpus it reads every frame as QR_FAST does at a lower p90, because GlobalHistogramBinarizer
+ * is not cheaper than HybridBinarizer there and its failures cost a second decode.
+ */
+public final class ScanProfile {
+
+  public static final int BINARIZER_HYBRID = 0;
+  public static final int BINARIZER_GLOBAL = 1;
+  // Chosen per frame by BinarizerChooser.
+  public static final int BINARIZER_ADAPTIVE = 2;
+
+  public static final ScanProfile ALL_FORMATS =
+      new ScanProfile("all", false, false, BINARIZER_HYBRID);
+  public static final ScanProfile QR_FAST =
+      new ScanProfile("qr", true, false, BINARIZER_ADAPTIVE);
+  public static final ScanProfile QR_TRY_HARDER =
+      new ScanProfile("qr_tryharder", true, true, BINARIZER_HYBRID);
+
+  private static final ScanProfile[] PROFILES = {ALL_FORMATS, QR_FAST, QR_TRY_HARDER};
+
+  private final String name;
+  private final boolean qrOnly;
+  private final boolean tryHarder;
+  private final int binarizer;
+
+  private ScanProfile(String name, boolean qrOnly, boolean tryHarder, int binarizer) {
+    this.name = name;
+    this.qrOnly = qrOnly;
+    this.tryHarder = tryHarder;
+    this.binarizer = binarizer;
+  }
+
+  public static ScanProfile[] values() {
+    return PROFILES.clone();
+  }
+
+  /**
+   * Returns the profile called |name|, or QR_TRY_HARDER if there is none.
+   */
+  public static ScanProfile fromName(String name) {
+    for (ScanProfile profile : PROFILES) {
+      if (profile.name.equals(name)) {
+        return profile;
+      }
+    }
+    return QR_TRY_HARDER;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isQrOnly() {
+    return qrOnly;
+  }
+
+  public boolean isTryHarder() {
+    return tryHarder;
+  }
+
+  public int getBinarizer() {
+    return binarizer;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -108,12 +108,17 @@ public final class ViewfinderView extends View {
       int middle = frame.height() / 2 + frame.top;
       canvas.drawRect(frame.left + 2, middle - 1, frame.right - 1, middle + 2, paint);
 
-      Collection<ResultPoint> currentPossible = possibleResultPoints;
+      Collection<ResultPoint> currentPossible;
+      synchronized (this) {
+        currentPossible = possibleResultPoints;
+        if (!currentPossible.isEmpty()) {
+          possibleResultPoints = new HashSet<ResultPoint>(5);
+        }
+      }
       Collection<ResultPoint> currentLast = lastPossibleResultPoints;
       if (currentPossible.isEmpty()) {
         lastPossibleResultPoints = null;
       } else {
-        possibleResultPoints = new HashSet<ResultPoint>(5);
         lastPossibleResultPoints = currentPossible;
         paint.setAlpha(OPAQUE);
         paint.setColor(resultPointColor);
@@ -150,7 +155,8 @@ public final class ViewfinderView extends View {
     invalidate();
   }
 
-  public void addPossibleResultPoint(ResultPoint point) {
+  // Called from the decode workers.
+  public synchronized void addPossibleResultPoint(ResultPoint point) {
     possibleResultPoints.add(point);
   }
 
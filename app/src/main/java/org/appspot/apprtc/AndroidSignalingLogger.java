@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.signaling.SignalingLogger;
+
+import android.util.Log;
+
+/**
+ * Logs the signaling core to logcat.
+ */
+class AndroidSignalingLogger implements SignalingLogger {
+    public static final SignalingLogger INSTANCE = new AndroidSignalingLogger();
+
+    @Override
+    public void d(String tag, String message) {
+        Log.d(tag, message);
+    }
+
+    @Override
+    public void w(String tag, String message) {
+        Log.w(tag, message);
+    }
+
+    @Override
+    public void e(String tag, String message) {
+        Log.e(tag, message);
+    }
+}
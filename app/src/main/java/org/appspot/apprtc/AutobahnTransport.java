@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.signaling.SignalingTransport;
+
+import de.tavendo.autobahn.WebSocket.WebSocketConnectionObserver;
+import de.tavendo.autobahn.WebSocketConnection;
+import de.tavendo.autobahn.WebSocketException;
+import de.tavendo.autobahn.WebSocketOptions;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+
+/**
+ * {@link SignalingTransport} over an autobahn WebSocketConnection, the one the
+ * app uses.
+ */
+class AutobahnTransport implements SignalingTransport {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final SignalingTransport.Factory FACTORY = new SignalingTransport.Factory() {
+        @Override
+        public SignalingTransport createTransport() {
+            return new AutobahnTransport();
+        }
+    };
+
+    private final WebSocketConnection ws = new WebSocketConnection();
+
+    @Override
+    public void connect(String url, final Observer observer) {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        // Text messages are delivered as raw UTF-8 so that they can be decoded
+        // without building an intermediate String.
+        WebSocketOptions options = new WebSocketOptions();
+        options.setReceiveTextMessagesRaw(true);
+        try {
+            ws.connect(uri, new WebSocketConnectionObserver() {
+                @Override
+                public void onOpen() {
+                    observer.onOpen();
+                }
+
+                @Override
+                public void onClose(WebSocketCloseNotification code, String reason) {
+                    observer.onClose(code + ": " + reason);
+                }
+
+                @Override
+                public void onTextMessage(String payload) {
+                    observer.onMessage(payload.getBytes(UTF_8));
+                }
+
+                @Override
+                public void onRawTextMessage(byte[] payload) {
+                    observer.onMessage(payload);
+                }
+
+                @Override
+                public void onBinaryMessage(byte[] payload) {
+                }
+            }, options);
+        } catch (WebSocketException e) {
+            observer.onClose("WebSocket connection error: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void sendTextMessage(String message) {
+        ws.sendTextMessage(message);
+    }
+
+    @Override
+    public void disconnect() {
+        ws.disconnect();
+    }
+}
@@ -37,10 +37,11 @@ import com.google.android.gms.common.api.GoogleApiClient;
 import org.webrtc.EglBase;
 import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
-import org.webrtc.StatsReport;
 import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.SurfaceViewRenderer;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -65,6 +66,8 @@ public class CallActivity extends Activity
             "org.appspot.apprtc.VIDEO_HEIGHT";
     public static final String EXTRA_VIDEO_FPS =
             "org.appspot.apprtc.VIDEO_FPS";
+    public static final String EXTRA_VIDEO_AUTO_QUALITY =
+            "org.appspot.apprtc.VIDEO_AUTO_QUALITY";
     public static final String EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED =
             "org.appsopt.apprtc.VIDEO_CAPTUREQUALITYSLIDER";
     public static final String EXTRA_VIDEO_BITRATE =
@@ -87,6 +90,16 @@ public class CallActivity extends Activity
             "org.appspot.apprtc.CMDLINE";
     public static final String EXTRA_RUNTIME =
             "org.appspot.apprtc.RUNTIME";
+    public static final String EXTRA_CANDIDATE_BATCH_WINDOW =
+            "org.appspot.apprtc.CANDIDATE_BATCH_WINDOW";
+    public static final String EXTRA_CANDIDATE_BATCH_SIZE =
+            "org.appspot.apprtc.CANDIDATE_BATCH_SIZE";
+    public static final String EXTRA_RECORD_STATS =
+            "org.appspot.apprtc.RECORD_STATS";
+    public static final String EXTRA_STANDBY_POOL_SIZE =
+            "org.appspot.apprtc.STANDBY_POOL_SIZE";
+    public static final String EXTRA_STANDBY_POOL_TTL =
+            "org.appspot.apprtc.STANDBY_POOL_TTL";
     private static final String TAG = "CallRTCClient";
 
     // List of mandatory application permissions.
@@ -97,6 +110,8 @@ public class CallActivity extends Activity
     };
     // Peer connection statistics callback period in ms.
     private static final int STAT_CALLBACK_PERIOD = 1000;
+    private static final String STATS_RECORD_FILE = "stats.rtcs";
+    private static final int CPU_SAMPLE_PERIOD = 1000;
     // Local preview screen position before call is connected.
     private static final int LOCAL_X_CONNECTING = 0;
     private static final int LOCAL_Y_CONNECTING = 0;
@@ -145,6 +160,11 @@ public class CallActivity extends Activity
     // Controls
     CallFragment callFragment;
     HudFragment hudFragment;
+    // Written on the stats callback thread.
+    private volatile StatsRecorder statsRecorder;
+    private CpuMonitor cpuMonitor;
+    // Used on the stats callback thread; cleared once the user picks a format.
+    private volatile CaptureQualityPolicy captureQualityPolicy;
     /**
      * ATTENTION: This was auto-generated to implement the App Indexing API.
      * See https://g.co/AppIndexing/AndroidStudio for more information.
@@ -261,7 +281,12 @@ public class CallActivity extends Activity
         runTimeMs = intent.getIntExtra(EXTRA_RUNTIME, 0);
 
         // Create connection client and connection parameters.
-        appRtcClient = new WebSocketRTCClient(this, new LooperExecutor());
+        WebSocketRTCClient webSocketRTCClient =
+                new WebSocketRTCClient(this, new LooperExecutor());
+        webSocketRTCClient.setCandidateBatching(
+                intent.getIntExtra(EXTRA_CANDIDATE_BATCH_WINDOW, 0),
+                intent.getIntExtra(EXTRA_CANDIDATE_BATCH_SIZE, 8));
+        appRtcClient = webSocketRTCClient;
         roomConnectionParameters = new RoomConnectionParameters(
                 roomUri.toString(), roomId);
 
@@ -287,6 +312,24 @@ public class CallActivity extends Activity
         peerConnectionClient = PeerConnectionClient.getInstance();
         peerConnectionClient.createPeerConnectionFactory(
                 CallActivity.this, peerConnectionParameters, CallActivity.this);
+        if (intent.getBooleanExtra(EXTRA_RECORD_STATS, false)) {
+            openStatsRecorder();
+        }
+        if (peerConnectionParameters.videoCallEnabled
+                && intent.getBooleanExtra(EXTRA_VIDEO_AUTO_QUALITY, false)) {
+            captureQualityPolicy = new CaptureQualityPolicy(
+                    peerConnectionParameters.videoWidth, peerConnectionParameters.videoHeight);
+        }
+        if (statsRecorder != null || captureQualityPolicy != null
+                || intent.getBooleanExtra(EXTRA_DISPLAY_HUD, false)) {
+            // Sampled in the background and shared by the HUD and the stats consumers.
+            cpuMonitor = new CpuMonitor();
+            cpuMonitor.start(CPU_SAMPLE_PERIOD);
+            hudFragment.setCpuMonitor(cpuMonitor);
+        }
+        peerConnectionClient.setStandbyPool(
+                intent.getIntExtra(EXTRA_STANDBY_POOL_SIZE, 0),
+                intent.getIntExtra(EXTRA_STANDBY_POOL_TTL, 60000));
         // ATTENTION: This was auto-generated to implement the App Indexing API.
         // See https://g.co/AppIndexing/AndroidStudio for more information.
         client = new GoogleApiClient.Builder(this).addApi(AppIndex.API).build();
@@ -344,6 +387,10 @@ public class CallActivity extends Activity
 
     @Override
     public void onCaptureFormatChange(int width, int height, int framerate) {
+        if (captureQualityPolicy != null) {
+            Log.d(TAG, "Capture format picked by user, automatic quality off.");
+            captureQualityPolicy = null;
+        }
         if (peerConnectionClient != null) {
             peerConnectionClient.changeCaptureFormat(width, height, framerate);
         }
@@ -446,6 +493,20 @@ public class CallActivity extends Activity
         peerConnectionClient.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
     }
 
+    private void openStatsRecorder() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        File file = new File(dir, STATS_RECORD_FILE);
+        try {
+            statsRecorder = StatsRecorder.open(file);
+            Log.d(TAG, "Recording statistics to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Can not open statistics file " + file, e);
+        }
+    }
+
     private void onAudioManagerChangedState() {
         // TODO(henrika): disable video if AppRTCAudioManager.AudioDevice.EARPIECE
         // is active.
@@ -462,6 +523,14 @@ public class CallActivity extends Activity
             peerConnectionClient.close();
             peerConnectionClient = null;
         }
+        if (cpuMonitor != null) {
+            cpuMonitor.stop();
+        }
+        if (statsRecorder != null) {
+            StatsRecorder recorder = statsRecorder;
+            statsRecorder = null;
+            recorder.close();
+        }
         if (localRender != null) {
             localRender.release();
             localRender = null;
@@ -567,13 +636,16 @@ public class CallActivity extends Activity
         if (!peerConnectionClient.isConnected()) {
             peerConnectionClient.createPeerConnection(peerId, rootEglBase.getContext(),
                     localRender, remoteRender, signalingParameters, isHelperMode);
-            peerConnectionClient.setRemoteDescription(sdp);
+            peerConnectionClient.setRemoteDescription(peerId, sdp);
             // Create answer. Answer SDP will be sent to offering client in
             // PeerConnectionEvents.onLocalDescription event.
             masterId = peerId;
-            peerConnectionClient.createAnswer();
-
-
+            peerConnectionClient.createAnswer(peerId);
+        } else if (!peerConnectionClient.hasPeer(peerId)) {
+            // Serve an additional peer next to the existing ones.
+            peerConnectionClient.addPeer(peerId);
+            peerConnectionClient.setRemoteDescription(peerId, sdp);
+            peerConnectionClient.createAnswer(peerId);
         } else {
             appRtcClient.sendAnswerSdp(peerId, null);
             Log.e(TAG, "拒绝来自" + Long.toString(peerId) + "的邀请");
@@ -583,16 +655,16 @@ public class CallActivity extends Activity
     @Override
     public void onRemoteAnswer(long peerId, final SessionDescription sdp) {
         final long delta = System.currentTimeMillis() - callStartedTimeMs;
-        //如果应答answer的对端与masterId不符
-        // 则忽略这条answer
-        if (peerId != masterId) {
-            Log.e(TAG, "忽略来自" + Long.toString(peerId) + "的应答");
-            return;
-        }
         if (peerConnectionClient == null) {
             Log.e(TAG, "Received remote SDP for non-initilized peer connection.");
             return;
         }
+        //如果应答answer的对端没有连接
+        // 则忽略这条answer
+        if (!peerConnectionClient.hasPeer(peerId)) {
+            Log.e(TAG, "忽略来自" + Long.toString(peerId) + "的应答");
+            return;
+        }
         if (sdp == null) {
             logAndToast("对端拒绝邀请");
             return;
@@ -600,7 +672,7 @@ public class CallActivity extends Activity
 
         //发起连接
         logAndToast("接收到远程" + sdp.type + ", 延迟=" + delta + "ms");
-        peerConnectionClient.setRemoteDescription(sdp);
+        peerConnectionClient.setRemoteDescription(peerId, sdp);
     }
 
     public void updateClientList(long peerId, String deviceType) {
@@ -638,6 +710,14 @@ public class CallActivity extends Activity
             logAndToast("已经和选择客户端建立连接或者只有2个客户端");
             return;
         }
+        // Already negotiated with |clientId|, e.g. its offer was answered as
+        // an additional peer: only switch to it, a new offer would fail.
+        if (peerConnectionClient.hasPeer(clientId)) {
+            logAndToast("切换到已连接的客户端：" + clientId);
+            peerConnectionClient.setActivePeer(clientId);
+            masterId = clientId;
+            return;
+        }
         //断开已存在的连接
         if (masterId > 0) {
             logAndToast("将与选择客户端建立连接");
@@ -648,7 +728,7 @@ public class CallActivity extends Activity
                     localRender, remoteRender, signalingParameters, isHelperMode);
         }
         masterId = clientId;
-        peerConnectionClient.createOffer();
+        peerConnectionClient.createOffer(clientId);
 
 
 
@@ -733,6 +813,9 @@ public class CallActivity extends Activity
         }
         else {
             logAndToast("客户端离开:" + leaveID);
+            if (peerConnectionClient != null) {
+                peerConnectionClient.removePeer(leaveID);
+            }
         }
         for (int i = 0; i < clientInfoList.size(); i++) {
             if (clientInfoList.get(i).getClientId() == leaveID)//找到
@@ -745,7 +828,7 @@ public class CallActivity extends Activity
     }
 
     @Override
-    public void onRemoteIceCandidate(long peerId, final IceCandidate candidate) {
+    public void onRemoteIceCandidate(final long peerId, final IceCandidate candidate) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -754,7 +837,7 @@ public class CallActivity extends Activity
                             "Received ICE candidate for non-initilized peer connection.");
                     return;
                 }
-                peerConnectionClient.addRemoteIceCandidate(candidate);
+                peerConnectionClient.addRemoteIceCandidate(peerId, candidate);
             }
         });
     }
@@ -780,7 +863,7 @@ public class CallActivity extends Activity
     // All callbacks are invoked from peer connection client looper thread and
     // are routed to UI thread.
     @Override
-    public void onLocalDescription(final SessionDescription sdp) {
+    public void onLocalDescription(final long peerId, final SessionDescription sdp) {
         final long delta = System.currentTimeMillis() - callStartedTimeMs;
         runOnUiThread(new Runnable() {
             @Override
@@ -788,11 +871,11 @@ public class CallActivity extends Activity
                 if (appRtcClient != null) {
                     switch (sdp.type) {
                         case OFFER:
-                            appRtcClient.sendOfferSdp(masterId, sdp, isHelperMode);
+                            appRtcClient.sendOfferSdp(peerId, sdp, isHelperMode);
                             logAndToast("发送" + sdp.type + ", 延迟=" + delta + "ms");
                             break;
                         case ANSWER:
-                            appRtcClient.sendAnswerSdp(masterId, sdp);
+                            appRtcClient.sendAnswerSdp(peerId, sdp);
                             logAndToast("发送" + sdp.type + ", 延迟=" + delta + "ms");
                             break;
                         default:
@@ -806,39 +889,45 @@ public class CallActivity extends Activity
     }
 
     @Override
-    public void onIceCandidate(final IceCandidate candidate) {
+    public void onIceCandidate(final long peerId, final IceCandidate candidate) {
 
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 if (appRtcClient != null) {
-                    appRtcClient.sendLocalIceCandidate(CallActivity.this.masterId, candidate);
+                    appRtcClient.sendLocalIceCandidate(peerId, candidate);
                 }
             }
         });
     }
 
     @Override
-    public void onIceConnected() {
+    public void onIceConnected(final long peerId) {
         final long delta = System.currentTimeMillis() - callStartedTimeMs;
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                logAndToast("连接已建立, 延迟=" + delta + "ms");
-                iceConnected = true;
-                callConnected();
+                logAndToast(peerId + "连接已建立, 延迟=" + delta + "ms");
+                if (!iceConnected) {
+                    iceConnected = true;
+                    callConnected();
+                }
             }
         });
     }
 
     @Override
-    public void onIceDisconnected() {
+    public void onIceDisconnected(final long peerId) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                logAndToast("连接断开");
-                iceConnected = false;
-                disconnect();
+                logAndToast(peerId + "连接断开");
+                if (peerId == masterId) {
+                    iceConnected = false;
+                    disconnect();
+                } else if (peerConnectionClient != null) {
+                    peerConnectionClient.removePeer(peerId);
+                }
             }
         });
     }
@@ -848,17 +937,51 @@ public class CallActivity extends Activity
     }
 
     @Override
-    public void onPeerConnectionStatsReady(final StatsReport[] reports) {
+    public void onPeerConnectionStatsReady(final StatsSnapshot snapshot) {
+        StatsRecorder recorder = statsRecorder;
+        CaptureQualityPolicy policy = captureQualityPolicy;
+        if (recorder != null || policy != null) {
+            boolean cpuValid = cpuMonitor.isValid();
+            int cpuCurrent = cpuValid ? cpuMonitor.getCpuCurrent() : -1;
+            int cpuAvg3 = cpuValid ? cpuMonitor.getCpuAvg3() : -1;
+            if (recorder != null) {
+                recorder.record(snapshot, cpuCurrent, cpuAvg3);
+            }
+            if (policy != null) {
+                updateCaptureQuality(policy, snapshot, cpuAvg3);
+            }
+        }
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 if (!isError && iceConnected) {
-                    hudFragment.updateEncoderStatistics(reports);
+                    hudFragment.updateEncoderStatistics(snapshot);
                 }
             }
         });
     }
 
+    // Called on the stats callback thread.
+    private void updateCaptureQuality(
+            CaptureQualityPolicy policy, StatsSnapshot snapshot, int cpuAvg3) {
+        StatsSnapshot.Record bwe = snapshot.find(StatsSnapshot.KIND_BWE);
+        StatsSnapshot.Record videoSend = snapshot.find(StatsSnapshot.KIND_VIDEO_SEND);
+        long availableSendBps = bwe == null
+                ? -1 : bwe.getLong(StatsSnapshot.SLOT_AVAILABLE_SEND_BANDWIDTH, -1);
+        long framerateSent = videoSend == null
+                ? -1 : videoSend.getLong(StatsSnapshot.SLOT_FRAME_RATE_SENT, -1);
+        if (policy.update(snapshot.getTimestampMs(), availableSendBps, framerateSent, cpuAvg3)) {
+            Log.d(TAG, "Capture format " + policy.getWidth() + "x" + policy.getHeight()
+                    + "@" + policy.getFramerate() + " (" + policy.getReason() + "), bwe: "
+                    + availableSendBps + ", fps: " + framerateSent + ", cpu: " + cpuAvg3);
+            PeerConnectionClient client = peerConnectionClient;
+            if (client != null) {
+                client.changeCaptureFormat(
+                        policy.getWidth(), policy.getHeight(), policy.getFramerate());
+            }
+        }
+    }
+
     @Override
     public void onPeerConnectionError(final String description) {
         reportError(description);
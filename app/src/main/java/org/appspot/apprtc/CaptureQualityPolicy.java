@@ -0,0 +1,208 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Automatic capture format policy, the counterpart of the seekbar driven
+ * {@link CaptureQualityController}.
+ *
+ * <p>Each stats tick is fed to update() with the available send bandwidth,
+ * the sent frame rate and the average CPU load. The policy picks a format from
+ * the same ladder the seekbar uses:
+ *   o Bandwidth: the format and frame rate that fit the available send
+ *     bandwidth at BITS_PER_PIXEL are the target. Downgrades need DOWN_TICKS
+ *     consecutive ticks and MIN_DOWN_INTERVAL_MS since the last change;
+ *     upgrades need UP_TICKS ticks with UP_MARGIN headroom and
+ *     MIN_UP_INTERVAL_MS, and go up one format at a time.
+ *   o CPU: above CPU_HIGH percent, or if the encoder delivers less than
+ *     FPS_STARVED_RATIO of the requested frame rate, the format is capped one
+ *     step below the current one right away, at most once per
+ *     MIN_CPU_INTERVAL_MS. The cap is lifted one step each time the load
+ *     stays below CPU_LOW for UP_TICKS ticks.
+ *
+ * <p>The class has no Android dependencies and does not allocate in update(),
+ * so it can be driven by recorded stats traces on a desktop JVM. It is not
+ * thread-safe.
+ */
+public class CaptureQualityPolicy {
+  // Same ladder as CaptureQualityController, best first.
+  private static final int[][] FORMATS = {
+      {1280, 720}, {640, 480}, {320, 240}, {256, 144}};
+  private static final int MAX_FRAMERATE = 30;
+  private static final int MIN_FRAMERATE = 15;
+  // Assumed encoder efficiency used to turn bits into pixels.
+  private static final double BITS_PER_PIXEL = 0.1;
+  private static final double UP_MARGIN = 1.3;
+  private static final int DOWN_TICKS = 2;
+  private static final int UP_TICKS = 5;
+  private static final int CPU_HIGH = 85;
+  private static final int CPU_LOW = 50;
+  private static final double FPS_STARVED_RATIO = 0.6;
+  private static final long MIN_DOWN_INTERVAL_MS = 2000;
+  private static final long MIN_UP_INTERVAL_MS = 10000;
+  // Longer than the 3 sample CPU average, so a step down shows in the load
+  // before the next one.
+  private static final long MIN_CPU_INTERVAL_MS = 6000;
+
+  public static final String REASON_BANDWIDTH_DOWN = "bandwidth down";
+  public static final String REASON_BANDWIDTH_UP = "bandwidth up";
+  public static final String REASON_CPU = "cpu overuse";
+  public static final String REASON_ENCODER_STARVED = "encoder frame rate low";
+
+  private final int firstLevel;
+  private int level;
+  private int framerate = MAX_FRAMERATE;
+  // Lowest level index allowed by CPU, i.e. the best format allowed.
+  private int cpuCap;
+  private int downTicks;
+  private int upTicks;
+  private int cpuLowTicks;
+  private long lastChangeMs = -MIN_UP_INTERVAL_MS;
+  private String reason;
+
+  /**
+   * Creates a policy that never goes above |maxWidth| x |maxHeight|; 0 means
+   * no limit.
+   */
+  public CaptureQualityPolicy(int maxWidth, int maxHeight) {
+    int first = 0;
+    if (maxWidth > 0 && maxHeight > 0) {
+      while (first < FORMATS.length - 1
+          && FORMATS[first][0] * FORMATS[first][1] > maxWidth * maxHeight) {
+        first++;
+      }
+    }
+    firstLevel = first;
+    level = first;
+    cpuCap = first;
+  }
+
+  /**
+   * Feeds one stats tick. Negative values mean "unknown" and are ignored.
+   * Returns true if the capture format should change; see getWidth(),
+   * getHeight(), getFramerate() and getReason().
+   */
+  public boolean update(long nowMs, long availableSendBps, long framerateSent, int cpuAvg) {
+    // CPU overuse and a starved encoder cap the format one step below the
+    // current one; the cap is lifted step by step once the load is low.
+    boolean sinceChange = nowMs - lastChangeMs >= MIN_CPU_INTERVAL_MS;
+    boolean cpuHigh = cpuAvg >= CPU_HIGH;
+    boolean starved = framerateSent >= 0 && availableSendBps >= 0
+        && framerateSent < framerate * FPS_STARVED_RATIO
+        && targetLevel(availableSendBps) <= level;
+    String cpuReason = null;
+    if ((cpuHigh || starved) && sinceChange && level < FORMATS.length - 1) {
+      cpuCap = level + 1;
+      cpuLowTicks = 0;
+      cpuReason = cpuHigh ? REASON_CPU : REASON_ENCODER_STARVED;
+    } else if (cpuAvg >= 0 && cpuAvg < CPU_LOW && cpuCap > firstLevel) {
+      if (++cpuLowTicks >= UP_TICKS) {
+        cpuCap--;
+        cpuLowTicks = 0;
+      }
+    }
+
+    // Format the bandwidth supports now, and with headroom for upgrades.
+    int downLevel = Math.max(level, cpuCap);
+    int downFps = framerate;
+    int upLevel = downLevel;
+    int upFps = downFps;
+    long upBps = -1;
+    if (availableSendBps >= 0) {
+      downLevel = Math.max(targetLevel(availableSendBps), cpuCap);
+      downFps = framerateFor(availableSendBps, downLevel);
+      upBps = (long) (availableSendBps / UP_MARGIN);
+      upLevel = Math.max(targetLevel(upBps), cpuCap);
+      upFps = framerateFor(upBps, upLevel);
+    }
+
+    if (cpuReason != null) {
+      // CPU overuse does not wait for more ticks.
+      return change(nowMs, downLevel, downFps, cpuReason);
+    }
+    if (isWorse(downLevel, downFps, level, framerate)) {
+      upTicks = 0;
+      if (++downTicks >= DOWN_TICKS && nowMs - lastChangeMs >= MIN_DOWN_INTERVAL_MS) {
+        return change(nowMs, downLevel, downFps, REASON_BANDWIDTH_DOWN);
+      }
+    } else if (isWorse(level, framerate, upLevel, upFps)) {
+      downTicks = 0;
+      if (++upTicks >= UP_TICKS && nowMs - lastChangeMs >= MIN_UP_INTERVAL_MS) {
+        // Step up one level at a time.
+        int newLevel = Math.max(upLevel, level - 1);
+        return change(nowMs, newLevel, framerateFor(upBps, newLevel), REASON_BANDWIDTH_UP);
+      }
+    } else {
+      downTicks = 0;
+      upTicks = 0;
+    }
+    return false;
+  }
+
+  public int getWidth() {
+    return FORMATS[level][0];
+  }
+
+  public int getHeight() {
+    return FORMATS[level][1];
+  }
+
+  public int getFramerate() {
+    return framerate;
+  }
+
+  /**
+   * Returns why the last change was made, one of the REASON_ constants.
+   */
+  public String getReason() {
+    return reason;
+  }
+
+  private boolean change(long nowMs, int newLevel, int newFramerate, String newReason) {
+    downTicks = 0;
+    upTicks = 0;
+    if (newLevel == level && newFramerate == framerate) {
+      return false;
+    }
+    level = newLevel;
+    framerate = newFramerate;
+    reason = newReason;
+    lastChangeMs = nowMs;
+    return true;
+  }
+
+  // Returns true if format |level1| at |fps1| is worse than |level2| at |fps2|.
+  private static boolean isWorse(int level1, int fps1, int level2, int fps2) {
+    return level1 > level2 || (level1 == level2 && fps1 < fps2);
+  }
+
+  // Returns the best level whose pixel rate at MIN_FRAMERATE fits
+  // |availableSendBps|.
+  private int targetLevel(long availableSendBps) {
+    double pixelsPerSecond = availableSendBps / BITS_PER_PIXEL;
+    for (int i = firstLevel; i < FORMATS.length; i++) {
+      if ((double) FORMATS[i][0] * FORMATS[i][1] * MIN_FRAMERATE <= pixelsPerSecond) {
+        return i;
+      }
+    }
+    return FORMATS.length - 1;
+  }
+
+  // Highest frame rate that fits the bandwidth at |level|, within
+  // [MIN_FRAMERATE, MAX_FRAMERATE].
+  private static int framerateFor(long availableSendBps, int level) {
+    double pixels = (double) FORMATS[level][0] * FORMATS[level][1];
+    int fps = (int) (availableSendBps / BITS_PER_PIXEL / pixels);
+    // Round down to steps of 5 fps so small bandwidth jitter is ignored.
+    fps -= fps % 5;
+    return Math.max(MIN_FRAMERATE, Math.min(MAX_FRAMERATE, fps));
+  }
+}
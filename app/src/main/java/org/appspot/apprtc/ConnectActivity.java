@@ -32,6 +32,13 @@ import android.widget.Toast;
  * Handles the initial setup where the user selects which room to join.
  */
 public class ConnectActivity extends Activity {
+    /**
+     * Number of clients of a {@link SignalingBenchmark} to run at start, with the results in the
+     * log, e.g. adb shell am start -n org.appspot.apprtc/.ConnectActivity
+     * --ei org.appspot.apprtc.SIGNALING_BENCHMARK 8
+     * <p>Debug builds only: any app can start this activity, so release builds ignore it.
+     */
+    public static final String EXTRA_SIGNALING_BENCHMARK = "org.appspot.apprtc.SIGNALING_BENCHMARK";
     private static final String TAG = "ConnectActivity";
     private static final int CONNECTION_REQUEST = 1;
     private static boolean commandLineRun = false;
@@ -58,6 +65,12 @@ public class ConnectActivity extends Activity {
     private String keyprefHwCodecAcceleration;
     private String keyprefNoAudioProcessingPipeline;
     private String keyprefCpuUsageDetection;
+    private String keyprefStandbyPool;
+    private String keyprefStandbyTtl;
+    private String keyprefCandidateWindow;
+    private String keyprefCandidateBatch;
+    private String keyprefRecordStats;
+    private String keyprefAutoQuality;
     private String keyprefDisplayHud;
     private String keyprefServerUrl;
     private String keyprefRoom;
@@ -82,6 +95,12 @@ public class ConnectActivity extends Activity {
         keyprefAudioCodec = getString(R.string.pref_audiocodec_key);
         keyprefNoAudioProcessingPipeline = getString(R.string.pref_noaudioprocessing_key);
         keyprefCpuUsageDetection = getString(R.string.pref_cpu_usage_detection_key);
+        keyprefStandbyPool = getString(R.string.pref_standbypool_key);
+        keyprefStandbyTtl = getString(R.string.pref_standbyttl_key);
+        keyprefCandidateWindow = getString(R.string.pref_candidatewindow_key);
+        keyprefCandidateBatch = getString(R.string.pref_candidatebatch_key);
+        keyprefRecordStats = getString(R.string.pref_recordstats_key);
+        keyprefAutoQuality = getString(R.string.pref_autoquality_key);
         keyprefDisplayHud = getString(R.string.pref_displayhud_key);
 //        keyprefRoomServerUrl = getString(R.string.pref_room_server_url_key);
         keyprefRoom = getString(R.string.pref_room_key);
@@ -102,6 +121,21 @@ public class ConnectActivity extends Activity {
         connectButton = (ImageButton) findViewById(R.id.connect_button);
         connectButton.setOnClickListener(connectListener);
 
+        final int benchmarkClients =
+                BuildConfig.DEBUG ? getIntent().getIntExtra(EXTRA_SIGNALING_BENCHMARK, 0) : 0;
+        if (benchmarkClients > 0 && savedInstanceState == null) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Log.i(TAG, "Signaling benchmark, " + benchmarkClients + " clients:\n"
+                                + SignalingBenchmark.run(benchmarkClients));
+                    } catch (Exception e) {
+                        Log.e(TAG, "Signaling benchmark failed", e);
+                    }
+                }
+            }, "SignalingBenchmark").start();
+        }
     }
 
     @Override
@@ -249,6 +283,10 @@ public class ConnectActivity extends Activity {
         boolean captureQualitySlider = sharedPref.getBoolean(keyprefCaptureQualitySlider,
                 Boolean.valueOf(getString(R.string.pref_capturequalityslider_default)));
 
+        // Check automatic capture quality option.
+        boolean autoQuality = sharedPref.getBoolean(keyprefAutoQuality,
+                Boolean.valueOf(getString(R.string.pref_autoquality_default)));
+
         // Get video and audio start bitrate.
         int videoStartBitrate = 0;
         String bitrateTypeDefault = getString(
@@ -280,6 +318,22 @@ public class ConnectActivity extends Activity {
         boolean displayHud = sharedPref.getBoolean(keyprefDisplayHud,
                 Boolean.valueOf(getString(R.string.pref_displayhud_default)));
 
+        // Check statistics recording option.
+        boolean recordStats = sharedPref.getBoolean(keyprefRecordStats,
+                Boolean.valueOf(getString(R.string.pref_recordstats_default)));
+
+        // Get warm standby peer connection pool size and idle time.
+        int standbyPoolSize = parseIntPreference(keyprefStandbyPool,
+                getString(R.string.pref_standbypool_default));
+        int standbyTtlSec = parseIntPreference(keyprefStandbyTtl,
+                getString(R.string.pref_standbyttl_default));
+
+        // Get local ICE candidate coalescing window and batch size.
+        int candidateWindowMs = parseIntPreference(keyprefCandidateWindow,
+                getString(R.string.pref_candidatewindow_default));
+        int candidateBatchSize = parseIntPreference(keyprefCandidateBatch,
+                getString(R.string.pref_candidatebatch_default));
+
         // Start AppRTCDemo activity.
         Log.d(TAG, "Connecting to room " + roomId + " at URL " + roomUrl);
         if (validateUrl(roomUrl)) {
@@ -298,6 +352,7 @@ public class ConnectActivity extends Activity {
             intent.putExtra(CallActivity.EXTRA_VIDEO_FPS, cameraFps);
             intent.putExtra(CallActivity.EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED,
                     captureQualitySlider);
+            intent.putExtra(CallActivity.EXTRA_VIDEO_AUTO_QUALITY, autoQuality);
 
             intent.putExtra(CallActivity.EXTRA_VIDEO_BITRATE, videoStartBitrate);
             intent.putExtra(CallActivity.EXTRA_VIDEOCODEC, videoCodec);
@@ -309,6 +364,11 @@ public class ConnectActivity extends Activity {
             intent.putExtra(CallActivity.EXTRA_CPUOVERUSE_DETECTION,
                     cpuOveruseDetection);
             intent.putExtra(CallActivity.EXTRA_DISPLAY_HUD, displayHud);
+            intent.putExtra(CallActivity.EXTRA_RECORD_STATS, recordStats);
+            intent.putExtra(CallActivity.EXTRA_STANDBY_POOL_SIZE, standbyPoolSize);
+            intent.putExtra(CallActivity.EXTRA_STANDBY_POOL_TTL, standbyTtlSec * 1000);
+            intent.putExtra(CallActivity.EXTRA_CANDIDATE_BATCH_WINDOW, candidateWindowMs);
+            intent.putExtra(CallActivity.EXTRA_CANDIDATE_BATCH_SIZE, candidateBatchSize);
             intent.putExtra(CallActivity.EXTRA_CMDLINE, commandLineRun);
             intent.putExtra(CallActivity.EXTRA_RUNTIME, runTimeMs);
 
@@ -316,6 +376,16 @@ public class ConnectActivity extends Activity {
         }
     }
 
+    private int parseIntPreference(String key, String defaultValue) {
+        String value = sharedPref.getString(key, defaultValue);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Wrong value for " + key + ": " + value);
+            return Integer.parseInt(defaultValue);
+        }
+    }
+
     private boolean validateUrl(String url) {
         if (URLUtil.isHttpsUrl(url) || URLUtil.isHttpUrl(url)) {
             return true;
@@ -347,6 +417,7 @@ public class ConnectActivity extends Activity {
     //构造intent 启动二维码Activity
     private void qrStart() {
         Intent intent = new Intent(this, QrActivity.class);
+        intent.putExtra(QrActivity.EXTRA_START_TIME, System.currentTimeMillis());
         startActivity(intent);
     }
 
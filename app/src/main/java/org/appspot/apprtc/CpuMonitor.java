@@ -12,12 +12,13 @@ package org.appspot.apprtc;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.InputMismatchException;
-import java.util.Scanner;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * Simple CPU monitor.  The caller creates a CpuMonitor object which can then
@@ -41,13 +42,22 @@ import java.util.Scanner;
  *   o No provision made for zany "turbo" mode, common in the x86 world.
  *   o No provision made for ARM big.LITTLE; if CPU n can switch behind our
  *     back, we might get incorrect estimates.
- *   o This is not thread-safe.  To call asynchronously, create different
- *     CpuMonitor objects.
+ *   o Per-core values are updated one by one, so a reader may see cores from
+ *     two consecutive samples.
  *
  * <p>If we can gather enough info to generate a sensible result,
  * sampleCpuUtilization returns true.  It is designed to never through an
  * exception.
  *
+ * <p>start() samples on a background timer thread, so callers on the UI
+ * thread only read the last values; stop() ends sampling and closes the
+ * files.  The /proc and /sys files are opened once and re-read in place into
+ * direct buffers, and numbers are parsed from the bytes, so a sample does not
+ * allocate.  Besides the total load, per-core load (getCoreLoad()) and the
+ * CPU use of this process (getProcessCpu()) are computed from /proc/stat and
+ * /proc/self/stat; these do not need cpufreq and also work where the total
+ * cannot be computed.
+ *
  * <p>sampleCpuUtilization should not be called too often in its present form,
  * since then deltas would be small and the percent values would fluctuate and
  * be unreadable. If it is desirable to call it more often than say once per
@@ -67,61 +77,157 @@ class CpuMonitor {
   private int sum3 = 0;
   private int sum10 = 0;
   private static final String TAG = "CpuMonitor";
+  // The cpu lines come first in /proc/stat; the rest is not read. The buffer
+  // grows until they fit.
+  private static final int PROC_STAT_BUFFER_SIZE = 8192;
+  private static final int SMALL_BUFFER_SIZE = 1024;
+  // Offline CPUs have no cpufreq files; opening them is retried this often.
+  private static final int OFFLINE_RETRY_SAMPLES = 10;
+  // utime is field 14 of /proc/self/stat, counting "pid (comm)" as 1 and 2.
+  private static final int SELF_STAT_UTIME_SKIP = 11;
+  private final String cpuDir;
+  private final String procStatPath;
+  private final String selfStatPath;
   private long[] cpuFreq;
   private int cpusPresent;
   private double lastPercentFreq = -1;
-  private int cpuCurrent;
-  private int cpuAvg3;
-  private int cpuAvgAll;
+  private volatile int cpuCurrent;
+  private volatile int cpuAvg3;
+  private volatile int cpuAvgAll;
+  private volatile int processCpu;
+  private volatile boolean valid;
+  private int[] coreLoad = new int[0];
   private boolean initialized = false;
+  private boolean noFreqLogged;
   private String[] maxPath;
   private String[] curPath;
-  ProcStat lastProcStat;
-
-  private class ProcStat {
-    final long runTime;
-    final long idleTime;
+  private FileChannel[] maxChannel;
+  private FileChannel[] curChannel;
+  private int[] retryCountdown;
+  private FileChannel procStatChannel;
+  private FileChannel selfStatChannel;
+  private ByteBuffer procStatBuffer = ByteBuffer.allocateDirect(PROC_STAT_BUFFER_SIZE);
+  private final ByteBuffer smallBuffer = ByteBuffer.allocateDirect(SMALL_BUFFER_SIZE);
+  private ByteBuffer parseBuffer;
+  private int parsePos;
+  private int parseLimit;
+  private long lastRunTime;
+  private long lastIdleTime;
+  private long lastTotalTime;
+  private long lastProcessTime;
+  private long[] lastCoreRunTime;
+  private long[] lastCoreIdleTime;
+  private long[] coreRunTime;
+  private long[] coreIdleTime;
+  private Timer timer;
+
+  CpuMonitor() {
+    this("/sys/devices/system/cpu", "/proc/stat", "/proc/self/stat");
+  }
 
-    ProcStat(long aRunTime, long aIdleTime) {
-      runTime = aRunTime;
-      idleTime = aIdleTime;
-    }
+  /**
+   * Reads the CPU list and cpufreq files under |cpuDir| and the given stat
+   * files instead of the system ones, for tests.
+   */
+  CpuMonitor(String cpuDir, String procStatPath, String selfStatPath) {
+    this.cpuDir = cpuDir;
+    this.procStatPath = procStatPath;
+    this.selfStatPath = selfStatPath;
   }
 
-  private void init() {
-    try {
-      FileReader fin = new FileReader("/sys/devices/system/cpu/present");
-      try {
-        BufferedReader rdr = new BufferedReader(fin);
-        Scanner scanner = new Scanner(rdr).useDelimiter("[-\n]");
-        scanner.nextInt();  // Skip leading number 0.
-        cpusPresent = 1 + scanner.nextInt();
-        scanner.close();
-      } catch (Exception e) {
-        Log.e(TAG, "Cannot do CPU stats due to /sys/devices/system/cpu/present parsing problem");
-      } finally {
-        fin.close();
+  private synchronized void init() {
+    if (initialized) {
+      return;
+    }
+    cpusPresent = 0;
+    FileChannel presentChannel = open(cpuDir + "/present");
+    if (presentChannel == null) {
+      Log.e(TAG, "Cannot do CPU stats since " + cpuDir + "/present is missing");
+    } else {
+      // Format is "0" or "0-<last cpu>".
+      if (read(presentChannel, smallBuffer)) {
+        long last = -1;
+        while (parsePos < parseLimit) {
+          long number = parseLong();
+          if (number < 0) {
+            break;
+          }
+          last = number;
+          if (parsePos < parseLimit && parseBuffer.get(parsePos) == '-') {
+            parsePos++;
+          }
+        }
+        cpusPresent = (int) (last + 1);
       }
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Cannot do CPU stats since /sys/devices/system/cpu/present is missing");
-    } catch (IOException e) {
-      Log.e(TAG, "Error closing file");
+      if (cpusPresent == 0) {
+        Log.e(TAG, "Cannot do CPU stats due to " + cpuDir + "/present parsing problem");
+      }
+      close(presentChannel);
     }
 
     cpuFreq = new long [cpusPresent];
     maxPath = new String [cpusPresent];
     curPath = new String [cpusPresent];
+    maxChannel = new FileChannel [cpusPresent];
+    curChannel = new FileChannel [cpusPresent];
+    retryCountdown = new int [cpusPresent];
+    coreLoad = new int [cpusPresent];
+    lastCoreRunTime = new long [cpusPresent];
+    lastCoreIdleTime = new long [cpusPresent];
+    coreRunTime = new long [cpusPresent];
+    coreIdleTime = new long [cpusPresent];
     for (int i = 0; i < cpusPresent; i++) {
       cpuFreq[i] = 0;  // Frequency "not yet determined".
-      maxPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq";
-      curPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_cur_freq";
+      maxPath[i] = cpuDir + "/cpu" + i + "/cpufreq/cpuinfo_max_freq";
+      curPath[i] = cpuDir + "/cpu" + i + "/cpufreq/scaling_cur_freq";
     }
-
-    lastProcStat = new ProcStat(0, 0);
+    procStatChannel = open(procStatPath);
+    if (procStatChannel == null) {
+      Log.e(TAG, "Cannot open " + procStatPath + " for reading");
+    }
+    selfStatChannel = open(selfStatPath);
 
     initialized = true;
   }
 
+  /**
+   * Samples every |periodMs| on a background thread until stop().
+   */
+  public synchronized void start(long periodMs) {
+    if (timer != null) {
+      return;
+    }
+    timer = new Timer(TAG, true);
+    timer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        sampleCpuUtilization();
+      }
+    }, 0, periodMs);
+  }
+
+  /**
+   * Stops background sampling and closes the files. The last values stay
+   * readable; a later start() or sampleCpuUtilization() reopens the files.
+   */
+  public synchronized void stop() {
+    if (timer != null) {
+      timer.cancel();
+      timer = null;
+    }
+    if (!initialized) {
+      return;
+    }
+    for (int i = 0; i < cpusPresent; i++) {
+      close(maxChannel[i]);
+      close(curChannel[i]);
+    }
+    close(procStatChannel);
+    close(selfStatChannel);
+    lastPercentFreq = -1;
+    initialized = false;
+  }
+
   /**
    * Re-measure CPU use.  Call this method at an interval of around 1/s.
    * This method returns true on success.  The fields
@@ -129,8 +235,10 @@ class CpuMonitor {
    * cpuCurrent: The CPU use since the last sampleCpuUtilization call.
    * cpuAvg3: The average CPU over the last 3 calls.
    * cpuAvgAll: The average CPU over the last SAMPLE_SAVE_NUMBER calls.
+   * Per-core and process load only need /proc and are updated whenever
+   * /proc/stat can be read, also when false is returned for lack of cpufreq.
    */
-  public boolean sampleCpuUtilization() {
+  public synchronized boolean sampleCpuUtilization() {
     long lastSeenMaxFreq = 0;
     long cpufreqCurSum = 0;
     long cpufreqMaxSum = 0;
@@ -139,6 +247,38 @@ class CpuMonitor {
       init();
     }
 
+    // /proc/stat and /proc/self/stat do not depend on cpufreq, which VMs and
+    // containers often lack, so per-core and process load are updated even if
+    // the total load below cannot be computed.
+    if (!readProcStat()) {
+      return false;
+    }
+
+    long diffRunTime = runTime - lastRunTime;
+    long diffIdleTime = idleTime - lastIdleTime;
+    long diffTotalTime = totalTime - lastTotalTime;
+
+    // Save new measurements for next round's deltas.
+    lastRunTime = runTime;
+    lastIdleTime = idleTime;
+    lastTotalTime = totalTime;
+
+    for (int i = 0; i < cpusPresent; i++) {
+      long coreRun = coreRunTime[i] - lastCoreRunTime[i];
+      long coreAll = coreRun + coreIdleTime[i] - lastCoreIdleTime[i];
+      coreLoad[i] = coreAll <= 0 ? 0 : (int) (100 * coreRun / coreAll);
+      lastCoreRunTime[i] = coreRunTime[i];
+      lastCoreIdleTime[i] = coreIdleTime[i];
+    }
+
+    long processTime = readProcessTime();
+    if (processTime >= 0) {
+      // Share of the capacity of all CPUs, like the other values.
+      processCpu = diffTotalTime <= 0
+          ? 0 : (int) (100 * (processTime - lastProcessTime) / diffTotalTime);
+      lastProcessTime = processTime;
+    }
+
     for (int i = 0; i < cpusPresent; i++) {
       /*
        * For each CPU, attempt to first read its max frequency, then its
@@ -148,17 +288,31 @@ class CpuMonitor {
 
       if (cpuFreq[i] == 0) {
         // We have never found this CPU's max frequency.  Attempt to read it.
-        long cpufreqMax = readFreqFromFile(maxPath[i]);
+        if (maxChannel[i] == null && retryCountdown[i] == 0) {
+          maxChannel[i] = open(maxPath[i]);
+        }
+        long cpufreqMax = readFreq(maxChannel[i]);
         if (cpufreqMax > 0) {
           lastSeenMaxFreq = cpufreqMax;
           cpuFreq[i] = cpufreqMax;
-          maxPath[i] = null;  // Kill path to free its memory.
+          close(maxChannel[i]);  // Never read again.
+          maxChannel[i] = null;
         }
       } else {
         lastSeenMaxFreq = cpuFreq[i];  // A valid, previously read value.
       }
 
-      long cpufreqCur = readFreqFromFile(curPath[i]);
+      if (curChannel[i] == null && retryCountdown[i] == 0) {
+        curChannel[i] = open(curPath[i]);
+      }
+      long cpufreqCur = readFreq(curChannel[i]);
+      if (cpufreqCur == 0) {
+        // CPU is offline. Its files are gone; reopen them later.
+        close(curChannel[i]);
+        curChannel[i] = null;
+        retryCountdown[i] = retryCountdown[i] == 0
+            ? OFFLINE_RETRY_SAMPLES : retryCountdown[i] - 1;
+      }
       cpufreqCurSum += cpufreqCur;
 
       /* Here, lastSeenMaxFreq might come from
@@ -171,7 +325,11 @@ class CpuMonitor {
     }
 
     if (cpufreqMaxSum == 0) {
-      Log.e(TAG, "Could not read max frequency for any CPU");
+      // Logged once; there is no cpufreq on many VMs and containers.
+      if (!noFreqLogged) {
+        Log.e(TAG, "Could not read max frequency for any CPU");
+        noFreqLogged = true;
+      }
       return false;
     }
 
@@ -191,17 +349,6 @@ class CpuMonitor {
     }
     lastPercentFreq = newPercentFreq;
 
-    ProcStat procStat = readIdleAndRunTime();
-    if (procStat == null) {
-      return false;
-    }
-
-    long diffRunTime = procStat.runTime - lastProcStat.runTime;
-    long diffIdleTime = procStat.idleTime - lastProcStat.idleTime;
-
-    // Save new measurements for next round's deltas.
-    lastProcStat = procStat;
-
     long allTime = diffRunTime + diffIdleTime;
     int percent = allTime == 0 ? 0 : (int) Math.round(percentFreq * diffRunTime / allTime);
     percent = Math.max(0, Math.min(percent, 100));
@@ -220,10 +367,18 @@ class CpuMonitor {
     cpuCurrent = percent;
     cpuAvg3 = sum3 / 3;
     cpuAvgAll = sum10 / SAMPLE_SAVE_NUMBER;
+    valid = true;
 
     return true;
   }
 
+  /**
+   * Returns true once a sample has succeeded.
+   */
+  public boolean isValid() {
+    return valid;
+  }
+
   public int getCpuCurrent() {
     return cpuCurrent;
   }
@@ -237,63 +392,212 @@ class CpuMonitor {
   }
 
   /**
-   * Read a single integer value from the named file.  Return the read value
-   * or if an error occurs return 0.
+   * Returns the CPU use of this process since the last sample, in percent of
+   * all CPUs.
    */
-  private long readFreqFromFile(String fileName) {
-    long number = 0;
+  public int getProcessCpu() {
+    return processCpu;
+  }
+
+  public int getCoreCount() {
+    return coreLoad.length;
+  }
+
+  /**
+   * Returns the load of |core| since the last sample in percent of its
+   * running time; frequency is not taken into account.
+   */
+  public int getCoreLoad(int core) {
+    int[] load = coreLoad;
+    return core < load.length ? load[core] : 0;
+  }
+
+  private static FileChannel open(String fileName) {
     try {
-      FileReader fin = new FileReader(fileName);
-      try {
-        BufferedReader rdr = new BufferedReader(fin);
-        Scanner scannerC = new Scanner(rdr);
-        number = scannerC.nextLong();
-        scannerC.close();
-      } catch (Exception e) {
-        // CPU presumably got offline just after we opened file.
-      } finally {
-        fin.close();
-      }
+      return new RandomAccessFile(fileName, "r").getChannel();
     } catch (FileNotFoundException e) {
       // CPU is offline, not an error.
+      return null;
+    }
+  }
+
+  private static void close(FileChannel channel) {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
     } catch (IOException e) {
       Log.e(TAG, "Error closing file");
     }
-    return number;
   }
 
+  /**
+   * Reads |channel| from the start into |buffer| and sets up the parser.
+   * Returns false if nothing could be read.
+   */
+  private boolean read(FileChannel channel, ByteBuffer buffer) {
+    buffer.clear();
+    try {
+      int position = 0;
+      int count;
+      while (buffer.hasRemaining() && (count = channel.read(buffer, position)) > 0) {
+        position += count;
+      }
+    } catch (IOException e) {
+      // CPU presumably got offline just after we opened file.
+      return false;
+    }
+    parseBuffer = buffer;
+    parsePos = 0;
+    parseLimit = buffer.position();
+    return parseLimit > 0;
+  }
+
+  /**
+   * Read a single integer value from |channel|.  Return the read value
+   * or if an error occurs return 0.
+   */
+  private long readFreq(FileChannel channel) {
+    if (channel == null || !read(channel, smallBuffer)) {
+      return 0;
+    }
+    return Math.max(0, parseLong());
+  }
+
+  // Results of parseProcStat().
+  private boolean haveTotal;
+  private long runTime;
+  private long idleTime;
+  private long totalTime;
+
   /*
    * Read the current utilization of all CPUs using the cumulative first line
-   * of /proc/stat.
+   * of /proc/stat, and of each CPU from the cpu<N> lines.
    */
-  private ProcStat readIdleAndRunTime() {
-    long runTime = 0;
-    long idleTime = 0;
-    try {
-      FileReader fin = new FileReader("/proc/stat");
-      try {
-        BufferedReader rdr = new BufferedReader(fin);
-        Scanner scanner = new Scanner(rdr);
-        scanner.next();
-        long user = scanner.nextLong();
-        long nice = scanner.nextLong();
-        long sys = scanner.nextLong();
+  private boolean readProcStat() {
+    while (true) {
+      if (procStatChannel == null || !read(procStatChannel, procStatBuffer)) {
+        Log.e(TAG, "Problems reading /proc/stat");
+        return false;
+      }
+      // A buffer that is not full holds the whole file.
+      if (parseProcStat() || procStatBuffer.hasRemaining()) {
+        break;
+      }
+      // The cpu lines of many cores did not fit; grow once and for all.
+      procStatBuffer = ByteBuffer.allocateDirect(procStatBuffer.capacity() * 2);
+    }
+    if (!haveTotal) {
+      Log.e(TAG, "Problems parsing /proc/stat");
+    }
+    return haveTotal;
+  }
+
+  // Parses the cpu lines of the read /proc/stat. Returns false if the buffer
+  // ended before them.
+  private boolean parseProcStat() {
+    haveTotal = false;
+    for (int i = 0; i < cpusPresent; i++) {
+      // Offline CPUs have no line and keep their previous counters.
+      coreRunTime[i] = lastCoreRunTime[i];
+      coreIdleTime[i] = lastCoreIdleTime[i];
+    }
+    // Lines are "cpu  user nice system idle iowait irq softirq steal ..." and
+    // "cpu<N> ...".
+    while (parseLimit - parsePos > 3) {
+      if (parseBuffer.get(parsePos) != 'c' || parseBuffer.get(parsePos + 1) != 'p'
+          || parseBuffer.get(parsePos + 2) != 'u') {
+        return true;
+      }
+      parsePos += 3;
+      long core = -1;
+      if (parseBuffer.get(parsePos) != ' ') {
+        core = parseLong();
+      }
+      long user = parseLong();
+      long nice = parseLong();
+      long sys = parseLong();
+      long idle = parseLong();
+      if (idle < 0) {
+        return false;
+      }
+      if (core < 0) {
         runTime = user + nice + sys;
-        idleTime = scanner.nextLong();
-        scanner.close();
-      } catch (Exception e) {
-        Log.e(TAG, "Problems parsing /proc/stat");
-        return null;
-      } finally {
-        fin.close();
+        idleTime = idle;
+        totalTime = runTime + idleTime;
+        // iowait, irq, softirq, steal.
+        for (int i = 0; i < 4; i++) {
+          long value = parseLong();
+          if (value < 0) {
+            break;
+          }
+          totalTime += value;
+        }
+        haveTotal = true;
+      } else if (core < cpusPresent) {
+        coreRunTime[(int) core] = user + nice + sys;
+        coreIdleTime[(int) core] = idle;
       }
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Cannot open /proc/stat for reading");
-      return null;
-    } catch (IOException e) {
-      Log.e(TAG, "Problems reading /proc/stat");
-      return null;
+      skipLine();
+    }
+    return false;
+  }
+
+  // Returns utime + stime of this process in clock ticks or -1.
+  private long readProcessTime() {
+    if (selfStatChannel == null || !read(selfStatChannel, smallBuffer)) {
+      return -1;
+    }
+    // The command name may contain spaces and parentheses; skip past the last ')'.
+    int end = parseLimit - 1;
+    while (end >= 0 && parseBuffer.get(end) != ')') {
+      end--;
+    }
+    if (end < 0) {
+      return -1;
+    }
+    parsePos = end + 1;
+    for (int i = 0; i < SELF_STAT_UTIME_SKIP; i++) {
+      skipField();
+    }
+    long utime = parseLong();
+    long stime = parseLong();
+    return utime < 0 || stime < 0 ? -1 : utime + stime;
+  }
+
+  // Parses the next non-negative number, skipping leading blanks. Returns -1
+  // if there is none.
+  private long parseLong() {
+    while (parsePos < parseLimit && parseBuffer.get(parsePos) == ' ') {
+      parsePos++;
+    }
+    long number = 0;
+    int start = parsePos;
+    while (parsePos < parseLimit) {
+      byte b = parseBuffer.get(parsePos);
+      if (b < '0' || b > '9') {
+        break;
+      }
+      number = number * 10 + (b - '0');
+      parsePos++;
+    }
+    return parsePos == start ? -1 : number;
+  }
+
+  private void skipField() {
+    while (parsePos < parseLimit && parseBuffer.get(parsePos) == ' ') {
+      parsePos++;
+    }
+    while (parsePos < parseLimit && parseBuffer.get(parsePos) != ' ') {
+      parsePos++;
+    }
+  }
+
+  private void skipLine() {
+    while (parsePos < parseLimit && parseBuffer.get(parsePos) != '\n') {
+      parsePos++;
     }
-    return new ProcStat(runTime, idleTime);
+    parsePos++;
   }
 }
@@ -19,11 +19,6 @@ import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.TextView;
 
-import org.webrtc.StatsReport;
-
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Fragment for HUD statistics display.
  */
@@ -38,7 +33,8 @@ public class HudFragment extends Fragment {
   private boolean videoCallEnabled;
   private boolean displayHud;
   private volatile boolean isRunning;
-  private final CpuMonitor cpuMonitor = new CpuMonitor();
+  private CpuMonitor cpuMonitor;
+  private final StringBuilder stat = new StringBuilder(512);
 
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -67,6 +63,13 @@ public class HudFragment extends Fragment {
     return controlView;
   }
 
+  /**
+   * Sets the monitor whose last sample is shown; sampling is up to the owner.
+   */
+  public void setCpuMonitor(CpuMonitor cpuMonitor) {
+    this.cpuMonitor = cpuMonitor;
+  }
+
   @Override
   public void onStart() {
     super.onStart();
@@ -100,84 +103,35 @@ public class HudFragment extends Fragment {
     hudViewVideoRecv.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
   }
 
-  private Map<String, String> getReportMap(StatsReport report) {
-    Map<String, String> reportMap = new HashMap<String, String>();
-    for (StatsReport.Value value : report.values) {
-      reportMap.put(value.name, value.value);
-    }
-    return reportMap;
-  }
-
-  public void updateEncoderStatistics(final StatsReport[] reports) {
+  public void updateEncoderStatistics(final StatsSnapshot snapshot) {
     if (!isRunning || !displayHud) {
       return;
     }
-    StringBuilder encoderStat = new StringBuilder(128);
-    StringBuilder bweStat = new StringBuilder();
-    StringBuilder connectionStat = new StringBuilder();
-    StringBuilder videoSendStat = new StringBuilder();
-    StringBuilder videoRecvStat = new StringBuilder();
-    String fps = null;
-    String targetBitrate = null;
-    String actualBitrate = null;
-
-    for (StatsReport report : reports) {
-      if (report.type.equals("ssrc") && report.id.contains("ssrc")
-          && report.id.contains("send")) {
-        // Send video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String trackId = reportMap.get("googTrackId");
-        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
-          fps = reportMap.get("googFrameRateSent");
-          videoSendStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoSendStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
-          && report.id.contains("recv")) {
-        // Receive video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        // Check if this stat is for video track.
-        String frameWidth = reportMap.get("googFrameWidthReceived");
-        if (frameWidth != null) {
-          videoRecvStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoRecvStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.id.equals("bweforvideo")) {
-        // BWE statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        targetBitrate = reportMap.get("googTargetEncBitrate");
-        actualBitrate = reportMap.get("googActualEncBitrate");
-
-        bweStat.append(report.id).append("\n");
-        for (StatsReport.Value value : report.values) {
-          String name = value.name.replace("goog", "").replace("Available", "");
-          bweStat.append(name).append("=").append(value.value).append("\n");
-        }
-      } else if (report.type.equals("googCandidatePair")) {
-        // Connection statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String activeConnection = reportMap.get("googActiveConnection");
-        if (activeConnection != null && activeConnection.equals("true")) {
-          connectionStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            connectionStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      }
-    }
-    hudViewBwe.setText(bweStat.toString());
-    hudViewConnection.setText(connectionStat.toString());
-    hudViewVideoSend.setText(videoSendStat.toString());
-    hudViewVideoRecv.setText(videoRecvStat.toString());
-
+    // The builder is reused between callbacks; setText() copies the text.
+    stat.setLength(0);
+    snapshot.appendTo(StatsSnapshot.KIND_BWE, stat);
+    hudViewBwe.setText(stat);
+    stat.setLength(0);
+    snapshot.appendTo(StatsSnapshot.KIND_CANDIDATE_PAIR, stat);
+    hudViewConnection.setText(stat);
+    stat.setLength(0);
+    snapshot.appendTo(StatsSnapshot.KIND_VIDEO_SEND, stat);
+    hudViewVideoSend.setText(stat);
+    stat.setLength(0);
+    snapshot.appendTo(StatsSnapshot.KIND_VIDEO_RECV, stat);
+    hudViewVideoRecv.setText(stat);
+
+    StringBuilder encoderStat = stat;
+    encoderStat.setLength(0);
     if (videoCallEnabled) {
+      StatsSnapshot.Record videoSend = snapshot.find(StatsSnapshot.KIND_VIDEO_SEND);
+      StatsSnapshot.Record bwe = snapshot.find(StatsSnapshot.KIND_BWE);
+      String fps = videoSend == null
+          ? null : videoSend.get(StatsSnapshot.SLOT_FRAME_RATE_SENT);
+      String targetBitrate = bwe == null
+          ? null : bwe.get(StatsSnapshot.SLOT_TARGET_ENC_BITRATE);
+      String actualBitrate = bwe == null
+          ? null : bwe.get(StatsSnapshot.SLOT_ACTUAL_ENC_BITRATE);
       if (fps != null) {
         encoderStat.append("Fps:  ").append(fps).append("\n");
       }
@@ -189,12 +143,22 @@ public class HudFragment extends Fragment {
       }
     }
 
-    if (cpuMonitor.sampleCpuUtilization()) {
+    PeerConnectionClient client = PeerConnectionClient.getInstance();
+    encoderStat.append("Standby: ")
+        .append(client.getStandbyPoolIdle()).append(" idle, ")
+        .append(client.getStandbyPoolHits()).append(" hit/")
+        .append(client.getStandbyPoolMisses()).append(" miss\n");
+    if (cpuMonitor != null && cpuMonitor.isValid()) {
       encoderStat.append("CPU%: ")
           .append(cpuMonitor.getCpuCurrent()).append("/")
           .append(cpuMonitor.getCpuAvg3()).append("/")
-          .append(cpuMonitor.getCpuAvgAll());
+          .append(cpuMonitor.getCpuAvgAll())
+          .append(" App: ").append(cpuMonitor.getProcessCpu())
+          .append("\nCores%:");
+      for (int i = 0; i < cpuMonitor.getCoreCount(); i++) {
+        encoderStat.append(' ').append(cpuMonitor.getCoreLoad(i));
+      }
     }
-    encoderStatView.setText(encoderStat.toString());
+    encoderStatView.setText(encoderStat);
   }
 }
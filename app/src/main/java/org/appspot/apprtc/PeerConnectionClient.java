@@ -35,12 +35,15 @@ import org.webrtc.VideoRenderer;
 import org.webrtc.VideoSource;
 import org.webrtc.VideoTrack;
 
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.microedition.khronos.egl.EGLContext;
 
@@ -50,6 +53,11 @@ import javax.microedition.khronos.egl.EGLContext;
  * <p>All public methods are routed to local looper thread.
  * All PeerConnectionEvents callbacks are invoked from the same looper thread.
  * This class is a singleton.
+ * <p/>
+ * <p>Several peers can be connected at once. Each peer gets a PeerSession with
+ * its own PeerConnection, queued candidates and SDP state; all sessions share
+ * the factory, the video source and the local media stream. Methods without
+ * a peer id act on the active peer.
  */
 public class PeerConnectionClient {
     private boolean isHelperMode;
@@ -64,9 +72,6 @@ public class PeerConnectionClient {
     private static final String VIDEO_CODEC_H264 = "H264";
     private static final String AUDIO_CODEC_OPUS = "opus";
     private static final String AUDIO_CODEC_ISAC = "ISAC";
-    private static final String VIDEO_CODEC_PARAM_START_BITRATE =
-            "x-google-start-bitrate";
-    private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
     private static final String AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation";
     private static final String AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT = "googAutoGainControl";
     private static final String AUDIO_HIGH_PASS_FILTER_CONSTRAINT = "googHighpassFilter";
@@ -83,16 +88,21 @@ public class PeerConnectionClient {
     private static final int MAX_VIDEO_WIDTH = 1280;
     private static final int MAX_VIDEO_HEIGHT = 1280;
     private static final int MAX_VIDEO_FPS = 30;
+    private static final long DEFAULT_STANDBY_IDLE_TTL_MS = 60000;
+    // Executor keys of tasks superseded by a later one of their kind.
+    private static final Object STATS_TASK_KEY = new Object();
+    private static final Object CAPTURE_FORMAT_TASK_KEY = new Object();
 
     private static final PeerConnectionClient instance = new PeerConnectionClient();
-    private final PCObserver pcObserver = new PCObserver();
-    private final SDPObserver sdpObserver = new SDPObserver();
     private final LooperExecutor executor;
 
     private PeerConnectionFactory factory;
-    private PeerConnection peerConnection;
+    // Sessions by peer id. Sessions are registered by the calling thread and
+    // set up / torn down on the looper thread.
+    private final Map<Long, PeerSession> sessions =
+            new ConcurrentHashMap<Long, PeerSession>();
     //对端客户ID
-    private long peerId;
+    private volatile long activePeerId;
     PeerConnection.RTCConfiguration rtcConfig;
 
 
@@ -112,23 +122,65 @@ public class PeerConnectionClient {
     private MediaConstraints audioConstraints;
     private MediaConstraints sdpMediaConstraints;
     private PeerConnectionParameters peerConnectionParameters;
-    // Queued remote ICE candidates are consumed only after both local and
-    // remote descriptions are set. Similarly local ICE candidates are sent to
-    // remote peer after both local and remote description are set.
-    private LinkedList<IceCandidate> queuedRemoteCandidates;
     private PeerConnectionEvents events;
-    private SessionDescription localSdp; // either offer or answer SDP
     private MediaStream mediaStream;
     private int numberOfCameras;
     private VideoCapturerAndroid videoCapturer;
     // enableVideo is set to true if video should be rendered and sent.
     private boolean renderVideo;
     private VideoTrack localVideoTrack;
-    private VideoTrack remoteVideoTrack;
+    private final StatsDecoder statsDecoder = new StatsDecoder();
+    // Warm standby PeerConnections, created ahead of time from the current ICE
+    // servers and constraints so that a new session only has to attach the
+    // local stream and negotiate. Only accessed on the looper thread.
+    private final LinkedList<StandbyConnection> standbyConnections =
+            new LinkedList<StandbyConnection>();
+    private int standbyPoolSize;
+    private long standbyIdleTtlMs = DEFAULT_STANDBY_IDLE_TTL_MS;
+    private boolean standbyExpiryScheduled;
+    private volatile int standbyIdle;
+    private volatile int standbyHits;
+    private volatile int standbyMisses;
 
     //返回当前PeerId
     public long getPeerId() {
-        return peerId;
+        return activePeerId;
+    }
+
+    /**
+     * State of the connection to one peer.
+     */
+    private class PeerSession {
+        final long peerId;
+        PCObserver pcObserver;
+        final SDPObserver sdpObserver = new SDPObserver(this);
+        PeerConnection peerConnection;
+        // Queued remote ICE candidates are consumed only after both local and
+        // remote descriptions are set. Similarly local ICE candidates are sent to
+        // remote peer after both local and remote description are set.
+        LinkedList<IceCandidate> queuedRemoteCandidates = new LinkedList<IceCandidate>();
+        SessionDescription localSdp; // either offer or answer SDP
+        VideoTrack remoteVideoTrack;
+        VideoRenderer remoteVideoRenderer;
+
+        PeerSession(long peerId) {
+            this.peerId = peerId;
+        }
+    }
+
+    /**
+     * Idle PeerConnection waiting in the standby pool.
+     */
+    private static class StandbyConnection {
+        final PeerConnection peerConnection;
+        final PCObserver pcObserver;
+        final long createdMs;
+
+        StandbyConnection(PeerConnection peerConnection, PCObserver pcObserver) {
+            this.peerConnection = peerConnection;
+            this.pcObserver = pcObserver;
+            this.createdMs = System.currentTimeMillis();
+        }
     }
 
     /**
@@ -174,24 +226,24 @@ public class PeerConnectionClient {
         /**
          * Callback fired once local SDP is created and set.
          */
-        public void onLocalDescription(final SessionDescription sdp);
+        public void onLocalDescription(long peerId, final SessionDescription sdp);
 
         /**
          * Callback fired once local Ice candidate is generated.
          */
-        public void onIceCandidate(final IceCandidate candidate);
+        public void onIceCandidate(long peerId, final IceCandidate candidate);
 
         /**
          * Callback fired once connection is established (IceConnectionState is
          * CONNECTED).
          */
-        public void onIceConnected();
+        public void onIceConnected(long peerId);
 
         /**
          * Callback fired once connection is closed (IceConnectionState is
          * DISCONNECTED).
          */
-        public void onIceDisconnected();
+        public void onIceDisconnected(long peerId);
 
         /**
          * Callback fired once peer connection is closed.
@@ -201,7 +253,7 @@ public class PeerConnectionClient {
         /**
          * Callback fired once peer connection statistics is ready.
          */
-        public void onPeerConnectionStatsReady(final StatsReport[] reports);
+        public void onPeerConnectionStatsReady(final StatsSnapshot snapshot);
 
         /**
          * Callback fired once peer connection error happened.
@@ -221,6 +273,34 @@ public class PeerConnectionClient {
         return instance;
     }
 
+    /**
+     * Configures the warm standby pool. |poolSize| of 0 disables it; idle
+     * connections older than |idleTtlMs| are replaced with fresh ones.
+     */
+    public void setStandbyPool(final int poolSize, final long idleTtlMs) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                standbyPoolSize = Math.max(0, poolSize);
+                standbyIdleTtlMs = idleTtlMs > 0 ? idleTtlMs : DEFAULT_STANDBY_IDLE_TTL_MS;
+                trimStandbyPoolInternal(false);
+                refillStandbyPoolInternal();
+            }
+        });
+    }
+
+    public int getStandbyPoolIdle() {
+        return standbyIdle;
+    }
+
+    public int getStandbyPoolHits() {
+        return standbyHits;
+    }
+
+    public int getStandbyPoolMisses() {
+        return standbyMisses;
+    }
+
     public void setPeerConnectionFactoryOptions(PeerConnectionFactory.Options options) {
         this.options = options;
     }
@@ -234,18 +314,15 @@ public class PeerConnectionClient {
         videoCallEnabled = peerConnectionParameters.videoCallEnabled;
         // Reset variables to initial states.
         factory = null;
-        peerConnection = null;
+        sessions.clear();
         preferIsac = false;
         preferH264 = false;
         videoSourceStopped = false;
         isError = false;
-        queuedRemoteCandidates = null;
-        localSdp = null; // either offer or answer SDP
         mediaStream = null;
         videoCapturer = null;
         renderVideo = true;
         localVideoTrack = null;
-        remoteVideoTrack = null;
         statsTimer = new Timer();
 
         executor.execute(new Runnable() {
@@ -256,24 +333,71 @@ public class PeerConnectionClient {
         });
     }
 
+    /**
+     * Drops the connection to the active peer and makes |mastid| the active
+     * peer, reusing its session if there is one.
+     */
     public void reconnect(final long mastid) {
+        long previousPeerId = activePeerId;
+        if (previousPeerId != mastid) {
+            removePeer(previousPeerId);
+        }
+        addPeer(mastid);
+        setActivePeer(mastid);
+    }
+
+    /**
+     * Adds a session for |peerId| next to the existing ones. Only a new
+     * PeerConnection is created; the local media stream is shared.
+     */
+    public void addPeer(final long peerId) {
+        if (sessions.containsKey(peerId)) {
+            return;
+        }
+        final PeerSession session = new PeerSession(peerId);
+        sessions.put(peerId, session);
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                if (peerConnection != null) {
-                    peerConnection.removeStream(mediaStream);
-                    peerConnection.dispose();
-                    peerConnection = null;
-                }
-                localSdp = null;
-                peerId = mastid;
-                peerConnection = factory.createPeerConnection(
-                        rtcConfig, pcConstraints, pcObserver);
-                peerConnection.addStream(mediaStream);
+                createSessionInternal(session);
             }
         });
+    }
 
+    /**
+     * Closes the session for |peerId|, leaving other sessions untouched.
+     */
+    public void removePeer(final long peerId) {
+        final PeerSession session = sessions.remove(peerId);
+        if (session == null) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeSessionInternal(session);
+            }
+        });
+    }
 
+    public boolean hasPeer(long peerId) {
+        return sessions.containsKey(peerId);
+    }
+
+    /**
+     * Makes |peerId| the peer that is rendered remotely and used by methods
+     * without a peer id.
+     */
+    public void setActivePeer(final long peerId) {
+        activePeerId = peerId;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (PeerSession session : sessions.values()) {
+                    updateRemoteRenderer(session);
+                }
+            }
+        });
     }
 
     //新添加的一个isHelperMode参数,从CallActivity来的
@@ -292,15 +416,17 @@ public class PeerConnectionClient {
         //保存接收的ishelpermode参数
         this.isHelperMode = isHelperMode;
         //绑定对端ID
-        this.peerId = peerId;
+        this.activePeerId = peerId;
         this.localRender = localRender;
         this.remoteRender = remoteRender;
         this.signalingParameters = signalingParameters;
+        final PeerSession session = new PeerSession(peerId);
+        sessions.put(peerId, session);
         executor.execute(new Runnable() {
             @Override
             public void run() {
                 createMediaConstraintsInternal();
-                createPeerConnectionInternal(renderEGLContext);
+                createPeerConnectionInternal(renderEGLContext, session);
             }
         });
     }
@@ -448,7 +574,8 @@ public class PeerConnectionClient {
         }
     }
 
-    private void createPeerConnectionInternal(EGLContext renderEGLContext) {
+    private void createPeerConnectionInternal(
+            EGLContext renderEGLContext, PeerSession session) {
         if (factory == null || isError) {
             Log.e(TAG, "Peerconnection factory is not created");
             return;
@@ -459,8 +586,6 @@ public class PeerConnectionClient {
         if (videoConstraints != null) {
             Log.d(TAG, "VideoConstraints: " + videoConstraints.toString());
         }
-        queuedRemoteCandidates = new LinkedList<IceCandidate>();
-
         if (videoCallEnabled) {
             Log.d(TAG, "EGLContext: " + renderEGLContext);
             factory.setVideoHwAccelerationOptions(renderEGLContext);
@@ -476,9 +601,6 @@ public class PeerConnectionClient {
         // Use ECDSA encryption.
         rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
 
-        peerConnection = factory.createPeerConnection(
-                rtcConfig, pcConstraints, pcObserver);
-
         // Set default WebRTC tracing and INFO libjingle logging.
         // NOTE: this _must_ happen while |factory| is alive!
         Logging.enableTracing(
@@ -506,22 +628,168 @@ public class PeerConnectionClient {
         mediaStream.addTrack(factory.createAudioTrack(
                 AUDIO_TRACK_ID,
                 factory.createAudioSource(audioConstraints)));
-        peerConnection.addStream(mediaStream);
 
-        Log.d(TAG, "Peer connection created.");
+        createSessionInternal(session);
+        refillStandbyPoolInternal();
+    }
+
+    // Creates the PeerConnection of |session| and attaches the shared local
+    // media stream to it.
+    private void createSessionInternal(PeerSession session) {
+        if (factory == null || mediaStream == null || isError) {
+            Log.e(TAG, "Can not create session for " + session.peerId
+                    + " without peer connection factory");
+            sessions.remove(session.peerId);
+            return;
+        }
+        if (sessions.get(session.peerId) != session) {
+            // Session was removed before it was created.
+            return;
+        }
+        StandbyConnection standby = takeStandbyConnection();
+        if (standby != null) {
+            standbyHits++;
+            session.pcObserver = standby.pcObserver;
+            session.pcObserver.attach(session);
+            session.peerConnection = standby.peerConnection;
+        } else {
+            standbyMisses++;
+            session.pcObserver = new PCObserver(session);
+            session.peerConnection = factory.createPeerConnection(
+                    rtcConfig, pcConstraints, session.pcObserver);
+        }
+        session.peerConnection.addStream(mediaStream);
+        Log.d(TAG, "Peer connection " + (standby != null ? "taken from standby pool" : "created")
+                + " for " + session.peerId + ". Sessions: " + sessions.size());
+        // Refill after the current task so that negotiation starts first.
+        executor.executeDelayed(new Runnable() {
+            @Override
+            public void run() {
+                refillStandbyPoolInternal();
+            }
+        }, 0);
+    }
+
+    // Returns a fresh standby connection or null, dropping expired ones.
+    private StandbyConnection takeStandbyConnection() {
+        trimStandbyPoolInternal(true);
+        StandbyConnection standby = standbyConnections.poll();
+        standbyIdle = standbyConnections.size();
+        return standby;
+    }
+
+    // Disposes standby connections beyond the pool size, and expired ones if
+    // |dropExpired| is set.
+    private void trimStandbyPoolInternal(boolean dropExpired) {
+        long now = System.currentTimeMillis();
+        while (standbyConnections.size() > standbyPoolSize) {
+            standbyConnections.removeLast().peerConnection.dispose();
+        }
+        if (dropExpired) {
+            Iterator<StandbyConnection> it = standbyConnections.iterator();
+            while (it.hasNext()) {
+                StandbyConnection standby = it.next();
+                if (now - standby.createdMs >= standbyIdleTtlMs) {
+                    Log.d(TAG, "Standby peer connection expired.");
+                    standby.peerConnection.dispose();
+                    it.remove();
+                }
+            }
+        }
+        standbyIdle = standbyConnections.size();
+    }
+
+    private void refillStandbyPoolInternal() {
+        if (factory == null || rtcConfig == null || pcConstraints == null || isError) {
+            return;
+        }
+        while (standbyConnections.size() < standbyPoolSize) {
+            PCObserver observer = new PCObserver(null);
+            PeerConnection peerConnection =
+                    factory.createPeerConnection(rtcConfig, pcConstraints, observer);
+            if (peerConnection == null) {
+                Log.e(TAG, "Can not create standby peer connection.");
+                break;
+            }
+            standbyConnections.add(new StandbyConnection(peerConnection, observer));
+        }
+        standbyIdle = standbyConnections.size();
+        if (!standbyExpiryScheduled && !standbyConnections.isEmpty()) {
+            standbyExpiryScheduled = true;
+            executor.executeDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    standbyExpiryScheduled = false;
+                    trimStandbyPoolInternal(true);
+                    refillStandbyPoolInternal();
+                }
+            }, standbyIdleTtlMs);
+        }
+    }
+
+    private void closeStandbyPoolInternal() {
+        for (StandbyConnection standby : standbyConnections) {
+            standby.peerConnection.dispose();
+        }
+        standbyConnections.clear();
+        standbyIdle = 0;
+    }
+
+    private void closeSessionInternal(PeerSession session) {
+        Log.d(TAG, "Closing session for " + session.peerId);
+        if (session.remoteVideoRenderer != null) {
+            if (session.remoteVideoTrack != null) {
+                session.remoteVideoTrack.removeRenderer(session.remoteVideoRenderer);
+            }
+            session.remoteVideoRenderer.dispose();
+            session.remoteVideoRenderer = null;
+        }
+        session.remoteVideoTrack = null;
+        if (session.peerConnection != null) {
+            session.peerConnection.removeStream(mediaStream);
+            session.peerConnection.dispose();
+            session.peerConnection = null;
+        }
+    }
+
+    // Renders the remote video of |session| only while it is the active peer.
+    private void updateRemoteRenderer(PeerSession session) {
+        boolean active = session.peerId == activePeerId;
+        if (active && session.remoteVideoTrack != null
+                && session.remoteVideoRenderer == null) {
+            session.remoteVideoRenderer = new VideoRenderer(remoteRender);
+            session.remoteVideoTrack.addRenderer(session.remoteVideoRenderer);
+        } else if (!active && session.remoteVideoRenderer != null) {
+            if (session.remoteVideoTrack != null) {
+                session.remoteVideoTrack.removeRenderer(session.remoteVideoRenderer);
+            }
+            session.remoteVideoRenderer.dispose();
+            session.remoteVideoRenderer = null;
+        }
+    }
+
+    // Returns the ready session for |peerId|, or null.
+    private PeerSession getSession(long peerId) {
+        PeerSession session = sessions.get(peerId);
+        if (session == null || session.peerConnection == null || isError) {
+            return null;
+        }
+        return session;
     }
 
     public boolean isConnected() {
-        return peerConnection != null;
+        return !sessions.isEmpty();
     }
 
     private void closeInternal() {
         Log.d(TAG, "Closing peer connection.");
         statsTimer.cancel();
-        if (peerConnection != null) {
-            peerConnection.dispose();
-            peerConnection = null;
+        List<PeerSession> closing = new ArrayList<PeerSession>(sessions.values());
+        sessions.clear();
+        for (PeerSession session : closing) {
+            closeSessionInternal(session);
         }
+        closeStandbyPoolInternal();
         Log.d(TAG, "Closing video source.");
         if (videoSource != null) {
             videoSource.dispose();
@@ -533,7 +801,7 @@ public class PeerConnectionClient {
             factory = null;
         }
         options = null;
-        Log.d(TAG, "Closing peer connection done.");
+        Log.d(TAG, "Closing peer connection done. Looper tasks: " + executor.getStatistics());
         events.onPeerConnectionClosed();
     }
 
@@ -566,13 +834,14 @@ public class PeerConnectionClient {
     }
 
     private void getStats() {
-        if (peerConnection == null || isError) {
+        PeerSession session = getSession(activePeerId);
+        if (session == null) {
             return;
         }
-        boolean success = peerConnection.getStats(new StatsObserver() {
+        boolean success = session.peerConnection.getStats(new StatsObserver() {
             @Override
             public void onComplete(final StatsReport[] reports) {
-                events.onPeerConnectionStatsReady(reports);
+                events.onPeerConnectionStatsReady(statsDecoder.decode(reports));
             }
         }, null);
         if (!success) {
@@ -586,7 +855,8 @@ public class PeerConnectionClient {
                 statsTimer.schedule(new TimerTask() {
                     @Override
                     public void run() {
-                        executor.execute(new Runnable() {
+                        // A busy looper runs one stats request, not a backlog.
+                        executor.execute(STATS_TASK_KEY, new Runnable() {
                             @Override
                             public void run() {
                                 getStats();
@@ -610,8 +880,10 @@ public class PeerConnectionClient {
                 if (localVideoTrack != null) {
                     localVideoTrack.setEnabled(renderVideo);
                 }
-                if (remoteVideoTrack != null) {
-                    remoteVideoTrack.setEnabled(renderVideo);
+                for (PeerSession session : sessions.values()) {
+                    if (session.remoteVideoTrack != null) {
+                        session.remoteVideoTrack.setEnabled(renderVideo);
+                    }
                 }
             }
         });
@@ -619,39 +891,58 @@ public class PeerConnectionClient {
 
 
     public void createOffer() {
+        createOffer(activePeerId);
+    }
 
+    public void createOffer(final long peerId) {
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                if (peerConnection != null && !isError) {
-                    Log.d(TAG, "PC Create OFFER");
-                    peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
+                PeerSession session = getSession(peerId);
+                if (session != null && session.localSdp != null) {
+                    // SDPObserver would report this as an error.
+                    Log.w(TAG, "Already negotiated with " + peerId + ", no new offer.");
+                } else if (session != null) {
+                    Log.d(TAG, "PC Create OFFER for " + peerId);
+                    session.peerConnection.createOffer(
+                            session.sdpObserver, sdpMediaConstraints);
                 }
             }
         });
     }
 
     public void createAnswer() {
+        createAnswer(activePeerId);
+    }
+
+    public void createAnswer(final long peerId) {
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                if (peerConnection != null && !isError) {
-                    Log.d(TAG, "PC create ANSWER");
-                    peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
+                PeerSession session = getSession(peerId);
+                if (session != null) {
+                    Log.d(TAG, "PC create ANSWER for " + peerId);
+                    session.peerConnection.createAnswer(
+                            session.sdpObserver, sdpMediaConstraints);
                 }
             }
         });
     }
 
     public void addRemoteIceCandidate(final IceCandidate candidate) {
+        addRemoteIceCandidate(activePeerId, candidate);
+    }
+
+    public void addRemoteIceCandidate(final long peerId, final IceCandidate candidate) {
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                if (peerConnection != null && !isError) {
-                    if (queuedRemoteCandidates != null) {
-                        queuedRemoteCandidates.add(candidate);
+                PeerSession session = getSession(peerId);
+                if (session != null) {
+                    if (session.queuedRemoteCandidates != null) {
+                        session.queuedRemoteCandidates.add(candidate);
                     } else {
-                        peerConnection.addIceCandidate(candidate);
+                        session.peerConnection.addIceCandidate(candidate);
                     }
                 }
             }
@@ -659,35 +950,39 @@ public class PeerConnectionClient {
     }
 
     public void setRemoteDescription(final SessionDescription sdp) {
+        setRemoteDescription(activePeerId, sdp);
+    }
+
+    public void setRemoteDescription(final long peerId, final SessionDescription sdp) {
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                if (peerConnection == null || isError) {
+                PeerSession session = getSession(peerId);
+                if (session == null) {
                     return;
                 }
-                String sdpDescription = sdp.description;
+                SdpRewriter rewriter = SdpRewriter.parse(sdp.description);
                 if (preferIsac) {
-                    sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
+                    rewriter.preferCodec(AUDIO_CODEC_ISAC, true);
                 }
                 if (videoCallEnabled && preferH264) {
-                    sdpDescription = preferCodec(sdpDescription, VIDEO_CODEC_H264, false);
+                    rewriter.preferCodec(VIDEO_CODEC_H264, false);
                 }
                 if (videoCallEnabled && peerConnectionParameters.videoStartBitrate > 0) {
-                    sdpDescription = setStartBitrate(VIDEO_CODEC_VP8, true,
-                            sdpDescription, peerConnectionParameters.videoStartBitrate);
-                    sdpDescription = setStartBitrate(VIDEO_CODEC_VP9, true,
-                            sdpDescription, peerConnectionParameters.videoStartBitrate);
-                    sdpDescription = setStartBitrate(VIDEO_CODEC_H264, true,
-                            sdpDescription, peerConnectionParameters.videoStartBitrate);
+                    int videoStartBitrate = peerConnectionParameters.videoStartBitrate;
+                    rewriter.setStartBitrate(VIDEO_CODEC_VP8, true, videoStartBitrate)
+                            .setStartBitrate(VIDEO_CODEC_VP9, true, videoStartBitrate)
+                            .setStartBitrate(VIDEO_CODEC_H264, true, videoStartBitrate);
                 }
                 if (peerConnectionParameters.audioStartBitrate > 0) {
-                    sdpDescription = setStartBitrate(AUDIO_CODEC_OPUS, false,
-                            sdpDescription, peerConnectionParameters.audioStartBitrate);
+                    rewriter.setStartBitrate(AUDIO_CODEC_OPUS, false,
+                            peerConnectionParameters.audioStartBitrate);
                 }
-                Log.d(TAG, "Set remote SDP.");
+                String sdpDescription = rewriter.build();
+                Log.d(TAG, "Set remote SDP for " + peerId);
                 SessionDescription sdpRemote = new SessionDescription(
                         sdp.type, sdpDescription);
-                peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
+                session.peerConnection.setRemoteDescription(session.sdpObserver, sdpRemote);
             }
         });
     }
@@ -740,140 +1035,14 @@ public class PeerConnectionClient {
         return localVideoTrack;
     }
 
-    private static String setStartBitrate(String codec, boolean isVideoCodec,
-                                          String sdpDescription, int bitrateKbps) {
-        String[] lines = sdpDescription.split("\r\n");
-        int rtpmapLineIndex = -1;
-        boolean sdpFormatUpdated = false;
-        String codecRtpMap = null;
-        // Search for codec rtpmap in format
-        // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-        String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-        Pattern codecPattern = Pattern.compile(regex);
-        for (int i = 0; i < lines.length; i++) {
-            Matcher codecMatcher = codecPattern.matcher(lines[i]);
-            if (codecMatcher.matches()) {
-                codecRtpMap = codecMatcher.group(1);
-                rtpmapLineIndex = i;
-                break;
-            }
-        }
-        if (codecRtpMap == null) {
-            Log.w(TAG, "No rtpmap for " + codec + " codec");
-            return sdpDescription;
-        }
-        Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap
-                + " at " + lines[rtpmapLineIndex]);
-
-        // Check if a=fmtp string already exist in remote SDP for this codec and
-        // update it with new bitrate parameter.
-        regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-        codecPattern = Pattern.compile(regex);
-        for (int i = 0; i < lines.length; i++) {
-            Matcher codecMatcher = codecPattern.matcher(lines[i]);
-            if (codecMatcher.matches()) {
-                Log.d(TAG, "Found " + codec + " " + lines[i]);
-                if (isVideoCodec) {
-                    lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE
-                            + "=" + bitrateKbps;
-                } else {
-                    lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE
-                            + "=" + (bitrateKbps * 1000);
-                }
-                Log.d(TAG, "Update remote SDP line: " + lines[i]);
-                sdpFormatUpdated = true;
-                break;
+    private void drainCandidates(PeerSession session) {
+        if (session.queuedRemoteCandidates != null) {
+            Log.d(TAG, "Add " + session.queuedRemoteCandidates.size()
+                    + " remote candidates for " + session.peerId);
+            for (IceCandidate candidate : session.queuedRemoteCandidates) {
+                session.peerConnection.addIceCandidate(candidate);
             }
-        }
-
-        StringBuilder newSdpDescription = new StringBuilder();
-        for (int i = 0; i < lines.length; i++) {
-            newSdpDescription.append(lines[i]).append("\r\n");
-            // Append new a=fmtp line if no such line exist for a codec.
-            if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-                String bitrateSet;
-                if (isVideoCodec) {
-                    bitrateSet = "a=fmtp:" + codecRtpMap + " "
-                            + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-                } else {
-                    bitrateSet = "a=fmtp:" + codecRtpMap + " "
-                            + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
-                }
-                Log.d(TAG, "Add remote SDP line: " + bitrateSet);
-                newSdpDescription.append(bitrateSet).append("\r\n");
-            }
-
-        }
-        return newSdpDescription.toString();
-    }
-
-    private static String preferCodec(
-            String sdpDescription, String codec, boolean isAudio) {
-        String[] lines = sdpDescription.split("\r\n");
-        int mLineIndex = -1;
-        String codecRtpMap = null;
-        // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-        String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-        Pattern codecPattern = Pattern.compile(regex);
-        String mediaDescription = "m=video ";
-        if (isAudio) {
-            mediaDescription = "m=audio ";
-        }
-        for (int i = 0; (i < lines.length)
-                && (mLineIndex == -1 || codecRtpMap == null); i++) {
-            if (lines[i].startsWith(mediaDescription)) {
-                mLineIndex = i;
-                continue;
-            }
-            Matcher codecMatcher = codecPattern.matcher(lines[i]);
-            if (codecMatcher.matches()) {
-                codecRtpMap = codecMatcher.group(1);
-                continue;
-            }
-        }
-        if (mLineIndex == -1) {
-            Log.w(TAG, "No " + mediaDescription + " line, so can't prefer " + codec);
-            return sdpDescription;
-        }
-        if (codecRtpMap == null) {
-            Log.w(TAG, "No rtpmap for " + codec);
-            return sdpDescription;
-        }
-        Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + ", prefer at "
-                + lines[mLineIndex]);
-        String[] origMLineParts = lines[mLineIndex].split(" ");
-        if (origMLineParts.length > 3) {
-            StringBuilder newMLine = new StringBuilder();
-            int origPartIndex = 0;
-            // Format is: m=<media> <port> <proto> <fmt> ...
-            newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-            newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-            newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-            newMLine.append(codecRtpMap);
-            for (; origPartIndex < origMLineParts.length; origPartIndex++) {
-                if (!origMLineParts[origPartIndex].equals(codecRtpMap)) {
-                    newMLine.append(" ").append(origMLineParts[origPartIndex]);
-                }
-            }
-            lines[mLineIndex] = newMLine.toString();
-            Log.d(TAG, "Change media description: " + lines[mLineIndex]);
-        } else {
-            Log.e(TAG, "Wrong SDP media description format: " + lines[mLineIndex]);
-        }
-        StringBuilder newSdpDescription = new StringBuilder();
-        for (String line : lines) {
-            newSdpDescription.append(line).append("\r\n");
-        }
-        return newSdpDescription.toString();
-    }
-
-    private void drainCandidates() {
-        if (queuedRemoteCandidates != null) {
-            Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
-            for (IceCandidate candidate : queuedRemoteCandidates) {
-                peerConnection.addIceCandidate(candidate);
-            }
-            queuedRemoteCandidates = null;
+            session.queuedRemoteCandidates = null;
         }
     }
 
@@ -897,7 +1066,7 @@ public class PeerConnectionClient {
     }
 
     public void changeCaptureFormat(final int width, final int height, final int framerate) {
-        executor.execute(new Runnable() {
+        executor.execute(CAPTURE_FORMAT_TASK_KEY, new Runnable() {
             @Override
             public void run() {
                 changeCaptureFormatInternal(width, height, framerate);
@@ -915,13 +1084,29 @@ public class PeerConnectionClient {
     }
 
     // Implementation detail: observe ICE & stream changes and react accordingly.
+    // Standby connections are created without a session; events are ignored
+    // until one is attached.
     private class PCObserver implements PeerConnection.Observer {
+        private volatile PeerSession session;
+
+        PCObserver(PeerSession session) {
+            this.session = session;
+        }
+
+        void attach(PeerSession session) {
+            this.session = session;
+        }
+
         @Override
         public void onIceCandidate(final IceCandidate candidate) {
+            final PeerSession session = this.session;
+            if (session == null) {
+                return;
+            }
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    events.onIceCandidate(candidate);
+                    events.onIceCandidate(session.peerId, candidate);
                 }
             });
         }
@@ -935,16 +1120,26 @@ public class PeerConnectionClient {
         @Override
         public void onIceConnectionChange(
                 final IceConnectionState newState) {
+            final PeerSession session = this.session;
+            if (session == null) {
+                return;
+            }
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    Log.d(TAG, "IceConnectionState: " + newState);
+                    Log.d(TAG, "IceConnectionState of " + session.peerId + ": " + newState);
                     if (newState == IceConnectionState.CONNECTED) {
-                        events.onIceConnected();
+                        events.onIceConnected(session.peerId);
                     } else if (newState == IceConnectionState.DISCONNECTED) {
-                        events.onIceDisconnected();
+                        events.onIceDisconnected(session.peerId);
                     } else if (newState == IceConnectionState.FAILED) {
-                        reportError("ICE connection failed.");
+                        if (session.peerId == activePeerId) {
+                            reportError("ICE connection failed.");
+                        } else {
+                            // Only the failed peer is dropped.
+                            Log.e(TAG, "ICE connection to " + session.peerId + " failed.");
+                            removePeer(session.peerId);
+                        }
                     }
                 }
             });
@@ -963,10 +1158,14 @@ public class PeerConnectionClient {
 
         @Override
         public void onAddStream(final MediaStream stream) {
+            final PeerSession session = this.session;
+            if (session == null) {
+                return;
+            }
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    if (peerConnection == null || isError) {
+                    if (session.peerConnection == null || isError) {
                         return;
                     }
                     if (stream.audioTracks.size() > 1 || stream.videoTracks.size() > 1) {
@@ -974,9 +1173,9 @@ public class PeerConnectionClient {
                         return;
                     }
                     if (stream.videoTracks.size() == 1) {
-                        remoteVideoTrack = stream.videoTracks.get(0);
-                        remoteVideoTrack.setEnabled(renderVideo);
-                        remoteVideoTrack.addRenderer(new VideoRenderer(remoteRender));
+                        session.remoteVideoTrack = stream.videoTracks.get(0);
+                        session.remoteVideoTrack.setEnabled(renderVideo);
+                        updateRemoteRenderer(session);
                     }
                 }
             });
@@ -984,10 +1183,18 @@ public class PeerConnectionClient {
 
         @Override
         public void onRemoveStream(final MediaStream stream) {
+            final PeerSession session = this.session;
+            if (session == null) {
+                return;
+            }
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    remoteVideoTrack = null;
+                    if (session.remoteVideoRenderer != null) {
+                        session.remoteVideoRenderer.dispose();
+                        session.remoteVideoRenderer = null;
+                    }
+                    session.remoteVideoTrack = null;
                 }
             });
         }
@@ -1008,28 +1215,35 @@ public class PeerConnectionClient {
     // Implementation detail: handle offer creation/signaling and answer setting,
     // as well as adding remote ICE candidates once the answer SDP is set.
     private class SDPObserver implements SdpObserver {
+        private final PeerSession session;
+
+        SDPObserver(PeerSession session) {
+            this.session = session;
+        }
+
         @Override
         public void onCreateSuccess(final SessionDescription origSdp) {
-            if (localSdp != null) {
+            if (session.localSdp != null) {
                 reportError("Multiple SDP create.");
                 return;
             }
-            String sdpDescription = origSdp.description;
+            SdpRewriter rewriter = SdpRewriter.parse(origSdp.description);
             if (preferIsac) {
-                sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
+                rewriter.preferCodec(AUDIO_CODEC_ISAC, true);
             }
             if (videoCallEnabled && preferH264) {
-                sdpDescription = preferCodec(sdpDescription, VIDEO_CODEC_H264, false);
+                rewriter.preferCodec(VIDEO_CODEC_H264, false);
             }
+            String sdpDescription = rewriter.build();
             final SessionDescription sdp = new SessionDescription(
                     origSdp.type, sdpDescription);
-            localSdp = sdp;
+            session.localSdp = sdp;
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    if (peerConnection != null && !isError) {
+                    if (session.peerConnection != null && !isError) {
                         Log.d(TAG, "Set local SDP from " + sdp.type);
-                        peerConnection.setLocalDescription(new SdpObserver() {
+                        session.peerConnection.setLocalDescription(new SdpObserver() {
                             @Override
                             public void onCreateSuccess(SessionDescription sessionDescription) {
                                 Log.e(TAG, "onCreateSuccess", new Exception());
@@ -1042,8 +1256,8 @@ public class PeerConnectionClient {
 
                             @Override
                             public void onSetSuccess() {
-                                events.onLocalDescription(localSdp);
-                                drainCandidates();
+                                events.onLocalDescription(session.peerId, session.localSdp);
+                                drainCandidates(session);
                             }
 
 
@@ -1062,7 +1276,7 @@ public class PeerConnectionClient {
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    if (peerConnection == null || isError) {
+                    if (session.peerConnection == null || isError) {
                         return;
                     }
                     // We've just set remote SDP - do nothing for now -
@@ -17,6 +17,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
+import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceHolder.Callback;
 import android.view.SurfaceView;
@@ -27,6 +28,7 @@ import com.google.zxing.Result;
 import com.zijunlin.Zxing.camera.CameraManager;
 import com.zijunlin.Zxing.decoding.CaptureActivityHandler;
 import com.zijunlin.Zxing.decoding.InactivityTimer;
+import com.zijunlin.Zxing.decoding.ScanProfile;
 import com.zijunlin.Zxing.view.ViewfinderView;
 
 import java.io.IOException;
@@ -35,6 +37,10 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class QrActivity extends Activity implements Callback {
+    // Time the scan was asked for, in System.currentTimeMillis(); startup is timed from there.
+    public static final String EXTRA_START_TIME = "org.appspot.apprtc.QR_START_TIME";
+    private static final String TAG = "QrActivity";
+
     private long roomId = 0;
     private long masterId = 0;
     private String qrUrl = null;
@@ -58,6 +64,8 @@ public class QrActivity extends Activity implements Callback {
     private String keyprefDisplayHud;
     private String keyprefRoomServerUrl;
     private String keyprefRoom;
+    private String keyprefQrThumbnail;
+    private String keyprefScanProfile;
 
     private CaptureActivityHandler handler;
     private ViewfinderView viewfinderView;
@@ -69,6 +77,8 @@ public class QrActivity extends Activity implements Callback {
     private boolean playBeep;
     private static final float BEEP_VOLUME = 0.10f;
     private boolean vibrate;
+    private long startTimeMs;
+    private boolean startupLogged;
 
     /**
      * Called when the activity is first created.
@@ -94,6 +104,8 @@ public class QrActivity extends Activity implements Callback {
         keyprefDisplayHud = getString(R.string.pref_displayhud_key);
 //        keyprefRoomServerUrl = getString(R.string.pref_room_server_url_key);
         keyprefRoom = getString(R.string.pref_room_key);
+        keyprefQrThumbnail = getString(R.string.pref_qrthumbnail_key);
+        keyprefScanProfile = getString(R.string.pref_scanprofile_key);
         super.onCreate(savedInstanceState);
         setContentView(R.layout.layout_qr);
         // 初始化 CameraManager
@@ -101,6 +113,8 @@ public class QrActivity extends Activity implements Callback {
         viewfinderView = (ViewfinderView) findViewById(R.id.viewfinder_view);
         hasSurface = false;
         inactivityTimer = new InactivityTimer(this);
+        startTimeMs = getIntent().getLongExtra(EXTRA_START_TIME, System.currentTimeMillis());
+        logStartup("Activity created");
     }
 
     @Override
@@ -146,12 +160,23 @@ public class QrActivity extends Activity implements Callback {
         try {
             CameraManager.get().openDriver(surfaceHolder);
         } catch (IOException ioe) {
+            Log.e(TAG, "Cannot open camera", ioe);
             return;
         } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot configure camera", e);
             return;
         }
+        logStartup("Camera opened, parameters "
+                + (CameraManager.get().isConfigurationCached() ? "cached" : "parsed"));
         if (handler == null) {
-            handler = new CaptureActivityHandler(this, decodeFormats, characterSet);
+            // Check barcode thumbnail option.
+            boolean thumbnailEnabled = sharedPref.getBoolean(keyprefQrThumbnail,
+                    Boolean.valueOf(getString(R.string.pref_qrthumbnail_default)));
+            // Get scan profile from settings.
+            ScanProfile scanProfile = ScanProfile.fromName(sharedPref.getString(
+                    keyprefScanProfile, getString(R.string.pref_scanprofile_default)));
+            handler = new CaptureActivityHandler(this, decodeFormats, characterSet,
+                    scanProfile, thumbnailEnabled);
         }
     }
 
@@ -175,6 +200,14 @@ public class QrActivity extends Activity implements Callback {
 
     }
 
+    // Logs the time since the scan was asked for, until the first code is decoded.
+    private void logStartup(String event) {
+        if (!startupLogged) {
+            Log.d(TAG, "Scanner startup: " + event + " after "
+                    + (System.currentTimeMillis() - startTimeMs) + " ms");
+        }
+    }
+
     public ViewfinderView getViewfinderView() {
         return viewfinderView;
     }
@@ -189,7 +222,8 @@ public class QrActivity extends Activity implements Callback {
     }
 
     public void handleDecode(final Result obj, Bitmap barcode) {
-        ;
+        logStartup("First decode");
+        startupLogged = true;
         inactivityTimer.onActivity();
         playBeepSoundAndVibrate();
         AlertDialog.Builder dialog = new AlertDialog.Builder(this);
@@ -11,36 +11,35 @@
 package org.appspot.apprtc;
 
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.signaling.RoomJoinResponse;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
 
 import android.util.Log;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.LinkedList;
-import java.util.Scanner;
 
 /**
  * AsyncTask that converts an AppRTC room URL into the set of signaling
  * parameters to use with that room.
+ *
+ * TURN servers come from {@link TurnServerCache}, which requests them
+ * together with the room join once the room server's TURN URL is known.
  */
 public class RoomParametersFetcher {
     private static final String TAG = "RoomRTCClient";
-    private static final int TURN_HTTP_TIMEOUT_MS = 5000;
     private final RoomParametersFetcherEvents events;
+    private final String roomServerUrl;
     private final String roomUrl;
     private final String roomMessage;
     private AsyncHttpURLConnection httpConnection;
+    private long requestStartMs;
 
     /**
      * Room parameters fetcher callbacks.
@@ -58,8 +57,13 @@ public class RoomParametersFetcher {
         public void onSignalingParametersError(final String description);
     }
 
-    public RoomParametersFetcher(String roomUrl, String roomMessage,
+    /**
+     * @param roomServerUrl The room server |roomUrl| belongs to; TURN servers
+     *                      are cached per room server.
+     */
+    public RoomParametersFetcher(String roomServerUrl, String roomUrl, String roomMessage,
                                  final RoomParametersFetcherEvents events) {
+        this.roomServerUrl = roomServerUrl;
         this.roomUrl = roomUrl;
         this.roomMessage = roomMessage;
         this.events = events;
@@ -67,6 +71,9 @@ public class RoomParametersFetcher {
 
     public void makeRequest() {
         Log.d(TAG, "Connecting to room: " + roomUrl);
+        requestStartMs = System.currentTimeMillis();
+        // Don't wait for the room response to ask for TURN servers.
+        TurnServerCache.getInstance().prefetch(roomServerUrl);
         httpConnection = new AsyncHttpURLConnection(
                 "POST", roomUrl, roomMessage,
                 new AsyncHttpEvents() {
@@ -89,106 +96,61 @@ public class RoomParametersFetcher {
     //POST URL:
     //  https://<room_server_address>/join/<room_id>
     private void roomHttpResponseParse(String response) {
+        long roomResponseMs = System.currentTimeMillis();
         Log.d(TAG, "Room response: " + response);
+        RoomJoinResponse join = RoomJoinResponse.parse(response);
+        if (join == null) {
+            events.onSignalingParametersError("Room JSON parsing error: " + response);
+            return;
+        }
         try {
             LinkedList<IceCandidate> iceCandidates = null;
             SessionDescription offerSdp = null;
-            JSONObject roomJson = new JSONObject(response);
 
-            long roomId = roomJson.getLong("room_id");
-            long clientId = roomJson.getLong("client_id");
-            String wssUrl = roomJson.getString("wss_url");
-            String wssPostUrl = roomJson.getString("wss_post_url");
-
-            Log.d(TAG, "RoomId: " + roomId + ". ClientId: " + clientId);
-            Log.d(TAG, "WSS url: " + wssUrl);
-            Log.d(TAG, "WSS POST url: " + wssPostUrl);
+            Log.d(TAG, "RoomId: " + join.roomId + ". ClientId: " + join.clientId);
+            Log.d(TAG, "WSS url: " + join.wssUrl);
+            Log.d(TAG, "WSS POST url: " + join.wssPostUrl);
 
             LinkedList<PeerConnection.IceServer> iceServers =
-                    iceServersFromPCConfigJSON(roomJson.getString("pc_config"));
+                    new LinkedList<PeerConnection.IceServer>();
             boolean isTurnPresent = false;
-            for (PeerConnection.IceServer server : iceServers) {
-                Log.d(TAG, "IceServer: " + server);
-                if (server.uri.startsWith("turn:")) {
+            for (RoomJoinResponse.IceServer server : join.iceServers) {
+                iceServers.add(new PeerConnection.IceServer(server.url, "", server.credential));
+                Log.d(TAG, "IceServer: " + server.url);
+                if (server.url.startsWith("turn:")) {
                     isTurnPresent = true;
-                    break;
                 }
             }
             // Request TURN servers.
+            long turnStartMs = System.currentTimeMillis();
             if (!isTurnPresent) {
+                if (join.turnUrl == null) {
+                    events.onSignalingParametersError("Room response has no TURN URL.");
+                    return;
+                }
                 LinkedList<PeerConnection.IceServer> turnServers =
-                        requestTurnServers(roomJson.getString("turn_url"));
+                        TurnServerCache.getInstance().get(roomServerUrl, join.turnUrl);
                 for (PeerConnection.IceServer turnServer : turnServers) {
                     Log.d(TAG, "TurnServer: " + turnServer);
                     iceServers.add(turnServer);
                 }
             }
+            long doneMs = System.currentTimeMillis();
+            Log.d(TAG, "Join latency: room request " + (roomResponseMs - requestStartMs)
+                    + " ms, parsing " + (turnStartMs - roomResponseMs)
+                    + " ms, TURN wait " + (doneMs - turnStartMs)
+                    + " ms, total " + (doneMs - requestStartMs) + " ms. Room request: "
+                    + httpConnection.getTiming());
 
             SignalingParameters params = new SignalingParameters(
                     iceServers,
-                    clientId, wssUrl, wssPostUrl,
+                    join.clientId, join.wssUrl, join.wssPostUrl,
                     offerSdp, iceCandidates);
             events.onSignalingParametersReady(params);
         } catch (JSONException e) {
-            events.onSignalingParametersError(
-                    "Room JSON parsing error: " + e.toString());
+            events.onSignalingParametersError("TURN JSON parsing error: " + e.toString());
         } catch (IOException e) {
             events.onSignalingParametersError("Room IO error: " + e.toString());
         }
     }
-
-    // Requests & returns a TURN ICE Server based on a request URL.  Must be run
-    // off the main thread!
-    private LinkedList<PeerConnection.IceServer> requestTurnServers(String url)
-            throws IOException, JSONException {
-        LinkedList<PeerConnection.IceServer> turnServers =
-                new LinkedList<PeerConnection.IceServer>();
-        Log.d(TAG, "Request TURN from: " + url);
-        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-        connection.setConnectTimeout(TURN_HTTP_TIMEOUT_MS);
-        connection.setReadTimeout(TURN_HTTP_TIMEOUT_MS);
-        int responseCode = connection.getResponseCode();
-        if (responseCode != 200) {
-            throw new IOException("Non-200 response when requesting TURN server from "
-                    + url + " : " + connection.getHeaderField(null));
-        }
-        InputStream responseStream = connection.getInputStream();
-        String response = drainStream(responseStream);
-        connection.disconnect();
-        Log.d(TAG, "TURN response: " + response);
-        JSONObject responseJSON = new JSONObject(response);
-        String username = responseJSON.getString("username");
-        String password = responseJSON.getString("password");
-        JSONArray turnUris = responseJSON.getJSONArray("uris");
-        for (int i = 0; i < turnUris.length(); i++) {
-            String uri = turnUris.getString(i);
-            turnServers.add(new PeerConnection.IceServer(uri, username, password));
-        }
-        return turnServers;
-    }
-
-    // Return the list of ICE servers described by a WebRTCPeerConnection
-    // configuration string.
-    private LinkedList<PeerConnection.IceServer> iceServersFromPCConfigJSON(
-            String pcConfig) throws JSONException {
-        JSONObject json = new JSONObject(pcConfig);
-        JSONArray servers = json.getJSONArray("iceServers");
-        LinkedList<PeerConnection.IceServer> ret =
-                new LinkedList<PeerConnection.IceServer>();
-        for (int i = 0; i < servers.length(); ++i) {
-            JSONObject server = servers.getJSONObject(i);
-            String url = server.getString("urls");
-            String credential =
-                    server.has("credential") ? server.getString("credential") : "";
-            ret.add(new PeerConnection.IceServer(url, "", credential));
-        }
-        return ret;
-    }
-
-    // Return the contents of an InputStream as a String.
-    private static String drainStream(InputStream in) {
-        Scanner s = new Scanner(in).useDelimiter("\\A");
-        return s.hasNext() ? s.next() : "";
-    }
-
 }
@@ -0,0 +1,324 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Single pass SDP rewriter.
+ * <p/>
+ * <p>The SDP is split into lines once and indexed (first m=audio / m=video
+ * line, a=rtpmap lines by encoding name and a=fmtp lines by payload type).
+ * Any number of edits can then be applied against the index, and the
+ * description is serialized once by build(). If no edit changed anything
+ * the original string is returned as is.
+ * <p/>
+ * <p>This class is not thread-safe; create one instance per description.
+ */
+class SdpRewriter {
+    private static final String TAG = "SdpRewriter";
+    private static final String LINE_SEPARATOR = "\r\n";
+    private static final String MEDIA_AUDIO = "m=audio ";
+    private static final String MEDIA_VIDEO = "m=video ";
+    private static final String RTPMAP_PREFIX = "a=rtpmap:";
+    private static final String FMTP_PREFIX = "a=fmtp:";
+    private static final String VIDEO_CODEC_PARAM_START_BITRATE =
+            "x-google-start-bitrate";
+    private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
+
+    private final String original;
+    private final String[] lines;
+    private final int lineCount;
+    // Lines added right after lines[i], or null if nothing was added there.
+    private String[] insertedLines;
+    private int audioMLineIndex = -1;
+    private int videoMLineIndex = -1;
+    // Encoding name -> index of its first a=rtpmap line.
+    private final HashMap<String, Integer> rtpmapIndex = new HashMap<String, Integer>();
+    // Payload type -> index of its first a=fmtp line. Indexes >= lineCount
+    // refer to insertedLines[index - lineCount].
+    private final HashMap<String, Integer> fmtpIndex = new HashMap<String, Integer>();
+    private boolean modified;
+
+    private SdpRewriter(String sdpDescription) {
+        original = sdpDescription;
+        lines = splitLines(sdpDescription);
+        int count = lines.length;
+        // Trailing empty lines are dropped, the same way String.split() does.
+        while (count > 0 && lines[count - 1].isEmpty()) {
+            count--;
+        }
+        lineCount = count;
+        for (int i = 0; i < lineCount; i++) {
+            indexLine(i);
+        }
+    }
+
+    public static SdpRewriter parse(String sdpDescription) {
+        return new SdpRewriter(sdpDescription);
+    }
+
+    /**
+     * Moves the payload type of |codec| to the front of the first m=audio
+     * (|isAudio|) or m=video line.
+     */
+    public SdpRewriter preferCodec(String codec, boolean isAudio) {
+        String mediaDescription = isAudio ? MEDIA_AUDIO : MEDIA_VIDEO;
+        int mLineIndex = isAudio ? audioMLineIndex : videoMLineIndex;
+        if (mLineIndex == -1) {
+            Log.w(TAG, "No " + mediaDescription + " line, so can't prefer " + codec);
+            return this;
+        }
+        String codecRtpMap = getPayloadType(codec);
+        if (codecRtpMap == null) {
+            Log.w(TAG, "No rtpmap for " + codec);
+            return this;
+        }
+        Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + ", prefer at "
+                + lines[mLineIndex]);
+        String mLine = lines[mLineIndex];
+        // Format is: m=<media> <port> <proto> <fmt> ...
+        int formatsStart = nthSpace(mLine, 3);
+        if (formatsStart == -1) {
+            Log.e(TAG, "Wrong SDP media description format: " + mLine);
+            return this;
+        }
+        StringBuilder newMLine = new StringBuilder(mLine.length());
+        newMLine.append(mLine, 0, formatsStart + 1).append(codecRtpMap);
+        int start = formatsStart + 1;
+        while (start <= mLine.length()) {
+            int end = mLine.indexOf(' ', start);
+            if (end == -1) {
+                end = mLine.length();
+            }
+            if (!mLine.regionMatches(start, codecRtpMap, 0, codecRtpMap.length())
+                    || end - start != codecRtpMap.length()) {
+                newMLine.append(' ').append(mLine, start, end);
+            }
+            start = end + 1;
+        }
+        lines[mLineIndex] = newMLine.toString();
+        modified = true;
+        Log.d(TAG, "Change media description: " + lines[mLineIndex]);
+        return this;
+    }
+
+    /**
+     * Sets the start bitrate of |codec|: x-google-start-bitrate in kbps for
+     * video codecs and maxaveragebitrate in bps for audio codecs.
+     */
+    public SdpRewriter setStartBitrate(String codec, boolean isVideoCodec, int bitrateKbps) {
+        if (isVideoCodec) {
+            return setFmtpParameter(codec,
+                    VIDEO_CODEC_PARAM_START_BITRATE, bitrateKbps);
+        }
+        return setFmtpParameter(codec,
+                AUDIO_CODEC_PARAM_BITRATE, bitrateKbps * 1000);
+    }
+
+    /**
+     * Adds |name|=|value| to the a=fmtp line of |codec|. A new a=fmtp line is
+     * added after the codec's a=rtpmap line if there is none yet.
+     */
+    public SdpRewriter setFmtpParameter(String codec, String name, int value) {
+        Integer rtpmapLineIndex = rtpmapIndex.get(codec);
+        if (rtpmapLineIndex == null) {
+            Log.w(TAG, "No rtpmap for " + codec + " codec");
+            return this;
+        }
+        String codecRtpMap = payloadTypeOf(lines[rtpmapLineIndex]);
+        Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap
+                + " at " + lines[rtpmapLineIndex]);
+
+        Integer fmtpLineIndex = fmtpIndex.get(codecRtpMap);
+        if (fmtpLineIndex != null) {
+            String line = getLine(fmtpLineIndex) + "; " + name + "=" + value;
+            setLine(fmtpLineIndex, line);
+            Log.d(TAG, "Update SDP line: " + line);
+        } else {
+            String line = FMTP_PREFIX + codecRtpMap + " " + name + "=" + value;
+            if (insertedLines == null) {
+                insertedLines = new String[lineCount];
+            }
+            insertedLines[rtpmapLineIndex] = line;
+            fmtpIndex.put(codecRtpMap, lineCount + rtpmapLineIndex);
+            Log.d(TAG, "Add SDP line: " + line);
+        }
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Serializes the description. Every line is terminated with \r\n.
+     */
+    public String build() {
+        if (!modified) {
+            return original;
+        }
+        StringBuilder newSdpDescription = new StringBuilder(original.length() + 64);
+        for (int i = 0; i < lineCount; i++) {
+            newSdpDescription.append(lines[i]).append(LINE_SEPARATOR);
+            if (insertedLines != null && insertedLines[i] != null) {
+                newSdpDescription.append(insertedLines[i]).append(LINE_SEPARATOR);
+            }
+        }
+        return newSdpDescription.toString();
+    }
+
+    // Returns payload type of the first a=rtpmap line of |codec| or null.
+    private String getPayloadType(String codec) {
+        Integer index = rtpmapIndex.get(codec);
+        return index == null ? null : payloadTypeOf(lines[index]);
+    }
+
+    private String getLine(int index) {
+        return index < lineCount ? lines[index] : insertedLines[index - lineCount];
+    }
+
+    private void setLine(int index, String line) {
+        if (index < lineCount) {
+            lines[index] = line;
+        } else {
+            insertedLines[index - lineCount] = line;
+        }
+    }
+
+    private void indexLine(int i) {
+        String line = lines[i];
+        if (line.length() < 2 || line.charAt(1) != '=') {
+            return;
+        }
+        char type = line.charAt(0);
+        if (type == 'm') {
+            if (audioMLineIndex == -1 && line.startsWith(MEDIA_AUDIO)) {
+                audioMLineIndex = i;
+            } else if (videoMLineIndex == -1 && line.startsWith(MEDIA_VIDEO)) {
+                videoMLineIndex = i;
+            }
+        } else if (type == 'a') {
+            if (line.startsWith(RTPMAP_PREFIX)) {
+                indexRtpmap(i, line);
+            } else if (line.startsWith(FMTP_PREFIX)) {
+                indexFmtp(i, line);
+            }
+        }
+    }
+
+    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+    private void indexRtpmap(int i, String line) {
+        int ptEnd = skipDigits(line, RTPMAP_PREFIX.length());
+        if (ptEnd == RTPMAP_PREFIX.length() || ptEnd >= line.length()
+                || line.charAt(ptEnd) != ' ') {
+            return;
+        }
+        int nameStart = ptEnd + 1;
+        int nameEnd = line.indexOf('/', nameStart);
+        if (nameEnd == -1 || nameEnd == nameStart) {
+            return;
+        }
+        // Remaining part must be one or more /<number> groups.
+        int pos = nameEnd;
+        int end = line.length();
+        if (line.charAt(end - 1) == '\r') {
+            end--;
+        }
+        while (pos < end) {
+            if (line.charAt(pos) != '/') {
+                return;
+            }
+            int digitsEnd = skipDigits(line, pos + 1);
+            if (digitsEnd == pos + 1) {
+                return;
+            }
+            pos = digitsEnd;
+        }
+        if (pos != end) {
+            return;
+        }
+        String name = line.substring(nameStart, nameEnd);
+        if (!rtpmapIndex.containsKey(name)) {
+            rtpmapIndex.put(name, i);
+        }
+    }
+
+    // a=fmtp:<payload type> <name>=<number>...
+    private void indexFmtp(int i, String line) {
+        int ptEnd = skipDigits(line, FMTP_PREFIX.length());
+        if (ptEnd == FMTP_PREFIX.length() || ptEnd >= line.length()
+                || line.charAt(ptEnd) != ' ') {
+            return;
+        }
+        int pos = ptEnd + 1;
+        int nameStart = pos;
+        while (pos < line.length() && isWordChar(line.charAt(pos))) {
+            pos++;
+        }
+        if (pos == nameStart || pos >= line.length() || line.charAt(pos) != '=') {
+            return;
+        }
+        if (skipDigits(line, pos + 1) == pos + 1) {
+            return;
+        }
+        String payloadType = line.substring(FMTP_PREFIX.length(), ptEnd);
+        if (!fmtpIndex.containsKey(payloadType)) {
+            fmtpIndex.put(payloadType, i);
+        }
+    }
+
+    private static String payloadTypeOf(String rtpmapLine) {
+        return rtpmapLine.substring(RTPMAP_PREFIX.length(),
+                rtpmapLine.indexOf(' ', RTPMAP_PREFIX.length()));
+    }
+
+    private static String[] splitLines(String sdpDescription) {
+        int count = 1;
+        int pos = 0;
+        while ((pos = sdpDescription.indexOf(LINE_SEPARATOR, pos)) != -1) {
+            count++;
+            pos += LINE_SEPARATOR.length();
+        }
+        String[] result = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++) {
+            int end = sdpDescription.indexOf(LINE_SEPARATOR, start);
+            result[i] = sdpDescription.substring(start, end);
+            start = end + LINE_SEPARATOR.length();
+        }
+        result[count - 1] = sdpDescription.substring(start);
+        return result;
+    }
+
+    // Returns index of the |n|-th space character in |line| or -1.
+    private static int nthSpace(String line, int n) {
+        int pos = -1;
+        for (int i = 0; i < n; i++) {
+            pos = line.indexOf(' ', pos + 1);
+            if (pos == -1) {
+                return -1;
+            }
+        }
+        return pos;
+    }
+
+    private static int skipDigits(String line, int pos) {
+        while (pos < line.length() && line.charAt(pos) >= '0' && line.charAt(pos) <= '9') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || c == '_';
+    }
+}
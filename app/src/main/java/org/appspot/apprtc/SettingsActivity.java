@@ -26,6 +26,7 @@ public class SettingsActivity extends Activity
   private String keyprefResolution;
   private String keyprefFps;
   private String keyprefCaptureQualitySlider;
+  private String keyprefAutoQuality;
   private String keyprefStartVideoBitrateType;
   private String keyprefStartVideoBitrateValue;
   private String keyPrefVideoCodec;
@@ -39,6 +40,13 @@ public class SettingsActivity extends Activity
   private String keyprefCpuUsageDetection;
   private String keyPrefRoomServerUrl;
   private String keyPrefDisplayHud;
+  private String keyprefStandbyPool;
+  private String keyprefStandbyTtl;
+  private String keyprefCandidateWindow;
+  private String keyprefCandidateBatch;
+  private String keyprefRecordStats;
+  private String keyprefQrThumbnail;
+  private String keyprefScanProfile;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -47,6 +55,7 @@ public class SettingsActivity extends Activity
     keyprefResolution = getString(R.string.pref_resolution_key);
     keyprefFps = getString(R.string.pref_fps_key);
     keyprefCaptureQualitySlider = getString(R.string.pref_capturequalityslider_key);
+    keyprefAutoQuality = getString(R.string.pref_autoquality_key);
     keyprefStartVideoBitrateType = getString(R.string.pref_startvideobitrate_key);
     keyprefStartVideoBitrateValue = getString(R.string.pref_startvideobitratevalue_key);
     keyPrefVideoCodec = getString(R.string.pref_videocodec_key);
@@ -60,6 +69,13 @@ public class SettingsActivity extends Activity
     keyprefCpuUsageDetection = getString(R.string.pref_cpu_usage_detection_key);
 //    keyPrefRoomServerUrl = getString(R.string.pref_room_server_url_key);
     keyPrefDisplayHud = getString(R.string.pref_displayhud_key);
+    keyprefStandbyPool = getString(R.string.pref_standbypool_key);
+    keyprefStandbyTtl = getString(R.string.pref_standbyttl_key);
+    keyprefCandidateWindow = getString(R.string.pref_candidatewindow_key);
+    keyprefCandidateBatch = getString(R.string.pref_candidatebatch_key);
+    keyprefRecordStats = getString(R.string.pref_recordstats_key);
+    keyprefQrThumbnail = getString(R.string.pref_qrthumbnail_key);
+    keyprefScanProfile = getString(R.string.pref_scanprofile_key);
 
     // Display the fragment as the main content.
     settingsFragment = new SettingsFragment();
@@ -79,6 +95,7 @@ public class SettingsActivity extends Activity
     updateSummary(sharedPreferences, keyprefResolution);
     updateSummary(sharedPreferences, keyprefFps);
     updateSummaryB(sharedPreferences, keyprefCaptureQualitySlider);
+    updateSummaryB(sharedPreferences, keyprefAutoQuality);
     updateSummary(sharedPreferences, keyprefStartVideoBitrateType);
     updateSummaryBitrate(sharedPreferences, keyprefStartVideoBitrateValue);
     setVideoBitrateEnable(sharedPreferences);
@@ -94,6 +111,13 @@ public class SettingsActivity extends Activity
     updateSummaryB(sharedPreferences, keyprefCpuUsageDetection);
     updateSummary(sharedPreferences, keyPrefRoomServerUrl);
     updateSummaryB(sharedPreferences, keyPrefDisplayHud);
+    updateSummary(sharedPreferences, keyprefStandbyPool);
+    updateSummaryTtl(sharedPreferences, keyprefStandbyTtl);
+    updateSummaryMs(sharedPreferences, keyprefCandidateWindow);
+    updateSummary(sharedPreferences, keyprefCandidateBatch);
+    updateSummaryB(sharedPreferences, keyprefRecordStats);
+    updateSummaryB(sharedPreferences, keyprefQrThumbnail);
+    updateSummary(sharedPreferences, keyprefScanProfile);
   }
 
   @Override
@@ -113,17 +137,27 @@ public class SettingsActivity extends Activity
         || key.equals(keyPrefVideoCodec)
         || key.equals(keyprefStartAudioBitrateType)
         || key.equals(keyPrefAudioCodec)
-        || key.equals(keyPrefRoomServerUrl)) {
+        || key.equals(keyPrefRoomServerUrl)
+        || key.equals(keyprefStandbyPool)
+        || key.equals(keyprefCandidateBatch)
+        || key.equals(keyprefScanProfile)) {
       updateSummary(sharedPreferences, key);
+    } else if (key.equals(keyprefStandbyTtl)) {
+      updateSummaryTtl(sharedPreferences, key);
+    } else if (key.equals(keyprefCandidateWindow)) {
+      updateSummaryMs(sharedPreferences, key);
     } else if (key.equals(keyprefStartVideoBitrateValue)
         || key.equals(keyprefStartAudioBitrateValue)) {
       updateSummaryBitrate(sharedPreferences, key);
     } else if (key.equals(keyprefVideoCall)
         || key.equals(keyprefCaptureQualitySlider)
+        || key.equals(keyprefAutoQuality)
         || key.equals(keyprefHwCodec)
         || key.equals(keyprefNoAudioProcessing)
         || key.equals(keyprefCpuUsageDetection)
-        || key.equals(keyPrefDisplayHud)) {
+        || key.equals(keyPrefDisplayHud)
+        || key.equals(keyprefRecordStats)
+        || key.equals(keyprefQrThumbnail)) {
       updateSummaryB(sharedPreferences, key);
     }
     if (key.equals(keyprefStartVideoBitrateType)) {
@@ -146,6 +180,18 @@ public class SettingsActivity extends Activity
     updatedPref.setSummary(sharedPreferences.getString(key, "") + " kbps");
   }
 
+  private void updateSummaryTtl(
+      SharedPreferences sharedPreferences, String key) {
+    Preference updatedPref = settingsFragment.findPreference(key);
+    updatedPref.setSummary(sharedPreferences.getString(key, "") + " s");
+  }
+
+  private void updateSummaryMs(
+      SharedPreferences sharedPreferences, String key) {
+    Preference updatedPref = settingsFragment.findPreference(key);
+    updatedPref.setSummary(sharedPreferences.getString(key, "") + " ms");
+  }
+
   private void updateSummaryB(SharedPreferences sharedPreferences, String key) {
     Preference updatedPref = settingsFragment.findPreference(key);
     updatedPref.setSummary(sharedPreferences.getBoolean(key, true)
@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import org.webrtc.StatsReport;
+
+import java.util.HashMap;
+
+/**
+ * Decodes StatsReport arrays into reusable {@link StatsSnapshot}s.
+ * <p/>
+ * <p>Value names are looked up once in an interned name table that maps the
+ * raw name to its display name and value slot, so after the first few
+ * callbacks decoding does not allocate. Two snapshots are used in turn; see
+ * {@link StatsSnapshot} for how long a snapshot stays valid.
+ * <p/>
+ * <p>This class is not thread-safe; decode() must be called from one thread
+ * at a time.
+ */
+class StatsDecoder {
+  private static final String GOOG_PREFIX = "goog";
+  private static final String AVAILABLE = "Available";
+
+  private static class Name {
+    final String displayName;
+    final String bweDisplayName;
+    final int slot;
+
+    Name(String displayName, String bweDisplayName, int slot) {
+      this.displayName = displayName;
+      this.bweDisplayName = bweDisplayName;
+      this.slot = slot;
+    }
+  }
+
+  private static final HashMap<String, Integer> SLOTS = new HashMap<String, Integer>();
+  static {
+    SLOTS.put("googTrackId", StatsSnapshot.SLOT_TRACK_ID);
+    SLOTS.put("googFrameRateSent", StatsSnapshot.SLOT_FRAME_RATE_SENT);
+    SLOTS.put("googFrameWidthReceived", StatsSnapshot.SLOT_FRAME_WIDTH_RECEIVED);
+    SLOTS.put("googFrameHeightReceived", StatsSnapshot.SLOT_FRAME_HEIGHT_RECEIVED);
+    SLOTS.put("googFrameRateReceived", StatsSnapshot.SLOT_FRAME_RATE_RECEIVED);
+    SLOTS.put("googTargetEncBitrate", StatsSnapshot.SLOT_TARGET_ENC_BITRATE);
+    SLOTS.put("googActualEncBitrate", StatsSnapshot.SLOT_ACTUAL_ENC_BITRATE);
+    SLOTS.put("googAvailableSendBandwidth", StatsSnapshot.SLOT_AVAILABLE_SEND_BANDWIDTH);
+    SLOTS.put("googAvailableReceiveBandwidth",
+        StatsSnapshot.SLOT_AVAILABLE_RECEIVE_BANDWIDTH);
+    SLOTS.put("googTransmitBitrate", StatsSnapshot.SLOT_TRANSMIT_BITRATE);
+    SLOTS.put("googActiveConnection", StatsSnapshot.SLOT_ACTIVE_CONNECTION);
+    SLOTS.put("googRtt", StatsSnapshot.SLOT_RTT);
+    SLOTS.put("bytesSent", StatsSnapshot.SLOT_BYTES_SENT);
+    SLOTS.put("bytesReceived", StatsSnapshot.SLOT_BYTES_RECEIVED);
+    SLOTS.put("packetsLost", StatsSnapshot.SLOT_PACKETS_LOST);
+  }
+
+  // Raw value name -> interned display name and slot.
+  private final HashMap<String, Name> names = new HashMap<String, Name>();
+  private final StatsSnapshot[] snapshots = {new StatsSnapshot(), new StatsSnapshot()};
+  private int nextSnapshot;
+
+  /**
+   * Decodes |reports| into the next snapshot and returns it.
+   */
+  public StatsSnapshot decode(StatsReport[] reports) {
+    StatsSnapshot snapshot = snapshots[nextSnapshot];
+    nextSnapshot = (nextSnapshot + 1) % snapshots.length;
+    snapshot.reset(System.currentTimeMillis());
+    for (StatsReport report : reports) {
+      int kind = kindOf(report);
+      if (kind < 0) {
+        continue;
+      }
+      StatsSnapshot.Record record = snapshot.next();
+      record.reset(kind, report.id);
+      boolean bwe = kind == StatsSnapshot.KIND_BWE;
+      for (StatsReport.Value value : report.values) {
+        Name name = lookup(value.name);
+        record.add(bwe ? name.bweDisplayName : name.displayName, value.value, name.slot);
+      }
+      if (accept(record)) {
+        snapshot.commit();
+      }
+    }
+    return snapshot;
+  }
+
+  private static int kindOf(StatsReport report) {
+    if (report.type.equals("ssrc") && report.id.contains("ssrc")) {
+      if (report.id.contains("send")) {
+        return StatsSnapshot.KIND_VIDEO_SEND;
+      } else if (report.id.contains("recv")) {
+        return StatsSnapshot.KIND_VIDEO_RECV;
+      }
+    } else if (report.id.equals("bweforvideo")) {
+      return StatsSnapshot.KIND_BWE;
+    } else if (report.type.equals("googCandidatePair")) {
+      return StatsSnapshot.KIND_CANDIDATE_PAIR;
+    }
+    return -1;
+  }
+
+  // Filters out audio ssrc reports and inactive candidate pairs.
+  private static boolean accept(StatsSnapshot.Record record) {
+    switch (record.kind) {
+      case StatsSnapshot.KIND_VIDEO_SEND:
+        String trackId = record.get(StatsSnapshot.SLOT_TRACK_ID);
+        return trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID);
+      case StatsSnapshot.KIND_VIDEO_RECV:
+        return record.get(StatsSnapshot.SLOT_FRAME_WIDTH_RECEIVED) != null;
+      case StatsSnapshot.KIND_CANDIDATE_PAIR:
+        return "true".equals(record.get(StatsSnapshot.SLOT_ACTIVE_CONNECTION));
+      default:
+        return true;
+    }
+  }
+
+  private Name lookup(String rawName) {
+    Name name = names.get(rawName);
+    if (name == null) {
+      String displayName = rawName.replace(GOOG_PREFIX, "");
+      Integer slot = SLOTS.get(rawName);
+      name = new Name(displayName.intern(),
+          displayName.replace(AVAILABLE, "").intern(),
+          slot == null ? -1 : slot);
+      names.put(rawName, name);
+    }
+    return name;
+  }
+}
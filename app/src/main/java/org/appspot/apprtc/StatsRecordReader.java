@@ -0,0 +1,215 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads stats ring files written by {@link StatsRecorder} and exports them as
+ * CSV or JSON.
+ * <p/>
+ * <p>File layout: a HEADER_SIZE byte header (magic, version, block size, block
+ * count, field count) followed by block count fixed size blocks. A block
+ * starts with its sequence number (0 if never written), its record count and
+ * the number of record bytes used. Records are FIELD_COUNT zigzag varints,
+ * each the delta to the same field of the previous record in the block; the
+ * first record of a block is relative to 0. The oldest block is overwritten
+ * once the ring is full.
+ * <p/>
+ * <p>This class has no Android dependencies, so recorded files pulled off a
+ * device can be exported on a desktop JVM:
+ * java org.appspot.apprtc.StatsRecordReader stats.rtcs [csv|json]
+ */
+public class StatsRecordReader {
+  static final int MAGIC = 0x52544353;  // "RTCS"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  static final int BLOCK_HEADER_SIZE = 16;
+
+  static final int FIELD_TIMESTAMP = 0;
+  static final int FIELD_AVAILABLE_SEND_BW = 1;
+  static final int FIELD_TARGET_ENC_BITRATE = 2;
+  static final int FIELD_ACTUAL_ENC_BITRATE = 3;
+  static final int FIELD_TRANSMIT_BITRATE = 4;
+  static final int FIELD_FPS_SENT = 5;
+  static final int FIELD_FPS_RECEIVED = 6;
+  static final int FIELD_FRAME_WIDTH_RECEIVED = 7;
+  static final int FIELD_FRAME_HEIGHT_RECEIVED = 8;
+  static final int FIELD_RTT = 9;
+  static final int FIELD_PACKETS_LOST = 10;
+  static final int FIELD_BYTES_SENT = 11;
+  static final int FIELD_BYTES_RECEIVED = 12;
+  static final int FIELD_CPU_CURRENT = 13;
+  static final int FIELD_CPU_AVG3 = 14;
+  static final int FIELD_COUNT = 15;
+
+  static final String[] FIELD_NAMES = {
+      "timestampMs", "availableSendBandwidth", "targetEncBitrate",
+      "actualEncBitrate", "transmitBitrate", "frameRateSent",
+      "frameRateReceived", "frameWidthReceived", "frameHeightReceived",
+      "rtt", "packetsLost", "bytesSent", "bytesReceived",
+      "cpuCurrent", "cpuAvg3"};
+
+  private final ByteBuffer buffer;
+  private final int blockSize;
+  private final int fieldCount;
+  // Block indexes in write order.
+  private final int[] blocks;
+  private int blockPos;
+  private int recordsLeft;
+  private int readPos;
+  private final long[] values;
+
+  public StatsRecordReader(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      in.close();
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+        || buffer.getInt(4) != VERSION) {
+      throw new IOException("Not a stats ring file: " + file);
+    }
+    blockSize = buffer.getInt(8);
+    int blockCount = buffer.getInt(12);
+    fieldCount = buffer.getInt(16);
+    if ((long) HEADER_SIZE + (long) blockSize * blockCount > buffer.capacity()) {
+      throw new IOException("Truncated stats ring file: " + file);
+    }
+    values = new long[fieldCount];
+
+    // Order written blocks by sequence number.
+    long[] order = new long[blockCount];
+    int used = 0;
+    for (int i = 0; i < blockCount; i++) {
+      long seq = buffer.getLong(blockOffset(i));
+      if (seq != 0) {
+        // Sequence numbers stay far below 2^32 blocks, so pack seq and index.
+        order[used++] = (seq << 32) | i;
+      }
+    }
+    Arrays.sort(order, 0, used);
+    blocks = new int[used];
+    for (int i = 0; i < used; i++) {
+      blocks[i] = (int) order[i];
+    }
+    blockPos = -1;
+  }
+
+  public int getFieldCount() {
+    return fieldCount;
+  }
+
+  /**
+   * Returns the next record or null at the end of the file. The returned array
+   * is reused by the next call.
+   */
+  public long[] next() {
+    while (recordsLeft == 0) {
+      if (++blockPos >= blocks.length) {
+        return null;
+      }
+      int offset = blockOffset(blocks[blockPos]);
+      recordsLeft = buffer.getInt(offset + 8);
+      readPos = offset + BLOCK_HEADER_SIZE;
+      Arrays.fill(values, 0);
+    }
+    for (int i = 0; i < fieldCount; i++) {
+      long raw = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = buffer.get(readPos++);
+        raw |= (long) (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      values[i] += (raw >>> 1) ^ -(raw & 1);
+    }
+    recordsLeft--;
+    return values;
+  }
+
+  public void exportCsv(Writer out) throws IOException {
+    for (int i = 0; i < fieldCount; i++) {
+      if (i > 0) {
+        out.write(',');
+      }
+      out.write(fieldName(i));
+    }
+    out.write('\n');
+    long[] record;
+    while ((record = next()) != null) {
+      for (int i = 0; i < fieldCount; i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        out.write(Long.toString(record[i]));
+      }
+      out.write('\n');
+    }
+    out.flush();
+  }
+
+  public void exportJson(Writer out) throws IOException {
+    out.write('[');
+    long[] record;
+    boolean first = true;
+    while ((record = next()) != null) {
+      out.write(first ? "\n{" : ",\n{");
+      first = false;
+      for (int i = 0; i < fieldCount; i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        out.write('"');
+        out.write(fieldName(i));
+        out.write("\":");
+        out.write(Long.toString(record[i]));
+      }
+      out.write('}');
+    }
+    out.write("\n]\n");
+    out.flush();
+  }
+
+  private int blockOffset(int block) {
+    return HEADER_SIZE + block * blockSize;
+  }
+
+  private static String fieldName(int field) {
+    return field < FIELD_NAMES.length ? FIELD_NAMES[field] : "field" + field;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: StatsRecordReader <file> [csv|json]");
+      System.exit(1);
+    }
+    StatsRecordReader reader = new StatsRecordReader(new File(args[0]));
+    Writer out = new OutputStreamWriter(System.out, "UTF-8");
+    if (args.length > 1 && args[1].equals("json")) {
+      reader.exportJson(out);
+    } else {
+      reader.exportCsv(out);
+    }
+  }
+}
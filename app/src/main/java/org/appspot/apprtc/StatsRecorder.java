@@ -0,0 +1,202 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static org.appspot.apprtc.StatsRecordReader.BLOCK_HEADER_SIZE;
+import static org.appspot.apprtc.StatsRecordReader.FIELD_COUNT;
+import static org.appspot.apprtc.StatsRecordReader.HEADER_SIZE;
+
+/**
+ * Appends the numeric fields of each stats callback to a fixed size, memory
+ * mapped ring file, so bitrate and frame rate history survives the call. See
+ * {@link StatsRecordReader} for the file format and export.
+ * <p/>
+ * <p>The file never grows beyond HEADER_SIZE + blockSize * blockCount bytes;
+ * the oldest block is overwritten when the ring is full. An existing file
+ * with the same layout is continued, so the ring holds the last calls too.
+ * <p/>
+ * <p>record() does not allocate. It is meant to be called on the stats
+ * callback thread and is not thread-safe.
+ */
+class StatsRecorder {
+  private static final String TAG = "StatsRecorder";
+  private static final int DEFAULT_BLOCK_SIZE = 4096;
+  private static final int DEFAULT_BLOCK_COUNT = 256;
+  // A zigzag varint of a long takes at most 10 bytes.
+  private static final int MAX_RECORD_SIZE = FIELD_COUNT * 10;
+
+  private final RandomAccessFile file;
+  private final MappedByteBuffer buffer;
+  private final int blockSize;
+  private final int blockCount;
+  private final long[] previous = new long[FIELD_COUNT];
+  private final long[] current = new long[FIELD_COUNT];
+  private final byte[] scratch = new byte[MAX_RECORD_SIZE];
+  private int block = -1;
+  private long blockSeq;
+  private int blockRecords;
+  private int blockUsed;
+
+  public static StatsRecorder open(File path) throws IOException {
+    return new StatsRecorder(path, DEFAULT_BLOCK_SIZE, DEFAULT_BLOCK_COUNT);
+  }
+
+  StatsRecorder(File path, int blockSize, int blockCount) throws IOException {
+    this.blockSize = blockSize;
+    this.blockCount = blockCount;
+    file = new RandomAccessFile(path, "rw");
+    long size = HEADER_SIZE + (long) blockSize * blockCount;
+    boolean resume = file.length() == size;
+    file.setLength(size);
+    buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if (resume && buffer.getInt(0) == StatsRecordReader.MAGIC
+        && buffer.getInt(4) == StatsRecordReader.VERSION
+        && buffer.getInt(8) == blockSize && buffer.getInt(12) == blockCount
+        && buffer.getInt(16) == FIELD_COUNT) {
+      // Continue after the newest block.
+      for (int i = 0; i < blockCount; i++) {
+        long seq = buffer.getLong(blockOffset(i));
+        if (seq > blockSeq) {
+          blockSeq = seq;
+          block = i;
+        }
+      }
+      Log.d(TAG, "Resuming " + path + " after block " + blockSeq);
+    } else {
+      for (int i = 0; i < blockCount; i++) {
+        buffer.putLong(blockOffset(i), 0);
+      }
+      buffer.putInt(0, StatsRecordReader.MAGIC);
+      buffer.putInt(4, StatsRecordReader.VERSION);
+      buffer.putInt(8, blockSize);
+      buffer.putInt(12, blockCount);
+      buffer.putInt(16, FIELD_COUNT);
+      Log.d(TAG, "Created " + path + ", " + size + " bytes");
+    }
+    // Every recorder starts with a fresh block.
+    blockUsed = blockSize;
+  }
+
+  /**
+   * Appends one record built from |snapshot| and the CPU load in percent.
+   * Values missing from the snapshot are recorded as -1.
+   */
+  public void record(StatsSnapshot snapshot, int cpuCurrent, int cpuAvg3) {
+    StatsSnapshot.Record bwe = snapshot.find(StatsSnapshot.KIND_BWE);
+    StatsSnapshot.Record send = snapshot.find(StatsSnapshot.KIND_VIDEO_SEND);
+    StatsSnapshot.Record recv = snapshot.find(StatsSnapshot.KIND_VIDEO_RECV);
+    StatsSnapshot.Record pair = snapshot.find(StatsSnapshot.KIND_CANDIDATE_PAIR);
+    long[] v = current;
+    v[StatsRecordReader.FIELD_TIMESTAMP] = snapshot.getTimestampMs();
+    v[StatsRecordReader.FIELD_AVAILABLE_SEND_BW] =
+        get(bwe, StatsSnapshot.SLOT_AVAILABLE_SEND_BANDWIDTH);
+    v[StatsRecordReader.FIELD_TARGET_ENC_BITRATE] =
+        get(bwe, StatsSnapshot.SLOT_TARGET_ENC_BITRATE);
+    v[StatsRecordReader.FIELD_ACTUAL_ENC_BITRATE] =
+        get(bwe, StatsSnapshot.SLOT_ACTUAL_ENC_BITRATE);
+    v[StatsRecordReader.FIELD_TRANSMIT_BITRATE] =
+        get(bwe, StatsSnapshot.SLOT_TRANSMIT_BITRATE);
+    v[StatsRecordReader.FIELD_FPS_SENT] = get(send, StatsSnapshot.SLOT_FRAME_RATE_SENT);
+    v[StatsRecordReader.FIELD_FPS_RECEIVED] =
+        get(recv, StatsSnapshot.SLOT_FRAME_RATE_RECEIVED);
+    v[StatsRecordReader.FIELD_FRAME_WIDTH_RECEIVED] =
+        get(recv, StatsSnapshot.SLOT_FRAME_WIDTH_RECEIVED);
+    v[StatsRecordReader.FIELD_FRAME_HEIGHT_RECEIVED] =
+        get(recv, StatsSnapshot.SLOT_FRAME_HEIGHT_RECEIVED);
+    v[StatsRecordReader.FIELD_RTT] = get(pair, StatsSnapshot.SLOT_RTT);
+    v[StatsRecordReader.FIELD_PACKETS_LOST] = get(recv, StatsSnapshot.SLOT_PACKETS_LOST);
+    v[StatsRecordReader.FIELD_BYTES_SENT] = get(pair, StatsSnapshot.SLOT_BYTES_SENT);
+    v[StatsRecordReader.FIELD_BYTES_RECEIVED] = get(pair, StatsSnapshot.SLOT_BYTES_RECEIVED);
+    v[StatsRecordReader.FIELD_CPU_CURRENT] = cpuCurrent;
+    v[StatsRecordReader.FIELD_CPU_AVG3] = cpuAvg3;
+    append(v);
+  }
+
+  /**
+   * Appends one record of FIELD_COUNT raw values.
+   */
+  void append(long[] values) {
+    int length = encode(values);
+    if (blockUsed + length > blockSize - BLOCK_HEADER_SIZE) {
+      // Start a new block; its first record is relative to 0.
+      startBlock();
+      length = encode(values);
+    }
+    int offset = blockOffset(block);
+    for (int i = 0; i < length; i++) {
+      buffer.put(offset + BLOCK_HEADER_SIZE + blockUsed + i, scratch[i]);
+    }
+    blockUsed += length;
+    blockRecords++;
+    // Publish the record after its bytes are in place.
+    buffer.putInt(offset + 12, blockUsed);
+    buffer.putInt(offset + 8, blockRecords);
+    System.arraycopy(values, 0, previous, 0, FIELD_COUNT);
+  }
+
+  public void close() {
+    buffer.force();
+    try {
+      file.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Error closing stats file", e);
+    }
+  }
+
+  // Zigzag varint encodes |values| relative to the previous record into
+  // scratch and returns the encoded length.
+  private int encode(long[] values) {
+    int pos = 0;
+    for (int i = 0; i < FIELD_COUNT; i++) {
+      long delta = values[i] - previous[i];
+      long zigzag = (delta << 1) ^ (delta >> 63);
+      while ((zigzag & ~0x7fL) != 0) {
+        scratch[pos++] = (byte) ((zigzag & 0x7f) | 0x80);
+        zigzag >>>= 7;
+      }
+      scratch[pos++] = (byte) zigzag;
+    }
+    return pos;
+  }
+
+  private void startBlock() {
+    block = (block + 1) % blockCount;
+    blockSeq++;
+    blockRecords = 0;
+    blockUsed = 0;
+    Arrays.fill(previous, 0);
+    int offset = blockOffset(block);
+    // Invalidate the block before reusing it, then claim it.
+    buffer.putLong(offset, 0);
+    buffer.putInt(offset + 8, 0);
+    buffer.putInt(offset + 12, 0);
+    buffer.putLong(offset, blockSeq);
+  }
+
+  private int blockOffset(int index) {
+    return HEADER_SIZE + index * blockSize;
+  }
+
+  private static long get(StatsSnapshot.Record record, int slot) {
+    return record == null ? -1 : record.getLong(slot, -1);
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Decoded peer connection statistics for one stats callback.
+ * <p/>
+ * <p>Snapshots are filled by {@link StatsDecoder} and reused: a snapshot
+ * stays valid until the decoder has produced two more snapshots, which is
+ * two stats periods. Readers that need the values longer must copy them.
+ */
+public class StatsSnapshot {
+  // Report kinds the pipeline keeps.
+  public static final int KIND_VIDEO_SEND = 0;
+  public static final int KIND_VIDEO_RECV = 1;
+  public static final int KIND_BWE = 2;
+  public static final int KIND_CANDIDATE_PAIR = 3;
+
+  // Well known values, addressed by slot instead of name.
+  public static final int SLOT_TRACK_ID = 0;
+  public static final int SLOT_FRAME_RATE_SENT = 1;
+  public static final int SLOT_FRAME_WIDTH_RECEIVED = 2;
+  public static final int SLOT_FRAME_HEIGHT_RECEIVED = 3;
+  public static final int SLOT_FRAME_RATE_RECEIVED = 4;
+  public static final int SLOT_TARGET_ENC_BITRATE = 5;
+  public static final int SLOT_ACTUAL_ENC_BITRATE = 6;
+  public static final int SLOT_AVAILABLE_SEND_BANDWIDTH = 7;
+  public static final int SLOT_AVAILABLE_RECEIVE_BANDWIDTH = 8;
+  public static final int SLOT_TRANSMIT_BITRATE = 9;
+  public static final int SLOT_ACTIVE_CONNECTION = 10;
+  public static final int SLOT_RTT = 11;
+  public static final int SLOT_BYTES_SENT = 12;
+  public static final int SLOT_BYTES_RECEIVED = 13;
+  public static final int SLOT_PACKETS_LOST = 14;
+  static final int SLOT_COUNT = 15;
+
+  /**
+   * One kept report. Names are the interned display names (without the
+   * "goog" prefix); values are the strings handed out by the stats API.
+   */
+  public static class Record {
+    int kind;
+    String id;
+    String[] names = new String[32];
+    String[] values = new String[32];
+    int count;
+    final int[] slots = new int[SLOT_COUNT];
+
+    public int getKind() {
+      return kind;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public int getValueCount() {
+      return count;
+    }
+
+    public String getName(int index) {
+      return names[index];
+    }
+
+    public String getValue(int index) {
+      return values[index];
+    }
+
+    /**
+     * Returns the value in |slot| or null if the report did not have it.
+     */
+    public String get(int slot) {
+      int index = slots[slot];
+      return index < 0 ? null : values[index];
+    }
+
+    /**
+     * Returns the value in |slot| as a number, or |defaultValue| if the report
+     * did not have it or it is not an integer.
+     */
+    public long getLong(int slot, long defaultValue) {
+      String value = get(slot);
+      if (value == null || value.isEmpty()) {
+        return defaultValue;
+      }
+      long result = 0;
+      int i = 0;
+      boolean negative = value.charAt(0) == '-';
+      if (negative) {
+        i++;
+      }
+      if (i == value.length()) {
+        return defaultValue;
+      }
+      for (; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c < '0' || c > '9') {
+          return defaultValue;
+        }
+        result = result * 10 + (c - '0');
+      }
+      return negative ? -result : result;
+    }
+
+    /**
+     * Appends "id\nname=value\n..." to |sb|.
+     */
+    public void appendTo(StringBuilder sb) {
+      sb.append(id).append('\n');
+      for (int i = 0; i < count; i++) {
+        sb.append(names[i]).append('=').append(values[i]).append('\n');
+      }
+    }
+
+    void reset(int kind, String id) {
+      this.kind = kind;
+      this.id = id;
+      count = 0;
+      for (int i = 0; i < SLOT_COUNT; i++) {
+        slots[i] = -1;
+      }
+    }
+
+    void add(String name, String value, int slot) {
+      if (count == names.length) {
+        String[] newNames = new String[count * 2];
+        String[] newValues = new String[count * 2];
+        System.arraycopy(names, 0, newNames, 0, count);
+        System.arraycopy(values, 0, newValues, 0, count);
+        names = newNames;
+        values = newValues;
+      }
+      if (slot >= 0 && slots[slot] < 0) {
+        slots[slot] = count;
+      }
+      names[count] = name;
+      values[count] = value;
+      count++;
+    }
+  }
+
+  private Record[] records = new Record[8];
+  private int recordCount;
+  private long timestampMs;
+
+  public long getTimestampMs() {
+    return timestampMs;
+  }
+
+  public int getRecordCount() {
+    return recordCount;
+  }
+
+  public Record getRecord(int index) {
+    return records[index];
+  }
+
+  /**
+   * Returns the first record of |kind| or null.
+   */
+  public Record find(int kind) {
+    for (int i = 0; i < recordCount; i++) {
+      if (records[i].kind == kind) {
+        return records[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Appends all records of |kind| to |sb|, see {@link Record#appendTo}.
+   */
+  public void appendTo(int kind, StringBuilder sb) {
+    for (int i = 0; i < recordCount; i++) {
+      if (records[i].kind == kind) {
+        records[i].appendTo(sb);
+      }
+    }
+  }
+
+  void reset(long timestampMs) {
+    this.timestampMs = timestampMs;
+    recordCount = 0;
+  }
+
+  // Returns the next free record. It is only kept once commit() is called.
+  Record next() {
+    if (recordCount == records.length) {
+      Record[] newRecords = new Record[recordCount * 2];
+      System.arraycopy(records, 0, newRecords, 0, recordCount);
+      records = newRecords;
+    }
+    if (records[recordCount] == null) {
+      records[recordCount] = new Record();
+    }
+    return records[recordCount];
+  }
+
+  void commit() {
+    recordCount++;
+  }
+}
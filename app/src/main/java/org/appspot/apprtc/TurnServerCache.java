@@ -0,0 +1,293 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.util.AsyncHttpURLConnection;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.PeerConnection;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Process-wide cache of the TURN servers handed out for each room server.
+ *
+ * A room server's TURN URL is only learned from its join response. Once it is known, the next
+ * join starts the TURN request together with the join request (prefetch()), and the servers are
+ * reused until EXPIRY_MARGIN_MS before their TTL runs out. Servers that were used are fetched
+ * again in the background at REFRESH_FRACTION of their TTL, so the next join finds fresh
+ * credentials without waiting.
+ */
+public class TurnServerCache {
+    private static final String TAG = "TurnServerCache";
+    private static final int TURN_HTTP_TIMEOUT_MS = 5000;
+    // Used when the TURN response does not say how long its credentials last.
+    private static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+    private static final long EXPIRY_MARGIN_MS = 30 * 1000;
+    private static final float REFRESH_FRACTION = 0.8f;
+    // Longer TTLs are cut to this, a year.
+    private static final long MAX_TTL_S = 365L * 24 * 60 * 60;
+
+    private static final TurnServerCache instance = new TurnServerCache();
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Timer refreshTimer = new Timer(TAG, true);
+
+    // TURN servers of one room server.
+    private static class Entry {
+        private String turnUrl;
+        private LinkedList<PeerConnection.IceServer> servers;
+        private long expiresMs;
+        private boolean usedSinceFetch;
+        private Fetch fetch;
+        private TimerTask refreshTask;
+    }
+
+    // One TURN request, run on the AsyncHttpURLConnection pool; joins wait for it through
+    // await().
+    private class Fetch implements Runnable {
+        private final String roomServerUrl;
+        private final String turnUrl;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private LinkedList<PeerConnection.IceServer> servers;
+        private Exception error;
+
+        private Fetch(String roomServerUrl, String turnUrl) {
+            this.roomServerUrl = roomServerUrl;
+            this.turnUrl = turnUrl;
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            long ttlMs = DEFAULT_TTL_MS;
+            try {
+                JSONObject responseJSON = new JSONObject(requestTurnServers(turnUrl));
+                String username = responseJSON.getString("username");
+                String password = responseJSON.getString("password");
+                JSONArray turnUris = responseJSON.getJSONArray("uris");
+                LinkedList<PeerConnection.IceServer> servers =
+                        new LinkedList<PeerConnection.IceServer>();
+                for (int i = 0; i < turnUris.length(); i++) {
+                    String uri = turnUris.getString(i);
+                    servers.add(new PeerConnection.IceServer(uri, username, password));
+                }
+                if (responseJSON.has("ttl")) {
+                    // Credentials without a positive TTL are used once but not cached.
+                    long ttlS = responseJSON.getLong("ttl");
+                    ttlMs = ttlS > 0 ? Math.min(ttlS, MAX_TTL_S) * 1000 : 0;
+                }
+                this.servers = servers;
+            } catch (IOException e) {
+                error = e;
+            } catch (JSONException e) {
+                error = e;
+            } finally {
+                // Waiters are released even if the request failed unexpectedly.
+                try {
+                    onFetchDone(this, ttlMs);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+
+        private LinkedList<PeerConnection.IceServer> await()
+                throws IOException, JSONException {
+            // Joins wait on pool threads too, so a request still queued behind them is run
+            // here rather than waited for.
+            run();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while requesting TURN servers");
+            }
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error instanceof JSONException) {
+                throw (JSONException) error;
+            } else if (servers == null) {
+                throw new IOException("TURN request to " + turnUrl + " failed");
+            }
+            return servers;
+        }
+    }
+
+    public static TurnServerCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts requesting the TURN servers of |roomServerUrl| if its TURN URL is known from an
+     * earlier join and no fresh servers are cached. Returns right away.
+     */
+    public synchronized void prefetch(String roomServerUrl) {
+        Entry entry = entries.get(roomServerUrl);
+        if (entry == null || entry.turnUrl == null || entry.fetch != null
+                || isFresh(entry, System.currentTimeMillis())) {
+            return;
+        }
+        Log.d(TAG, "Prefetching TURN servers for " + roomServerUrl);
+        startFetch(roomServerUrl, entry);
+    }
+
+    /**
+     * Returns the TURN servers |turnUrl| hands out for |roomServerUrl|: cached ones if they are
+     * still fresh, otherwise those of a request already under way or of a new one. Blocks while
+     * the request runs, so it must be called off the main thread.
+     */
+    public LinkedList<PeerConnection.IceServer> get(String roomServerUrl, String turnUrl)
+            throws IOException, JSONException {
+        boolean retried = false;
+        while (true) {
+            Fetch fetch;
+            boolean ownFetch = false;
+            synchronized (this) {
+                Entry entry = entries.get(roomServerUrl);
+                if (entry == null) {
+                    entry = new Entry();
+                    entries.put(roomServerUrl, entry);
+                }
+                if (!turnUrl.equals(entry.turnUrl)) {
+                    // The room server moved its TURN service; nothing cached is valid for it.
+                    clear(entry);
+                    entry.turnUrl = turnUrl;
+                }
+                if (isFresh(entry, System.currentTimeMillis())) {
+                    Log.d(TAG, "Using cached TURN servers for " + roomServerUrl);
+                    entry.usedSinceFetch = true;
+                    return new LinkedList<PeerConnection.IceServer>(entry.servers);
+                }
+                if (entry.fetch == null) {
+                    startFetch(roomServerUrl, entry);
+                    ownFetch = true;
+                }
+                fetch = entry.fetch;
+            }
+            LinkedList<PeerConnection.IceServer> servers;
+            try {
+                servers = fetch.await();
+            } catch (IOException e) {
+                if (ownFetch || retried) {
+                    throw e;
+                }
+                // A prefetch or refresh failed; try once more with a request of our own.
+                retried = true;
+                continue;
+            }
+            synchronized (this) {
+                Entry entry = entries.get(roomServerUrl);
+                if (entry != null && entry.servers == servers) {
+                    entry.usedSinceFetch = true;
+                }
+            }
+            return new LinkedList<PeerConnection.IceServer>(servers);
+        }
+    }
+
+    /**
+     * Forgets all cached servers.
+     */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            clear(entry);
+        }
+        entries.clear();
+    }
+
+    private static boolean isFresh(Entry entry, long nowMs) {
+        return entry.servers != null && nowMs < entry.expiresMs - EXPIRY_MARGIN_MS;
+    }
+
+    private static void clear(Entry entry) {
+        entry.servers = null;
+        // A request under way is left to finish; onFetchDone() ignores it.
+        entry.fetch = null;
+        if (entry.refreshTask != null) {
+            entry.refreshTask.cancel();
+            entry.refreshTask = null;
+        }
+    }
+
+    private void startFetch(String roomServerUrl, Entry entry) {
+        entry.fetch = new Fetch(roomServerUrl, entry.turnUrl);
+        AsyncHttpURLConnection.runInBackground(entry.fetch);
+    }
+
+    private synchronized void onFetchDone(Fetch fetch, long ttlMs) {
+        final String roomServerUrl = fetch.roomServerUrl;
+        Entry entry = entries.get(roomServerUrl);
+        if (entry == null || entry.fetch != fetch) {
+            return;
+        }
+        entry.fetch = null;
+        if (fetch.servers == null) {
+            Log.e(TAG, "TURN request to " + fetch.turnUrl + " failed: " + fetch.error);
+            return;
+        }
+        entry.servers = fetch.servers;
+        entry.expiresMs = System.currentTimeMillis() + ttlMs;
+        entry.usedSinceFetch = false;
+        if (entry.refreshTask != null) {
+            entry.refreshTask.cancel();
+            entry.refreshTask = null;
+        }
+        if (ttlMs <= 0) {
+            // Expired already; the next join fetches them again.
+            return;
+        }
+        entry.refreshTask = new TimerTask() {
+            @Override
+            public void run() {
+                refresh(roomServerUrl, this);
+            }
+        };
+        refreshTimer.schedule(entry.refreshTask, (long) (ttlMs * REFRESH_FRACTION));
+    }
+
+    // Fetches the servers again before they expire, unless nobody used them.
+    private synchronized void refresh(String roomServerUrl, TimerTask task) {
+        Entry entry = entries.get(roomServerUrl);
+        if (entry == null || entry.refreshTask != task) {
+            return;
+        }
+        entry.refreshTask = null;
+        if (entry.usedSinceFetch && entry.fetch == null) {
+            Log.d(TAG, "Refreshing TURN servers for " + roomServerUrl);
+            startFetch(roomServerUrl, entry);
+        }
+    }
+
+    // Requests the TURN servers from |url| and returns the response.
+    private static String requestTurnServers(String url) throws IOException {
+        Log.d(TAG, "Request TURN from: " + url);
+        AsyncHttpURLConnection connection = new AsyncHttpURLConnection("GET", url, null, null);
+        connection.setTimeoutMs(TURN_HTTP_TIMEOUT_MS);
+        String response = connection.execute();
+        Log.d(TAG, "TURN response: " + response + " (" + connection.getTiming() + ")");
+        return response;
+    }
+}
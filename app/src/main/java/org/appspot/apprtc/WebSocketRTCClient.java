@@ -11,19 +11,25 @@
 package org.appspot.apprtc;
 
 import org.appspot.apprtc.RoomParametersFetcher.RoomParametersFetcherEvents;
-import org.appspot.apprtc.WebSocketChannelClient.WebSocketChannelEvents;
-import org.appspot.apprtc.WebSocketChannelClient.WebSocketConnectionState;
+import org.appspot.apprtc.signaling.SignalingMessageDecoder;
+import org.appspot.apprtc.signaling.SignalingMessages;
+import org.appspot.apprtc.signaling.WebSocketChannelClient;
+import org.appspot.apprtc.signaling.WebSocketChannelClient.WebSocketChannelEvents;
+import org.appspot.apprtc.signaling.WebSocketChannelClient.WebSocketConnectionState;
+import org.appspot.apprtc.signaling.WebSocketSendQueue;
+import org.appspot.apprtc.signaling.WebSocketSendQueue.MessageClass;
 import org.appspot.apprtc.util.LooperExecutor;
 
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Negotiates signaling for chatting with apprtc.appspot.com "rooms".
@@ -41,6 +47,9 @@ public class WebSocketRTCClient implements AppRTCClient,
     private static final String ROOM_JOIN = "join";
     private static final String ROOM_MESSAGE = "message";
     private static final String ROOM_LEAVE = "leave";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Default maximum number of local ICE candidates sent in one message.
+    private static final int DEFAULT_CANDIDATE_BATCH_SIZE = 8;
     private long localClientId;
 
 
@@ -58,26 +67,76 @@ public class WebSocketRTCClient implements AppRTCClient,
     ;
     private final LooperExecutor executor;
     private SignalingEvents events;
+    private final SignalingMessageDecoder messageDecoder;
     private WebSocketChannelClient wsClient;
     private ConnectionState roomState;
     private RoomConnectionParameters connectionParameters;
 
+    // Local ICE candidate coalescing. Candidates for the same peer generated
+    // within |candidateBatchWindowMs| (or until |candidateBatchSize| of them
+    // are collected) are sent as one "candidates" message. A window of 0
+    // sends every candidate on its own, as the web client expects.
+    private int candidateBatchWindowMs;
+    private int candidateBatchSize = DEFAULT_CANDIDATE_BATCH_SIZE;
+    private final Map<Long, List<SignalingMessages.Candidate>> pendingCandidates =
+            new HashMap<Long, List<SignalingMessages.Candidate>>();
+    // Candidate send counters, only accessed on the looper thread.
+    private long firstCandidateQueuedMs = -1;
+    private long firstCandidateDelayMs = -1;
+    private int candidateMessagesSent;
+    private int candidatesSent;
+    private long candidateBytesSent;
+
     public WebSocketRTCClient(SignalingEvents events, LooperExecutor executor) {
         this.events = events;
         this.executor = executor;
+        messageDecoder = new SignalingMessageDecoder(new DecoderEvents());
         roomState = ConnectionState.NEW;
         executor.requestStart();
     }
 
+    /**
+     * Configures local ICE candidate coalescing. |windowMs| of 0 disables it.
+     */
+    public void setCandidateBatching(final int windowMs, final int maxCandidates) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                candidateBatchWindowMs = Math.max(0, windowMs);
+                candidateBatchSize = Math.max(1, maxCandidates);
+            }
+        });
+    }
+
+    /**
+     * Number of candidate messages sent, total candidates they carried, their
+     * size in bytes, and delay between the first local candidate and the
+     * first candidate message (-1 if none was sent yet). Must be called on
+     * the looper thread.
+     */
+    public int getCandidateMessagesSent() {
+        return candidateMessagesSent;
+    }
+
+    public int getCandidatesSent() {
+        return candidatesSent;
+    }
+
+    public long getCandidateBytesSent() {
+        return candidateBytesSent;
+    }
+
+    public long getFirstCandidateDelayMs() {
+        return firstCandidateDelayMs;
+    }
+
 
     @Override
     public void requestRoomInfo() {
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                jsonPut(json, "cmd", "room");
-                wsClient.send(json.toString());
+                wsClient.send(SignalingMessages.room());
                 Log.d(TAG, "signal connected");
             }
         });
@@ -116,7 +175,8 @@ public class WebSocketRTCClient implements AppRTCClient,
         String connectionUrl = getConnectionUrl(connectionParameters);//构造房间信息,全地址
         Log.d(TAG, "Connect to room: " + connectionUrl);
         roomState = ConnectionState.NEW;
-        wsClient = new WebSocketChannelClient(executor, this);
+        wsClient = new WebSocketChannelClient(executor, this, AutobahnTransport.FACTORY,
+                AndroidSignalingLogger.INSTANCE);
 
         RoomParametersFetcherEvents callbacks = new RoomParametersFetcherEvents() {
             @Override
@@ -136,15 +196,18 @@ public class WebSocketRTCClient implements AppRTCClient,
             }
         };
 
-        new RoomParametersFetcher(connectionUrl, null, callbacks).makeRequest();
+        new RoomParametersFetcher(connectionParameters.roomUrl, connectionUrl, null, callbacks)
+                .makeRequest();
     }
 
     // Disconnect from room and send bye messages - runs on a local looper thread.
     private void disconnectFromRoomInternal() {
+        pendingCandidates.clear();
+        Log.d(TAG, "Candidates sent: " + candidatesSent + " in " + candidateMessagesSent
+                + " messages, " + candidateBytesSent + " bytes. First candidate delay: "
+                + firstCandidateDelayMs + " ms");
 
-        JSONObject json = new JSONObject();
-        jsonPut(json, "cmd", "leave");
-        wsClient.send(json.toString());
+        wsClient.send(SignalingMessages.leave(), MessageClass.LEAVE, WebSocketSendQueue.NO_PEER);
 
         Log.d(TAG, "Disconnect. Room state: " + roomState);
         if (roomState == ConnectionState.CONNECTED) {
@@ -154,6 +217,7 @@ public class WebSocketRTCClient implements AppRTCClient,
         if (wsClient != null) {
             wsClient.disconnect(true);
         }
+        Log.d(TAG, "Looper tasks: " + executor.getStatistics());
     }
 
     // Helper functions to get connection, post message and leave message URLs
@@ -197,15 +261,8 @@ public class WebSocketRTCClient implements AppRTCClient,
                     return;
                 }
 
-                JSONObject json = new JSONObject();
-                jsonPut(json, "cmd", "offer");
-                jsonPut(json, "to", peerId);
-                jsonPut(json, "isHelper", isHelper);
-                JSONObject jsonContent = new JSONObject();
-                jsonPut(jsonContent, "sdp", sdp.description);
-                jsonPut(jsonContent, "type", "offer");
-                jsonPut(json, "content", jsonContent);
-                wsClient.send(json.toString());
+                wsClient.send(SignalingMessages.offer(peerId, sdp.description, isHelper),
+                        MessageClass.SDP, peerId);
             }
         });
     }
@@ -225,144 +282,95 @@ public class WebSocketRTCClient implements AppRTCClient,
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                jsonPut(json, "cmd", "answer");
-                jsonPut(json, "to", peerId);
-                if (sdp != null) {
-                    jsonPut(json, "accept", true);
-                    JSONObject jsonContent = new JSONObject();
-                    jsonPut(jsonContent, "sdp", sdp.description);
-                    jsonPut(jsonContent, "type", "answer");
-                    jsonPut(json, "content", jsonContent);
-                } else {
-                    jsonPut(json, "accept", false);
-                }
-                wsClient.send(json.toString());
+                wsClient.send(SignalingMessages.answer(peerId,
+                        sdp == null ? null : sdp.description), MessageClass.SDP, peerId);
             }
         });
     }
 
     // Send Ice candidate to the other participant.
     @Override
-    public void sendLocalIceCandidate(final long peerId, final IceCandidate candidate) {
+    public void sendLocalIceCandidate(final long peerId, IceCandidate iceCandidate) {
+        final SignalingMessages.Candidate candidate = new SignalingMessages.Candidate(
+                iceCandidate.sdpMid, iceCandidate.sdpMLineIndex, iceCandidate.sdp);
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                JSONObject jsonContent = new JSONObject();
-                jsonPut(json, "cmd", "candidate");
-                jsonPut(json, "to", peerId);
-                jsonPut(jsonContent, "label", candidate.sdpMLineIndex);
-                jsonPut(jsonContent, "id", candidate.sdpMid);
-                jsonPut(jsonContent, "candidate", candidate.sdp);
-                jsonPut(json, "content", jsonContent);
-                // Call receiver sends ice candidates to websocket server.
-                wsClient.send(json.toString());
+                if (firstCandidateQueuedMs < 0) {
+                    firstCandidateQueuedMs = System.currentTimeMillis();
+                }
+                if (candidateBatchWindowMs <= 0) {
+                    List<SignalingMessages.Candidate> candidates =
+                            new ArrayList<SignalingMessages.Candidate>(1);
+                    candidates.add(candidate);
+                    sendCandidates(peerId, candidates);
+                    return;
+                }
+                List<SignalingMessages.Candidate> pending = pendingCandidates.get(peerId);
+                if (pending == null) {
+                    final List<SignalingMessages.Candidate> batch =
+                            new ArrayList<SignalingMessages.Candidate>(candidateBatchSize);
+                    pendingCandidates.put(peerId, batch);
+                    executor.executeDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Only flush the batch this timer was started for;
+                            // if that one went out early because it was full,
+                            // a newer batch has its own timer.
+                            if (pendingCandidates.get(peerId) == batch) {
+                                flushCandidates(peerId);
+                            }
+                        }
+                    }, candidateBatchWindowMs);
+                    pending = batch;
+                }
+                pending.add(candidate);
+                if (pending.size() >= candidateBatchSize) {
+                    flushCandidates(peerId);
+                }
             }
         });
     }
 
+    // Sends candidates queued for |peerId|, if any. Runs on a local looper thread.
+    private void flushCandidates(long peerId) {
+        List<SignalingMessages.Candidate> pending = pendingCandidates.remove(peerId);
+        if (pending == null || pending.isEmpty() || roomState == ConnectionState.CLOSED) {
+            return;
+        }
+        sendCandidates(peerId, pending);
+    }
+
+    // A single candidate goes out as a "candidate" message, several as one
+    // "candidates" message. Runs on a local looper thread.
+    private void sendCandidates(long peerId, List<SignalingMessages.Candidate> candidates) {
+        String message = SignalingMessages.candidates(peerId, candidates);
+        // Call receiver sends ice candidates to websocket server.
+        if (!wsClient.send(message, MessageClass.CANDIDATE, peerId)) {
+            return;
+        }
+
+        if (firstCandidateDelayMs < 0) {
+            firstCandidateDelayMs = System.currentTimeMillis() - firstCandidateQueuedMs;
+        }
+        candidateMessagesSent++;
+        candidatesSent += candidates.size();
+        // Candidate messages are plain ASCII.
+        candidateBytesSent += message.length();
+    }
+
     // --------------------------------------------------------------------
     // WebSocketChannelEvents interface implementation.
     // All events are called by WebSocketChannelClient on a local looper thread
     // (passed to WebSocket client constructor).
     @Override
-    public void onWebSocketMessage(final String msg) {
+    public void onWebSocketRawMessage(final byte[] msg) {
         if (wsClient.getState() != WebSocketConnectionState.REGISTERED) {
             Log.e(TAG, "Got WebSocket message in non registered state.");
             return;
         }
-        try {
-            JSONObject json = new JSONObject(msg);
-            JSONObject jsonContent;
-            String type = json.optString("type");
-            switch (type) {
-                case "offer": {
-                    long fromPeerId = json.getLong("from");
-                    jsonContent = json.getJSONObject("content");
-                    //收到offer消息。创建sdp并通知主程序
-                    SessionDescription sdp = new SessionDescription(
-                            SessionDescription.Type.OFFER,
-                            jsonContent.getString("sdp"));
-                    events.onRemoteOffer(fromPeerId, sdp);
-                    break;
-                }
-                case "answer": {
-                    long fromPeerId = json.getLong("from");
-                    //收到answer消息
-                    // 如果对方接受则传递sdp，否则sdp参数传null
-                    if (json.getBoolean("accept")) {
-                        jsonContent = json.getJSONObject("content");
-                        SessionDescription sdp = new SessionDescription(
-                                SessionDescription.Type.ANSWER,
-                                jsonContent.getString("sdp"));
-                        events.onRemoteAnswer(fromPeerId, sdp);
-                    } else {
-                        events.onRemoteAnswer(fromPeerId, null);
-                    }
-                    break;
-                }
-                case "candidate": {
-                    long fromPeerId = json.getLong("from");
-                    jsonContent = json.getJSONObject("content");
-                    IceCandidate candidate = new IceCandidate(
-                            jsonContent.getString("id"),
-                            jsonContent.getInt("label"),
-                            jsonContent.getString("candidate"));
-                    events.onRemoteIceCandidate(fromPeerId, candidate);
-                    break;
-                }
-
-                case "leave": {
-                    long leaveId = json.getLong("id");
-                    Log.d(TAG, "leaveId:" + leaveId);
-                    events.onRemoteLeave(leaveId);
-                    break;
-
-                }
-                case "join": {
-                    long fromPeerId = json.getLong("id");
-                    events.onClientJoin(fromPeerId, json.getString("device"));
-                    break;
-                }
-                case "room": {
-                    JSONArray jsonArray;
-                    jsonArray = json.getJSONArray("clients");
-
-                    //房间只有自己，先return
-                    if (jsonArray.length() <= 1) {
-                        return;
-                    }
-
-                    ClientInfo[]  clientIdString = new ClientInfo[jsonArray.length() - 1];
-                    int j = 0;
-                    long clientId = 0;
-                    String device = null;
-                    for (int i = 0; i < jsonArray.length(); i++) {
-                        JSONObject jsonClient = (JSONObject) jsonArray.get(i);
-                        clientId = jsonClient.getLong("id");
-                        device = jsonClient.getString("device");
-
-                        //过滤本机设备,localClientId,本机设备的Id，client服务器返回的id
-                        if (clientId != localClientId) {
-                            clientIdString[j++] = new ClientInfo(clientId, device);
-                        }
-                    }
-                    //只有2个客户端（包括自己），就直接建立连接
-                    if (jsonArray.length() == 2) {
-                        events.connect(clientIdString[0].getClientId());
-                        events.updateClientList(clientIdString[0].getClientId(),clientIdString[0].getDevice());
-                    } else {
-                        events.selectClientItem(clientIdString);
-                    }
-                    break;
-                }
-                default:
-                    Log.w(TAG, "Unexpected WebSocket message :" + msg);
-            }
-
-        } catch (JSONException e) {
-            reportError("WebSocket message JSON parsing error: " + e.toString());
+        if (!messageDecoder.decode(msg, 0, msg.length)) {
+            Log.w(TAG, "Unexpected WebSocket message :" + new String(msg, UTF_8));
         }
     }
 
@@ -391,12 +399,65 @@ public class WebSocketRTCClient implements AppRTCClient,
         });
     }
 
-    // Put a |key|->|value| mapping in |json|.
-    private static void jsonPut(JSONObject json, String key, Object value) {
-        try {
-            json.put(key, value);
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
+    // Turns decoded messages into SignalingEvents. Runs on a local looper
+    // thread.
+    private class DecoderEvents implements SignalingMessageDecoder.Events {
+        @Override
+        public void onRemoteOffer(long peerId, String sdp) {
+            //收到offer消息。创建sdp并通知主程序
+            events.onRemoteOffer(peerId,
+                    new SessionDescription(SessionDescription.Type.OFFER, sdp));
+        }
+
+        @Override
+        public void onRemoteAnswer(long peerId, String sdp) {
+            //收到answer消息
+            // 如果对方接受则传递sdp，否则sdp参数传null
+            events.onRemoteAnswer(peerId, sdp == null ? null
+                    : new SessionDescription(SessionDescription.Type.ANSWER, sdp));
+        }
+
+        @Override
+        public void onRemoteIceCandidate(long peerId, String sdpMid, int sdpMLineIndex,
+                String candidate) {
+            events.onRemoteIceCandidate(peerId,
+                    new IceCandidate(sdpMid, sdpMLineIndex, candidate));
+        }
+
+        @Override
+        public void onRemoteLeave(long peerId) {
+            Log.d(TAG, "leaveId:" + peerId);
+            events.onRemoteLeave(peerId);
+        }
+
+        @Override
+        public void onClientJoin(long peerId, String deviceType) {
+            events.onClientJoin(peerId, deviceType);
+        }
+
+        @Override
+        public void onRoom(long[] clientIds, String[] deviceTypes) {
+            //房间只有自己，先return
+            if (clientIds.length <= 1) {
+                return;
+            }
+
+            ClientInfo[] clientIdString = new ClientInfo[clientIds.length - 1];
+            int j = 0;
+            for (int i = 0; i < clientIds.length; i++) {
+                //过滤本机设备,localClientId,本机设备的Id，client服务器返回的id
+                if (clientIds[i] != localClientId) {
+                    clientIdString[j++] = new ClientInfo(clientIds[i], deviceTypes[i]);
+                }
+            }
+            //只有2个客户端（包括自己），就直接建立连接
+            if (clientIds.length == 2) {
+                events.connect(clientIdString[0].getClientId());
+                events.updateClientList(clientIdString[0].getClientId(),
+                        clientIdString[0].getDevice());
+            } else {
+                events.selectClientItem(clientIdString);
+            }
         }
     }
 }
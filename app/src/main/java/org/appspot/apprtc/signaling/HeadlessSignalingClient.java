@@ -0,0 +1,250 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+package org.appspot.apprtc.signaling;
+
+import org.appspot.apprtc.signaling.WebSocketChannelClient.WebSocketChannelEvents;
+import org.appspot.apprtc.signaling.WebSocketSendQueue.MessageClass;
+import org.appspot.apprtc.util.AsyncHttpURLConnection;
+import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+
+/**
+ * Signaling client without Android, org.json or org.webrtc: the room join
+ * request plus a {@link WebSocketChannelClient}, with SDP and candidates as
+ * plain strings. It shares {@link SignalingMessages},
+ * {@link SignalingMessageDecoder} and {@link RoomJoinResponse} with
+ * WebSocketRTCClient, and the load generator runs thousands of them.
+ * <p/>
+ * <p>Methods may be called from any thread; events are called on the
+ * executor.
+ */
+public class HeadlessSignalingClient implements WebSocketChannelEvents {
+    private static final String TAG = "HeadlessSignalingClient";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Callbacks, on the executor.
+     */
+    public interface Events {
+        /**
+         * The room server accepted the join; the WebSocket registers next.
+         */
+        public void onJoined(long clientId);
+
+        public void onClientJoin(long peerId, String deviceType);
+
+        /**
+         * Answer to requestRoomInfo(): every client in the room, this one too.
+         */
+        public void onRoom(long[] clientIds);
+
+        public void onRemoteOffer(long peerId, String sdp);
+
+        /**
+         * |sdp| is null if the peer rejected the offer.
+         */
+        public void onRemoteAnswer(long peerId, String sdp);
+
+        public void onRemoteIceCandidate(long peerId, String candidate);
+
+        public void onRemoteLeave(long peerId);
+
+        public void onChannelClose();
+
+        public void onChannelError(String description);
+    }
+
+    private final SignalingExecutor executor;
+    private final SignalingTransport.Factory transportFactory;
+    private final SignalingLogger log;
+    private final Events events;
+    private final SignalingMessageDecoder messageDecoder;
+    private String deviceType = "headless";
+    // Executor only.
+    private WebSocketChannelClient wsClient;
+    private boolean error;
+
+    public HeadlessSignalingClient(SignalingExecutor executor,
+            SignalingTransport.Factory transportFactory, SignalingLogger log, Events events) {
+        this.executor = executor;
+        this.transportFactory = transportFactory;
+        this.log = log;
+        this.events = events;
+        messageDecoder = new SignalingMessageDecoder(new DecoderEvents());
+    }
+
+    /**
+     * Device type announced to the room, "headless" by default. Must be set
+     * before joinRoom().
+     */
+    public void setDeviceType(String deviceType) {
+        this.deviceType = deviceType;
+    }
+
+    /**
+     * Joins |roomId| on |roomServerUrl| and registers on the WebSocket server
+     * it names.
+     */
+    public void joinRoom(String roomServerUrl, final long roomId) {
+        String url = roomServerUrl + "/join/" + roomId;
+        log.d(TAG, "Joining " + url);
+        new AsyncHttpURLConnection("POST", url, null, new AsyncHttpEvents() {
+            @Override
+            public void onHttpError(String errorMessage) {
+                reportError("Room join error: " + errorMessage);
+            }
+
+            @Override
+            public void onHttpComplete(final String response) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onJoinResponse(roomId, response);
+                    }
+                });
+            }
+        }).send();
+    }
+
+    public void sendOfferSdp(long peerId, String sdp) {
+        send(SignalingMessages.offer(peerId, sdp, false), MessageClass.SDP, peerId);
+    }
+
+    /**
+     * Accepts the offer of |peerId| with |sdp|, or rejects it if |sdp| is null.
+     */
+    public void sendAnswerSdp(long peerId, String sdp) {
+        send(SignalingMessages.answer(peerId, sdp), MessageClass.SDP, peerId);
+    }
+
+    public void sendLocalIceCandidate(long peerId, String sdpMid, int sdpMLineIndex,
+            String candidate) {
+        send(SignalingMessages.candidates(peerId, Collections.singletonList(
+                new SignalingMessages.Candidate(sdpMid, sdpMLineIndex, candidate))),
+                MessageClass.CANDIDATE, peerId);
+    }
+
+    public void requestRoomInfo() {
+        send(SignalingMessages.room(), MessageClass.CONTROL, WebSocketSendQueue.NO_PEER);
+    }
+
+    /**
+     * Leaves the room and closes the WebSocket.
+     */
+    public void disconnectFromRoom() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (wsClient != null) {
+                    wsClient.send(SignalingMessages.leave(), MessageClass.LEAVE,
+                            WebSocketSendQueue.NO_PEER);
+                    wsClient.disconnect(false);
+                    wsClient = null;
+                }
+            }
+        });
+    }
+
+    private void onJoinResponse(long roomId, String response) {
+        RoomJoinResponse join = RoomJoinResponse.parse(response);
+        if (join == null) {
+            reportError("Room join response error: " + response);
+            return;
+        }
+        wsClient = new WebSocketChannelClient(executor, this, transportFactory, log);
+        wsClient.setDeviceType(deviceType);
+        wsClient.connect(join.wssUrl, join.wssPostUrl);
+        wsClient.register(roomId, join.clientId);
+        events.onJoined(join.clientId);
+    }
+
+    private void send(final String message, final MessageClass messageClass, final long peerId) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (wsClient == null) {
+                    reportError("Sending " + messageClass + " before joining a room.");
+                    return;
+                }
+                wsClient.send(message, messageClass, peerId);
+            }
+        });
+    }
+
+    // --------------------------------------------------------------------
+    // WebSocketChannelEvents interface implementation, on the executor.
+
+    @Override
+    public void onWebSocketRawMessage(byte[] message) {
+        if (!messageDecoder.decode(message, 0, message.length)) {
+            log.w(TAG, "Unexpected WebSocket message: " + new String(message, UTF_8));
+        }
+    }
+
+    @Override
+    public void onWebSocketClose() {
+        events.onChannelClose();
+    }
+
+    @Override
+    public void onWebSocketError(String description) {
+        reportError("WebSocket error: " + description);
+    }
+
+    private void reportError(final String errorMessage) {
+        log.e(TAG, errorMessage);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!error) {
+                    error = true;
+                    events.onChannelError(errorMessage);
+                }
+            }
+        });
+    }
+
+    // Passes decoded messages on to |events|, with candidates and the room as
+    // the plain values the headless client deals in.
+    private class DecoderEvents implements SignalingMessageDecoder.Events {
+        @Override
+        public void onRemoteOffer(long peerId, String sdp) {
+            events.onRemoteOffer(peerId, sdp);
+        }
+
+        @Override
+        public void onRemoteAnswer(long peerId, String sdp) {
+            events.onRemoteAnswer(peerId, sdp);
+        }
+
+        @Override
+        public void onRemoteIceCandidate(long peerId, String sdpMid, int sdpMLineIndex,
+                String candidate) {
+            events.onRemoteIceCandidate(peerId, candidate);
+        }
+
+        @Override
+        public void onRemoteLeave(long peerId) {
+            events.onRemoteLeave(peerId);
+        }
+
+        @Override
+        public void onClientJoin(long peerId, String deviceType) {
+            events.onClientJoin(peerId, deviceType);
+        }
+
+        @Override
+        public void onRoom(long[] clientIds, String[] deviceTypes) {
+            events.onRoom(clientIds);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the signaling messages, without org.json, which is only
+ * part of the Android runtime. Objects are split into their top level fields
+ * with each value kept as JSON text, so that nested content such as an SDP can
+ * be forwarded or sent on without being parsed.
+ */
+public final class Json {
+    private Json() {
+    }
+
+    /**
+     * Splits a JSON object into its fields, each value kept as JSON text.
+     * Returns null if |text| is null or not a JSON object.
+     */
+    public static Map<String, String> parseObject(String text) {
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        if (text == null) {
+            return null;
+        }
+        int[] pos = {skipWhitespace(text, 0)};
+        if (pos[0] >= text.length() || text.charAt(pos[0]) != '{') {
+            return null;
+        }
+        pos[0] = skipWhitespace(text, pos[0] + 1);
+        if (pos[0] < text.length() && text.charAt(pos[0]) == '}') {
+            return fields;
+        }
+        while (pos[0] < text.length()) {
+            int keyStart = pos[0];
+            if (text.charAt(keyStart) != '"' || !skipValue(text, pos)) {
+                return null;
+            }
+            String key = stringValue(text.substring(keyStart, pos[0]));
+            if (key == null) {
+                return null;
+            }
+            pos[0] = skipWhitespace(text, pos[0]);
+            if (pos[0] >= text.length() || text.charAt(pos[0]) != ':') {
+                return null;
+            }
+            int valueStart = skipWhitespace(text, pos[0] + 1);
+            pos[0] = valueStart;
+            if (!skipValue(text, pos)) {
+                return null;
+            }
+            fields.put(key, text.substring(valueStart, pos[0]));
+            pos[0] = skipWhitespace(text, pos[0]);
+            if (pos[0] >= text.length()) {
+                return null;
+            }
+            char c = text.charAt(pos[0]);
+            if (c == '}') {
+                return fields;
+            }
+            if (c != ',') {
+                return null;
+            }
+            pos[0] = skipWhitespace(text, pos[0] + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Splits a JSON array into its elements, each kept as JSON text. Returns
+     * null if |text| is null or not a JSON array.
+     */
+    public static List<String> parseArray(String text) {
+        List<String> elements = new ArrayList<String>();
+        if (text == null) {
+            return null;
+        }
+        int[] pos = {skipWhitespace(text, 0)};
+        if (pos[0] >= text.length() || text.charAt(pos[0]) != '[') {
+            return null;
+        }
+        pos[0] = skipWhitespace(text, pos[0] + 1);
+        if (pos[0] < text.length() && text.charAt(pos[0]) == ']') {
+            return elements;
+        }
+        while (pos[0] < text.length()) {
+            int start = pos[0];
+            if (!skipValue(text, pos)) {
+                return null;
+            }
+            elements.add(text.substring(start, pos[0]));
+            pos[0] = skipWhitespace(text, pos[0]);
+            if (pos[0] >= text.length()) {
+                return null;
+            }
+            char c = text.charAt(pos[0]);
+            if (c == ']') {
+                return elements;
+            }
+            if (c != ',') {
+                return null;
+            }
+            pos[0] = skipWhitespace(text, pos[0] + 1);
+        }
+        return null;
+    }
+
+    // Moves pos[0] past the JSON value starting there. Returns false if the
+    // value is not terminated.
+    private static boolean skipValue(String text, int[] pos) {
+        int i = pos[0];
+        int depth = 0;
+        boolean inString = false;
+        for (; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                    if (depth == 0) {
+                        pos[0] = i + 1;
+                        return true;
+                    }
+                }
+                continue;
+            }
+            if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    break;
+                }
+                depth--;
+                if (depth == 0) {
+                    pos[0] = i + 1;
+                    return true;
+                }
+            } else if (depth == 0 && (c == ',' || c == ' ' || c == '\t' || c == '\r'
+                    || c == '\n')) {
+                break;
+            }
+        }
+        if (inString || depth > 0 || i == pos[0]) {
+            return false;
+        }
+        pos[0] = i;
+        return true;
+    }
+
+    private static int skipWhitespace(String text, int pos) {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * The string a JSON string literal stands for, or null if |json| is not one
+     * or has a malformed escape.
+     */
+    public static String stringValue(String json) {
+        if (json == null || json.length() < 2 || json.charAt(0) != '"') {
+            return null;
+        }
+        // Index of the closing quote.
+        int end = json.length() - 1;
+        if (json.charAt(end) != '"') {
+            return null;
+        }
+        StringBuilder value = new StringBuilder(end);
+        for (int i = 1; i < end; i++) {
+            char c = json.charAt(i);
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (i + 1 >= end) {
+                // A lone backslash escapes the closing quote.
+                return null;
+            }
+            c = json.charAt(++i);
+            switch (c) {
+                case '"': case '\\': case '/': value.append(c); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'u': {
+                    if (i + 4 >= end) {
+                        return null;
+                    }
+                    int code = 0;
+                    for (int j = i + 1; j <= i + 4; j++) {
+                        int digit = Character.digit(json.charAt(j), 16);
+                        if (digit < 0) {
+                            return null;
+                        }
+                        code = (code << 4) | digit;
+                    }
+                    value.append((char) code);
+                    i += 4;
+                    break;
+                }
+                default:
+                    return null;
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * A non-negative JSON integer, or -1.
+     */
+    public static long longValue(String json) {
+        if (json == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(json);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * |value| as a JSON string literal.
+     */
+    public static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2);
+        quoted.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c == '\r') {
+                // SDP lines end in \r\n; keep them short.
+                quoted.append("\\r");
+            } else if (c == '\n') {
+                quoted.append("\\n");
+            } else if (c == '\t') {
+                quoted.append("\\t");
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
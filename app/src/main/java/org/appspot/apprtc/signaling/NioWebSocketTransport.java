@@ -0,0 +1,421 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+package org.appspot.apprtc.signaling;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Plain ws:// {@link SignalingTransport} on java.nio, so that one
+ * {@link Loop} thread serves the connections of thousands of clients. Frames
+ * are sent masked and unfragmented; incoming text frames may be fragmented.
+ * There is no TLS, the load generator talks to test servers.
+ * <p/>
+ * <p>Everything but sendTextMessage() and the public methods of Loop runs on
+ * the loop thread, and so do the observer calls.
+ */
+public class NioWebSocketTransport implements SignalingTransport {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    /**
+     * Selector thread of many transports, and their factory.
+     */
+    public static class Loop implements SignalingTransport.Factory, Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Random random = new Random();
+        // Transports with a connect, send or disconnect for the loop thread.
+        private final ConcurrentLinkedQueue<NioWebSocketTransport> changes =
+                new ConcurrentLinkedQueue<NioWebSocketTransport>();
+        private volatile boolean closed;
+
+        public Loop() throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "NioWebSocketTransport");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public SignalingTransport createTransport() {
+            return new NioWebSocketTransport(this);
+        }
+
+        /**
+         * Sends what was queued, closes all connections and waits for the loop
+         * thread to end.
+         */
+        public void close() {
+            closed = true;
+            selector.wakeup();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void wakeup(NioWebSocketTransport transport) {
+            changes.add(transport);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    NioWebSocketTransport changed;
+                    while ((changed = changes.poll()) != null) {
+                        changed.onChange();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((NioWebSocketTransport) key.attachment()).onReady(key);
+                    }
+                }
+            } catch (IOException e) {
+                // The selector broke; nothing is served any more.
+            } finally {
+                NioWebSocketTransport changed;
+                while ((changed = changes.poll()) != null) {
+                    changed.onChange();
+                }
+                for (SelectionKey key : selector.keys()) {
+                    ((NioWebSocketTransport) key.attachment()).fail("Transport loop closed");
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // continue
+                }
+            }
+        }
+    }
+
+    private final Loop loop;
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+    private volatile boolean disconnectRequested;
+    // Loop thread only.
+    private URI uri;
+    private Observer observer;
+    private String handshakeKey;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean open;
+    private boolean closed;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+
+    private NioWebSocketTransport(Loop loop) {
+        this.loop = loop;
+    }
+
+    @Override
+    public void connect(String url, Observer observer) {
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        if (!"ws".equals(uri.getScheme()) || uri.getHost() == null) {
+            throw new IllegalArgumentException("Not a ws:// URL: " + url);
+        }
+        this.observer = observer;
+        loop.wakeup(this);
+    }
+
+    @Override
+    public void sendTextMessage(String message) {
+        outbound.add(frame(OPCODE_TEXT, message.getBytes(UTF_8)));
+        loop.wakeup(this);
+    }
+
+    @Override
+    public void disconnect() {
+        disconnectRequested = true;
+        loop.wakeup(this);
+    }
+
+    // Starts connecting, sends, or closes.
+    private void onChange() {
+        if (closed) {
+            outbound.clear();
+            return;
+        }
+        if (channel == null) {
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                int port = uri.getPort() < 0 ? 80 : uri.getPort();
+                channel.connect(new InetSocketAddress(uri.getHost(), port));
+                key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                fail("Connect error: " + e.getMessage());
+                return;
+            }
+        }
+        if (disconnectRequested) {
+            if (open) {
+                // Best effort; the socket is closed right after.
+                outbound.add(frame(OPCODE_CLOSE, new byte[0]));
+                try {
+                    write();
+                } catch (IOException e) {
+                    // Closing anyway.
+                }
+            }
+            fail("Disconnected");
+        } else if (open && !outbound.isEmpty()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void onReady(SelectionKey readyKey) {
+        try {
+            if (!readyKey.isValid()) {
+                return;
+            }
+            if (readyKey.isConnectable()) {
+                channel.finishConnect();
+                handshakeKey = WebSocketHandshake.newKey(loop.random);
+                String path = uri.getRawPath() == null || uri.getRawPath().isEmpty()
+                        ? "/" : uri.getRawPath();
+                if (uri.getRawQuery() != null) {
+                    path += "?" + uri.getRawQuery();
+                }
+                String request = "GET " + path + " HTTP/1.1\r\n"
+                        + "Host: " + uri.getHost() + (uri.getPort() < 0 ? "" : ":" + uri.getPort())
+                        + "\r\n"
+                        + "Upgrade: websocket\r\n"
+                        + "Connection: Upgrade\r\n"
+                        + "Sec-WebSocket-Key: " + handshakeKey + "\r\n"
+                        + "Sec-WebSocket-Version: 13\r\n\r\n";
+                // Ahead of messages sent before the connection opened.
+                ByteBuffer handshake = ByteBuffer.wrap(request.getBytes("US-ASCII"));
+                channel.write(handshake);
+                if (handshake.hasRemaining()) {
+                    throw new IOException("Handshake did not fit the socket buffer");
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (readyKey.isReadable()) {
+                read();
+            }
+            if (readyKey.isValid() && readyKey.isWritable()) {
+                write();
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private void read() throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        if (channel.read(readBuffer) < 0) {
+            fail("Connection closed by server");
+            return;
+        }
+        readBuffer.flip();
+        if (!open && !readHandshakeResponse()) {
+            readBuffer.compact();
+            return;
+        }
+        while (!closed && readFrame()) {
+        }
+        if (!closed) {
+            readBuffer.compact();
+        }
+    }
+
+    // Consumes the response to the opening handshake. Returns false if it is
+    // not complete yet.
+    private boolean readHandshakeResponse() throws IOException {
+        int end = -1;
+        for (int i = readBuffer.position(); i + 3 < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) == '\r' && readBuffer.get(i + 1) == '\n'
+                    && readBuffer.get(i + 2) == '\r' && readBuffer.get(i + 3) == '\n') {
+                end = i + 4;
+                break;
+            }
+        }
+        if (end < 0) {
+            return false;
+        }
+        byte[] bytes = new byte[end - readBuffer.position()];
+        readBuffer.get(bytes);
+        String response = new String(bytes, "US-ASCII");
+        if (!response.startsWith("HTTP/1.1 101")) {
+            throw new IOException("Handshake failed: " + response.split("\r\n")[0]);
+        }
+        String accept = "Sec-WebSocket-Accept: " + WebSocketHandshake.acceptKey(handshakeKey);
+        if (!response.toLowerCase().contains(accept.toLowerCase())) {
+            throw new IOException("Wrong Sec-WebSocket-Accept");
+        }
+        open = true;
+        observer.onOpen();
+        if (!outbound.isEmpty()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        return true;
+    }
+
+    // Consumes one frame. Returns false if it is not complete yet.
+    private boolean readFrame() throws IOException {
+        int start = readBuffer.position();
+        int available = readBuffer.remaining();
+        if (available < 2) {
+            return false;
+        }
+        int b0 = readBuffer.get(start) & 0xFF;
+        int b1 = readBuffer.get(start + 1) & 0xFF;
+        int headerLength = 2;
+        long length = b1 & 0x7F;
+        if (length == 126) {
+            headerLength = 4;
+            if (available < headerLength) {
+                return false;
+            }
+            length = readBuffer.getShort(start + 2) & 0xFFFF;
+        } else if (length == 127) {
+            headerLength = 10;
+            if (available < headerLength) {
+                return false;
+            }
+            length = readBuffer.getLong(start + 2);
+        }
+        if ((b1 & 0x80) != 0 || length > Integer.MAX_VALUE / 2) {
+            throw new IOException("Malformed frame from server");
+        }
+        if (available < headerLength + length) {
+            if (readBuffer.capacity() < headerLength + length) {
+                // Let read() grow the buffer to fit the frame.
+                ByteBuffer larger = ByteBuffer.allocate((int) (headerLength + length));
+                larger.put(readBuffer);
+                larger.flip();
+                readBuffer = larger;
+            }
+            return false;
+        }
+        byte[] payload = new byte[(int) length];
+        readBuffer.position(start + headerLength);
+        readBuffer.get(payload);
+        boolean fin = (b0 & 0x80) != 0;
+        switch (b0 & 0x0F) {
+            case OPCODE_TEXT:
+            case OPCODE_CONTINUATION:
+                message.write(payload);
+                if (fin) {
+                    byte[] bytes = message.toByteArray();
+                    message.reset();
+                    observer.onMessage(bytes);
+                }
+                break;
+            case OPCODE_PING:
+                outbound.add(frame(OPCODE_PONG, payload));
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                break;
+            case OPCODE_CLOSE:
+                outbound.add(frame(OPCODE_CLOSE, payload));
+                write();
+                fail("Closed by server");
+                return false;
+            default:
+                break;
+        }
+        return true;
+    }
+
+    private void write() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = outbound.peek()) != null) {
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            outbound.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    // Closes the connection and tells the observer, once.
+    private void fail(String reason) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        open = false;
+        outbound.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // continue
+            }
+        }
+        if (observer != null) {
+            observer.onClose(reason);
+        }
+    }
+
+    // A masked, unfragmented client frame.
+    private ByteBuffer frame(int opcode, byte[] payload) {
+        int headerLength = payload.length < 126 ? 2 : (payload.length < 65536 ? 4 : 10);
+        ByteBuffer frame = ByteBuffer.allocate(headerLength + 4 + payload.length);
+        frame.put((byte) (0x80 | opcode));
+        if (payload.length < 126) {
+            frame.put((byte) (0x80 | payload.length));
+        } else if (payload.length < 65536) {
+            frame.put((byte) (0x80 | 126));
+            frame.putShort((short) payload.length);
+        } else {
+            frame.put((byte) (0x80 | 127));
+            frame.putLong(payload.length);
+        }
+        byte[] mask = new byte[4];
+        loop.random.nextBytes(mask);
+        frame.put(mask);
+        for (int i = 0; i < payload.length; i++) {
+            frame.put((byte) (payload[i] ^ mask[i & 3]));
+        }
+        frame.flip();
+        return frame;
+    }
+}
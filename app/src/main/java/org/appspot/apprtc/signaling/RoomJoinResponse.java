@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The room server's answer to POST /join/&lt;room id&gt;: the client id, the
+ * WebSocket server to register on, and the ICE servers of "pc_config".
+ */
+public final class RoomJoinResponse {
+    /**
+     * An entry of the "iceServers" of "pc_config".
+     */
+    public static final class IceServer {
+        public final String url;
+        // Empty if the server has none.
+        public final String credential;
+
+        IceServer(String url, String credential) {
+            this.url = url;
+            this.credential = credential;
+        }
+    }
+
+    // -1 if missing.
+    public final long roomId;
+    public final long clientId;
+    public final String wssUrl;
+    // The fields below are null or empty if missing.
+    public final String wssPostUrl;
+    public final String turnUrl;
+    public final List<IceServer> iceServers;
+
+    private RoomJoinResponse(long roomId, long clientId, String wssUrl, String wssPostUrl,
+            String turnUrl, List<IceServer> iceServers) {
+        this.roomId = roomId;
+        this.clientId = clientId;
+        this.wssUrl = wssUrl;
+        this.wssPostUrl = wssPostUrl;
+        this.turnUrl = turnUrl;
+        this.iceServers = Collections.unmodifiableList(iceServers);
+    }
+
+    /**
+     * Parses |response|. Returns null if it is not a JSON object with a
+     * "client_id" and a "wss_url", or if its "pc_config" is malformed.
+     */
+    public static RoomJoinResponse parse(String response) {
+        Map<String, String> json = Json.parseObject(response);
+        if (json == null) {
+            return null;
+        }
+        long clientId = Json.longValue(json.get("client_id"));
+        String wssUrl = Json.stringValue(json.get("wss_url"));
+        if (clientId < 0 || wssUrl == null) {
+            return null;
+        }
+        List<IceServer> iceServers = new ArrayList<IceServer>();
+        String pcConfig = json.get("pc_config");
+        if (pcConfig != null) {
+            // The room server sends the configuration as a string of JSON.
+            String config = Json.stringValue(pcConfig);
+            if (!parseIceServers(config != null ? config : pcConfig, iceServers)) {
+                return null;
+            }
+        }
+        return new RoomJoinResponse(Json.longValue(json.get("room_id")), clientId, wssUrl,
+                Json.stringValue(json.get("wss_post_url")),
+                Json.stringValue(json.get("turn_url")), iceServers);
+    }
+
+    private static boolean parseIceServers(String pcConfig, List<IceServer> iceServers) {
+        Map<String, String> config = Json.parseObject(pcConfig);
+        List<String> servers = config == null ? null : Json.parseArray(config.get("iceServers"));
+        if (servers == null) {
+            return false;
+        }
+        for (String server : servers) {
+            Map<String, String> fields = Json.parseObject(server);
+            String url = fields == null ? null : Json.stringValue(fields.get("urls"));
+            if (url == null) {
+                return false;
+            }
+            String credential = Json.stringValue(fields.get("credential"));
+            iceServers.add(new IceServer(url, credential == null ? "" : credential));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+package org.appspot.apprtc.signaling;
+
+import org.appspot.apprtc.util.TaskQueue;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SignalingExecutor} that runs its tasks one at a time on a shared
+ * thread pool, so that thousands of clients do not need a thread each. Tasks
+ * go through a {@link TaskQueue}, as in LooperExecutor, drained in batches of
+ * MAX_BATCH.
+ */
+public class SerialExecutor implements SignalingExecutor {
+    private static final int MAX_BATCH = 32;
+
+    private final ScheduledExecutorService pool;
+    private final TaskQueue queue = new TaskQueue();
+    private volatile Thread drainThread;
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainThread = Thread.currentThread();
+            boolean more;
+            try {
+                more = queue.drain(MAX_BATCH);
+            } finally {
+                drainThread = null;
+            }
+            if (more) {
+                pool.execute(this);
+            }
+        }
+    };
+
+    public SerialExecutor(ScheduledExecutorService pool) {
+        this.pool = pool;
+        // Thousands of these would keep thousands of histograms.
+        queue.setStatisticsEnabled(false);
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        if (queue.offer(runnable, null)) {
+            pool.execute(drainTask);
+        }
+    }
+
+    @Override
+    public void executeDelayed(final Runnable runnable, long delayMs) {
+        pool.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(runnable);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean checkOnExecutorThread() {
+        return drainThread == Thread.currentThread();
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+package org.appspot.apprtc.signaling;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Serial executor the signaling core runs on. Tasks run one at a time, in
+ * order, on one thread at a time; the app uses its LooperExecutor, the load
+ * generator a {@link SerialExecutor} per client.
+ */
+public interface SignalingExecutor extends Executor {
+    /**
+     * Runs |runnable| |delayMs| from now, never inline.
+     */
+    public void executeDelayed(Runnable runnable, long delayMs);
+
+    /**
+     * Whether the caller runs on this executor.
+     */
+    public boolean checkOnExecutorThread();
+}
@@ -0,0 +1,38 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+package org.appspot.apprtc.signaling;
+
+/**
+ * Log output of the signaling core; android.util.Log in the app.
+ */
+public interface SignalingLogger {
+    /**
+     * Drops everything, e.g. for thousands of simulated clients.
+     */
+    public static final SignalingLogger NONE = new SignalingLogger() {
+        @Override
+        public void d(String tag, String message) {
+        }
+
+        @Override
+        public void w(String tag, String message) {
+        }
+
+        @Override
+        public void e(String tag, String message) {
+        }
+    };
+
+    public void d(String tag, String message);
+
+    public void w(String tag, String message);
+
+    public void e(String tag, String message);
+}
@@ -0,0 +1,669 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoder for the signaling messages the WebSocket server sends, received as
+ * raw UTF-8 bytes.
+ * <p/>
+ * <p>The message is first scanned once without building a JSON tree. Only the
+ * fields used by the "offer", "answer", "candidate", "leave" and "join"
+ * messages are extracted; everything else is skipped in place. Once the
+ * whole message is read the matching Events callback is fired.
+ * <p/>
+ * <p>Other messages ("room", "candidates") and shapes the scan does not
+ * handle (string encoded numbers, escaped keys, ...) are read again with
+ * {@link Json}. decode() returns false without firing any callback if the
+ * message is malformed or of an unknown type.
+ * <p/>
+ * <p>This class is not thread-safe; it is meant to be used from the
+ * signaling looper thread only.
+ */
+public class SignalingMessageDecoder {
+    /**
+     * Callbacks for the decoded messages, on the thread calling decode().
+     */
+    public interface Events {
+        public void onRemoteOffer(long peerId, String sdp);
+
+        /**
+         * |sdp| is null if the peer rejected the offer.
+         */
+        public void onRemoteAnswer(long peerId, String sdp);
+
+        public void onRemoteIceCandidate(long peerId, String sdpMid, int sdpMLineIndex,
+                String candidate);
+
+        public void onRemoteLeave(long peerId);
+
+        public void onClientJoin(long peerId, String deviceType);
+
+        /**
+         * Every client in the room, this one too.
+         */
+        public void onRoom(long[] clientIds, String[] deviceTypes);
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_DEPTH = 32;
+
+    private static final byte[] KEY_TYPE = ascii("type");
+    private static final byte[] KEY_FROM = ascii("from");
+    private static final byte[] KEY_ID = ascii("id");
+    private static final byte[] KEY_DEVICE = ascii("device");
+    private static final byte[] KEY_ACCEPT = ascii("accept");
+    private static final byte[] KEY_CONTENT = ascii("content");
+    private static final byte[] KEY_SDP = ascii("sdp");
+    private static final byte[] KEY_LABEL = ascii("label");
+    private static final byte[] KEY_CANDIDATE = ascii("candidate");
+
+    private static final int TYPE_UNKNOWN = 0;
+    private static final int TYPE_OFFER = 1;
+    private static final int TYPE_ANSWER = 2;
+    private static final int TYPE_CANDIDATE = 3;
+    private static final int TYPE_LEAVE = 4;
+    private static final int TYPE_JOIN = 5;
+    private static final byte[][] TYPE_NAMES = {
+            null, ascii("offer"), ascii("answer"), ascii("candidate"),
+            ascii("leave"), ascii("join")
+    };
+
+    private final Events events;
+    // Reused buffer for string values.
+    private char[] chars = new char[256];
+
+    private byte[] buf;
+    private int pos;
+    private int end;
+    private int keyStart;
+    private int keyLength;
+
+    // Decoded fields, reset for each message.
+    private int type;
+    private boolean hasFrom;
+    private long from;
+    private boolean hasId;
+    private long id;
+    private String device;
+    private int accept;  // -1 missing, 0 false, 1 true.
+    private String sdp;
+    private String candidateId;
+    private boolean hasLabel;
+    private int label;
+    private String candidate;
+    // Results of readLong() and readBoolean().
+    private long lastLong;
+    private boolean lastBoolean;
+
+    public SignalingMessageDecoder(Events events) {
+        this.events = events;
+    }
+
+    /**
+     * Decodes |length| bytes of |data| starting at |offset| and fires the
+     * matching callbacks. An "ack" fires none; WebSocketChannelClient handles
+     * it. Returns false if the message was malformed or of an unknown type.
+     */
+    public boolean decode(byte[] data, int offset, int length) {
+        buf = data;
+        pos = offset;
+        end = offset + length;
+        reset();
+        try {
+            if (readTopLevel() && dispatch()) {
+                return true;
+            }
+        } finally {
+            buf = null;
+        }
+        return decodeFields(Json.parseObject(new String(data, offset, length, UTF_8)));
+    }
+
+    // The slow path, for everything the scan did not handle.
+    private boolean decodeFields(Map<String, String> json) {
+        String type = json == null ? null : Json.stringValue(json.get("type"));
+        if (type == null) {
+            return false;
+        }
+        long from = Json.longValue(json.get("from"));
+        Map<String, String> content = Json.parseObject(json.get("content"));
+        switch (type) {
+            case "offer": {
+                String sdp = content == null ? null : Json.stringValue(content.get("sdp"));
+                if (from < 0 || sdp == null) {
+                    return false;
+                }
+                events.onRemoteOffer(from, sdp);
+                return true;
+            }
+            case "answer": {
+                String accept = json.get("accept");
+                if (from < 0 || !"true".equals(accept) && !"false".equals(accept)) {
+                    return false;
+                }
+                String sdp = content == null ? null : Json.stringValue(content.get("sdp"));
+                if ("true".equals(accept) && sdp == null) {
+                    return false;
+                }
+                events.onRemoteAnswer(from, "true".equals(accept) ? sdp : null);
+                return true;
+            }
+            case "candidate":
+                return from >= 0 && content != null && candidate(from, content);
+            case "candidates": {
+                List<String> candidates =
+                        content == null ? null : Json.parseArray(content.get("candidates"));
+                if (from < 0 || candidates == null) {
+                    return false;
+                }
+                for (String candidate : candidates) {
+                    Map<String, String> fields = Json.parseObject(candidate);
+                    if (fields == null || !candidate(from, fields)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            case "leave": {
+                long id = Json.longValue(json.get("id"));
+                if (id < 0) {
+                    return false;
+                }
+                events.onRemoteLeave(id);
+                return true;
+            }
+            case "join": {
+                long id = Json.longValue(json.get("id"));
+                String device = Json.stringValue(json.get("device"));
+                if (id < 0 || device == null) {
+                    return false;
+                }
+                events.onClientJoin(id, device);
+                return true;
+            }
+            case "room": {
+                List<String> clients = Json.parseArray(json.get("clients"));
+                if (clients == null) {
+                    return false;
+                }
+                long[] clientIds = new long[clients.size()];
+                String[] deviceTypes = new String[clients.size()];
+                for (int i = 0; i < clientIds.length; i++) {
+                    Map<String, String> client = Json.parseObject(clients.get(i));
+                    if (client == null) {
+                        return false;
+                    }
+                    clientIds[i] = Json.longValue(client.get("id"));
+                    deviceTypes[i] = Json.stringValue(client.get("device"));
+                    if (clientIds[i] < 0 || deviceTypes[i] == null) {
+                        return false;
+                    }
+                }
+                events.onRoom(clientIds, deviceTypes);
+                return true;
+            }
+            case "ack":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Fires the candidate in |fields|, the content of a "candidate" message or
+    // an element of a "candidates" one.
+    private boolean candidate(long from, Map<String, String> fields) {
+        String sdpMid = Json.stringValue(fields.get("id"));
+        long label = Json.longValue(fields.get("label"));
+        String candidate = Json.stringValue(fields.get("candidate"));
+        if (sdpMid == null || label < 0 || candidate == null) {
+            return false;
+        }
+        events.onRemoteIceCandidate(from, sdpMid, (int) label, candidate);
+        return true;
+    }
+
+    private void reset() {
+        type = TYPE_UNKNOWN;
+        hasFrom = false;
+        hasId = false;
+        device = null;
+        accept = -1;
+        sdp = null;
+        candidateId = null;
+        hasLabel = false;
+        candidate = null;
+    }
+
+    private boolean dispatch() {
+        switch (type) {
+            case TYPE_OFFER:
+                if (!hasFrom || sdp == null) {
+                    return false;
+                }
+                events.onRemoteOffer(from, sdp);
+                return true;
+            case TYPE_ANSWER:
+                if (!hasFrom || accept == -1) {
+                    return false;
+                }
+                if (accept == 1) {
+                    if (sdp == null) {
+                        return false;
+                    }
+                    events.onRemoteAnswer(from, sdp);
+                } else {
+                    events.onRemoteAnswer(from, null);
+                }
+                return true;
+            case TYPE_CANDIDATE:
+                if (!hasFrom || candidateId == null || !hasLabel || candidate == null) {
+                    return false;
+                }
+                events.onRemoteIceCandidate(from, candidateId, label, candidate);
+                return true;
+            case TYPE_LEAVE:
+                if (!hasId) {
+                    return false;
+                }
+                events.onRemoteLeave(id);
+                return true;
+            case TYPE_JOIN:
+                if (!hasId || device == null) {
+                    return false;
+                }
+                events.onClientJoin(id, device);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean readTopLevel() {
+        skipWhitespace();
+        if (!consume('{')) {
+            return false;
+        }
+        skipWhitespace();
+        if (consume('}')) {
+            return trailingWhitespaceOnly();
+        }
+        do {
+            if (!readKey()) {
+                return false;
+            }
+            boolean ok;
+            if (keyIs(KEY_TYPE)) {
+                ok = readType();
+            } else if (keyIs(KEY_FROM)) {
+                ok = readLong();
+                hasFrom = ok;
+                from = lastLong;
+            } else if (keyIs(KEY_ID)) {
+                ok = readLong();
+                hasId = ok;
+                id = lastLong;
+            } else if (keyIs(KEY_DEVICE)) {
+                device = readString();
+                ok = device != null;
+            } else if (keyIs(KEY_ACCEPT)) {
+                ok = readBoolean();
+                accept = lastBoolean ? 1 : 0;
+            } else if (keyIs(KEY_CONTENT)) {
+                ok = readContent();
+            } else {
+                ok = skipValue(0);
+            }
+            if (!ok) {
+                return false;
+            }
+            skipWhitespace();
+        } while (consume(','));
+        if (!consume('}')) {
+            return false;
+        }
+        return trailingWhitespaceOnly();
+    }
+
+    private boolean readContent() {
+        if (peek() != '{') {
+            return skipValue(0);
+        }
+        pos++;
+        skipWhitespace();
+        if (consume('}')) {
+            return true;
+        }
+        do {
+            if (!readKey()) {
+                return false;
+            }
+            boolean ok;
+            if (keyIs(KEY_SDP)) {
+                sdp = readString();
+                ok = sdp != null;
+            } else if (keyIs(KEY_ID)) {
+                candidateId = readString();
+                ok = candidateId != null;
+            } else if (keyIs(KEY_LABEL)) {
+                ok = readLong();
+                hasLabel = ok;
+                label = (int) lastLong;
+            } else if (keyIs(KEY_CANDIDATE)) {
+                candidate = readString();
+                ok = candidate != null;
+            } else {
+                ok = skipValue(1);
+            }
+            if (!ok) {
+                return false;
+            }
+            skipWhitespace();
+        } while (consume(','));
+        return consume('}');
+    }
+
+    // Reads "<key>": and leaves the key range in keyStart/keyLength.
+    private boolean readKey() {
+        skipWhitespace();
+        if (!consume('"')) {
+            return false;
+        }
+        keyStart = pos;
+        while (pos < end && buf[pos] != '"') {
+            if (buf[pos] == '\\') {
+                // Escaped keys are not expected from the server.
+                return false;
+            }
+            pos++;
+        }
+        if (pos >= end) {
+            return false;
+        }
+        keyLength = pos - keyStart;
+        pos++;
+        skipWhitespace();
+        if (!consume(':')) {
+            return false;
+        }
+        skipWhitespace();
+        return true;
+    }
+
+    private boolean keyIs(byte[] name) {
+        if (keyLength != name.length) {
+            return false;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            if (buf[keyStart + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readType() {
+        if (!consume('"')) {
+            return false;
+        }
+        int start = pos;
+        while (pos < end && buf[pos] != '"' && buf[pos] != '\\') {
+            pos++;
+        }
+        if (pos >= end || buf[pos] != '"') {
+            return false;
+        }
+        int length = pos - start;
+        pos++;
+        type = TYPE_UNKNOWN;
+        for (int t = 1; t < TYPE_NAMES.length; t++) {
+            byte[] name = TYPE_NAMES[t];
+            if (name.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && buf[start + i] == name[i]) {
+                i++;
+            }
+            if (i == length) {
+                type = t;
+                break;
+            }
+        }
+        return true;
+    }
+
+    // Reads an integer number into lastLong. Fractions and exponents are
+    // rejected so the slow path can decide what to do with them.
+    private boolean readLong() {
+        boolean negative = consume('-');
+        int start = pos;
+        long value = 0;
+        while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+            if (pos - start >= 18) {
+                return false;
+            }
+            value = value * 10 + (buf[pos] - '0');
+            pos++;
+        }
+        if (pos == start) {
+            return false;
+        }
+        if (pos < end && (buf[pos] == '.' || buf[pos] == 'e' || buf[pos] == 'E')) {
+            return false;
+        }
+        lastLong = negative ? -value : value;
+        return true;
+    }
+
+    private boolean readBoolean() {
+        if (matchLiteral("true")) {
+            lastBoolean = true;
+            return true;
+        }
+        if (matchLiteral("false")) {
+            lastBoolean = false;
+            return true;
+        }
+        return false;
+    }
+
+    // Reads a JSON string, decoding UTF-8 and escapes. Returns null on error.
+    private String readString() {
+        if (!consume('"')) {
+            return null;
+        }
+        int length = 0;
+        while (pos < end) {
+            int b = buf[pos++] & 0xff;
+            if (b == '"') {
+                return new String(chars, 0, length);
+            }
+            if (length + 2 > chars.length) {
+                char[] grown = new char[chars.length * 2];
+                System.arraycopy(chars, 0, grown, 0, length);
+                chars = grown;
+            }
+            if (b == '\\') {
+                if (pos >= end) {
+                    return null;
+                }
+                int e = buf[pos++];
+                switch (e) {
+                    case '"': chars[length++] = '"'; break;
+                    case '\\': chars[length++] = '\\'; break;
+                    case '/': chars[length++] = '/'; break;
+                    case 'b': chars[length++] = '\b'; break;
+                    case 'f': chars[length++] = '\f'; break;
+                    case 'n': chars[length++] = '\n'; break;
+                    case 'r': chars[length++] = '\r'; break;
+                    case 't': chars[length++] = '\t'; break;
+                    case 'u': {
+                        if (pos + 4 > end) {
+                            return null;
+                        }
+                        int c = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(buf[pos++], 16);
+                            if (digit < 0) {
+                                return null;
+                            }
+                            c = (c << 4) | digit;
+                        }
+                        chars[length++] = (char) c;
+                        break;
+                    }
+                    default:
+                        return null;
+                }
+            } else if (b < 0x80) {
+                chars[length++] = (char) b;
+            } else if ((b & 0xe0) == 0xc0 && pos < end) {
+                chars[length++] = (char) (((b & 0x1f) << 6) | (buf[pos++] & 0x3f));
+            } else if ((b & 0xf0) == 0xe0 && pos + 1 < end) {
+                chars[length++] = (char) (((b & 0x0f) << 12)
+                        | ((buf[pos] & 0x3f) << 6) | (buf[pos + 1] & 0x3f));
+                pos += 2;
+            } else if ((b & 0xf8) == 0xf0 && pos + 2 < end) {
+                int codePoint = ((b & 0x07) << 18) | ((buf[pos] & 0x3f) << 12)
+                        | ((buf[pos + 1] & 0x3f) << 6) | (buf[pos + 2] & 0x3f);
+                pos += 3;
+                codePoint -= 0x10000;
+                chars[length++] = (char) (0xd800 | (codePoint >> 10));
+                chars[length++] = (char) (0xdc00 | (codePoint & 0x3ff));
+            } else {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private boolean skipValue(int depth) {
+        if (depth > MAX_DEPTH || pos >= end) {
+            return false;
+        }
+        byte b = buf[pos];
+        switch (b) {
+            case '"':
+                return skipString();
+            case '{':
+                return skipContainer('}', true, depth);
+            case '[':
+                return skipContainer(']', false, depth);
+            case 't':
+                return matchLiteral("true");
+            case 'f':
+                return matchLiteral("false");
+            case 'n':
+                return matchLiteral("null");
+            default:
+                return skipNumber();
+        }
+    }
+
+    private boolean skipContainer(char close, boolean isObject, int depth) {
+        pos++;
+        skipWhitespace();
+        if (consume(close)) {
+            return true;
+        }
+        do {
+            if (isObject && !readKey()) {
+                return false;
+            }
+            skipWhitespace();
+            if (!skipValue(depth + 1)) {
+                return false;
+            }
+            skipWhitespace();
+        } while (consume(','));
+        return consume(close);
+    }
+
+    private boolean skipString() {
+        pos++;
+        while (pos < end) {
+            byte b = buf[pos++];
+            if (b == '\\') {
+                pos++;
+            } else if (b == '"') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean skipNumber() {
+        int start = pos;
+        while (pos < end) {
+            byte b = buf[pos];
+            if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.'
+                    || b == 'e' || b == 'E') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        return pos > start;
+    }
+
+    private boolean matchLiteral(String literal) {
+        int length = literal.length();
+        if (pos + length > end) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf[pos + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        pos += length;
+        return true;
+    }
+
+    private boolean trailingWhitespaceOnly() {
+        skipWhitespace();
+        return pos == end;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private int peek() {
+        return pos < end ? buf[pos] : -1;
+    }
+
+    private boolean consume(char c) {
+        if (pos < end && buf[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
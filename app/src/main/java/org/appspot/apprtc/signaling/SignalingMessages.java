@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import java.util.List;
+
+/**
+ * The messages a client sends to the WebSocket server, as JSON text. Incoming
+ * messages are read by {@link SignalingMessageDecoder}.
+ */
+public final class SignalingMessages {
+    /**
+     * An ICE candidate as it is signaled, without org.webrtc.
+     */
+    public static final class Candidate {
+        public final String sdpMid;
+        public final int sdpMLineIndex;
+        public final String sdp;
+
+        public Candidate(String sdpMid, int sdpMLineIndex, String sdp) {
+            this.sdpMid = sdpMid;
+            this.sdpMLineIndex = sdpMLineIndex;
+            this.sdp = sdp;
+        }
+    }
+
+    private SignalingMessages() {
+    }
+
+    /**
+     * Registers |clientId| in |roomId|. With |resumeAck| >= 0 the server is
+     * asked to resume the session and replay what it sent after |resumeAck|.
+     */
+    public static String register(String deviceType, long roomId, long clientId,
+            long resumeAck) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"cmd\":\"register\",\"device\":").append(Json.quote(deviceType))
+                .append(",\"roomid\":").append(roomId)
+                .append(",\"clientid\":").append(clientId);
+        if (resumeAck >= 0) {
+            json.append(",\"resume\":true,\"ack\":").append(resumeAck);
+        }
+        return json.append('}').toString();
+    }
+
+    /**
+     * Acknowledges every incoming message up to seq |ack|.
+     */
+    public static String ack(long ack) {
+        return "{\"cmd\":\"ack\",\"ack\":" + ack + "}";
+    }
+
+    /**
+     * Asks for the clients in the room; the server answers with "room".
+     */
+    public static String room() {
+        return "{\"cmd\":\"room\"}";
+    }
+
+    public static String leave() {
+        return "{\"cmd\":\"leave\"}";
+    }
+
+    public static String offer(long peerId, String sdp, boolean isHelper) {
+        return "{\"cmd\":\"offer\",\"to\":" + peerId + ",\"isHelper\":" + isHelper
+                + ",\"content\":{\"sdp\":" + Json.quote(sdp) + ",\"type\":\"offer\"}}";
+    }
+
+    /**
+     * Accepts the offer of |peerId| with |sdp|, or rejects it if |sdp| is null.
+     */
+    public static String answer(long peerId, String sdp) {
+        if (sdp == null) {
+            return "{\"cmd\":\"answer\",\"to\":" + peerId + ",\"accept\":false}";
+        }
+        return "{\"cmd\":\"answer\",\"to\":" + peerId + ",\"accept\":true"
+                + ",\"content\":{\"sdp\":" + Json.quote(sdp) + ",\"type\":\"answer\"}}";
+    }
+
+    /**
+     * One candidate as a "candidate" message, several as one "candidates"
+     * message.
+     */
+    public static String candidates(long peerId, List<Candidate> candidates) {
+        StringBuilder json = new StringBuilder();
+        if (candidates.size() == 1) {
+            json.append("{\"cmd\":\"candidate\",\"to\":").append(peerId).append(",\"content\":");
+            appendCandidate(json, candidates.get(0));
+        } else {
+            json.append("{\"cmd\":\"candidates\",\"to\":").append(peerId)
+                    .append(",\"content\":{\"candidates\":[");
+            for (int i = 0; i < candidates.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                appendCandidate(json, candidates.get(i));
+            }
+            json.append("]}");
+        }
+        return json.append('}').toString();
+    }
+
+    private static void appendCandidate(StringBuilder json, Candidate candidate) {
+        json.append("{\"label\":").append(candidate.sdpMLineIndex)
+                .append(",\"id\":").append(Json.quote(candidate.sdpMid))
+                .append(",\"candidate\":").append(Json.quote(candidate.sdp)).append('}');
+    }
+}
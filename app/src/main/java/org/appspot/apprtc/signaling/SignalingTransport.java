@@ -0,0 +1,47 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+package org.appspot.apprtc.signaling;
+
+/**
+ * One WebSocket connection of {@link WebSocketChannelClient}: autobahn in the
+ * app, {@link NioWebSocketTransport} in the load generator. A transport is
+ * connected once; every reconnect gets a new one from the factory.
+ * <p/>
+ * <p>Observer methods may be called on any thread.
+ */
+public interface SignalingTransport {
+    public interface Observer {
+        public void onOpen();
+
+        /**
+         * A text message, as undecoded UTF-8 bytes.
+         */
+        public void onMessage(byte[] message);
+
+        /**
+         * The connection failed or closed; called at most once.
+         */
+        public void onClose(String reason);
+    }
+
+    public interface Factory {
+        public SignalingTransport createTransport();
+    }
+
+    /**
+     * Starts connecting to |url|. Fails through Observer.onClose(), or throws
+     * IllegalArgumentException for a malformed |url|.
+     */
+    public void connect(String url, Observer observer);
+
+    public void sendTextMessage(String message);
+
+    public void disconnect();
+}
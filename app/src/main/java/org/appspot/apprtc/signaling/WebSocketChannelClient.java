@@ -0,0 +1,486 @@
+/*
+ *  Copyright 2014 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import org.appspot.apprtc.signaling.WebSocketSendQueue.MessageClass;
+
+import java.util.Random;
+
+/**
+ * WebSocket client implementation.
+ * <p>
+ * <p>All public methods should be called from the executor passed in the
+ * constructor, otherwise exception will be thrown. All events are dispatched
+ * on the same executor. Connections come from a {@link SignalingTransport}
+ * factory, so the client does not depend on Android or autobahn.
+ * <p>
+ * <p>Outgoing messages go through a bounded {@link WebSocketSendQueue}. They are
+ * held there until the client is registered, and afterwards sent in priority
+ * order on the next executor turn, so that an SDP or leave produced together
+ * with a burst of candidates goes out first.
+ * <p>
+ * <p>When a registered connection drops, the client reconnects with jittered
+ * exponential backoff and registers the same room and client ids again.
+ * Meanwhile the state is RECONNECTING and messages are queued. If the server
+ * has confirmed that it supports sessions, a {@link WebSocketSession} numbers
+ * the messages; the client then asks the server to resume the session, sends
+ * the unacknowledged messages again and drops replayed incoming ones. Without
+ * that confirmation the client just registers again, and whatever was lost
+ * with the connection stays lost. onWebSocketClose() is only called once
+ * reconnecting has failed for RECONNECT_TIMEOUT_MS.
+ */
+
+public class WebSocketChannelClient {
+    private static final String TAG = "WSChannelRTCClient";
+    private static final int CLOSE_TIMEOUT = 1000;
+    private static final int RECONNECT_INITIAL_DELAY_MS = 500;
+    private static final int RECONNECT_MAX_DELAY_MS = 16000;
+    private static final int RECONNECT_TIMEOUT_MS = 60000;
+    // Incoming messages are acknowledged together, this long after the first.
+    private static final int ACK_DELAY_MS = 200;
+    private final WebSocketChannelEvents events;
+    private final SignalingExecutor executor;
+    private final SignalingTransport.Factory transportFactory;
+    private final SignalingLogger log;
+    private SignalingTransport ws;
+    private WebSocketObserver wsObserver;
+    private String wsServerUrl;
+    private String postServerUrl;
+    private String deviceType = "android";
+    private long roomID;
+    private long clientID;
+    private WebSocketConnectionState state;
+    private final Object closeEventLock = new Object();
+    private boolean closeEvent;
+    // WebSocket send queue. Messages wait there until the client is
+    // registered, and then until the flush posted by send() runs.
+    private final WebSocketSendQueue wsSendQueue;
+    private boolean flushPosted;
+    private final WebSocketSession session;
+    private boolean ackPosted;
+    // Reconnect state. |droppedAtMs| is -1 unless the client is recovering
+    // from a dropped connection.
+    private final Random random = new Random();
+    private long droppedAtMs = -1;
+    private int reconnectAttempts;
+    // Reconnect metrics.
+    private int reconnectCount;
+    private long lastRecoveryMs = -1;
+    private long maxRecoveryMs = -1;
+    private int replayedCount;
+
+    /**
+     * Possible WebSocket connection states.
+     */
+    public enum WebSocketConnectionState {
+        NEW, CONNECTED, REGISTERED, RECONNECTING, CLOSED, ERROR
+    }
+
+    ;
+
+    /**
+     * Callback interface for messages delivered on WebSocket.
+     * All events are dispatched from the executor.
+     */
+    public interface WebSocketChannelEvents {
+        /**
+         * Text message delivered as undecoded UTF-8 bytes.
+         */
+        public void onWebSocketRawMessage(final byte[] message);
+
+        public void onWebSocketClose();
+
+        public void onWebSocketError(final String description);
+    }
+
+    /**
+     * Every connect and reconnect gets a new connection from
+     * |transportFactory|.
+     */
+    public WebSocketChannelClient(SignalingExecutor executor, WebSocketChannelEvents events,
+            SignalingTransport.Factory transportFactory, SignalingLogger log) {
+        this.executor = executor;
+        this.events = events;
+        this.transportFactory = transportFactory;
+        this.log = log;
+        roomID = -1;
+        clientID = -1;
+        wsSendQueue = new WebSocketSendQueue();
+        session = new WebSocketSession();
+        state = WebSocketConnectionState.NEW;
+    }
+
+    public WebSocketConnectionState getState() {
+        return state;
+    }
+
+    /**
+     * Device type announced to the room on register, "android" by default.
+     */
+    public void setDeviceType(String deviceType) {
+        this.deviceType = deviceType;
+    }
+
+    public void connect(final String wsUrl, final String postUrl) {
+        checkIfCalledOnValidThread();
+        if (state != WebSocketConnectionState.NEW) {
+            log.e(TAG, "WebSocket is already connected.");
+            return;
+        }
+        wsServerUrl = wsUrl;
+        postServerUrl = postUrl;
+        closeEvent = false;
+
+        log.d(TAG, "Connecting WebSocket to: " + wsUrl + ". Post URL: " + postUrl);
+        openWebSocket();
+    }
+
+    // Opens a new connection to |wsServerUrl|, first or again.
+    private void openWebSocket() {
+        ws = transportFactory.createTransport();
+        wsObserver = new WebSocketObserver();
+        try {
+            ws.connect(wsServerUrl, wsObserver);
+        } catch (IllegalArgumentException e) {
+            reportError("URI error: " + e.getMessage());
+        }
+    }
+
+    public void register(final long roomID, final long clientID) {
+        checkIfCalledOnValidThread();
+        this.roomID = roomID;
+        this.clientID = clientID;
+        if (state != WebSocketConnectionState.CONNECTED) {
+            log.w(TAG, "WebSocket register() in state " + state);
+            return;
+        }
+        log.d(TAG, "Registering WebSocket for room " + roomID + ". CLientID: " + clientID);
+
+        //构造消息
+        boolean resume = droppedAtMs >= 0 && session.isConfirmed();
+        // If resuming, ask the server to keep the session and replay what it
+        // sent after the last message received.
+        String json = SignalingMessages.register(deviceType, roomID, clientID,
+                resume ? session.getLastReceivedSeq() : -1);
+
+        log.d(TAG, "C->WSS: " + json);
+        ws.sendTextMessage(json);
+        state = WebSocketConnectionState.REGISTERED;
+        if (droppedAtMs >= 0) {
+            onReconnected(resume);
+        }
+        // Send any previously accumulated messages.
+        //向消息服务器发送消息
+        flush();
+    }
+
+    public boolean send(String message) {
+        return send(message, MessageClass.CONTROL, WebSocketSendQueue.NO_PEER);
+    }
+
+    /**
+     * Queues |message| of |messageClass| to |peerId| (NO_PEER for room
+     * messages). Returns false if the message was dropped, either because the
+     * client is closed or because the send queue is full.
+     */
+    public boolean send(String message, MessageClass messageClass, long peerId) {
+        checkIfCalledOnValidThread();
+        switch (state) {
+            case ERROR:
+            case CLOSED:
+                log.e(TAG, "WebSocket send() of " + messageClass + " in error or closed state");
+                return false;
+            default:
+                break;
+        }
+        if (!wsSendQueue.offer(message, messageClass, peerId)) {
+            log.w(TAG, "WebSocket send queue full, dropped " + messageClass + " message. "
+                    + wsSendQueue.getStatistics());
+            return false;
+        }
+        if (state != WebSocketConnectionState.REGISTERED) {
+            // Sent after websocket client is registered.
+            log.d(TAG, "WS ACC: " + messageClass + ", " + message.length() + " chars");
+        } else if (!flushPosted) {
+            flushPosted = true;
+            // execute() may run inline on the executor thread; post instead,
+            // so that messages sent in the same turn are ordered by class.
+            executor.executeDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    flushPosted = false;
+                    flush();
+                }
+            }, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Number of messages waiting in the send queue.
+     */
+    public int getSendQueueDepth() {
+        return wsSendQueue.size();
+    }
+
+    /**
+     * Whether the send queue is at least three quarters full; callers may hold
+     * back bulk messages until it drains.
+     */
+    public boolean isSendQueueCongested() {
+        return wsSendQueue.size() * 4 >= wsSendQueue.getCapacity() * 3;
+    }
+
+    public String getSendQueueStatistics() {
+        return wsSendQueue.getStatistics();
+    }
+
+    // Sends all queued messages in priority order, if registered.
+    private void flush() {
+        if (state != WebSocketConnectionState.REGISTERED) {
+            return;
+        }
+        MessageClass messageClass;
+        while ((messageClass = wsSendQueue.peekClass()) != null) {
+            String message = wsSendQueue.poll();
+            log.d(TAG, "C->WSS: " + messageClass + ", " + message.length() + " chars");
+            ws.sendTextMessage(session.stamp(message));
+        }
+    }
+
+    /**
+     * Number of reconnects that succeeded, and the time from the drop to the
+     * registration of the last and the slowest one (-1 if none).
+     */
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    public long getLastRecoveryMs() {
+        return lastRecoveryMs;
+    }
+
+    public long getMaxRecoveryMs() {
+        return maxRecoveryMs;
+    }
+
+    public String getReconnectStatistics() {
+        return "reconnects " + reconnectCount + ", recovery last " + lastRecoveryMs + " ms, max "
+                + maxRecoveryMs + " ms, replayed " + replayedCount + ", duplicates dropped "
+                + session.getDuplicateCount() + ", unacked " + session.getUnackedCount()
+                + " (" + session.getDroppedUnackedCount() + " dropped), sessions lost "
+                + session.getLostCount();
+    }
+
+    // Called on the executor when a registered connection closes or a
+    // reconnect attempt fails. Schedules the next attempt, or gives up.
+    private void onConnectionLost() {
+        long now = System.currentTimeMillis();
+        if (state == WebSocketConnectionState.REGISTERED) {
+            log.w(TAG, "WebSocket connection lost, reconnecting.");
+            state = WebSocketConnectionState.RECONNECTING;
+            droppedAtMs = now;
+            reconnectAttempts = 0;
+        }
+        if (now - droppedAtMs >= RECONNECT_TIMEOUT_MS) {
+            log.e(TAG, "WebSocket reconnect failed after " + reconnectAttempts + " attempts.");
+            state = WebSocketConnectionState.CLOSED;
+            droppedAtMs = -1;
+            events.onWebSocketClose();
+            return;
+        }
+        int delayMs = RECONNECT_INITIAL_DELAY_MS << Math.min(reconnectAttempts, 5);
+        delayMs = Math.min(delayMs, RECONNECT_MAX_DELAY_MS);
+        // Half of the delay is random, so that clients dropped together by a
+        // server restart do not all come back at once.
+        delayMs = delayMs / 2 + random.nextInt(delayMs / 2 + 1);
+        reconnectAttempts++;
+        executor.executeDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (state == WebSocketConnectionState.RECONNECTING) {
+                    log.d(TAG, "Reconnecting WebSocket, attempt " + reconnectAttempts);
+                    openWebSocket();
+                }
+            }
+        }, delayMs);
+    }
+
+    // Completes the recovery. If the session was resumed, first sends the
+    // messages the server did not acknowledge before the connection dropped.
+    private void onReconnected(boolean resume) {
+        if (resume) {
+            for (String message : session.getUnacked()) {
+                ws.sendTextMessage(message);
+                replayedCount++;
+            }
+        }
+        lastRecoveryMs = System.currentTimeMillis() - droppedAtMs;
+        maxRecoveryMs = Math.max(maxRecoveryMs, lastRecoveryMs);
+        reconnectCount++;
+        droppedAtMs = -1;
+        log.d(TAG, "WebSocket " + (resume ? "session resumed" : "registered again") + " after "
+                + lastRecoveryMs + " ms. " + getReconnectStatistics());
+    }
+
+    // Returns |isNew|, false for a replayed duplicate, and schedules the
+    // acknowledgement of a new message.
+    private boolean onReceived(boolean isNew) {
+        if (!isNew) {
+            log.d(TAG, "Dropping duplicate WebSocket message.");
+            return false;
+        }
+        if (!ackPosted) {
+            ackPosted = true;
+            executor.executeDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    ackPosted = false;
+                    if (state != WebSocketConnectionState.REGISTERED) {
+                        // Sent with the next register instead.
+                        return;
+                    }
+                    long ack = session.takeAck();
+                    if (ack >= 0) {
+                        ws.sendTextMessage(SignalingMessages.ack(ack));
+                    }
+                }
+            }, ACK_DELAY_MS);
+        }
+        return true;
+    }
+
+    public void disconnect(boolean waitForComplete) {
+        checkIfCalledOnValidThread();
+        log.d(TAG, "Disonnect WebSocket. State: " + state);
+        switch (state){
+            case RECONNECTING:
+                // Stop reconnecting, and drop an attempt under way.
+                log.d(TAG, "Reconnect: " + getReconnectStatistics());
+                wsSendQueue.clear();
+                ws.disconnect();
+                droppedAtMs = -1;
+                state = WebSocketConnectionState.CLOSED;
+                break;
+            case NEW:
+            case CONNECTED:
+            case REGISTERED:
+            case ERROR:
+                // Messages sent just before, such as a leave, go out first.
+                flush();
+                log.d(TAG, "Send queue: " + wsSendQueue.getStatistics());
+                log.d(TAG, "Reconnect: " + getReconnectStatistics());
+                wsSendQueue.clear();
+                ws.disconnect();
+                state = WebSocketConnectionState.CLOSED;
+
+                if (waitForComplete) {
+                    synchronized (closeEventLock) {
+                        while (!closeEvent) {
+                            try {
+                                closeEventLock.wait(CLOSE_TIMEOUT);
+                                break;
+                            } catch (InterruptedException e) {
+                                log.e(TAG, "Wait error: " + e.toString());
+                            }
+                        }
+                    }
+                }
+                break;
+            case CLOSED:
+                break;
+        }
+        log.d(TAG, "Disonnecting WebSocket done.");
+    }
+
+    private void reportError(final String errorMessage) {
+        log.e(TAG, errorMessage);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (state != WebSocketConnectionState.ERROR) {
+                    state = WebSocketConnectionState.ERROR;
+                    events.onWebSocketError(errorMessage);
+                }
+            }
+        });
+    }
+
+    // Helper method for debugging purposes. Ensures that WebSocket method is
+    // called on the executor.
+    private void checkIfCalledOnValidThread() {
+        if (!executor.checkOnExecutorThread()) {
+            throw new IllegalStateException(
+                    "WebSocket method is not called on valid thread");
+        }
+    }
+
+    private class WebSocketObserver implements SignalingTransport.Observer {
+        @Override
+        public void onOpen() {
+            log.d(TAG, "WebSocket connection opened to: " + wsServerUrl);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (WebSocketObserver.this != wsObserver
+                            || state == WebSocketConnectionState.CLOSED) {
+                        return;
+                    }
+                    state = WebSocketConnectionState.CONNECTED;
+                    // Check if we have pending register request.
+                    if (roomID != -1 && clientID != -1) {
+                        register(roomID, clientID);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onClose(String reason) {
+            log.d(TAG, "WebSocket connection closed. Reason: " + reason + ". State: " + state);
+            synchronized (closeEventLock) {
+                closeEvent = true;
+                closeEventLock.notify();
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (WebSocketObserver.this != wsObserver) {
+                        // A connection replaced by a reconnect.
+                        return;
+                    }
+                    if (state == WebSocketConnectionState.REGISTERED
+                            || state == WebSocketConnectionState.RECONNECTING) {
+                        onConnectionLost();
+                    } else if (state != WebSocketConnectionState.CLOSED) {
+                        state = WebSocketConnectionState.CLOSED;
+                        events.onWebSocketClose();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onMessage(final byte[] payload) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if ((state == WebSocketConnectionState.CONNECTED
+                            || state == WebSocketConnectionState.REGISTERED)
+                            && onReceived(session.onReceived(payload))) {
+                        events.onWebSocketRawMessage(payload);
+                    }
+                }
+            });
+        }
+    }
+
+}
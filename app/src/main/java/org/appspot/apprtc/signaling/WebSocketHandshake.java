@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * RFC 6455 opening handshake keys, shared by the loopback server and the NIO
+ * transport.
+ */
+final class WebSocketHandshake {
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private WebSocketHandshake() {
+    }
+
+    // A random Sec-WebSocket-Key.
+    static String newKey(Random random) {
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        return base64(key);
+    }
+
+    // The Sec-WebSocket-Accept the server answers |key| with.
+    static String acceptKey(String key) throws IOException {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key + WEBSOCKET_GUID).getBytes("US-ASCII")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No SHA-1");
+        }
+    }
+
+    static String base64(byte[] data) {
+        StringBuilder encoded = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xFF) << 16;
+            if (i + 1 < data.length) {
+                b |= (data[i + 1] & 0xFF) << 8;
+            }
+            if (i + 2 < data.length) {
+                b |= data[i + 2] & 0xFF;
+            }
+            encoded.append(BASE64.charAt((b >> 18) & 0x3F));
+            encoded.append(BASE64.charAt((b >> 12) & 0x3F));
+            encoded.append(i + 1 < data.length ? BASE64.charAt((b >> 6) & 0x3F) : '=');
+            encoded.append(i + 2 < data.length ? BASE64.charAt(b & 0x3F) : '=');
+        }
+        return encoded.toString();
+    }
+}
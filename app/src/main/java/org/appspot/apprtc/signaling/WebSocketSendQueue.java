@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Bounded outbound message queue of {@link WebSocketChannelClient}.
+ * <p/>
+ * <p>Messages are taken out by class in the order of {@link MessageClass}, and
+ * in the order they were added within a class. Superseded messages are
+ * coalesced: a newer SDP to a peer replaces an unsent older one, and a leave
+ * drops all unsent SDPs and candidates. When the queue is full, bulk
+ * candidates make room for the other classes; messages that find no room are
+ * rejected, which offer() reports by returning false.
+ * <p/>
+ * <p>Not thread safe; WebSocketChannelClient only uses it on its looper thread.
+ */
+public class WebSocketSendQueue {
+    /**
+     * Message classes, highest priority first.
+     */
+    public enum MessageClass {
+        // Room commands such as "room".
+        CONTROL,
+        LEAVE,
+        // Offers and answers, coalesced per peer.
+        SDP,
+        // ICE candidates.
+        CANDIDATE
+    }
+
+    public static final long NO_PEER = -1;
+
+    private static final int DEFAULT_CAPACITY = 128;
+
+    private static class Entry {
+        private final String message;
+        private final MessageClass messageClass;
+        private final long peerId;
+        private final long enqueuedNs;
+
+        private Entry(String message, MessageClass messageClass, long peerId, long enqueuedNs) {
+            this.message = message;
+            this.messageClass = messageClass;
+            this.peerId = peerId;
+            this.enqueuedNs = enqueuedNs;
+        }
+    }
+
+    private final int capacity;
+    // Indexed by MessageClass ordinal.
+    private final List<LinkedList<Entry>> queues;
+    private int size;
+
+    // Metrics.
+    private int maxSize;
+    private int sentCount;
+    private long bytesSent;
+    private long latencySumNs;
+    private long maxLatencyNs;
+    private int coalescedCount;
+    private int rejectedCount;
+
+    WebSocketSendQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    WebSocketSendQueue(int capacity) {
+        this.capacity = capacity;
+        queues = new ArrayList<LinkedList<Entry>>(MessageClass.values().length);
+        for (int i = 0; i < MessageClass.values().length; i++) {
+            queues.add(new LinkedList<Entry>());
+        }
+    }
+
+    /**
+     * Adds |message| of |messageClass| addressed to |peerId| (NO_PEER for room
+     * messages). Returns false if it was rejected because the queue is full.
+     */
+    boolean offer(String message, MessageClass messageClass, long peerId) {
+        if (messageClass == MessageClass.SDP) {
+            Iterator<Entry> it = queues.get(MessageClass.SDP.ordinal()).iterator();
+            while (it.hasNext()) {
+                if (it.next().peerId == peerId) {
+                    it.remove();
+                    size--;
+                    coalescedCount++;
+                }
+            }
+        } else if (messageClass == MessageClass.LEAVE) {
+            coalescedCount += drop(MessageClass.SDP) + drop(MessageClass.CANDIDATE);
+        }
+        if (size >= capacity) {
+            LinkedList<Entry> candidates = queues.get(MessageClass.CANDIDATE.ordinal());
+            if (messageClass == MessageClass.CANDIDATE || candidates.isEmpty()) {
+                rejectedCount++;
+                return false;
+            }
+            // The newest candidate is the least useful one to the other side.
+            candidates.removeLast();
+            size--;
+            rejectedCount++;
+        }
+        queues.get(messageClass.ordinal()).add(
+                new Entry(message, messageClass, peerId, System.nanoTime()));
+        size++;
+        maxSize = Math.max(maxSize, size);
+        return true;
+    }
+
+    /**
+     * Removes and returns the next message to send, or null if there is none.
+     * The message is counted as sent.
+     */
+    String poll() {
+        for (LinkedList<Entry> queue : queues) {
+            if (!queue.isEmpty()) {
+                Entry entry = queue.removeFirst();
+                size--;
+                long latencyNs = System.nanoTime() - entry.enqueuedNs;
+                latencySumNs += latencyNs;
+                maxLatencyNs = Math.max(maxLatencyNs, latencyNs);
+                sentCount++;
+                bytesSent += utf8Length(entry.message);
+                return entry.message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the class of the message poll() would return, or null.
+     */
+    MessageClass peekClass() {
+        for (LinkedList<Entry> queue : queues) {
+            if (!queue.isEmpty()) {
+                return queue.getFirst().messageClass;
+            }
+        }
+        return null;
+    }
+
+    void clear() {
+        for (LinkedList<Entry> queue : queues) {
+            queue.clear();
+        }
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    int getSentCount() {
+        return sentCount;
+    }
+
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Mean and maximum time from offer() to poll() of the sent messages.
+     */
+    double getMeanLatencyMs() {
+        return sentCount == 0 ? 0 : latencySumNs / 1e6 / sentCount;
+    }
+
+    double getMaxLatencyMs() {
+        return maxLatencyNs / 1e6;
+    }
+
+    int getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    String getStatistics() {
+        return "depth " + size + "/" + capacity + " (max " + maxSize + "), sent " + sentCount
+                + " messages, " + bytesSent + " bytes, latency mean "
+                + String.format("%.2f", getMeanLatencyMs()) + " ms, max "
+                + String.format("%.2f", getMaxLatencyMs()) + " ms, coalesced " + coalescedCount
+                + ", rejected " + rejectedCount;
+    }
+
+    private int drop(MessageClass messageClass) {
+        LinkedList<Entry> queue = queues.get(messageClass.ordinal());
+        int dropped = queue.size();
+        queue.clear();
+        size -= dropped;
+        return dropped;
+    }
+
+    // Length of |s| in UTF-8, without encoding it.
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
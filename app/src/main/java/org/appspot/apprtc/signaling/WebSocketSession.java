@@ -0,0 +1,231 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Sequence numbers of one registered WebSocket session, which
+ * {@link WebSocketChannelClient} keeps across reconnects.
+ * <p/>
+ * <p>Nothing is numbered until the server has shown that it takes part: the
+ * first incoming message with an "ack" field (the highest seq the server
+ * received) confirms it. A server that supports sessions acknowledges the
+ * register message right away; one that does not never sends "ack", and the
+ * client then sends messages unchanged, never acknowledges anything, and does
+ * not resume or replay after a reconnect.
+ * <p/>
+ * <p>Once confirmed, every outgoing message gets a top level "seq" field and is
+ * kept until the server acknowledges it in any message, so that it can be
+ * sent again after a reconnect. Incoming messages with a "seq" field not above
+ * the last one received are duplicates the server replayed. The client
+ * acknowledges incoming messages with an {"cmd": "ack"} message, and tells the
+ * server the last seq it received when it registers again. Messages sent
+ * before the confirmation carry no seq and are not replayed.
+ * <p/>
+ * <p>The ack of a register says with "resumed" whether the server still had
+ * the session. When it did not (the session expired, or the server
+ * restarted), the server numbers its messages from 1 again, so the seqs
+ * received so far and the messages waiting for an ack are forgotten.
+ * <p/>
+ * <p>Only MAX_UNACKED messages are kept; older ones are not replayed.
+ * <p/>
+ * <p>Not thread safe; only used on the looper thread.
+ */
+class WebSocketSession {
+    private static final int MAX_UNACKED = 256;
+    private static final String SEQ_KEY = "\"seq\":";
+    private static final String ACK_KEY = "\"ack\":";
+    private static final String RESUMED_KEY = "\"resumed\":";
+
+    private static class Unacked {
+        private final long seq;
+        private final String message;
+
+        private Unacked(long seq, String message) {
+            this.seq = seq;
+            this.message = message;
+        }
+    }
+
+    private final LinkedList<Unacked> unacked = new LinkedList<Unacked>();
+    // Whether the server has sent an ack.
+    private boolean confirmed;
+    private long nextSeq = 1;
+    private long lastReceivedSeq;
+    private long lastAckedReceivedSeq;
+    private int duplicateCount;
+    private int droppedUnackedCount;
+    private int lostCount;
+
+    /**
+     * Returns |message| with the next seq added, and keeps it until it is
+     * acknowledged. Before the server confirmed the session, returns |message|
+     * as it is.
+     */
+    String stamp(String message) {
+        if (!confirmed || !message.startsWith("{")) {
+            return message;
+        }
+        long seq = nextSeq++;
+        String stamped = "{" + SEQ_KEY + seq + (message.startsWith("{}") ? "" : ",")
+                + message.substring(1);
+        unacked.add(new Unacked(seq, stamped));
+        if (unacked.size() > MAX_UNACKED) {
+            unacked.removeFirst();
+            droppedUnackedCount++;
+        }
+        return stamped;
+    }
+
+    /**
+     * Handles the "seq" and "ack" fields of an incoming message. Returns false
+     * if the message is a duplicate and must be dropped.
+     */
+    boolean onReceived(byte[] message) {
+        int resumed = findValue(message, RESUMED_KEY);
+        if (resumed >= 0 && resumed < message.length && message[resumed] == 'f') {
+            onLost();
+        }
+        onAck(findLong(message, ACK_KEY));
+        return onSeq(findLong(message, SEQ_KEY));
+    }
+
+    /**
+     * Messages not acknowledged yet, oldest first, to send again after a
+     * reconnect. They already carry their seq.
+     */
+    LinkedList<String> getUnacked() {
+        LinkedList<String> messages = new LinkedList<String>();
+        for (Unacked entry : unacked) {
+            messages.add(entry.message);
+        }
+        return messages;
+    }
+
+    /**
+     * Whether the server has acknowledged anything, and so numbers, replays
+     * and resumes messages.
+     */
+    boolean isConfirmed() {
+        return confirmed;
+    }
+
+    /**
+     * Highest seq received, 0 if none.
+     */
+    long getLastReceivedSeq() {
+        return lastReceivedSeq;
+    }
+
+    /**
+     * Returns the seq to acknowledge, or -1 if everything received was
+     * acknowledged already or the server does not take acks.
+     */
+    long takeAck() {
+        if (!confirmed || lastReceivedSeq == lastAckedReceivedSeq) {
+            return -1;
+        }
+        lastAckedReceivedSeq = lastReceivedSeq;
+        return lastReceivedSeq;
+    }
+
+    int getUnackedCount() {
+        return unacked.size();
+    }
+
+    int getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    int getDroppedUnackedCount() {
+        return droppedUnackedCount;
+    }
+
+    /**
+     * Number of times the server did not resume the session.
+     */
+    int getLostCount() {
+        return lostCount;
+    }
+
+    private void onLost() {
+        lostCount++;
+        lastReceivedSeq = 0;
+        lastAckedReceivedSeq = 0;
+        droppedUnackedCount += unacked.size();
+        unacked.clear();
+    }
+
+    private void onAck(long ack) {
+        if (ack < 0) {
+            return;
+        }
+        confirmed = true;
+        Iterator<Unacked> it = unacked.iterator();
+        while (it.hasNext() && it.next().seq <= ack) {
+            it.remove();
+        }
+    }
+
+    private boolean onSeq(long seq) {
+        if (seq < 0) {
+            return true;
+        }
+        if (seq <= lastReceivedSeq) {
+            duplicateCount++;
+            return false;
+        }
+        lastReceivedSeq = seq;
+        return true;
+    }
+
+    // Value of the first non-negative integer field |key| (a quoted name and
+    // a colon) in |message|, or -1. A quote inside a JSON string is escaped,
+    // so only a field name can match; seq, ack and resumed are the only such
+    // names in signaling messages.
+    static long findLong(byte[] message, String key) {
+        int pos = findValue(message, key);
+        return pos < 0 ? -1 : parseLong(message, pos);
+    }
+
+    // Index of the value of the first field |key| in |message|, or -1.
+    private static int findValue(byte[] message, String key) {
+        int keyLength = key.length();
+        outer:
+        for (int i = 0; i + keyLength <= message.length; i++) {
+            for (int j = 0; j < keyLength; j++) {
+                if (message[i + j] != key.charAt(j)) {
+                    continue outer;
+                }
+            }
+            int pos = i + keyLength;
+            while (pos < message.length && message[pos] == ' ') {
+                pos++;
+            }
+            return pos;
+        }
+        return -1;
+    }
+
+    private static long parseLong(byte[] message, int pos) {
+        long value = -1;
+        for (; pos < message.length; pos++) {
+            byte b = message[pos];
+            if (b < '0' || b > '9') {
+                break;
+            }
+            value = (value < 0 ? 0 : value * 10) + (b - '0');
+        }
+        return value;
+    }
+}
@@ -10,25 +10,67 @@
 
 package org.appspot.apprtc.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Scanner;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
 
 /**
  * Asynchronous http requests implementation.
+ * <p/>
+ * <p>Requests run on a small shared pool of MAX_THREADS threads. Responses are
+ * read to the end and their streams closed without disconnecting, so the
+ * platform's HttpURLConnection keeps the connection alive and the next request
+ * to the same server skips the TCP and TLS handshakes. Each request records a
+ * {@link Timing}.
  */
 public class AsyncHttpURLConnection {
   private static final int HTTP_TIMEOUT_MS = 8000;
   private static final String HTTP_ORIGIN = "https://apprtc.appspot.com";
+  private static final int MAX_THREADS = 4;
+  private static final long THREAD_IDLE_TIMEOUT_S = 30;
+  private static final int READ_BUFFER_SIZE = 4096;
+
+  private static final ThreadPoolExecutor executor;
+  static {
+    executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+        THREAD_IDLE_TIMEOUT_S, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "AsyncHttp-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
   private final String method;
   private final String url;
   private final String message;
   private final AsyncHttpEvents events;
   private String contentType;
+  private boolean gzipEnabled;
+  private boolean dnsTimingEnabled;
+  private int timeoutMs = HTTP_TIMEOUT_MS;
+  private volatile Timing timing;
 
   /**
    * Http requests callbacks.
@@ -38,6 +80,47 @@ public class AsyncHttpURLConnection {
     public void onHttpComplete(String response);
   }
 
+  /**
+   * How long the phases of a request took, in milliseconds. A phase that did
+   * not happen (a reused connection needs no connect) is 0; one that could not
+   * be told apart is -1. DNS is only measured with setDnsTimingEnabled(true);
+   * otherwise the lookup, if any, is part of connectMs. TLS is only measured
+   * when the platform layers TLS over a connected socket, as Android does;
+   * otherwise it is part of connectMs.
+   */
+  public static class Timing {
+    public long dnsMs = -1;
+    public long connectMs;
+    public long tlsMs = -1;
+    // From the start of the request to the response headers.
+    public long ttfbMs;
+    public long totalMs;
+    public int responseBytes;
+
+    @Override
+    public String toString() {
+      return "dns " + dnsMs + " ms, connect " + connectMs + " ms, tls " + tlsMs
+          + " ms, ttfb " + ttfbMs + " ms, total " + totalMs + " ms, " + responseBytes + " bytes";
+    }
+  }
+
+  // Thrown for non-200 responses; its message goes to onHttpError() as is.
+  private static class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    HttpStatusException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Runs |task| on the pool the requests run on, for work that calls
+   * execute() itself.
+   */
+  public static void runInBackground(Runnable task) {
+    executor.execute(task);
+  }
+
   public AsyncHttpURLConnection(String method, String url, String message,
       AsyncHttpEvents events) {
     this.method = method;
@@ -50,74 +133,245 @@ public class AsyncHttpURLConnection {
     this.contentType = contentType;
   }
 
+  /**
+   * Asks for a gzip compressed response and inflates it.
+   */
+  public void setGzipEnabled(boolean gzipEnabled) {
+    this.gzipEnabled = gzipEnabled;
+  }
+
+  /**
+   * Resolves the host on its own before connecting, to time the lookup. This
+   * costs a resolver call per request even when the connection is reused, so
+   * it is off by default.
+   */
+  public void setDnsTimingEnabled(boolean dnsTimingEnabled) {
+    this.dnsTimingEnabled = dnsTimingEnabled;
+  }
+
+  public void setTimeoutMs(int timeoutMs) {
+    this.timeoutMs = timeoutMs;
+  }
+
+  /**
+   * Returns the timing of the last request, or null before the first one.
+   */
+  public Timing getTiming() {
+    return timing;
+  }
+
   public void send() {
     Runnable runHttp = new Runnable() {
       public void run() {
         sendHttpMessage();
       }
     };
-    new Thread(runHttp).start();
+    executor.execute(runHttp);
   }
 
-  private void sendHttpMessage() {
-    try {
-      HttpURLConnection connection =
-        (HttpURLConnection) new URL(url).openConnection();
-      byte[] postData = new byte[0];
-      if (message != null) {
-        postData = message.getBytes("UTF-8");
-      }
-      connection.setRequestMethod(method);
-      connection.setUseCaches(false);
-      connection.setDoInput(true);
-      connection.setConnectTimeout(HTTP_TIMEOUT_MS);
-      connection.setReadTimeout(HTTP_TIMEOUT_MS);
-      // TODO(glaznev) - query request origin from pref_room_server_url_key preferences.
-      connection.addRequestProperty("origin", HTTP_ORIGIN);
-      boolean doOutput = false;
-      if (method.equals("POST")) {
-        doOutput = true;
-        connection.setDoOutput(true);
-        connection.setFixedLengthStreamingMode(postData.length);
-      }
-      if (contentType == null) {
-        connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
-      } else {
-        connection.setRequestProperty("Content-Type", contentType);
-      }
+  /**
+   * Runs the request on the calling thread and returns the response. Must be
+   * run off the main thread.
+   */
+  public String execute() throws IOException {
+    long start = System.nanoTime();
+    Timing timing = new Timing();
+    this.timing = timing;
+    URL requestUrl = new URL(url);
+    if (dnsTimingEnabled) {
+      // The connection finds the address cached.
+      InetAddress.getAllByName(requestUrl.getHost());
+      timing.dnsMs = toMs(System.nanoTime() - start);
+    }
+    long resolved = System.nanoTime();
+
+    HttpURLConnection connection = (HttpURLConnection) requestUrl.openConnection();
+    if (connection instanceof HttpsURLConnection) {
+      ((HttpsURLConnection) connection).setSSLSocketFactory(TimingSSLSocketFactory.get());
+    }
+    byte[] postData = new byte[0];
+    if (message != null) {
+      postData = message.getBytes("UTF-8");
+    }
+    connection.setRequestMethod(method);
+    connection.setUseCaches(false);
+    connection.setDoInput(true);
+    connection.setConnectTimeout(timeoutMs);
+    connection.setReadTimeout(timeoutMs);
+    // TODO(glaznev) - query request origin from pref_room_server_url_key preferences.
+    connection.addRequestProperty("origin", HTTP_ORIGIN);
+    if (gzipEnabled) {
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+    }
+    boolean doOutput = false;
+    if (method.equals("POST")) {
+      doOutput = true;
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(postData.length);
+    }
+    if (contentType == null) {
+      connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+    } else {
+      connection.setRequestProperty("Content-Type", contentType);
+    }
 
-      // Send POST request.
-      if (doOutput && postData.length > 0) {
-        OutputStream outStream = connection.getOutputStream();
-        outStream.write(postData);
-        outStream.close();
+    TimingSSLSocketFactory.layeredAt.set(0L);
+    connection.connect();
+    long connected = System.nanoTime();
+    long layered = TimingSSLSocketFactory.layeredAt.get();
+    if (layered != 0) {
+      timing.connectMs = toMs(layered - resolved);
+      timing.tlsMs = toMs(connected - layered);
+    } else {
+      timing.connectMs = toMs(connected - resolved);
+      if (!(connection instanceof HttpsURLConnection)) {
+        timing.tlsMs = 0;
       }
+    }
 
-      // Get response.//得到应答
-      int responseCode = connection.getResponseCode();
+    // Send POST request.
+    if (doOutput && postData.length > 0) {
+      OutputStream outStream = connection.getOutputStream();
+      outStream.write(postData);
+      outStream.close();
+    }
 
-      if (responseCode != 200) {
-        events.onHttpError("Non-200 response to " + method + " to URL: "
-            + url + " : " + connection.getHeaderField(null));
-        connection.disconnect();
-        return;
+    // Get response.//得到应答
+    int responseCode = connection.getResponseCode();
+    timing.ttfbMs = toMs(System.nanoTime() - start);
+    if (responseCode != 200) {
+      String statusLine = connection.getHeaderField(null);
+      // Read the error body too, so that the connection can be reused.
+      InputStream errorStream = connection.getErrorStream();
+      if (errorStream != null) {
+        try {
+          readFully(errorStream);
+        } catch (IOException e) {
+          // The connection is dropped instead.
+        }
       }
-      InputStream responseStream = connection.getInputStream();
-      String response = drainStream(responseStream);
-      responseStream.close();
-      connection.disconnect();
-      events.onHttpComplete(response);
+      timing.totalMs = toMs(System.nanoTime() - start);
+      throw new HttpStatusException("Non-200 response to " + method + " to URL: "
+          + url + " : " + statusLine);
+    }
+    InputStream responseStream = connection.getInputStream();
+    if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+      responseStream = new GZIPInputStream(responseStream);
+    }
+    byte[] response = readFully(responseStream);
+    timing.responseBytes = response.length;
+    timing.totalMs = toMs(System.nanoTime() - start);
+    return new String(response, "UTF-8");
+  }
+
+  private void sendHttpMessage() {
+    String response;
+    try {
+      response = execute();
+    } catch (HttpStatusException e) {
+      events.onHttpError(e.getMessage());
+      return;
     } catch (SocketTimeoutException e) {
       events.onHttpError("HTTP " + method + " to " + url + " 超时");
+      return;
     } catch (IOException e) {
       events.onHttpError("HTTP " + method + " to " + url + " 错误: "
           + e.getMessage());
+      return;
     }
+    events.onHttpComplete(response);
   }
 
-  // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Scanner s = new Scanner(in).useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
+  // Returns the contents of an InputStream and closes it; a stream read to
+  // the end and closed hands its connection back for reuse.
+  private static byte[] readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(READ_BUFFER_SIZE);
+      byte[] buffer = new byte[READ_BUFFER_SIZE];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static long toMs(long nanos) {
+    return nanos / 1000000;
+  }
+
+  /**
+   * The default SSL socket factory, noting when TLS is layered over a
+   * connected socket so that the handshake can be timed apart from the TCP
+   * connect. One shared instance keeps pooled connections reusable.
+   */
+  private static class TimingSSLSocketFactory extends SSLSocketFactory {
+    private static final ThreadLocal<Long> layeredAt = new ThreadLocal<Long>() {
+      @Override
+      protected Long initialValue() {
+        return 0L;
+      }
+    };
+    private static TimingSSLSocketFactory instance;
+
+    private final SSLSocketFactory delegate;
+
+    private TimingSSLSocketFactory(SSLSocketFactory delegate) {
+      this.delegate = delegate;
+    }
+
+    static synchronized TimingSSLSocketFactory get() {
+      if (instance == null) {
+        instance = new TimingSSLSocketFactory(
+            HttpsURLConnection.getDefaultSSLSocketFactory());
+      }
+      return instance;
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+        throws IOException {
+      layeredAt.set(System.nanoTime());
+      return delegate.createSocket(socket, host, port, autoClose);
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+      return delegate.createSocket();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      return delegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+        throws IOException {
+      return delegate.createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      return delegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+        int localPort) throws IOException {
+      return delegate.createSocket(address, port, localAddress, localPort);
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+      return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+      return delegate.getSupportedCipherSuites();
+    }
   }
 }
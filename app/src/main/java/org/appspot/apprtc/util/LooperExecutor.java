@@ -10,23 +10,39 @@
 
 package org.appspot.apprtc.util;
 
+import org.appspot.apprtc.signaling.SignalingExecutor;
+
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import java.util.concurrent.Executor;
-
 /**
  * Looper based executor class.
+ * <p/>
+ * <p>Tasks from other threads go through a lock-free {@link TaskQueue}, which
+ * is drained on the looper thread in batches of MAX_BATCH; only the first task
+ * added to an idle queue posts to the Handler. Tasks added with a key replace
+ * a waiting task with the same key. Wait and run times of all tasks are
+ * collected per task class, see getStatistics().
  */
-public class LooperExecutor extends Thread implements Executor {
+public class LooperExecutor extends Thread implements SignalingExecutor {
   private static final String TAG = "LooperExecutor";
+  private static final int MAX_BATCH = 32;
   // Object used to signal that looper thread has started and Handler instance
   // associated with looper thread has been allocated.
   private final Object looperStartedEvent = new Object();
-  private Handler handler = null;
-  private boolean running = false;
-  private long threadId;
+  private volatile Handler handler = null;
+  private volatile boolean running = false;
+  private volatile long threadId;
+  private final TaskQueue queue = new TaskQueue();
+  private final Runnable drainTask = new Runnable() {
+    @Override
+    public void run() {
+      if (queue.drain(MAX_BATCH)) {
+        handler.post(this);
+      }
+    }
+  };
 
   @Override
   public void run() {
@@ -80,16 +96,56 @@ public class LooperExecutor extends Thread implements Executor {
   }
 
   @Override
-  public synchronized void execute(final Runnable runnable) {
+  public boolean checkOnExecutorThread() {
+    return checkOnLooperThread();
+  }
+
+  @Override
+  public void execute(final Runnable runnable) {
+    execute(null, runnable);
+  }
+
+  /**
+   * Runs |runnable| on the looper thread, right away if called on it. If a
+   * task added with the same non-null |key| from another thread has not run
+   * yet, |runnable| runs in its place.
+   */
+  public void execute(Object key, final Runnable runnable) {
     if (!running) {
       Log.w(TAG, "Running looper executor without calling requestStart()");
       return;
     }
     if (Thread.currentThread().getId() == threadId) {
-      runnable.run();
-    } else {
-      handler.post(runnable);
+      queue.runInline(runnable);
+    } else if (queue.offer(runnable, key)) {
+      handler.post(drainTask);
+    }
+  }
+
+  // Runs |runnable| on the looper thread after |delayMs| milliseconds.
+  @Override
+  public void executeDelayed(final Runnable runnable, long delayMs) {
+    if (!running) {
+      Log.w(TAG, "Running looper executor without calling requestStart()");
+      return;
     }
+    handler.postDelayed(queue.delayed(runnable, delayMs), delayMs);
+  }
+
+  /**
+   * Wait and run time percentiles per task class, e.g. for logging when a
+   * call ends. May be called on any thread.
+   */
+  public String getStatistics() {
+    return queue.getStatistics();
+  }
+
+  public void resetStatistics() {
+    queue.resetStatistics();
+  }
+
+  public void setStatisticsEnabled(boolean enabled) {
+    queue.setStatisticsEnabled(enabled);
   }
 
 }
@@ -0,0 +1,267 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Lock-free multi-producer, single-consumer task queue of {@link LooperExecutor}.
+ * <p/>
+ * <p>Producers link tasks in with one atomic exchange; the first task added to an
+ * idle queue tells its producer to schedule a drain, and the consumer runs up
+ * to a batch of tasks per drain. A task added with a key replaces the task
+ * with the same key that is still waiting, so only the latest of them runs;
+ * keys are best effort, two tasks added with the same key at the same moment
+ * may both run.
+ * <p/>
+ * <p>The consumer records how long each task waited and ran, per task class
+ * (the call site, for anonymous classes), in log2 microsecond histograms that
+ * getStatistics() dumps. The histograms are written without locks and may be
+ * slightly inconsistent while tasks run.
+ */
+public class TaskQueue {
+  private static final int BUCKETS = 24;
+
+  private static class Node {
+    private static final AtomicReferenceFieldUpdater<Node, Runnable> TASK =
+        AtomicReferenceFieldUpdater.newUpdater(Node.class, Runnable.class, "task");
+
+    private volatile Runnable task;
+    private volatile Node next;
+    private final Object key;
+    private final long enqueuedNs;
+
+    private Node(Runnable task, Object key, long enqueuedNs) {
+      this.task = task;
+      this.key = key;
+      this.enqueuedNs = enqueuedNs;
+    }
+  }
+
+  /**
+   * Wait and run time histograms of one task class.
+   */
+  private static class TaskStats {
+    private final String name;
+    private final long[] wait = new long[BUCKETS];
+    private final long[] run = new long[BUCKETS];
+    private long count;
+    private long maxWaitUs;
+    private long maxRunUs;
+
+    private TaskStats(String name) {
+      this.name = name;
+    }
+
+    private void record(long waitNs, long runNs) {
+      long waitUs = waitNs / 1000;
+      long runUs = runNs / 1000;
+      wait[bucket(waitUs)]++;
+      run[bucket(runUs)]++;
+      count++;
+      maxWaitUs = Math.max(maxWaitUs, waitUs);
+      maxRunUs = Math.max(maxRunUs, runUs);
+    }
+
+    @Override
+    public String toString() {
+      return name + ": " + count + " tasks, wait p50 " + percentile(wait, count, 50, maxWaitUs)
+          + " p99 " + percentile(wait, count, 99, maxWaitUs) + " max " + maxWaitUs
+          + " us, run p50 " + percentile(run, count, 50, maxRunUs) + " p99 "
+          + percentile(run, count, 99, maxRunUs) + " max " + maxRunUs + " us";
+    }
+  }
+
+  // Consumer side: |head| is the last node taken, whose next is the first task.
+  private Node head;
+  private final AtomicReference<Node> tail;
+  private final AtomicBoolean drainScheduled = new AtomicBoolean();
+  private final ConcurrentMap<Object, Node> pendingByKey =
+      new ConcurrentHashMap<Object, Node>();
+  private final Map<Class<?>, TaskStats> stats = new ConcurrentHashMap<Class<?>, TaskStats>();
+  private final AtomicInteger coalesced = new AtomicInteger();
+  // Consumer side: stats of the last task class run, which is usually the next one's too.
+  private Class<?> lastType;
+  private TaskStats lastStats;
+  private int lastStatsGeneration;
+  // Bumped by resetStatistics() so that the consumer drops its cached stats.
+  private volatile int statsGeneration;
+  private volatile boolean statisticsEnabled = true;
+
+  public TaskQueue() {
+    head = new Node(null, null, 0);
+    tail = new AtomicReference<Node>(head);
+  }
+
+  /**
+   * Adds |task|, replacing a waiting task added with the same non-null |key|.
+   * Returns true if the caller must schedule a call to drain().
+   */
+  public boolean offer(Runnable task, Object key) {
+    long now = statisticsEnabled ? System.nanoTime() : 0;
+    if (key != null) {
+      Node pending = pendingByKey.get(key);
+      if (pending != null) {
+        if (Node.TASK.getAndSet(pending, task) != null) {
+          coalesced.incrementAndGet();
+          return false;
+        }
+        // Taken by the consumer meanwhile; take |task| back and add it anew.
+        Node.TASK.compareAndSet(pending, task, null);
+      }
+    }
+    Node node = new Node(task, key, now);
+    if (key != null) {
+      pendingByKey.put(key, node);
+    }
+    Node previous = tail.getAndSet(node);
+    previous.next = node;
+    return drainScheduled.compareAndSet(false, true);
+  }
+
+  /**
+   * Runs up to |maxTasks| tasks on the consumer thread. Returns true if the
+   * caller must schedule another call.
+   */
+  public boolean drain(int maxTasks) {
+    int ran = 0;
+    while (ran < maxTasks) {
+      Node node = head.next;
+      if (node == null) {
+        break;
+      }
+      head = node;
+      if (node.key != null) {
+        pendingByKey.remove(node.key, node);
+      }
+      Runnable task = Node.TASK.getAndSet(node, null);
+      if (task != null) {
+        run(task, node.enqueuedNs);
+        ran++;
+      }
+    }
+    if (ran == maxTasks && !isEmpty()) {
+      // Yield to other messages of the looper and continue in the next call.
+      return true;
+    }
+    drainScheduled.set(false);
+    // A task added after the last poll may have seen the drain still scheduled.
+    return !isEmpty() && drainScheduled.compareAndSet(false, true);
+  }
+
+  /**
+   * Runs |task| on the consumer thread right away, recording it as a task
+   * that did not wait.
+   */
+  public void runInline(Runnable task) {
+    run(task, statisticsEnabled ? System.nanoTime() : 0);
+  }
+
+  /**
+   * Wraps |task| for running |delayMs| from now through some other queue,
+   * recording its wait from the time it was due.
+   */
+  public Runnable delayed(final Runnable task, long delayMs) {
+    final long dueNs = statisticsEnabled ? System.nanoTime() + delayMs * 1000000 : 0;
+    return new Runnable() {
+      @Override
+      public void run() {
+        TaskQueue.this.run(task, dueNs);
+      }
+    };
+  }
+
+  public boolean isEmpty() {
+    return tail.get() == head;
+  }
+
+  public void setStatisticsEnabled(boolean enabled) {
+    statisticsEnabled = enabled;
+  }
+
+  /**
+   * Per task class wait and run time percentiles, busiest class first, and
+   * the number of coalesced tasks.
+   */
+  public String getStatistics() {
+    List<TaskStats> all = new ArrayList<TaskStats>(stats.values());
+    Collections.sort(all, new Comparator<TaskStats>() {
+      @Override
+      public int compare(TaskStats lhs, TaskStats rhs) {
+        return lhs.count == rhs.count ? 0 : (lhs.count > rhs.count ? -1 : 1);
+      }
+    });
+    StringBuilder builder = new StringBuilder();
+    builder.append("coalesced ").append(coalesced.get()).append(" tasks");
+    for (TaskStats taskStats : all) {
+      builder.append('\n').append(taskStats);
+    }
+    return builder.toString();
+  }
+
+  public void resetStatistics() {
+    statsGeneration++;
+    stats.clear();
+    coalesced.set(0);
+  }
+
+  private void run(Runnable task, long enqueuedNs) {
+    if (!statisticsEnabled || enqueuedNs == 0) {
+      task.run();
+      return;
+    }
+    long start = System.nanoTime();
+    task.run();
+    long end = System.nanoTime();
+    Class<?> type = task.getClass();
+    TaskStats taskStats = lastStats;
+    if (type != lastType || lastStatsGeneration != statsGeneration) {
+      taskStats = stats.get(type);
+      if (taskStats == null) {
+        taskStats = new TaskStats(type.getName());
+        stats.put(type, taskStats);
+      }
+      lastType = type;
+      lastStats = taskStats;
+      lastStatsGeneration = statsGeneration;
+    }
+    taskStats.record(Math.max(0, start - enqueuedNs), end - start);
+  }
+
+  // Bucket i counts values in [2^(i-1), 2^i), bucket 0 values below 1.
+  private static int bucket(long value) {
+    int bucket = 64 - Long.numberOfLeadingZeros(value);
+    return Math.min(bucket, BUCKETS - 1);
+  }
+
+  // Upper bound of the bucket holding the |percent|th percentile, at most |max|.
+  private static long percentile(long[] histogram, long count, int percent, long max) {
+    long rank = (count * percent + 99) / 100;
+    long seen = 0;
+    for (int i = 0; i < histogram.length; i++) {
+      seen += histogram[i];
+      if (seen >= rank && seen > 0) {
+        return Math.min(1L << i, max);
+      }
+    }
+    return max;
+  }
+}
@@ -0,0 +1,25 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Release builds leave out the call setup benchmark and the loopback server it
+ * runs against; see the one in src/debug. ConnectActivity only calls it in
+ * debug builds.
+ */
+public class SignalingBenchmark {
+    private SignalingBenchmark() {
+    }
+
+    public static String run(int clientCount) throws Exception {
+        throw new UnsupportedOperationException("Not in release builds");
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests the file of {@link CameraConfigurationCache}: what one scanner start writes, the next
+ * reads, and an entry the camera rejected is gone. File I/O runs only when the test runs the
+ * cache's executor, to check that none happens on the calling thread.
+ */
+public class CameraConfigurationCacheTest {
+
+  private static final String CAMERA = "back";
+  private static final String FINGERPRINT = "vendor/device:6.0/MRA58K/1:user/release-keys";
+  private static final String FILE_NAME = "camera_config.properties";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final QueuedExecutor executor = new QueuedExecutor();
+
+  @Test
+  public void entriesAreReadBackByTheNextStart() throws IOException {
+    CameraConfigurationCache cache = open(FINGERPRINT);
+    cache.put(CAMERA, 1080, 1920, entry(1920, 1080, "2.7", null));
+    executor.runPending();
+
+    CameraConfigurationCache.Entry entry = open(FINGERPRINT).get(CAMERA, 1080, 1920);
+    assertNotNull(entry);
+    assertEquals(1920, entry.cameraWidth);
+    assertEquals(1080, entry.cameraHeight);
+    assertEquals(17, entry.previewFormat);
+    assertEquals("yuv420sp", entry.previewFormatString);
+    assertEquals("2.7", entry.zoom);
+    assertNull(entry.takingPictureZoom);
+    assertNull(open(FINGERPRINT).get(CAMERA, 720, 1280));
+    assertNull(open(FINGERPRINT).get("front", 1080, 1920));
+  }
+
+  @Test
+  public void fileIsOnlyTouchedOnTheExecutor() throws IOException {
+    CameraConfigurationCache cache = open(FINGERPRINT);
+    cache.put(CAMERA, 1080, 1920, entry(1920, 1080, null, null));
+    executor.runPending();
+
+    cache = new CameraConfigurationCache(folder.getRoot(), FINGERPRINT, executor);
+    // Not read yet: a miss, so the caller parses the camera's parameters.
+    assertNull(cache.get(CAMERA, 1080, 1920));
+    executor.runPending();
+    assertNotNull(cache.get(CAMERA, 1080, 1920));
+
+    File file = new File(folder.getRoot(), FILE_NAME);
+    assertTrue(file.delete());
+    cache.put(CAMERA, 720, 1280, entry(1280, 720, null, null));
+    cache.remove(CAMERA, 1080, 1920);
+    assertFalse(file.exists());
+    // The entry is there for this start even before it is written.
+    executor.runPending();
+    assertTrue(file.exists());
+    assertNull(cache.get(CAMERA, 1080, 1920));
+    assertNotNull(cache.get(CAMERA, 720, 1280));
+  }
+
+  @Test
+  public void rejectedEntryIsRemoved() throws IOException {
+    CameraConfigurationCache cache = open(FINGERPRINT);
+    cache.put(CAMERA, 1080, 1920, entry(1920, 1080, "2.7", "27"));
+    cache.put(CAMERA, 720, 1280, entry(1280, 720, null, null));
+    executor.runPending();
+
+    cache.remove(CAMERA, 1080, 1920);
+    executor.runPending();
+    cache = open(FINGERPRINT);
+    assertNull(cache.get(CAMERA, 1080, 1920));
+    assertNotNull(cache.get(CAMERA, 720, 1280));
+  }
+
+  @Test
+  public void rejectedEntryIsReplacedByTheParsedOne() throws IOException {
+    CameraConfigurationCache cache = open(FINGERPRINT);
+    cache.put(CAMERA, 1080, 1920, entry(1920, 1080, "2.7", "27"));
+    executor.runPending();
+
+    // What CameraConfigurationManager does when the camera rejects the cached entry.
+    cache = open(FINGERPRINT);
+    assertNotNull(cache.get(CAMERA, 1080, 1920));
+    cache.remove(CAMERA, 1080, 1920);
+    cache.put(CAMERA, 1080, 1920, entry(1280, 720, null, null));
+    executor.runPending();
+
+    CameraConfigurationCache.Entry entry = open(FINGERPRINT).get(CAMERA, 1080, 1920);
+    assertEquals(1280, entry.cameraWidth);
+    assertEquals(720, entry.cameraHeight);
+    assertNull(entry.zoom);
+    assertNull(entry.takingPictureZoom);
+  }
+
+  @Test
+  public void fileOfAnotherBuildIsDropped() throws IOException {
+    CameraConfigurationCache cache = open(FINGERPRINT);
+    cache.put(CAMERA, 1080, 1920, entry(1920, 1080, null, null));
+    executor.runPending();
+
+    String update = FINGERPRINT.replace("MRA58K", "MMB29K");
+    cache = open(update);
+    assertNull(cache.get(CAMERA, 1080, 1920));
+    cache.put(CAMERA, 720, 1280, entry(1280, 720, null, null));
+    executor.runPending();
+    assertNull(open(update).get(CAMERA, 1080, 1920));
+    assertNotNull(open(update).get(CAMERA, 720, 1280));
+    assertNull(open(FINGERPRINT).get(CAMERA, 720, 1280));
+  }
+
+  @Test
+  public void unreadableFileIsIgnored() throws IOException {
+    write("version=1\nfingerprint=" + FINGERPRINT + "\nback.1080x1920.width=1920\n"
+        + "back.1080x1920.height=1080\nback.1080x1920.previewFormat=17\n");
+    assertNotNull(open(FINGERPRINT).get(CAMERA, 1080, 1920));
+
+    write("version=1\nfingerprint=" + FINGERPRINT + "\nback.1080x1920.width=\\u12\n");
+    assertNull(open(FINGERPRINT).get(CAMERA, 1080, 1920));
+
+    write("version=1\nfingerprint=" + FINGERPRINT + "\nback.1080x1920.width=wide\n"
+        + "back.1080x1920.height=1080\nback.1080x1920.previewFormat=17\n");
+    assertNull(open(FINGERPRINT).get(CAMERA, 1080, 1920));
+  }
+
+  // A cache of the test folder, with the file read.
+  private CameraConfigurationCache open(String fingerprint) {
+    CameraConfigurationCache cache =
+        new CameraConfigurationCache(folder.getRoot(), fingerprint, executor);
+    executor.runPending();
+    return cache;
+  }
+
+  private static CameraConfigurationCache.Entry entry(int width, int height, String zoom,
+      String takingPictureZoom) {
+    CameraConfigurationCache.Entry entry = new CameraConfigurationCache.Entry();
+    entry.cameraWidth = width;
+    entry.cameraHeight = height;
+    entry.previewFormat = 17;
+    entry.previewFormatString = "yuv420sp";
+    entry.zoom = zoom;
+    entry.takingPictureZoom = takingPictureZoom;
+    return entry;
+  }
+
+  private void write(String text) throws IOException {
+    FileOutputStream out = new FileOutputStream(new File(folder.getRoot(), FILE_NAME));
+    try {
+      out.write(text.getBytes("ISO-8859-1"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static final class QueuedExecutor implements Executor {
+    private final List<Runnable> pending = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      pending.add(command);
+    }
+
+    void runPending() {
+      while (!pending.isEmpty()) {
+        pending.remove(0).run();
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.camera;
+
+import org.appspot.apprtc.util.MicroBenchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares {@link PlanarYUVLuminanceSource#createRotated}, which rotates only the framing rect,
+ * with the full frame rotation DecodeHandler did before, on synthetic NV21 preview frames:
+ *
+ *   java com.zijunlin.Zxing.camera.RotatedLuminanceSourceBenchmark [iterations]
+ *
+ * One iteration is one preview frame up to the luminance matrix the binarizer reads, so the
+ * reported latency and bytes are per frame. The framing rect is the one CameraManager computes
+ * for a portrait screen of the frame's size. Both paths must give the same matrix before
+ * anything is timed.
+ */
+public final class RotatedLuminanceSourceBenchmark {
+
+  private static final int DEFAULT_ITERATIONS = 2000;
+  private static final int[][] SIZES = {{640, 480}, {1280, 720}};
+  // Same limits as CameraManager.
+  private static final int MIN_FRAME_SIZE = 240;
+  private static final int MAX_FRAME_SIZE = 480;
+
+  private RotatedLuminanceSourceBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+    Random random = new Random(10);
+    for (int[] size : SIZES) {
+      final int width = size[0];
+      final int height = size[1];
+      // Y plane followed by interleaved VU at quarter resolution.
+      final byte[] data = new byte[width * height * 3 / 2];
+      random.nextBytes(data);
+      final int[] rect = framingRect(width, height);
+      final byte[] buffer = new byte[rect[2] * rect[3]];
+      if (!Arrays.equals(fullRotate(data, width, height, rect), crop(data, width, height, rect,
+          buffer))) {
+        throw new IllegalStateException("Rotated luminance differs for " + width + "x" + height);
+      }
+      String name = width + "x" + height;
+      MicroBenchmark.measure(name + " full rotate", iterations, new MicroBenchmark.Operation() {
+        @Override
+        public void run() {
+          fullRotate(data, width, height, rect);
+        }
+      });
+      MicroBenchmark.measure(name + " rotated crop", iterations, new MicroBenchmark.Operation() {
+        @Override
+        public void run() {
+          crop(data, width, height, rect, buffer);
+        }
+      });
+    }
+  }
+
+  // DecodeHandler before createRotated(): rotate the whole frame, then crop.
+  private static byte[] fullRotate(byte[] data, int width, int height, int[] rect) {
+    byte[] rotatedData = new byte[data.length];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++)
+        rotatedData[x * height + height - y - 1] = data[x + y * width];
+    }
+    PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(rotatedData, height, width,
+        rect[0], rect[1], rect[2], rect[3]);
+    return source.getMatrix();
+  }
+
+  private static byte[] crop(byte[] data, int width, int height, int[] rect, byte[] buffer) {
+    return PlanarYUVLuminanceSource.createRotated(data, width, height, buffer,
+        rect[0], rect[1], rect[2], rect[3]).getMatrix();
+  }
+
+  // Framing rect of a portrait screen the size of the rotated frame, as left, top, width,
+  // height in rotated frame coordinates; see CameraManager.getFramingRect().
+  private static int[] framingRect(int width, int height) {
+    int portraitWidth = height;
+    int portraitHeight = width;
+    int rectWidth = Math.max(MIN_FRAME_SIZE, Math.min(MAX_FRAME_SIZE, portraitWidth * 3 / 4));
+    int rectHeight = Math.max(MIN_FRAME_SIZE, Math.min(MAX_FRAME_SIZE, portraitHeight * 3 / 4));
+    return new int[] {(portraitWidth - rectWidth) / 2, (portraitHeight - rectHeight) / 2,
+        rectWidth, rectHeight};
+  }
+}
@@ -0,0 +1,556 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import com.zijunlin.Zxing.camera.PlanarYUVLuminanceSource;
+
+import org.appspot.apprtc.util.MicroBenchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs the scanner's decode path ({@link FrameDecoder}, the rotated PlanarYUVLuminanceSource and
+ * the reader hints of DecodeThread) over a corpus of preview frames on a desktop JVM, and writes
+ * decode latency, success rate and allocation per frame to a JSON file that can be compared
+ * with an earlier run. Each {@link ScanProfile} is run in turn unless one is named. Decodes
+ * that find nothing (misses) and decodes to another text (wrong reads) are counted per frame
+ * and per category, the frame name without its size. The {@link FrameGate} verdict and cost
+ * for every frame are written too.
+ *
+ * A corpus is a directory of landscape preview frames named name_WIDTHxHEIGHT.nv21 (only the Y
+ * plane is read) or name_WIDTHxHEIGHT.y (Y plane only). An optional name_WIDTHxHEIGHT.txt holds
+ * the text the frame should decode to; frames without one count as decoded if anything is
+ * found. The framing rect is computed as CameraManager does for a portrait screen of the frame's
+ * size. "generate" writes a synthetic corpus of QR codes of several versions, frame sizes,
+ * rotations, blur and glare, including the frames that are hard to read: small rotated modules,
+ * and codes a plain QRCodeReader misses even when rendered cleanly. It names the frames a plain
+ * reader cannot read, but keeps them with their text, so that they count as misses.
+ *
+ *   java com.zijunlin.Zxing.decoding.DecodeBenchmark generate corpus
+ *   java com.zijunlin.Zxing.decoding.DecodeBenchmark run corpus results.json [iterations] [profile]
+ *
+ * Allocation is read with {@link MicroBenchmark}, or reported as -1 where the VM has no
+ * allocation counter.
+ */
+public final class DecodeBenchmark {
+
+  private static final int DEFAULT_ITERATIONS = 10;
+
+  // Same limits as CameraManager.
+  private static final int MIN_FRAME_SIZE = 240;
+  private static final int MAX_FRAME_SIZE = 480;
+
+  private static final int[][] CORPUS_SIZES = {{640, 480}, {1280, 720}, {1920, 1080}};
+  private static final int[] CORPUS_ANGLES = {0, 30};
+  private static final String[] CORPUS_EFFECTS = {"clean", "blur", "glare"};
+  // Text lengths that give small, medium and large QR versions at error correction level L.
+  private static final int[] CORPUS_TEXT_LENGTHS = {40, 150, 400};
+  private static final int DARK = 40;
+  private static final int LIGHT = 210;
+  private static final int BACKGROUND = 150;
+  private static final int SUBSAMPLES = 4;
+
+  // Indexed by the FrameGate verdicts.
+  private static final String[] GATE_VERDICTS = {
+      "admitted", "dark", "flat", "blurry", "moving", "forced"};
+
+  private DecodeBenchmark() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length >= 2 && args[0].equals("generate")) {
+      generate(new File(args[1]));
+    } else if (args.length >= 3 && args[0].equals("run")) {
+      int iterations = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_ITERATIONS;
+      ScanProfile[] profiles = args.length > 4
+          ? new ScanProfile[] {ScanProfile.fromName(args[4])} : ScanProfile.values();
+      run(new File(args[1]), new File(args[2]), iterations, profiles);
+    } else {
+      System.err.println("Usage: DecodeBenchmark generate <dir>");
+      System.err.println(
+          "       DecodeBenchmark run <dir> <results.json> [iterations] [profile]");
+      System.exit(1);
+    }
+  }
+
+  private static void run(File dir, File output, int iterations, ScanProfile[] profiles)
+      throws IOException {
+    List<Frame> frames = loadCorpus(dir);
+    if (frames.isEmpty()) {
+      throw new IOException("No frames in " + dir);
+    }
+    Writer out = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+    try {
+      out.write("{\n\"iterations\": " + iterations + ",\n");
+      runGate(frames, iterations, out);
+      out.write(",\n\"runs\": [");
+      for (int p = 0; p < profiles.length; p++) {
+        out.write(p == 0 ? "\n" : ",\n");
+        runProfile(frames, profiles[p], iterations, out);
+      }
+      out.write("\n]\n}\n");
+    } finally {
+      out.close();
+    }
+  }
+
+  // Runs each frame through a fresh FrameGate, so motion never counts.
+  private static void runGate(List<Frame> frames, int iterations, Writer out)
+      throws IOException {
+    FrameGate gate = new FrameGate();
+    long[] times = new long[frames.size() * iterations];
+    int attempts = 0;
+    int admitted = 0;
+    out.write("\"gate\": {\"frames\": [");
+    for (int f = 0; f < frames.size(); f++) {
+      Frame frame = frames.get(f);
+      int verdict = FrameGate.ADMITTED;
+      for (int i = 0; i < iterations; i++) {
+        gate.reset();
+        long start = System.nanoTime();
+        verdict = gate.judge(frame.data, frame.width, frame.rectTop,
+            frame.height - frame.rectLeft - frame.rectWidth, frame.rectHeight, frame.rectWidth);
+        times[attempts++] = System.nanoTime() - start;
+      }
+      if (verdict == FrameGate.ADMITTED) {
+        admitted++;
+      }
+      out.write(f == 0 ? "\n" : ",\n");
+      out.write("{\"name\": \"" + frame.name + "\", \"verdict\": \""
+          + GATE_VERDICTS[verdict] + "\", \"sharpness\": " + gate.getSharpness() + "}");
+    }
+    Arrays.sort(times);
+    String summary = "{\"admitted\": " + admitted
+        + ", \"rejected\": " + (frames.size() - admitted)
+        + ", \"p50Us\": " + percentile(times, 50) / 1000.0
+        + ", \"p99Us\": " + percentile(times, 99) / 1000.0 + "}";
+    out.write("\n],\n\"summary\": " + summary + "}");
+    System.out.println("gate: " + summary);
+  }
+
+  private static void runProfile(List<Frame> frames, ScanProfile profile, int iterations,
+      Writer out) throws IOException {
+    // One decoder for all frames, like one decode worker.
+    RoiTracker tracker = new RoiTracker();
+    FrameDecoder decoder = new FrameDecoder(
+        FrameDecoder.buildHints(null, null, profile, null), profile, tracker);
+
+    // Let the JIT compile the decode path first.
+    for (Frame frame : frames) {
+      tracker.reset(frame.rectWidth, frame.rectHeight);
+      frame.decode(decoder);
+    }
+
+    long[] allLatencies = new long[frames.size() * iterations];
+    long[] latencies = new long[iterations];
+    int attempts = 0;
+    int decoded = 0;
+    int correct = 0;
+    int wrong = 0;
+    long allocated = 0;
+    // Frames, attempts, correct reads, misses and wrong reads of each category.
+    Map<String, int[]> categories = new LinkedHashMap<String, int[]>();
+    // What reading the counter itself allocates.
+    long counterBefore = MicroBenchmark.getAllocatedBytes();
+    long counterOverhead = MicroBenchmark.getAllocatedBytes() - counterBefore;
+    out.write("{\"profile\": \"" + profile.getName() + "\",\n\"frames\": [");
+    for (int f = 0; f < frames.size(); f++) {
+      Frame frame = frames.get(f);
+      // Each frame is a new scene; its iterations are consecutive frames of a still one.
+      tracker.reset(frame.rectWidth, frame.rectHeight);
+      int frameDecoded = 0;
+      int frameCorrect = 0;
+      int frameWrong = 0;
+      long frameAllocated = 0;
+      for (int i = 0; i < iterations; i++) {
+        long allocatedBefore = MicroBenchmark.getAllocatedBytes();
+        long start = System.nanoTime();
+        Result result = frame.decode(decoder);
+        long latency = (System.nanoTime() - start) / 1000;
+        frameAllocated += MicroBenchmark.getAllocatedBytes() - allocatedBefore - counterOverhead;
+        latencies[i] = latency;
+        allLatencies[attempts++] = latency;
+        if (result != null) {
+          frameDecoded++;
+          if (frame.expected == null || frame.expected.equals(result.getText())) {
+            frameCorrect++;
+          } else {
+            frameWrong++;
+          }
+        }
+      }
+      decoded += frameDecoded;
+      correct += frameCorrect;
+      wrong += frameWrong;
+      allocated += frameAllocated;
+      int[] category = categories.get(frame.category);
+      if (category == null) {
+        category = new int[5];
+        categories.put(frame.category, category);
+      }
+      category[0]++;
+      category[1] += iterations;
+      category[2] += frameCorrect;
+      category[3] += iterations - frameDecoded;
+      category[4] += frameWrong;
+      Arrays.sort(latencies);
+      out.write(f == 0 ? "\n" : ",\n");
+      out.write("{\"name\": \"" + frame.name + "\", \"width\": " + frame.width
+          + ", \"height\": " + frame.height + ", \"decoded\": " + frameDecoded
+          + ", \"correct\": " + frameCorrect + ", \"misses\": " + (iterations - frameDecoded)
+          + ", \"wrong\": " + frameWrong + ", \"p50Us\": " + percentile(latencies, 50)
+          + ", \"p90Us\": " + percentile(latencies, 90)
+          + ", \"maxUs\": " + latencies[iterations - 1]
+          + ", \"allocBytesPerFrame\": " + perFrame(frameAllocated, iterations) + "}");
+    }
+    Arrays.sort(allLatencies);
+    String summary = "{\"frames\": " + frames.size() + ", \"attempts\": " + attempts
+        + ", \"decodeRate\": " + rate(decoded, attempts)
+        + ", \"successRate\": " + rate(correct, attempts)
+        + ", \"misses\": " + (attempts - decoded) + ", \"wrong\": " + wrong
+        + ", \"p50Us\": " + percentile(allLatencies, 50)
+        + ", \"p90Us\": " + percentile(allLatencies, 90)
+        + ", \"p99Us\": " + percentile(allLatencies, 99)
+        + ", \"allocBytesPerFrame\": " + perFrame(allocated, attempts) + "}";
+    out.write("\n],\n\"categories\": [");
+    boolean first = true;
+    for (Map.Entry<String, int[]> entry : categories.entrySet()) {
+      int[] counts = entry.getValue();
+      String line = "{\"category\": \"" + entry.getKey() + "\", \"frames\": " + counts[0]
+          + ", \"successRate\": " + rate(counts[2], counts[1]) + ", \"misses\": " + counts[3]
+          + ", \"wrong\": " + counts[4] + "}";
+      out.write(first ? "\n" : ",\n");
+      out.write(line);
+      first = false;
+      System.out.println(profile.getName() + " " + line);
+    }
+    out.write("\n],\n\"summary\": " + summary + "}");
+    System.out.println(profile.getName() + ": " + summary);
+  }
+
+  private static List<Frame> loadCorpus(File dir) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("Not a directory: " + dir);
+    }
+    Arrays.sort(files);
+    List<Frame> frames = new ArrayList<Frame>();
+    for (File file : files) {
+      String name = file.getName();
+      int dot = name.lastIndexOf('.');
+      if (dot < 0 || !(name.endsWith(".nv21") || name.endsWith(".y"))) {
+        continue;
+      }
+      String base = name.substring(0, dot);
+      String[] size = base.substring(base.lastIndexOf('_') + 1).split("x");
+      if (size.length != 2) {
+        throw new IOException("No frame size in " + name);
+      }
+      int width = Integer.parseInt(size[0]);
+      int height = Integer.parseInt(size[1]);
+      byte[] data = readFile(file);
+      if (data.length < width * height) {
+        throw new IOException("Truncated frame " + name);
+      }
+      File text = new File(dir, base + ".txt");
+      String expected = text.exists() ? new String(readFile(text), "UTF-8") : null;
+      frames.add(new Frame(base, data, width, height, expected));
+    }
+    return frames;
+  }
+
+  private static void generate(File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    Random random = new Random(42);
+    for (int length : CORPUS_TEXT_LENGTHS) {
+      generateText(dir, corpusText(length, random), random);
+    }
+    System.out.println("Wrote corpus to " + dir);
+  }
+
+  // Renders every corpus frame of |text| and writes it to |dir| with the text.
+  private static void generateText(File dir, String text, Random random) throws IOException {
+    BitMatrix matrix;
+    try {
+      matrix = new QRCodeWriter().encode(text, BarcodeFormat.QR_CODE, 0, 0);
+    } catch (WriterException e) {
+      throw new IOException("Cannot encode corpus text: " + e);
+    }
+    // One pixel per module, plus a 4 module quiet zone on each side.
+    int version = (matrix.getWidth() - 8 - 17) / 4;
+    for (int[] size : CORPUS_SIZES) {
+      for (int angle : CORPUS_ANGLES) {
+        for (String effect : CORPUS_EFFECTS) {
+          String base = "qr-v" + version + "_" + angle + "deg_" + effect + "_"
+              + size[0] + "x" + size[1];
+          byte[] portrait = renderPortrait(matrix, size[0], size[1], angle, effect, random);
+          if (!decodes(portrait, size[1], size[0], framingRect(size[0], size[1]), text)) {
+            System.out.println(base + " is not read by a plain reader either");
+          }
+          writeFile(new File(dir, base + ".y"), landscape(portrait, size[0], size[1]));
+          writeFile(new File(dir, base + ".txt"), text.getBytes("UTF-8"));
+        }
+      }
+    }
+  }
+
+  // A room link like the ones QrActivity scans, padded to |length| characters.
+  private static String corpusText(int length, Random random) {
+    StringBuilder text = new StringBuilder("https://apprtc.example/android/?room=");
+    text.append(100000 + random.nextInt(900000)).append("&peer=")
+        .append(100000 + random.nextInt(900000)).append("&pad=");
+    while (text.length() < length) {
+      text.append((char) ('a' + random.nextInt(26)));
+    }
+    return text.toString();
+  }
+
+  // Draws |matrix| rotated by |angle| degrees into the framing rect of the portrait image of a
+  // landscape |width| x |height| frame. Modules are a whole number of pixels wide and the code
+  // starts on a pixel edge, so unrotated codes have evenly sized modules.
+  private static byte[] renderPortrait(BitMatrix matrix, int width, int height, int angle,
+      String effect, Random random) {
+    int portraitWidth = height;
+    int portraitHeight = width;
+    int[] rect = framingRect(width, height);
+    int modules = matrix.getWidth();
+    int moduleSize = moduleSize(matrix, width, height);
+    int side = moduleSize * modules;
+    int left = rect[0] + (rect[2] - side) / 2;
+    int top = rect[1] + (rect[3] - side) / 2;
+    double centerX = left + side / 2.0;
+    double centerY = top + side / 2.0;
+    double cos = Math.cos(Math.toRadians(angle));
+    double sin = Math.sin(Math.toRadians(angle));
+    int[] portrait = new int[portraitWidth * portraitHeight];
+    for (int y = 0; y < portraitHeight; y++) {
+      for (int x = 0; x < portraitWidth; x++) {
+        // Average SUBSAMPLES x SUBSAMPLES points of the pixel, as a sensor integrates its area;
+        // unrotated modules are whole pixels and come out flat.
+        int sum = 0;
+        for (int sy = 0; sy < SUBSAMPLES; sy++) {
+          for (int sx = 0; sx < SUBSAMPLES; sx++) {
+            double dx = x + (sx + 0.5) / SUBSAMPLES - centerX;
+            double dy = y + (sy + 0.5) / SUBSAMPLES - centerY;
+            int mx = (int) Math.floor((dx * cos + dy * sin + side / 2.0) / moduleSize);
+            int my = (int) Math.floor((-dx * sin + dy * cos + side / 2.0) / moduleSize);
+            if (mx >= 0 && mx < modules && my >= 0 && my < modules) {
+              sum += matrix.get(mx, my) ? DARK : LIGHT;
+            } else {
+              sum += BACKGROUND;
+            }
+          }
+        }
+        int value = sum / (SUBSAMPLES * SUBSAMPLES);
+        portrait[y * portraitWidth + x] = value + random.nextInt(17) - 8;
+      }
+    }
+    if (effect.equals("blur")) {
+      // Half sharp, half box blurred over about half a module, so that even 3 pixel modules
+      // keep their edges.
+      int[] sharp = portrait.clone();
+      boxBlur(portrait, portraitWidth, portraitHeight, Math.max(1, moduleSize / 4));
+      for (int i = 0; i < portrait.length; i++) {
+        portrait[i] = (portrait[i] + sharp[i]) / 2;
+      }
+    } else if (effect.equals("glare")) {
+      double glareX = centerX + side / 4.0;
+      double glareY = centerY - side / 4.0;
+      double sigma = side / 5.0;
+      for (int y = 0; y < portraitHeight; y++) {
+        for (int x = 0; x < portraitWidth; x++) {
+          double d2 = (x - glareX) * (x - glareX) + (y - glareY) * (y - glareY);
+          portrait[y * portraitWidth + x] += (int) (100 * Math.exp(-d2 / (2 * sigma * sigma)));
+        }
+      }
+    }
+    byte[] portraitBytes = new byte[portrait.length];
+    for (int i = 0; i < portrait.length; i++) {
+      portraitBytes[i] = (byte) Math.max(0, Math.min(255, portrait[i]));
+    }
+    return portraitBytes;
+  }
+
+  // |portrait| as the landscape |width| x |height| Y plane the camera would deliver.
+  private static byte[] landscape(byte[] portrait, int width, int height) {
+    int portraitWidth = height;
+    int portraitHeight = width;
+    // Portrait pixel (x, y) is landscape pixel (y, height - 1 - x).
+    byte[] frame = new byte[width * height];
+    for (int y = 0; y < portraitHeight; y++) {
+      for (int x = 0; x < portraitWidth; x++) {
+        frame[(height - 1 - x) * width + y] = portrait[y * portraitWidth + x];
+      }
+    }
+    return frame;
+  }
+
+  // Whole pixel module size that makes the code about 70% of the framing rect.
+  private static int moduleSize(BitMatrix matrix, int width, int height) {
+    int[] rect = framingRect(width, height);
+    return Math.max(1, Math.min(rect[2], rect[3]) * 7 / 10 / matrix.getWidth());
+  }
+
+  // Whether a plain QRCodeReader reads the framing rect of the portrait image, without the
+  // rotation and hints of the decode path, to tell a hard frame from a broken rendering. The
+  // reader skips rows on tall images, so the whole 1920 pixel portrait would miss rotated finder
+  // patterns the scanner, which only sees the rect, finds.
+  private static boolean decodes(byte[] portrait, int width, int height, int[] rect,
+      String text) {
+    LuminanceSource source = new PlanarYUVLuminanceSource(portrait, width, height, rect[0],
+        rect[1], rect[2], rect[3]);
+    try {
+      Result result = new QRCodeReader().decode(new BinaryBitmap(new HybridBinarizer(source)));
+      return result.getText().equals(text);
+    } catch (ReaderException e) {
+      return false;
+    }
+  }
+
+  private static void boxBlur(int[] pixels, int width, int height, int radius) {
+    int[] copy = pixels.clone();
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int sum = 0;
+        int count = 0;
+        for (int i = Math.max(0, x - radius); i <= Math.min(width - 1, x + radius); i++) {
+          sum += copy[y * width + i];
+          count++;
+        }
+        pixels[y * width + x] = sum / count;
+      }
+    }
+    System.arraycopy(pixels, 0, copy, 0, pixels.length);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int sum = 0;
+        int count = 0;
+        for (int i = Math.max(0, y - radius); i <= Math.min(height - 1, y + radius); i++) {
+          sum += copy[i * width + x];
+          count++;
+        }
+        pixels[y * width + x] = sum / count;
+      }
+    }
+  }
+
+  // Framing rect of a portrait screen the size of the rotated frame, as left, top, width,
+  // height in rotated frame coordinates; see CameraManager.getFramingRect().
+  private static int[] framingRect(int width, int height) {
+    int portraitWidth = height;
+    int portraitHeight = width;
+    int rectWidth = Math.max(MIN_FRAME_SIZE, Math.min(MAX_FRAME_SIZE, portraitWidth * 3 / 4));
+    int rectHeight = Math.max(MIN_FRAME_SIZE, Math.min(MAX_FRAME_SIZE, portraitHeight * 3 / 4));
+    return new int[] {(portraitWidth - rectWidth) / 2, (portraitHeight - rectHeight) / 2,
+        rectWidth, rectHeight};
+  }
+
+  private static long percentile(long[] sorted, int percent) {
+    int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+  }
+
+  private static String rate(int count, int total) {
+    return String.valueOf(total == 0 ? 0.0 : Math.round(count * 10000.0 / total) / 10000.0);
+  }
+
+  private static long perFrame(long allocated, int frames) {
+    return allocated < 0 || !MicroBenchmark.hasAllocationCounter() ? -1 : allocated / frames;
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+      return bytes.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeFile(File file, byte[] data) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static final class Frame {
+    final String name;
+    final byte[] data;
+    final int width;
+    final int height;
+    final String expected;
+    final String category;
+    final int rectLeft;
+    final int rectTop;
+    final int rectWidth;
+    final int rectHeight;
+
+    Frame(String name, byte[] data, int width, int height, String expected) {
+      this.name = name;
+      this.data = data;
+      this.width = width;
+      this.height = height;
+      this.expected = expected;
+      int size = name.lastIndexOf('_');
+      category = size > 0 ? name.substring(0, size) : name;
+      int[] rect = framingRect(width, height);
+      rectLeft = rect[0];
+      rectTop = rect[1];
+      rectWidth = rect[2];
+      rectHeight = rect[3];
+    }
+
+    Result decode(FrameDecoder decoder) {
+      return decoder.decode(data, width, height, rectLeft, rectTop, rectWidth, rectHeight);
+    }
+  }
+}
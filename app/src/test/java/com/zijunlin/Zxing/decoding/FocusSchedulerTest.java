@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link FocusScheduler} on a fake clock, starting right after the focus cycle that every
+ * scan starts with.
+ */
+public class FocusSchedulerTest {
+
+  private static final int SHARP = 150;
+  private static final int BLURRY = 30;
+
+  private final FocusScheduler scheduler = new FocusScheduler();
+  private long now;
+
+  @Before
+  public void setUp() {
+    now = 10000;
+    scheduler.reset(now);
+    assertTrue(scheduler.shouldFocus(now));
+    scheduler.onFocusDone(true);
+  }
+
+  @Test
+  public void focusesOnceAtStart() {
+    assertEquals(1, scheduler.getCount(FocusScheduler.REASON_START));
+    advance(5000);
+    assertFalse(scheduler.shouldFocus(now));
+    assertEquals(1, scheduler.getFocusCount());
+  }
+
+  @Test
+  public void resetFocusesAgain() {
+    advance(100);
+    scheduler.reset(now);
+    assertTrue(scheduler.shouldFocus(now));
+    assertEquals(2, scheduler.getCount(FocusScheduler.REASON_START));
+  }
+
+  @Test
+  public void blurryFramesFocusAfterTheMinimumInterval() {
+    frames(BLURRY, 3);
+    advance(499);
+    assertFalse(scheduler.shouldFocus(now));
+    advance(1);
+    assertTrue(scheduler.shouldFocus(now));
+    assertEquals(1, scheduler.getCount(FocusScheduler.REASON_BLUR));
+  }
+
+  @Test
+  public void sharpFrameBreaksTheBlurryRun() {
+    frames(BLURRY, 2);
+    frames(SHARP, 1);
+    frames(BLURRY, 2);
+    advance(1000);
+    assertFalse(scheduler.shouldFocus(now));
+  }
+
+  @Test
+  public void halvedSharpnessCountsAsBlurry() {
+    // Sharp enough on their own, but the scene moved since the first frame after the focus.
+    frames(200, 1);
+    frames(90, 3);
+    advance(1000);
+    assertTrue(scheduler.shouldFocus(now));
+    assertEquals(1, scheduler.getCount(FocusScheduler.REASON_BLUR));
+  }
+
+  @Test
+  public void unmeasurableFramesAreIgnored() {
+    frames(-1, 5);
+    advance(1000);
+    assertFalse(scheduler.shouldFocus(now));
+  }
+
+  @Test
+  public void framesAndFailuresDuringAFocusAreIgnored() {
+    frames(BLURRY, 3);
+    advance(500);
+    assertTrue(scheduler.shouldFocus(now));
+    frames(BLURRY, 3);
+    failures(6);
+    scheduler.onFocusDone(true);
+    advance(1000);
+    assertFalse(scheduler.shouldFocus(now));
+  }
+
+  @Test
+  public void focusWithoutCallbackTimesOut() {
+    frames(BLURRY, 3);
+    advance(500);
+    assertTrue(scheduler.shouldFocus(now));
+    frames(BLURRY, 3);
+    advance(2999);
+    assertFalse(scheduler.shouldFocus(now));
+    // The frames above were ignored, so the timeout alone does not start a new cycle.
+    advance(1);
+    assertFalse(scheduler.shouldFocus(now));
+    assertTrue(scheduler.getStatistics().contains("timed out: 1"));
+    frames(BLURRY, 3);
+    assertTrue(scheduler.shouldFocus(now));
+  }
+
+  @Test
+  public void failuresOnAnUnsharpImageFocusRightAway() {
+    frames(BLURRY, 1);
+    failures(5);
+    advance(500);
+    assertFalse(scheduler.shouldFocus(now));
+    failures(1);
+    assertTrue(scheduler.shouldFocus(now));
+    assertEquals(1, scheduler.getCount(FocusScheduler.REASON_FAILURES));
+  }
+
+  @Test
+  public void failuresOnASharpImageWaitForTheIdleInterval() {
+    frames(SHARP, 1);
+    failures(6);
+    advance(1499);
+    assertFalse(scheduler.shouldFocus(now));
+    advance(1);
+    assertTrue(scheduler.shouldFocus(now));
+    assertEquals(1, scheduler.getCount(FocusScheduler.REASON_FAILURES));
+  }
+
+  @Test
+  public void idleIntervalDoublesUpToTheMaximum() {
+    long[] intervals = {1500, 3000, 6000, 12000, 12000};
+    for (long interval : intervals) {
+      assertEquals(interval, idleFocus());
+    }
+  }
+
+  @Test
+  public void successResetsTheIdleInterval() {
+    idleFocus();
+    idleFocus();
+    scheduler.onDecoded(true);
+    assertEquals(1500, idleFocus());
+  }
+
+  @Test
+  public void successResetsTheFailureCount() {
+    frames(BLURRY, 1);
+    failures(5);
+    scheduler.onDecoded(true);
+    failures(1);
+    advance(1000);
+    assertFalse(scheduler.shouldFocus(now));
+  }
+
+  @Test
+  public void blurResetsTheIdleInterval() {
+    idleFocus();
+    idleFocus();
+    frames(BLURRY, 3);
+    advance(500);
+    assertTrue(scheduler.shouldFocus(now));
+    scheduler.onFocusDone(true);
+    assertEquals(1500, idleFocus());
+  }
+
+  @Test
+  public void unsuccessfulFocusIsCounted() {
+    frames(BLURRY, 3);
+    advance(500);
+    assertTrue(scheduler.shouldFocus(now));
+    scheduler.onFocusDone(false);
+    assertTrue(scheduler.getStatistics().contains("unsuccessful: 1"));
+  }
+
+  // Fails to decode a sharp image until a focus is started and returns how long that took.
+  private long idleFocus() {
+    long start = now;
+    frames(SHARP, 1);
+    failures(6);
+    while (!scheduler.shouldFocus(now)) {
+      advance(100);
+    }
+    scheduler.onFocusDone(true);
+    return now - start;
+  }
+
+  private void frames(int sharpness, int count) {
+    for (int i = 0; i < count; i++) {
+      scheduler.onFrame(sharpness);
+    }
+  }
+
+  private void failures(int count) {
+    for (int i = 0; i < count; i++) {
+      scheduler.onDecoded(false);
+    }
+  }
+
+  private void advance(long ms) {
+    now += ms;
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.ReaderException;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import com.zijunlin.Zxing.camera.PlanarYUVLuminanceSource;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests {@link FrameGate} on synthetic frames: a QR code in the 480x360 region the gate reads of
+ * a 640x480 preview frame, sharp, blurred, dark or shifted, and a flat frame without a code. Each
+ * frame has sensor noise of up to 8 levels.
+ */
+public class FrameGateTest {
+
+  private static final int FRAME_WIDTH = 640;
+  private static final int FRAME_HEIGHT = 480;
+  private static final int LEFT = 80;
+  private static final int TOP = 60;
+  private static final int WIDTH = 480;
+  private static final int HEIGHT = 360;
+  private static final int DARK = 40;
+  private static final int LIGHT = 210;
+  private static final int BACKGROUND = 150;
+  private static final int NOISE = 8;
+  // Text lengths that give small, medium and large QR versions, with 6, 4 and 3 pixel modules.
+  private static final int[] TEXT_LENGTHS = {40, 150, 400};
+
+  private final Random random = new Random(3);
+  private final FrameGate gate = new FrameGate();
+  private String text;
+  private BitMatrix code;
+
+  @Before
+  public void setUp() throws WriterException {
+    setText(TEXT_LENGTHS[0]);
+  }
+
+  @Test
+  public void sharpCodeIsAdmitted() {
+    byte[] frame = frame(1, 0, 0, 0);
+    assertTrue(decodes(frame));
+    assertEquals(FrameGate.ADMITTED, judge(frame));
+    assertTrue(gate.getSharpness() >= 60);
+  }
+
+  @Test
+  public void darkFrameIsRejected() {
+    // The same code at a tenth of the light.
+    assertEquals(FrameGate.REJECTED_DARK, judge(frame(0.1, 0, 0, 0)));
+    assertEquals(-1, gate.getSharpness());
+  }
+
+  @Test
+  public void flatFrameIsRejected() {
+    byte[] frame = new byte[FRAME_WIDTH * FRAME_HEIGHT];
+    for (int i = 0; i < frame.length; i++) {
+      frame[i] = (byte) noisy(BACKGROUND);
+    }
+    assertEquals(FrameGate.REJECTED_FLAT, judge(frame));
+    assertEquals(-1, gate.getSharpness());
+  }
+
+  @Test
+  public void blurredCodeIsRejected() {
+    byte[] frame = frame(1, 0, 0, 4);
+    assertFalse(decodes(frame));
+    assertEquals(FrameGate.REJECTED_BLURRY, judge(frame));
+  }
+
+  @Test
+  public void codesThatDecodeAreAdmittedAndBlurredOnesRejected() throws WriterException {
+    for (int length : TEXT_LENGTHS) {
+      setText(length);
+      for (int blur = 0; blur <= 6; blur++) {
+        byte[] frame = frame(1, 0, 0, blur);
+        boolean decodes = decodes(frame);
+        // Each frame is a new scene.
+        gate.reset();
+        int verdict = judge(frame);
+        String name = "text of " + length + ", blur " + blur + ", sharpness "
+            + gate.getSharpness() + ", decodes " + decodes;
+        if (decodes) {
+          assertEquals(name, FrameGate.ADMITTED, verdict);
+        }
+        if (blur >= 3) {
+          assertFalse(name, decodes);
+          assertEquals(name, FrameGate.REJECTED_BLURRY, verdict);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void movingCodeIsRejected() {
+    assertEquals(FrameGate.ADMITTED, judge(frame(1, 0, 0, 0)));
+    // Still: only the noise differs.
+    assertEquals(FrameGate.ADMITTED, judge(frame(1, 0, 0, 0)));
+    assertEquals(FrameGate.REJECTED_MOVING, judge(frame(1, 9, 5, 0)));
+    // Still again at the new place.
+    assertEquals(FrameGate.ADMITTED, judge(frame(1, 9, 5, 0)));
+  }
+
+  @Test
+  public void resetForgetsThePreviousFrame() {
+    judge(frame(1, 0, 0, 0));
+    gate.reset();
+    assertEquals(FrameGate.ADMITTED, judge(frame(1, 9, 5, 0)));
+  }
+
+  @Test
+  public void rejectedFramesAreForcedThroughAtTheMaximumInterval() {
+    byte[] dark = frame(0.1, 0, 0, 0);
+    byte[] sharp = frame(1, 0, 0, 0);
+    // Nothing admitted yet.
+    assertEquals(FrameGate.FORCED, admit(dark, 0));
+    assertEquals(FrameGate.REJECTED_DARK, admit(dark, 100));
+    assertEquals(FrameGate.REJECTED_DARK, admit(dark, 399));
+    assertEquals(FrameGate.FORCED, admit(dark, 400));
+    // The light comes back: all samples change at once.
+    assertEquals(FrameGate.REJECTED_MOVING, admit(sharp, 500));
+    assertEquals(FrameGate.ADMITTED, admit(sharp, 600));
+    assertEquals(FrameGate.REJECTED_DARK, admit(dark, 999));
+    assertEquals(FrameGate.FORCED, admit(dark, 1000));
+
+    assertEquals(4, gate.getAdmitted());
+    assertEquals(4, gate.getRejected());
+    assertEquals(3, gate.getCount(FrameGate.FORCED));
+    assertEquals("admitted: 1, forced: 3, dark: 3, flat: 0, blurry: 0, moving: 1",
+        gate.getStatistics());
+  }
+
+  private void setText(int length) throws WriterException {
+    StringBuilder builder = new StringBuilder("https://apprtc.example/android/?room=");
+    while (builder.length() < length) {
+      builder.append((char) ('a' + random.nextInt(26)));
+    }
+    text = builder.toString();
+    code = new QRCodeWriter().encode(text, BarcodeFormat.QR_CODE, 0, 0);
+  }
+
+  // A frame of the code covering 70% of the region, at |light| of the full brightness, moved by
+  // |dx|, |dy| modules and box blurred twice with |blur| pixels to each side.
+  private byte[] frame(double light, int dx, int dy, int blur) {
+    int modules = code.getWidth();
+    int moduleSize = Math.min(WIDTH, HEIGHT) * 7 / 10 / modules;
+    int side = moduleSize * modules;
+    int left = LEFT + (WIDTH - side) / 2 + dx * moduleSize;
+    int top = TOP + (HEIGHT - side) / 2 + dy * moduleSize;
+    int[] pixels = new int[FRAME_WIDTH * FRAME_HEIGHT];
+    for (int y = 0; y < FRAME_HEIGHT; y++) {
+      for (int x = 0; x < FRAME_WIDTH; x++) {
+        int mx = (x - left) / moduleSize;
+        int my = (y - top) / moduleSize;
+        boolean inCode = x >= left && mx < modules && y >= top && my < modules;
+        pixels[y * FRAME_WIDTH + x] = inCode ? (code.get(mx, my) ? DARK : LIGHT) : BACKGROUND;
+      }
+    }
+    if (blur > 0) {
+      boxBlur(pixels, blur);
+      boxBlur(pixels, blur);
+    }
+    byte[] frame = new byte[pixels.length];
+    for (int i = 0; i < pixels.length; i++) {
+      frame[i] = (byte) noisy((int) (pixels[i] * light));
+    }
+    return frame;
+  }
+
+  private int noisy(int value) {
+    return Math.max(0, Math.min(255, value + random.nextInt(2 * NOISE + 1) - NOISE));
+  }
+
+  private int judge(byte[] frame) {
+    return gate.judge(frame, FRAME_WIDTH, LEFT, TOP, WIDTH, HEIGHT);
+  }
+
+  private int admit(byte[] frame, long nowMs) {
+    return gate.admit(frame, FRAME_WIDTH, LEFT, TOP, WIDTH, HEIGHT, nowMs);
+  }
+
+  // Whether a plain QRCodeReader reads the region.
+  private boolean decodes(byte[] frame) {
+    PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(frame, FRAME_WIDTH,
+        FRAME_HEIGHT, LEFT, TOP, WIDTH, HEIGHT);
+    try {
+      return new QRCodeReader().decode(new BinaryBitmap(new HybridBinarizer(source)))
+          .getText().equals(text);
+    } catch (ReaderException e) {
+      return false;
+    }
+  }
+
+  private static void boxBlur(int[] pixels, int radius) {
+    int[] copy = pixels.clone();
+    for (int y = 0; y < FRAME_HEIGHT; y++) {
+      for (int x = 0; x < FRAME_WIDTH; x++) {
+        int sum = 0;
+        int count = 0;
+        for (int i = Math.max(0, x - radius); i <= Math.min(FRAME_WIDTH - 1, x + radius); i++) {
+          sum += copy[y * FRAME_WIDTH + i];
+          count++;
+        }
+        pixels[y * FRAME_WIDTH + x] = sum / count;
+      }
+    }
+    System.arraycopy(pixels, 0, copy, 0, pixels.length);
+    for (int y = 0; y < FRAME_HEIGHT; y++) {
+      for (int x = 0; x < FRAME_WIDTH; x++) {
+        int sum = 0;
+        int count = 0;
+        for (int i = Math.max(0, y - radius); i <= Math.min(FRAME_HEIGHT - 1, y + radius); i++) {
+          sum += copy[i * FRAME_WIDTH + x];
+          count++;
+        }
+        pixels[y * FRAME_WIDTH + x] = sum / count;
+      }
+    }
+  }
+}
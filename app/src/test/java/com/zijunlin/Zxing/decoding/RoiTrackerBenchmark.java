@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+import org.appspot.apprtc.util.MicroBenchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays the result point sequences in the test resources through {@link RoiTracker} the way
+ * {@link FrameDecoder} drives it, and reports how much of the framing rect is decoded and how
+ * many decodes the region costs, then the tracker's own cost per sequence:
+ *
+ *   java com.zijunlin.Zxing.decoding.RoiTrackerBenchmark [iterations]
+ *
+ * A frame only reports the points inside the decoded region, and only decodes if all of its
+ * points are inside, since a code cut by the region edge cannot be read.
+ */
+public final class RoiTrackerBenchmark {
+
+  private static final int DEFAULT_ITERATIONS = 20000;
+  private static final String SEQUENCES = "roi_points.txt";
+  private static final int WIDTH = 360;
+  private static final int HEIGHT = 480;
+
+  private RoiTrackerBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+    for (final Sequence sequence : readSequences()) {
+      final RoiTracker tracker = new RoiTracker();
+      final int[] roi = new int[4];
+      Replay replay = sequence.replay(tracker, roi);
+      System.out.println(sequence.name + ": " + sequence.frames.size() + " frames, "
+          + replay.reducedFrames + " reduced, mean area " + replay.areaPercent()
+          + "%, decoded " + replay.decoded + " of " + sequence.decodable());
+      MicroBenchmark.measure(sequence.name + " tracker", iterations,
+          new MicroBenchmark.Operation() {
+            @Override
+            public void run() {
+              sequence.replay(tracker, roi);
+            }
+          });
+    }
+  }
+
+  private static List<Sequence> readSequences() throws IOException {
+    InputStream in = RoiTrackerBenchmark.class.getResourceAsStream(SEQUENCES);
+    if (in == null) {
+      throw new IOException("No resource " + SEQUENCES);
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    try {
+      List<Sequence> sequences = new ArrayList<Sequence>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split(" ");
+        if (fields[0].equals("sequence")) {
+          sequences.add(new Sequence(fields[1]));
+          continue;
+        }
+        float[] points = new float[(fields.length - 1) * 2];
+        for (int i = 1; i < fields.length; i++) {
+          String[] point = fields[i].split(",");
+          points[(i - 1) * 2] = Float.parseFloat(point[0]);
+          points[(i - 1) * 2 + 1] = Float.parseFloat(point[1]);
+        }
+        sequences.get(sequences.size() - 1).frames.add(new Frame(fields[0].equals("1"), points));
+      }
+      return sequences;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static final class Frame {
+    final boolean found;
+    // x, y pairs.
+    final float[] points;
+
+    Frame(boolean found, float[] points) {
+      this.found = found;
+      this.points = points;
+    }
+  }
+
+  private static final class Replay {
+    int reducedFrames;
+    long decodedArea;
+    long frameArea;
+    int decoded;
+
+    long areaPercent() {
+      return frameArea == 0 ? 0 : Math.round(100.0 * decodedArea / frameArea);
+    }
+  }
+
+  private static final class Sequence {
+    final String name;
+    final List<Frame> frames = new ArrayList<Frame>();
+
+    Sequence(String name) {
+      this.name = name;
+    }
+
+    int decodable() {
+      int count = 0;
+      for (Frame frame : frames) {
+        if (frame.found) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    Replay replay(RoiTracker tracker, int[] roi) {
+      Replay replay = new Replay();
+      tracker.reset(WIDTH, HEIGHT);
+      for (int f = 0; f < frames.size(); f++) {
+        Frame frame = frames.get(f);
+        boolean reduced = tracker.nextRegion(roi);
+        boolean inside = true;
+        for (int i = 0; i < frame.points.length; i += 2) {
+          float x = frame.points[i];
+          float y = frame.points[i + 1];
+          if (x >= roi[0] && x < roi[0] + roi[2] && y >= roi[1] && y < roi[1] + roi[3]) {
+            tracker.addPoint(x, y);
+          } else {
+            inside = false;
+          }
+        }
+        boolean found = frame.found && inside;
+        tracker.onDecoded(found, reduced);
+        if (reduced) {
+          replay.reducedFrames++;
+        }
+        if (found) {
+          replay.decoded++;
+        }
+        replay.decodedArea += roi[2] * roi[3];
+        replay.frameArea += WIDTH * HEIGHT;
+      }
+      return replay;
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link RoiTracker} on a 360x480 framing rect, the one of a 640x480 preview frame on a
+ * portrait screen.
+ */
+public class RoiTrackerTest {
+
+  private static final int WIDTH = 360;
+  private static final int HEIGHT = 480;
+  private static final int[] WHOLE_FRAME = {0, 0, WIDTH, HEIGHT};
+
+  private final RoiTracker tracker = new RoiTracker();
+  private final int[] roi = new int[4];
+
+  @Before
+  public void setUp() {
+    tracker.reset(WIDTH, HEIGHT);
+  }
+
+  @Test
+  public void wholeFrameUntilEnoughPoints() {
+    assertFalse(tracker.nextRegion(roi));
+    assertArrayEquals(WHOLE_FRAME, roi);
+    tracker.addPoint(100, 100);
+    assertFalse(tracker.nextRegion(roi));
+    assertArrayEquals(WHOLE_FRAME, roi);
+  }
+
+  @Test
+  public void shrinksAroundThePointsWithMargin() {
+    addFinderPatterns(100, 120, 120);
+    assertTrue(tracker.nextRegion(roi));
+    // A 120 pixel spread plus half of it on each side, centred on the points.
+    assertArrayEquals(new int[] {40, 60, 240, 240}, roi);
+  }
+
+  @Test
+  public void neverSmallerThanTheMinimumFraction() {
+    addFinderPatterns(150, 200, 20);
+    assertTrue(tracker.nextRegion(roi));
+    // 40% of the frame, centred on the points.
+    assertArrayEquals(new int[] {88, 114, 144, 192}, roi);
+  }
+
+  @Test
+  public void centredRegionIsKeptInsideTheFrame() {
+    addFinderPatterns(10, 400, 100);
+    assertTrue(tracker.nextRegion(roi));
+    assertArrayEquals(new int[] {0, 280, 200, 200}, roi);
+  }
+
+  @Test
+  public void pointsSpreadOverTheFrameDecodeTheWholeFrame() {
+    tracker.addPoint(10, 10);
+    tracker.addPoint(350, 470);
+    assertFalse(tracker.nextRegion(roi));
+    assertArrayEquals(WHOLE_FRAME, roi);
+  }
+
+  @Test
+  public void missStreakFallsBackToTheWholeFrame() {
+    addFinderPatterns(100, 120, 120);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(tracker.nextRegion(roi));
+      tracker.onDecoded(false, true);
+    }
+    assertTrue(tracker.nextRegion(roi));
+    tracker.onDecoded(false, true);
+    assertFalse(tracker.nextRegion(roi));
+    assertArrayEquals(WHOLE_FRAME, roi);
+  }
+
+  @Test
+  public void missesOnTheWholeFrameDoNotCountAsStreak() {
+    tracker.addPoint(100, 120);
+    for (int i = 0; i < 5; i++) {
+      assertFalse(tracker.nextRegion(roi));
+      tracker.onDecoded(false, false);
+    }
+    tracker.addPoint(220, 120);
+    tracker.addPoint(100, 240);
+    assertTrue(tracker.nextRegion(roi));
+  }
+
+  @Test
+  public void pointsExpireAfterTheirTtl() {
+    addFinderPatterns(100, 120, 120);
+    // Whole frame decodes, so the miss streak does not interfere.
+    for (int i = 0; i < 6; i++) {
+      tracker.onDecoded(false, false);
+      assertTrue(tracker.nextRegion(roi));
+    }
+    tracker.onDecoded(false, false);
+    assertFalse(tracker.nextRegion(roi));
+    assertArrayEquals(WHOLE_FRAME, roi);
+  }
+
+  @Test
+  public void onlyFreshPointsShapeTheRegion() {
+    tracker.addPoint(10, 10);
+    for (int i = 0; i < 4; i++) {
+      tracker.onDecoded(false, false);
+    }
+    addFinderPatterns(100, 120, 120);
+    assertTrue(tracker.nextRegion(roi));
+    // The old corner point still counts.
+    assertTrue(roi[0] == 0 && roi[1] == 0);
+    for (int i = 0; i < 3; i++) {
+      tracker.onDecoded(false, false);
+    }
+    assertTrue(tracker.nextRegion(roi));
+    assertArrayEquals(new int[] {40, 60, 240, 240}, roi);
+  }
+
+  @Test
+  public void successForgetsThePoints() {
+    addFinderPatterns(100, 120, 120);
+    assertTrue(tracker.nextRegion(roi));
+    tracker.onDecoded(true, true);
+    assertFalse(tracker.nextRegion(roi));
+  }
+
+  @Test
+  public void pointsAfterAForgetAreTracked() {
+    // Leave the ring buffer half full before forgetting.
+    for (int i = 0; i < 5; i++) {
+      tracker.addPoint(10 + i, 10);
+    }
+    tracker.onDecoded(true, false);
+    addFinderPatterns(100, 120, 120);
+    assertTrue(tracker.nextRegion(roi));
+    assertArrayEquals(new int[] {40, 60, 240, 240}, roi);
+  }
+
+  @Test
+  public void resetForgetsThePoints() {
+    addFinderPatterns(100, 120, 120);
+    tracker.reset(WIDTH, HEIGHT);
+    assertFalse(tracker.nextRegion(roi));
+    addFinderPatterns(100, 120, 120);
+    assertTrue(tracker.nextRegion(roi));
+    assertArrayEquals(new int[] {40, 60, 240, 240}, roi);
+  }
+
+  @Test
+  public void sameFrameSizeKeepsThePoints() {
+    addFinderPatterns(100, 120, 120);
+    tracker.setFrameSize(WIDTH, HEIGHT);
+    assertTrue(tracker.nextRegion(roi));
+    assertArrayEquals(new int[] {40, 60, 240, 240}, roi);
+  }
+
+  @Test
+  public void newFrameSizeResetsTheTracker() {
+    addFinderPatterns(100, 120, 120);
+    tracker.setFrameSize(480, 640);
+    assertFalse(tracker.nextRegion(roi));
+    assertArrayEquals(new int[] {0, 0, 480, 640}, roi);
+  }
+
+  @Test
+  public void unsizedTrackerIsSizedByTheFirstFrame() {
+    RoiTracker unsized = new RoiTracker();
+    unsized.setFrameSize(WIDTH, HEIGHT);
+    assertFalse(unsized.nextRegion(roi));
+    assertArrayEquals(WHOLE_FRAME, roi);
+  }
+
+  @Test
+  public void forgetPointsKeepsTheFrameSize() {
+    addFinderPatterns(100, 120, 120);
+    tracker.forgetPoints();
+    assertFalse(tracker.nextRegion(roi));
+    assertArrayEquals(WHOLE_FRAME, roi);
+  }
+
+  // The three finder patterns of a code whose top left one is at |x|, |y|.
+  private void addFinderPatterns(float x, float y, float size) {
+    tracker.addPoint(x, y + size);
+    tracker.addPoint(x, y);
+    tracker.addPoint(x + size, y);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zijunlin.Zxing.decoding;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import org.appspot.apprtc.util.MicroBenchmark;
+
+/**
+ * Measures the result latency of a successful decode, from the preview frame to the result and
+ * thumbnail the capture handler passes on, with the thumbnail off, on, and rendered the way
+ * DecodeHandler did before {@link BarcodeThumbnail}:
+ *
+ *   java com.zijunlin.Zxing.decoding.ThumbnailBenchmark [iterations]
+ *
+ * "off" is the decode alone. "on" adds what a success costs with the thumbnail: the worker
+ * hands over its crop buffer and allocates a new one on the next frame, and the handler
+ * subsamples the crop into its reused pixels. "legacy" takes the crop the same way but converts
+ * all of it into a new ARGB array on the decode thread, as renderCroppedGreyscaleBitmap() did,
+ * so the two differ only in the rendering. Bitmap creation and setPixels() need a device and
+ * are left out of both.
+ */
+public final class ThumbnailBenchmark {
+
+  private static final int DEFAULT_ITERATIONS = 1000;
+  private static final int[][] SIZES = {{640, 480}, {1280, 720}};
+  // Same limits as CameraManager.
+  private static final int MIN_FRAME_SIZE = 240;
+  private static final int MAX_FRAME_SIZE = 480;
+  private static final int MODULE_SIZE = 4;
+  private static final String TEXT = "https://apprtc.example/android/?room=421337&peer=905112";
+
+  private ThumbnailBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+    BitMatrix matrix = new QRCodeWriter().encode(TEXT, BarcodeFormat.QR_CODE, 0, 0);
+    for (int[] size : SIZES) {
+      String name = size[0] + "x" + size[1];
+      Scan scan = new Scan(matrix, size[0], size[1]);
+      for (final String mode : new String[] {"off", "on", "legacy"}) {
+        final Scan modeScan = scan;
+        modeScan.decodeOnce(mode);
+        MicroBenchmark.measure(name + " thumbnail " + mode, iterations,
+            new MicroBenchmark.Operation() {
+              @Override
+              public void run() {
+                modeScan.decodeOnce(mode);
+              }
+            });
+      }
+    }
+  }
+
+  private static final class Scan {
+    final byte[] frame;
+    final int width;
+    final int height;
+    final int[] rect;
+    final FrameDecoder decoder;
+    final BarcodeThumbnail thumbnail = new BarcodeThumbnail();
+
+    Scan(BitMatrix matrix, int width, int height) {
+      this.width = width;
+      this.height = height;
+      rect = framingRect(width, height);
+      frame = render(matrix, width, height, rect);
+      RoiTracker tracker = new RoiTracker();
+      tracker.reset(rect[2], rect[3]);
+      decoder = new FrameDecoder(FrameDecoder.buildHints(null, null, ScanProfile.QR_FAST, null),
+          ScanProfile.QR_FAST, tracker);
+    }
+
+    void decodeOnce(String mode) {
+      Result result = decoder.decode(frame, width, height, rect[0], rect[1], rect[2], rect[3]);
+      if (result == null || !TEXT.equals(result.getText())) {
+        throw new IllegalStateException("Frame " + width + "x" + height + " did not decode");
+      }
+      int cropWidth = decoder.getCropWidth();
+      int cropHeight = decoder.getCropHeight();
+      if (mode.equals("on")) {
+        thumbnail.subsample(decoder.takeLuminance(), cropWidth, cropHeight);
+      } else if (mode.equals("legacy")) {
+        legacyPixels(decoder.takeLuminance(), cropWidth, cropHeight);
+      }
+    }
+  }
+
+  // The pixel part of the old PlanarYUVLuminanceSource.renderCroppedGreyscaleBitmap().
+  private static int[] legacyPixels(byte[] yuv, int width, int height) {
+    int[] pixels = new int[width * height];
+    int inputOffset = 0;
+    for (int y = 0; y < height; y++) {
+      int outputOffset = y * width;
+      for (int x = 0; x < width; x++) {
+        int grey = yuv[inputOffset + x] & 0xff;
+        pixels[outputOffset + x] = 0xFF000000 | (grey * 0x00010101);
+      }
+      inputOffset += width;
+    }
+    return pixels;
+  }
+
+  // Draws |matrix| with whole pixel modules in the middle of the framing rect of a portrait
+  // frame and returns the landscape Y plane the camera would deliver.
+  private static byte[] render(BitMatrix matrix, int width, int height, int[] rect) {
+    int portraitWidth = height;
+    int side = matrix.getWidth() * MODULE_SIZE;
+    int left = rect[0] + (rect[2] - side) / 2;
+    int top = rect[1] + (rect[3] - side) / 2;
+    byte[] frame = new byte[width * height];
+    for (int y = 0; y < width; y++) {
+      for (int x = 0; x < portraitWidth; x++) {
+        int mx = (x - left) / MODULE_SIZE;
+        int my = (y - top) / MODULE_SIZE;
+        boolean dark = x >= left && mx < matrix.getWidth() && y >= top
+            && my < matrix.getHeight() && matrix.get(mx, my);
+        // Portrait pixel (x, y) is landscape pixel (y, height - 1 - x).
+        frame[(height - 1 - x) * width + y] = (byte) (dark ? 40 : 210);
+      }
+    }
+    return frame;
+  }
+
+  // See DecodeBenchmark.framingRect().
+  private static int[] framingRect(int width, int height) {
+    int portraitWidth = height;
+    int portraitHeight = width;
+    int rectWidth = Math.max(MIN_FRAME_SIZE, Math.min(MAX_FRAME_SIZE, portraitWidth * 3 / 4));
+    int rectHeight = Math.max(MIN_FRAME_SIZE, Math.min(MAX_FRAME_SIZE, portraitHeight * 3 / 4));
+    return new int[] {(portraitWidth - rectWidth) / 2, (portraitHeight - rectHeight) / 2,
+        rectWidth, rectHeight};
+  }
+}
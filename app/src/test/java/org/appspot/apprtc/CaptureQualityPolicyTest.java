@@ -0,0 +1,222 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays stats traces through {@link CaptureQualityPolicy}. The traces are in
+ * the CSV format of {@link StatsRecordReader}, one record per stats tick.
+ */
+public class CaptureQualityPolicyTest {
+  private static final String[] FORMATS = {"1280x720", "640x480", "320x240", "256x144"};
+
+  private static class Change {
+    final long timeMs;
+    final String format;
+    final int framerate;
+    final String reason;
+
+    Change(long timeMs, String format, int framerate, String reason) {
+      this.timeMs = timeMs;
+      this.format = format;
+      this.framerate = framerate;
+      this.reason = reason;
+    }
+
+    int level() {
+      return Arrays.asList(FORMATS).indexOf(format);
+    }
+
+    @Override
+    public String toString() {
+      return timeMs + " " + format + "@" + framerate + " " + reason;
+    }
+  }
+
+  @Test
+  public void bandwidthDropStepsDownAfterTwoTicksAndBackUpOnce() throws IOException {
+    List<Change> changes = replay("quality_bandwidth_drop.csv");
+    assertEquals(changes.toString(), 2, changes.size());
+    // The drop starts at 20 s; one tick is not enough.
+    assertEquals(21000, changes.get(0).timeMs, 100);
+    assertEquals("640x480", changes.get(0).format);
+    assertEquals(15, changes.get(0).framerate);
+    assertEquals(CaptureQualityPolicy.REASON_BANDWIDTH_DOWN, changes.get(0).reason);
+    // Bandwidth is back at 40 s; the upgrade waits for UP_TICKS ticks.
+    assertEquals(44000, changes.get(1).timeMs, 100);
+    assertEquals("1280x720", changes.get(1).format);
+    assertEquals(CaptureQualityPolicy.REASON_BANDWIDTH_UP, changes.get(1).reason);
+    assertRateLimited(changes);
+  }
+
+  @Test
+  public void bandwidthJitterDoesNotFlap() throws IOException {
+    // 1.3 and 1.6 Mbps every other tick, around the 1280x720 threshold.
+    List<Change> changes = replay("quality_bandwidth_jitter.csv");
+    assertEquals(changes.toString(), 1, changes.size());
+    assertEquals("1280x720", changes.get(0).format);
+    assertEquals(15, changes.get(0).framerate);
+  }
+
+  @Test
+  public void cpuOveruseStepsDownOneLevelAtATime() throws IOException {
+    List<Change> changes = replay("quality_cpu_overuse.csv");
+    List<Change> cpuChanges = new ArrayList<Change>();
+    for (Change change : changes) {
+      if (change.reason.equals(CaptureQualityPolicy.REASON_CPU)) {
+        cpuChanges.add(change);
+      }
+    }
+    assertEquals(changes.toString(), 3, cpuChanges.size());
+    for (int i = 0; i < cpuChanges.size(); i++) {
+      assertEquals(i + 1, cpuChanges.get(i).level());
+    }
+    // The load is low again from 30 s on; the cap is lifted step by step.
+    Change last = changes.get(changes.size() - 1);
+    assertEquals(CaptureQualityPolicy.REASON_BANDWIDTH_UP, last.reason);
+    assertTrue(last.timeMs > 30000);
+    assertTrue(last.level() < FORMATS.length - 1);
+    assertRateLimited(changes);
+  }
+
+  @Test
+  public void cpuStepsWaitForTheAverageToCatchUp() {
+    CaptureQualityPolicy policy = new CaptureQualityPolicy(0, 0);
+    assertTrue(policy.update(0, 3000000, 30, 95));
+    assertEquals(640, policy.getWidth());
+    assertEquals(CaptureQualityPolicy.REASON_CPU, policy.getReason());
+    // Still high, but within MIN_CPU_INTERVAL_MS.
+    for (long t = 1000; t < 6000; t += 1000) {
+      assertFalse(policy.update(t, 3000000, 30, 95));
+    }
+    assertTrue(policy.update(6000, 3000000, 30, 95));
+    assertEquals(320, policy.getWidth());
+  }
+
+  @Test
+  public void starvedEncoderStepsDown() {
+    CaptureQualityPolicy policy = new CaptureQualityPolicy(0, 0);
+    assertFalse(policy.update(0, 3000000, 30, 40));
+    assertTrue(policy.update(1000, 3000000, 10, 40));
+    assertEquals(640, policy.getWidth());
+    assertEquals(CaptureQualityPolicy.REASON_ENCODER_STARVED, policy.getReason());
+  }
+
+  @Test
+  public void upgradesWaitForHeadroom() {
+    CaptureQualityPolicy policy = new CaptureQualityPolicy(0, 0);
+    policy.update(0, 600000, 15, 40);
+    assertTrue(policy.update(1000, 600000, 15, 40));
+    assertEquals(640, policy.getWidth());
+    // Enough for 1280x720 at 15 fps, but not with UP_MARGIN on top; only the
+    // frame rate goes up.
+    for (long t = 20000; t < 60000; t += 1000) {
+      policy.update(t, 1500000, policy.getFramerate(), 40);
+      assertEquals(640, policy.getWidth());
+    }
+    assertEquals(30, policy.getFramerate());
+    for (long t = 60000; t < 64000; t += 1000) {
+      assertFalse(policy.update(t, 2000000, 30, 40));
+    }
+    assertTrue(policy.update(64000, 2000000, 30, 40));
+    assertEquals(1280, policy.getWidth());
+  }
+
+  @Test
+  public void unknownValuesChangeNothing() {
+    CaptureQualityPolicy policy = new CaptureQualityPolicy(0, 0);
+    for (long t = 0; t < 60000; t += 1000) {
+      assertFalse(policy.update(t, -1, -1, -1));
+    }
+    assertEquals(1280, policy.getWidth());
+    assertEquals(30, policy.getFramerate());
+  }
+
+  @Test
+  public void neverGoesAboveTheMaximumFormat() {
+    CaptureQualityPolicy policy = new CaptureQualityPolicy(640, 480);
+    assertEquals(640, policy.getWidth());
+    for (long t = 0; t < 60000; t += 1000) {
+      policy.update(t, 10000000, 30, 20);
+      assertEquals(640, policy.getWidth());
+    }
+  }
+
+  // Changes must respect the minimum intervals, and upgrades go up one format
+  // at a time.
+  private static void assertRateLimited(List<Change> changes) {
+    for (int i = 1; i < changes.size(); i++) {
+      Change previous = changes.get(i - 1);
+      Change change = changes.get(i);
+      long intervalMs = change.timeMs - previous.timeMs;
+      String message = changes.toString();
+      if (change.reason.equals(CaptureQualityPolicy.REASON_BANDWIDTH_UP)) {
+        assertTrue(message, intervalMs >= 10000);
+        assertTrue(message, change.level() >= previous.level() - 1);
+      } else if (change.reason.equals(CaptureQualityPolicy.REASON_BANDWIDTH_DOWN)) {
+        assertTrue(message, intervalMs >= 2000);
+      } else {
+        assertTrue(message, intervalMs >= 6000);
+        assertEquals(message, previous.level() + 1, change.level());
+      }
+    }
+  }
+
+  // Feeds a trace to a new policy and returns its changes, timed relative to
+  // the first record.
+  private static List<Change> replay(String trace) throws IOException {
+    InputStream in = CaptureQualityPolicyTest.class.getResourceAsStream(trace);
+    if (in == null) {
+      throw new IOException("No trace " + trace);
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    try {
+      List<String> header = Arrays.asList(reader.readLine().split(","));
+      int timestampField = header.indexOf("timestampMs");
+      int bandwidthField = header.indexOf("availableSendBandwidth");
+      int framerateField = header.indexOf("frameRateSent");
+      int cpuField = header.indexOf("cpuAvg3");
+      CaptureQualityPolicy policy = new CaptureQualityPolicy(0, 0);
+      List<Change> changes = new ArrayList<Change>();
+      long startMs = -1;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split(",");
+        long timestampMs = Long.parseLong(fields[timestampField]);
+        if (startMs < 0) {
+          startMs = timestampMs;
+        }
+        if (policy.update(timestampMs, Long.parseLong(fields[bandwidthField]),
+            Long.parseLong(fields[framerateField]), Integer.parseInt(fields[cpuField]))) {
+          changes.add(new Change(timestampMs - startMs,
+              policy.getWidth() + "x" + policy.getHeight(), policy.getFramerate(),
+              policy.getReason()));
+        }
+      }
+      return changes;
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.util.MicroBenchmark;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Scanner;
+
+/**
+ * Measures the cost of one {@link CpuMonitor} sample against the real /proc
+ * and /sys files of the machine it runs on, compared with the reader and
+ * Scanner sampling CpuMonitor did before:
+ * java org.appspot.apprtc.CpuMonitorBenchmark [iterations]
+ * <p/>
+ * <p>Where cpufreq is missing, as on most VMs and containers, the total load
+ * is not available, but per-core and process load still are; the values of
+ * the last sample are printed for a check.
+ */
+public class CpuMonitorBenchmark {
+  private static final int DEFAULT_ITERATIONS = 2000;
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+    final CpuMonitor monitor = new CpuMonitor();
+    final Legacy legacy = new Legacy();
+
+    MicroBenchmark.measure("sample legacy", iterations, new MicroBenchmark.Operation() {
+      @Override
+      public void run() {
+        legacy.sample();
+      }
+    });
+    MicroBenchmark.measure("sample monitor", iterations, new MicroBenchmark.Operation() {
+      @Override
+      public void run() {
+        monitor.sampleCpuUtilization();
+      }
+    });
+
+    // Let some load accumulate so the last sample has non-zero deltas.
+    Thread.sleep(200);
+    boolean total = monitor.sampleCpuUtilization();
+    StringBuilder cores = new StringBuilder();
+    for (int i = 0; i < monitor.getCoreCount(); i++) {
+      cores.append(i == 0 ? "" : " ").append(monitor.getCoreLoad(i));
+    }
+    System.out.println("total " + (total ? monitor.getCpuCurrent() + "%" : "unavailable")
+        + ", cores [" + cores + "], process " + monitor.getProcessCpu() + "%");
+    monitor.stop();
+  }
+
+  // The file reading of one CpuMonitor sample before it kept the files open,
+  // unchanged except that /proc/stat is read even without cpufreq; the old
+  // sample returned early there.
+  private static class Legacy {
+    private int cpusPresent = -1;
+    private String[] maxPath;
+    private String[] curPath;
+
+    void sample() {
+      if (cpusPresent < 0) {
+        init();
+      }
+      for (int i = 0; i < cpusPresent; i++) {
+        readFreqFromFile(maxPath[i]);
+        readFreqFromFile(curPath[i]);
+      }
+      readIdleAndRunTime();
+    }
+
+    private void init() {
+      cpusPresent = 0;
+      try {
+        FileReader fin = new FileReader("/sys/devices/system/cpu/present");
+        try {
+          BufferedReader rdr = new BufferedReader(fin);
+          Scanner scanner = new Scanner(rdr).useDelimiter("[-\n]");
+          scanner.nextInt();  // Skip leading number 0.
+          cpusPresent = 1 + (scanner.hasNextInt() ? scanner.nextInt() : 0);
+          scanner.close();
+        } finally {
+          fin.close();
+        }
+      } catch (IOException e) {
+        // No CPUs.
+      }
+      maxPath = new String [cpusPresent];
+      curPath = new String [cpusPresent];
+      for (int i = 0; i < cpusPresent; i++) {
+        maxPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq";
+        curPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_cur_freq";
+      }
+    }
+
+    private long readFreqFromFile(String fileName) {
+      long number = 0;
+      try {
+        FileReader fin = new FileReader(fileName);
+        try {
+          BufferedReader rdr = new BufferedReader(fin);
+          Scanner scannerC = new Scanner(rdr);
+          number = scannerC.nextLong();
+          scannerC.close();
+        } catch (Exception e) {
+          // CPU presumably got offline just after we opened file.
+        } finally {
+          fin.close();
+        }
+      } catch (FileNotFoundException e) {
+        // CPU is offline, not an error.
+      } catch (IOException e) {
+        // Error closing file.
+      }
+      return number;
+    }
+
+    private long[] readIdleAndRunTime() {
+      long runTime = 0;
+      long idleTime = 0;
+      try {
+        FileReader fin = new FileReader("/proc/stat");
+        try {
+          BufferedReader rdr = new BufferedReader(fin);
+          Scanner scanner = new Scanner(rdr);
+          scanner.next();
+          long user = scanner.nextLong();
+          long nice = scanner.nextLong();
+          long sys = scanner.nextLong();
+          runTime = user + nice + sys;
+          idleTime = scanner.nextLong();
+          scanner.close();
+        } catch (Exception e) {
+          return null;
+        } finally {
+          fin.close();
+        }
+      } catch (IOException e) {
+        return null;
+      }
+      return new long[] {runTime, idleTime};
+    }
+  }
+}
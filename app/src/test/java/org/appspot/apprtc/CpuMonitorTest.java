@@ -0,0 +1,195 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Feeds {@link CpuMonitor} snapshots of /proc/stat and /proc/self/stat and
+ * compares the loads it computes with a plain String parse of the same
+ * snapshots.
+ */
+public class CpuMonitorTest {
+  // Fields after the command name of /proc/self/stat before utime.
+  private static final int SELF_STAT_UTIME_INDEX = 11;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Random random = new Random(7);
+  private File cpuDir;
+  private File procStat;
+  private File selfStat;
+
+  @Test
+  public void matchesReferenceParse() throws IOException {
+    check(4, -1);
+  }
+
+  @Test
+  public void offlineCoreKeepsItsCounters() throws IOException {
+    check(4, 2);
+  }
+
+  @Test
+  public void cpuLinesLongerThanTheInitialBuffer() throws IOException {
+    // Over 8 KB of cpu lines, followed by a long intr line.
+    check(256, -1);
+  }
+
+  // Samples three snapshots of |cores| cores, leaving out the line of
+  // |offline| if it is a core, and checks every sample.
+  private void check(int cores, int offline) throws IOException {
+    cpuDir = folder.newFolder("cpu");
+    procStat = folder.newFile("stat");
+    selfStat = folder.newFile("self_stat");
+    write(new File(cpuDir, "present"), "0-" + (cores - 1) + "\n");
+
+    CpuMonitor monitor = new CpuMonitor(cpuDir.getPath(), procStat.getPath(),
+        selfStat.getPath());
+    long[][] counters = new long[cores + 1][8];
+    long processTime = 0;
+    String lastStat = null;
+    String lastSelf = null;
+    try {
+      for (int sample = 0; sample < 3; sample++) {
+        for (long[] line : counters) {
+          for (int i = 0; i < line.length; i++) {
+            line[i] += random.nextInt(1000);
+          }
+        }
+        processTime += random.nextInt(500);
+        String stat = procStat(counters, offline);
+        String self = selfStat(processTime);
+        write(procStat, stat);
+        write(selfStat, self);
+        // No cpufreq under cpuDir, so there is no total, but the rest is updated.
+        monitor.sampleCpuUtilization();
+
+        assertEquals(cores, monitor.getCoreCount());
+        for (int core = 0; core < cores; core++) {
+          assertEquals("core " + core + " of sample " + sample,
+              coreLoad(lastStat, stat, core), monitor.getCoreLoad(core));
+        }
+        assertEquals("sample " + sample, processLoad(lastStat, lastSelf, stat, self),
+            monitor.getProcessCpu());
+        lastStat = stat;
+        lastSelf = self;
+      }
+    } finally {
+      monitor.stop();
+    }
+    if (offline >= 0) {
+      assertEquals(0, monitor.getCoreLoad(offline));
+    }
+  }
+
+  private String procStat(long[][] counters, int offline) {
+    StringBuilder stat = new StringBuilder();
+    for (int line = 0; line < counters.length; line++) {
+      int core = line - 1;
+      if (core == offline && core >= 0) {
+        continue;
+      }
+      stat.append(core < 0 ? "cpu " : "cpu" + core);
+      for (long value : counters[line]) {
+        stat.append(' ').append(value);
+      }
+      // guest and guest_nice, not counted.
+      stat.append(" 0 0\n");
+    }
+    stat.append("intr ").append(random.nextInt(1000000));
+    for (int i = 0; i < 2000; i++) {
+      stat.append(' ').append(random.nextInt(100));
+    }
+    stat.append("\nctxt 123456\nbtime 1450000000\nprocesses 4242\n");
+    return stat.toString();
+  }
+
+  // A command name with spaces and parentheses, as an app may have.
+  private static String selfStat(long processTime) {
+    long utime = processTime / 3;
+    long stime = processTime - utime;
+    return "4242 (org.appspot (x) apprtc) S 1 4242 0 0 -1 4194560 7000 0 12 0 " + utime
+        + " " + stime + " 0 0 20 0 42 0 100 1000000 5000\n";
+  }
+
+  // Reference parse: the fields of the "cpu" line of |core| (-1 for the
+  // total), or null if it has none.
+  private static long[] cpuLine(String stat, int core) {
+    if (stat == null) {
+      return new long[8];
+    }
+    String name = core < 0 ? "cpu" : "cpu" + core;
+    for (String line : stat.split("\n")) {
+      String[] fields = line.trim().split("\\s+");
+      if (fields[0].equals(name)) {
+        long[] values = new long[8];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = Long.parseLong(fields[i + 1]);
+        }
+        return values;
+      }
+    }
+    return null;
+  }
+
+  private static int coreLoad(String lastStat, String stat, int core) {
+    long[] last = cpuLine(lastStat, core);
+    long[] now = cpuLine(stat, core);
+    if (now == null) {
+      return 0;
+    }
+    if (last == null) {
+      last = new long[8];
+    }
+    long run = now[0] + now[1] + now[2] - last[0] - last[1] - last[2];
+    long all = run + now[3] - last[3];
+    return all <= 0 ? 0 : (int) (100 * run / all);
+  }
+
+  private static int processLoad(String lastStat, String lastSelf, String stat, String self) {
+    long[] last = cpuLine(lastStat, -1);
+    long[] now = cpuLine(stat, -1);
+    long total = 0;
+    for (int i = 0; i < 8; i++) {
+      total += now[i] - last[i];
+    }
+    long process = processTime(self) - (lastSelf == null ? 0 : processTime(lastSelf));
+    assertTrue(total > 0);
+    return (int) (100 * process / total);
+  }
+
+  private static long processTime(String self) {
+    String[] fields = self.substring(self.lastIndexOf(')') + 1).trim().split("\\s+");
+    return Long.parseLong(fields[SELF_STAT_UTIME_INDEX])
+        + Long.parseLong(fields[SELF_STAT_UTIME_INDEX + 1]);
+  }
+
+  private static void write(File file, String text) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(text.getBytes("US-ASCII"));
+    } finally {
+      out.close();
+    }
+  }
+}
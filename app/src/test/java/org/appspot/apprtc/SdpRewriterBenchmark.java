@@ -0,0 +1,267 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.util.MicroBenchmark;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares {@link SdpRewriter} with the static preferCodec() and
+ * setStartBitrate() it replaced in PeerConnectionClient, on the offers and
+ * answers in the test resources:
+ * java org.appspot.apprtc.SdpRewriterBenchmark [iterations]
+ * <p/>
+ * <p>"local" is the munging of SDPObserver.onCreateSuccess() (prefer ISAC and
+ * H264), "remote" that of setRemoteDescription() (the same plus the video and
+ * audio start bitrates). Both implementations must produce the same
+ * description before anything is timed.
+ */
+public class SdpRewriterBenchmark {
+    private static final int DEFAULT_ITERATIONS = 20000;
+    private static final String[] DESCRIPTIONS = {
+            "offer_audio_video.sdp", "answer_audio_video.sdp", "offer_audio_only.sdp"};
+    private static final int VIDEO_START_BITRATE = 1000;
+    private static final int AUDIO_START_BITRATE = 32;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        for (String name : DESCRIPTIONS) {
+            final String sdp = readResource(name);
+            checkSame(name + " local", legacyLocal(sdp), rewriterLocal(sdp));
+            checkSame(name + " remote", legacyRemote(sdp), rewriterRemote(sdp));
+            MicroBenchmark.measure(name + " local legacy", iterations,
+                    new MicroBenchmark.Operation() {
+                        @Override
+                        public void run() {
+                            legacyLocal(sdp);
+                        }
+                    });
+            MicroBenchmark.measure(name + " local rewriter", iterations,
+                    new MicroBenchmark.Operation() {
+                        @Override
+                        public void run() {
+                            rewriterLocal(sdp);
+                        }
+                    });
+            MicroBenchmark.measure(name + " remote legacy", iterations,
+                    new MicroBenchmark.Operation() {
+                        @Override
+                        public void run() {
+                            legacyRemote(sdp);
+                        }
+                    });
+            MicroBenchmark.measure(name + " remote rewriter", iterations,
+                    new MicroBenchmark.Operation() {
+                        @Override
+                        public void run() {
+                            rewriterRemote(sdp);
+                        }
+                    });
+        }
+    }
+
+    private static String legacyLocal(String sdp) {
+        sdp = Legacy.preferCodec(sdp, "ISAC", true);
+        return Legacy.preferCodec(sdp, "H264", false);
+    }
+
+    private static String rewriterLocal(String sdp) {
+        return SdpRewriter.parse(sdp)
+                .preferCodec("ISAC", true)
+                .preferCodec("H264", false)
+                .build();
+    }
+
+    private static String legacyRemote(String sdp) {
+        sdp = legacyLocal(sdp);
+        sdp = Legacy.setStartBitrate("VP8", true, sdp, VIDEO_START_BITRATE);
+        sdp = Legacy.setStartBitrate("VP9", true, sdp, VIDEO_START_BITRATE);
+        sdp = Legacy.setStartBitrate("H264", true, sdp, VIDEO_START_BITRATE);
+        return Legacy.setStartBitrate("opus", false, sdp, AUDIO_START_BITRATE);
+    }
+
+    private static String rewriterRemote(String sdp) {
+        return SdpRewriter.parse(sdp)
+                .preferCodec("ISAC", true)
+                .preferCodec("H264", false)
+                .setStartBitrate("VP8", true, VIDEO_START_BITRATE)
+                .setStartBitrate("VP9", true, VIDEO_START_BITRATE)
+                .setStartBitrate("H264", true, VIDEO_START_BITRATE)
+                .setStartBitrate("opus", false, AUDIO_START_BITRATE)
+                .build();
+    }
+
+    private static void checkSame(String name, String expected, String actual) {
+        if (!expected.equals(actual)) {
+            throw new IllegalStateException(name + " differs:\n" + expected + "\n---\n" + actual);
+        }
+    }
+
+    private static String readResource(String name) throws IOException {
+        InputStream in = SdpRewriterBenchmark.class.getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("No resource " + name);
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    // The SDP munging PeerConnectionClient had before SdpRewriter, unchanged.
+    private static class Legacy {
+        private static final String TAG = "PCRTCClient";
+        private static final String VIDEO_CODEC_PARAM_START_BITRATE =
+                "x-google-start-bitrate";
+        private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
+
+        private static String setStartBitrate(String codec, boolean isVideoCodec,
+                                              String sdpDescription, int bitrateKbps) {
+            String[] lines = sdpDescription.split("\r\n");
+            int rtpmapLineIndex = -1;
+            boolean sdpFormatUpdated = false;
+            String codecRtpMap = null;
+            // Search for codec rtpmap in format
+            // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+            String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
+            Pattern codecPattern = Pattern.compile(regex);
+            for (int i = 0; i < lines.length; i++) {
+                Matcher codecMatcher = codecPattern.matcher(lines[i]);
+                if (codecMatcher.matches()) {
+                    codecRtpMap = codecMatcher.group(1);
+                    rtpmapLineIndex = i;
+                    break;
+                }
+            }
+            if (codecRtpMap == null) {
+                Log.w(TAG, "No rtpmap for " + codec + " codec");
+                return sdpDescription;
+            }
+            Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap
+                    + " at " + lines[rtpmapLineIndex]);
+
+            // Check if a=fmtp string already exist in remote SDP for this codec and
+            // update it with new bitrate parameter.
+            regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
+            codecPattern = Pattern.compile(regex);
+            for (int i = 0; i < lines.length; i++) {
+                Matcher codecMatcher = codecPattern.matcher(lines[i]);
+                if (codecMatcher.matches()) {
+                    Log.d(TAG, "Found " + codec + " " + lines[i]);
+                    if (isVideoCodec) {
+                        lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE
+                                + "=" + bitrateKbps;
+                    } else {
+                        lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE
+                                + "=" + (bitrateKbps * 1000);
+                    }
+                    Log.d(TAG, "Update remote SDP line: " + lines[i]);
+                    sdpFormatUpdated = true;
+                    break;
+                }
+            }
+
+            StringBuilder newSdpDescription = new StringBuilder();
+            for (int i = 0; i < lines.length; i++) {
+                newSdpDescription.append(lines[i]).append("\r\n");
+                // Append new a=fmtp line if no such line exist for a codec.
+                if (!sdpFormatUpdated && i == rtpmapLineIndex) {
+                    String bitrateSet;
+                    if (isVideoCodec) {
+                        bitrateSet = "a=fmtp:" + codecRtpMap + " "
+                                + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
+                    } else {
+                        bitrateSet = "a=fmtp:" + codecRtpMap + " "
+                                + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
+                    }
+                    Log.d(TAG, "Add remote SDP line: " + bitrateSet);
+                    newSdpDescription.append(bitrateSet).append("\r\n");
+                }
+
+            }
+            return newSdpDescription.toString();
+        }
+
+        private static String preferCodec(
+                String sdpDescription, String codec, boolean isAudio) {
+            String[] lines = sdpDescription.split("\r\n");
+            int mLineIndex = -1;
+            String codecRtpMap = null;
+            // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+            String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
+            Pattern codecPattern = Pattern.compile(regex);
+            String mediaDescription = "m=video ";
+            if (isAudio) {
+                mediaDescription = "m=audio ";
+            }
+            for (int i = 0; (i < lines.length)
+                    && (mLineIndex == -1 || codecRtpMap == null); i++) {
+                if (lines[i].startsWith(mediaDescription)) {
+                    mLineIndex = i;
+                    continue;
+                }
+                Matcher codecMatcher = codecPattern.matcher(lines[i]);
+                if (codecMatcher.matches()) {
+                    codecRtpMap = codecMatcher.group(1);
+                    continue;
+                }
+            }
+            if (mLineIndex == -1) {
+                Log.w(TAG, "No " + mediaDescription + " line, so can't prefer " + codec);
+                return sdpDescription;
+            }
+            if (codecRtpMap == null) {
+                Log.w(TAG, "No rtpmap for " + codec);
+                return sdpDescription;
+            }
+            Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + ", prefer at "
+                    + lines[mLineIndex]);
+            String[] origMLineParts = lines[mLineIndex].split(" ");
+            if (origMLineParts.length > 3) {
+                StringBuilder newMLine = new StringBuilder();
+                int origPartIndex = 0;
+                // Format is: m=<media> <port> <proto> <fmt> ...
+                newMLine.append(origMLineParts[origPartIndex++]).append(" ");
+                newMLine.append(origMLineParts[origPartIndex++]).append(" ");
+                newMLine.append(origMLineParts[origPartIndex++]).append(" ");
+                newMLine.append(codecRtpMap);
+                for (; origPartIndex < origMLineParts.length; origPartIndex++) {
+                    if (!origMLineParts[origPartIndex].equals(codecRtpMap)) {
+                        newMLine.append(" ").append(origMLineParts[origPartIndex]);
+                    }
+                }
+                lines[mLineIndex] = newMLine.toString();
+                Log.d(TAG, "Change media description: " + lines[mLineIndex]);
+            } else {
+                Log.e(TAG, "Wrong SDP media description format: " + lines[mLineIndex]);
+            }
+            StringBuilder newSdpDescription = new StringBuilder();
+            for (String line : lines) {
+                newSdpDescription.append(line).append("\r\n");
+            }
+            return newSdpDescription.toString();
+        }
+    }
+}
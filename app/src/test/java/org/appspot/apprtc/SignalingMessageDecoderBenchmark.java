@@ -0,0 +1,265 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.signaling.SignalingMessageDecoder;
+import org.appspot.apprtc.util.MicroBenchmark;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares {@link SignalingMessageDecoder} with the JSONObject parsing that
+ * WebSocketRTCClient did for every message before, on the signaling traffic of
+ * a four client room in the test resources (one message per line):
+ * java org.appspot.apprtc.SignalingMessageDecoderBenchmark [iterations]
+ * <p/>
+ * <p>"json" parses every message into a JSONObject, as the app did; "decoder"
+ * is the current receive path of WebSocketRTCClient and
+ * HeadlessSignalingClient, the byte scan with {@code Json} for the messages
+ * it does not handle. One iteration is the whole traffic, or only its
+ * "candidate" messages. Both paths must fire the same callbacks before
+ * anything is timed.
+ */
+public class SignalingMessageDecoderBenchmark {
+    private static final int DEFAULT_ITERATIONS = 2000;
+    private static final String TRAFFIC = "signaling_traffic.txt";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        final List<byte[]> traffic = readTraffic();
+        final List<byte[]> candidates = new ArrayList<byte[]>();
+        for (byte[] message : traffic) {
+            if (new String(message, UTF_8).contains("\"type\": \"candidate\"")) {
+                candidates.add(message);
+            }
+        }
+
+        RecordingEvents jsonEvents = new RecordingEvents(true);
+        RecordingEvents decoderEvents = new RecordingEvents(true);
+        receiveAll(traffic, null, new JsonParser(jsonEvents));
+        receiveAll(traffic, new SignalingMessageDecoder(decoderEvents), null);
+        if (!jsonEvents.log.toString().equals(decoderEvents.log.toString())) {
+            throw new IllegalStateException("Callbacks differ:\n" + jsonEvents.log
+                    + "---\n" + decoderEvents.log);
+        }
+        System.out.println(traffic.size() + " messages, " + candidates.size()
+                + " candidates, " + jsonEvents.count + " callbacks");
+
+        RecordingEvents events = new RecordingEvents(false);
+        final JsonParser parser = new JsonParser(events);
+        final SignalingMessageDecoder decoder = new SignalingMessageDecoder(events);
+        MicroBenchmark.measure("all json", iterations, new MicroBenchmark.Operation() {
+            @Override
+            public void run() throws JSONException {
+                receiveAll(traffic, null, parser);
+            }
+        });
+        MicroBenchmark.measure("all decoder", iterations, new MicroBenchmark.Operation() {
+            @Override
+            public void run() throws JSONException {
+                receiveAll(traffic, decoder, null);
+            }
+        });
+        MicroBenchmark.measure("candidates json", iterations, new MicroBenchmark.Operation() {
+            @Override
+            public void run() throws JSONException {
+                receiveAll(candidates, null, parser);
+            }
+        });
+        MicroBenchmark.measure("candidates decoder", iterations,
+                new MicroBenchmark.Operation() {
+                    @Override
+                    public void run() throws JSONException {
+                        receiveAll(candidates, decoder, null);
+                    }
+                });
+    }
+
+    // Receives |messages| the way WebSocketRTCClient.onWebSocketRawMessage()
+    // does, or with |parser| if there is no decoder.
+    private static void receiveAll(List<byte[]> messages, SignalingMessageDecoder decoder,
+            JsonParser parser) throws JSONException {
+        for (byte[] message : messages) {
+            if (decoder != null) {
+                if (!decoder.decode(message, 0, message.length)) {
+                    throw new IllegalStateException("Not decoded: "
+                            + new String(message, UTF_8));
+                }
+            } else {
+                parser.parse(new String(message, UTF_8));
+            }
+        }
+    }
+
+    private static List<byte[]> readTraffic() throws IOException {
+        InputStream in = SignalingMessageDecoderBenchmark.class.getResourceAsStream(TRAFFIC);
+        if (in == null) {
+            throw new IOException("No resource " + TRAFFIC);
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        try {
+            List<byte[]> messages = new ArrayList<byte[]>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    messages.add(line.getBytes(UTF_8));
+                }
+            }
+            return messages;
+        } finally {
+            reader.close();
+        }
+    }
+
+    // The message parsing WebSocketRTCClient.onWebSocketMessage() did.
+    private static class JsonParser {
+        private final SignalingMessageDecoder.Events events;
+
+        JsonParser(SignalingMessageDecoder.Events events) {
+            this.events = events;
+        }
+
+        void parse(String msg) throws JSONException {
+            JSONObject json = new JSONObject(msg);
+            JSONObject jsonContent;
+            String type = json.optString("type");
+            switch (type) {
+                case "offer":
+                    jsonContent = json.getJSONObject("content");
+                    events.onRemoteOffer(json.getLong("from"), jsonContent.getString("sdp"));
+                    break;
+                case "answer":
+                    if (json.getBoolean("accept")) {
+                        jsonContent = json.getJSONObject("content");
+                        events.onRemoteAnswer(json.getLong("from"),
+                                jsonContent.getString("sdp"));
+                    } else {
+                        events.onRemoteAnswer(json.getLong("from"), null);
+                    }
+                    break;
+                case "candidate":
+                    jsonContent = json.getJSONObject("content");
+                    events.onRemoteIceCandidate(json.getLong("from"),
+                            jsonContent.getString("id"), jsonContent.getInt("label"),
+                            jsonContent.getString("candidate"));
+                    break;
+                case "candidates": {
+                    jsonContent = json.getJSONObject("content");
+                    JSONArray jsonCandidates = jsonContent.getJSONArray("candidates");
+                    for (int i = 0; i < jsonCandidates.length(); i++) {
+                        JSONObject jsonCandidate = jsonCandidates.getJSONObject(i);
+                        events.onRemoteIceCandidate(json.getLong("from"),
+                                jsonCandidate.getString("id"), jsonCandidate.getInt("label"),
+                                jsonCandidate.getString("candidate"));
+                    }
+                    break;
+                }
+                case "leave":
+                    events.onRemoteLeave(json.getLong("id"));
+                    break;
+                case "join":
+                    events.onClientJoin(json.getLong("id"), json.getString("device"));
+                    break;
+                case "room": {
+                    JSONArray jsonArray = json.getJSONArray("clients");
+                    long[] clientIds = new long[jsonArray.length()];
+                    String[] deviceTypes = new String[jsonArray.length()];
+                    for (int i = 0; i < jsonArray.length(); i++) {
+                        JSONObject jsonClient = jsonArray.getJSONObject(i);
+                        clientIds[i] = jsonClient.getLong("id");
+                        deviceTypes[i] = jsonClient.getString("device");
+                    }
+                    events.onRoom(clientIds, deviceTypes);
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+    }
+
+    // Counts callbacks and, if |record|, logs them for comparison.
+    private static class RecordingEvents implements SignalingMessageDecoder.Events {
+        private final boolean record;
+        private final StringBuilder log = new StringBuilder();
+        private int count;
+
+        RecordingEvents(boolean record) {
+            this.record = record;
+        }
+
+        private void log(String event) {
+            log.append(event).append('\n');
+        }
+
+        @Override
+        public void onRemoteOffer(long peerId, String sdp) {
+            count++;
+            if (record) {
+                log("offer " + peerId + " " + sdp.hashCode());
+            }
+        }
+
+        @Override
+        public void onRemoteAnswer(long peerId, String sdp) {
+            count++;
+            if (record) {
+                log("answer " + peerId + " " + (sdp == null ? "rejected"
+                        : String.valueOf(sdp.hashCode())));
+            }
+        }
+
+        @Override
+        public void onClientJoin(long peerId, String deviceType) {
+            count++;
+            if (record) {
+                log("join " + peerId + " " + deviceType);
+            }
+        }
+
+        @Override
+        public void onRemoteIceCandidate(long peerId, String sdpMid, int sdpMLineIndex,
+                String candidate) {
+            count++;
+            if (record) {
+                log("candidate " + peerId + " " + sdpMid + " " + sdpMLineIndex + " "
+                        + candidate);
+            }
+        }
+
+        @Override
+        public void onRemoteLeave(long peerId) {
+            count++;
+            if (record) {
+                log("leave " + peerId);
+            }
+        }
+
+        @Override
+        public void onRoom(long[] clientIds, String[] deviceTypes) {
+            count++;
+            if (record) {
+                log("room " + clientIds.length);
+            }
+        }
+    }
+}
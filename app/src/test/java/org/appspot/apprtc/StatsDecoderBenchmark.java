@@ -0,0 +1,257 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.util.MicroBenchmark;
+
+import org.webrtc.StatsReport;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the HUD text of {@link StatsDecoder} and {@link StatsSnapshot}
+ * with the per-report HashMap path HudFragment had before, on the stats
+ * reports of a video call in the test resources:
+ * java org.appspot.apprtc.StatsDecoderBenchmark [iterations]
+ * <p/>
+ * <p>One iteration is one stats tick: the reports of the next recorded
+ * StatsReport array are turned into the five HUD texts, as strings because
+ * TextView.setText() copies them. Both paths must produce the same texts
+ * before anything is timed.
+ */
+public class StatsDecoderBenchmark {
+  private static final int DEFAULT_ITERATIONS = 20000;
+  private static final String TRACE = "stats_reports.txt";
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+    final List<StatsReport[]> ticks = readTicks();
+    final StatsDecoder decoder = new StatsDecoder();
+    final StringBuilder stat = new StringBuilder(512);
+    for (StatsReport[] reports : ticks) {
+      String[] expected = legacyHud(reports);
+      String[] actual = snapshotHud(decoder, stat, reports);
+      for (int i = 0; i < expected.length; i++) {
+        if (!expected[i].equals(actual[i])) {
+          throw new IllegalStateException("HUD text differs:\n" + expected[i]
+              + "---\n" + actual[i]);
+        }
+      }
+    }
+    int reportCount = 0;
+    for (StatsReport[] reports : ticks) {
+      reportCount += reports.length;
+    }
+    System.out.println(ticks.size() + " ticks, " + reportCount / ticks.size()
+        + " reports per tick");
+
+    MicroBenchmark.measure("tick legacy", iterations, new MicroBenchmark.Operation() {
+      private int tick;
+
+      @Override
+      public void run() {
+        legacyHud(ticks.get(tick++ % ticks.size()));
+      }
+    });
+    MicroBenchmark.measure("tick snapshot", iterations, new MicroBenchmark.Operation() {
+      private int tick;
+
+      @Override
+      public void run() {
+        snapshotHud(decoder, stat, ticks.get(tick++ % ticks.size()));
+      }
+    });
+    // Without the strings, what the decoder itself allocates.
+    MicroBenchmark.measure("decode only", iterations, new MicroBenchmark.Operation() {
+      private int tick;
+
+      @Override
+      public void run() {
+        decoder.decode(ticks.get(tick++ % ticks.size()));
+      }
+    });
+  }
+
+  // HudFragment.updateEncoderStatistics() now: bwe, connection, video send,
+  // video receive and encoder text, without the CPU and standby lines.
+  private static String[] snapshotHud(StatsDecoder decoder, StringBuilder stat,
+      StatsReport[] reports) {
+    StatsSnapshot snapshot = decoder.decode(reports);
+    String[] hud = new String[5];
+    int[] kinds = {StatsSnapshot.KIND_BWE, StatsSnapshot.KIND_CANDIDATE_PAIR,
+        StatsSnapshot.KIND_VIDEO_SEND, StatsSnapshot.KIND_VIDEO_RECV};
+    for (int i = 0; i < kinds.length; i++) {
+      stat.setLength(0);
+      snapshot.appendTo(kinds[i], stat);
+      hud[i] = stat.toString();
+    }
+    stat.setLength(0);
+    StatsSnapshot.Record videoSend = snapshot.find(StatsSnapshot.KIND_VIDEO_SEND);
+    StatsSnapshot.Record bwe = snapshot.find(StatsSnapshot.KIND_BWE);
+    String fps = videoSend == null
+        ? null : videoSend.get(StatsSnapshot.SLOT_FRAME_RATE_SENT);
+    String targetBitrate = bwe == null
+        ? null : bwe.get(StatsSnapshot.SLOT_TARGET_ENC_BITRATE);
+    String actualBitrate = bwe == null
+        ? null : bwe.get(StatsSnapshot.SLOT_ACTUAL_ENC_BITRATE);
+    appendEncoderStat(stat, fps, targetBitrate, actualBitrate);
+    hud[4] = stat.toString();
+    return hud;
+  }
+
+  private static void appendEncoderStat(StringBuilder encoderStat, String fps,
+      String targetBitrate, String actualBitrate) {
+    if (fps != null) {
+      encoderStat.append("Fps:  ").append(fps).append("\n");
+    }
+    if (targetBitrate != null) {
+      encoderStat.append("Target BR: ").append(targetBitrate).append("\n");
+    }
+    if (actualBitrate != null) {
+      encoderStat.append("Actual BR: ").append(actualBitrate).append("\n");
+    }
+  }
+
+  private static Map<String, String> getReportMap(StatsReport report) {
+    Map<String, String> reportMap = new HashMap<String, String>();
+    for (StatsReport.Value value : report.values) {
+      reportMap.put(value.name, value.value);
+    }
+    return reportMap;
+  }
+
+  // HudFragment.updateEncoderStatistics() before StatsDecoder, unchanged
+  // except that it returns the texts and leaves out the CPU and standby lines.
+  private static String[] legacyHud(final StatsReport[] reports) {
+    StringBuilder encoderStat = new StringBuilder(128);
+    StringBuilder bweStat = new StringBuilder();
+    StringBuilder connectionStat = new StringBuilder();
+    StringBuilder videoSendStat = new StringBuilder();
+    StringBuilder videoRecvStat = new StringBuilder();
+    String fps = null;
+    String targetBitrate = null;
+    String actualBitrate = null;
+
+    for (StatsReport report : reports) {
+      if (report.type.equals("ssrc") && report.id.contains("ssrc")
+          && report.id.contains("send")) {
+        // Send video statistics.
+        Map<String, String> reportMap = getReportMap(report);
+        String trackId = reportMap.get("googTrackId");
+        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
+          fps = reportMap.get("googFrameRateSent");
+          videoSendStat.append(report.id).append("\n");
+          for (StatsReport.Value value : report.values) {
+            String name = value.name.replace("goog", "");
+            videoSendStat.append(name).append("=").append(value.value).append("\n");
+          }
+        }
+      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
+          && report.id.contains("recv")) {
+        // Receive video statistics.
+        Map<String, String> reportMap = getReportMap(report);
+        // Check if this stat is for video track.
+        String frameWidth = reportMap.get("googFrameWidthReceived");
+        if (frameWidth != null) {
+          videoRecvStat.append(report.id).append("\n");
+          for (StatsReport.Value value : report.values) {
+            String name = value.name.replace("goog", "");
+            videoRecvStat.append(name).append("=").append(value.value).append("\n");
+          }
+        }
+      } else if (report.id.equals("bweforvideo")) {
+        // BWE statistics.
+        Map<String, String> reportMap = getReportMap(report);
+        targetBitrate = reportMap.get("googTargetEncBitrate");
+        actualBitrate = reportMap.get("googActualEncBitrate");
+
+        bweStat.append(report.id).append("\n");
+        for (StatsReport.Value value : report.values) {
+          String name = value.name.replace("goog", "").replace("Available", "");
+          bweStat.append(name).append("=").append(value.value).append("\n");
+        }
+      } else if (report.type.equals("googCandidatePair")) {
+        // Connection statistics.
+        Map<String, String> reportMap = getReportMap(report);
+        String activeConnection = reportMap.get("googActiveConnection");
+        if (activeConnection != null && activeConnection.equals("true")) {
+          connectionStat.append(report.id).append("\n");
+          for (StatsReport.Value value : report.values) {
+            String name = value.name.replace("goog", "");
+            connectionStat.append(name).append("=").append(value.value).append("\n");
+          }
+        }
+      }
+    }
+    appendEncoderStat(encoderStat, fps, targetBitrate, actualBitrate);
+    return new String[] {bweStat.toString(), connectionStat.toString(),
+        videoSendStat.toString(), videoRecvStat.toString(), encoderStat.toString()};
+  }
+
+  // Reads the recorded StatsReport arrays; see the comment in the trace.
+  private static List<StatsReport[]> readTicks() throws IOException {
+    InputStream in = StatsDecoderBenchmark.class.getResourceAsStream(TRACE);
+    if (in == null) {
+      throw new IOException("No trace " + TRACE);
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    try {
+      List<StatsReport[]> ticks = new ArrayList<StatsReport[]>();
+      List<StatsReport> reports = null;
+      String id = null;
+      String type = null;
+      List<StatsReport.Value> values = new ArrayList<StatsReport.Value>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        if (id != null && (line.equals("tick") || line.startsWith("report "))) {
+          reports.add(new StatsReport(id, type, 0,
+              values.toArray(new StatsReport.Value[values.size()])));
+          values.clear();
+          id = null;
+        }
+        if (line.equals("tick")) {
+          if (reports != null) {
+            ticks.add(reports.toArray(new StatsReport[reports.size()]));
+          }
+          reports = new ArrayList<StatsReport>();
+        } else if (line.startsWith("report ")) {
+          String[] fields = line.split(" ");
+          id = fields[1];
+          type = fields[2];
+        } else {
+          int separator = line.indexOf('=');
+          values.add(new StatsReport.Value(
+              line.substring(0, separator), line.substring(separator + 1)));
+        }
+      }
+      if (id != null) {
+        reports.add(new StatsReport(id, type, 0,
+            values.toArray(new StatsReport.Value[values.size()])));
+      }
+      if (reports != null) {
+        ticks.add(reports.toArray(new StatsReport[reports.size()]));
+      }
+      return ticks;
+    } finally {
+      reader.close();
+    }
+  }
+}
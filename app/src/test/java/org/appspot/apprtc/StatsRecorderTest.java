@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes records with {@link StatsRecorder}, wrapping and reopening the ring,
+ * and checks that {@link StatsRecordReader} returns exactly the records of the
+ * blocks that are left.
+ */
+public class StatsRecorderTest {
+  private static final int FIELD_COUNT = StatsRecordReader.FIELD_COUNT;
+  private static final int BLOCK_SIZE = 128;
+  private static final int BLOCK_COUNT = 4;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Random random = new Random(11);
+  // The blocks the ring should hold, oldest first; the model of StatsRecorder.
+  private final LinkedList<List<long[]>> blocks = new LinkedList<List<long[]>>();
+  private List<long[]> block;
+  private int blockUsed;
+  private long timestamp = 1450000000000L;
+
+  @Test
+  public void emptyRingHasNoRecords() throws IOException {
+    File path = folder.newFile("stats.rtcs");
+    new StatsRecorder(path, BLOCK_SIZE, BLOCK_COUNT).close();
+    StatsRecordReader reader = new StatsRecordReader(path);
+    assertEquals(FIELD_COUNT, reader.getFieldCount());
+    assertNull(reader.next());
+    assertEquals(csv(), export(path));
+  }
+
+  @Test
+  public void singleRecord() throws IOException {
+    File path = folder.newFile("stats.rtcs");
+    StatsRecorder recorder = new StatsRecorder(path, BLOCK_SIZE, BLOCK_COUNT);
+    append(recorder, 1);
+    recorder.close();
+    assertEquals(1, blocks.size());
+    assertRecords(path);
+    assertEquals(csv(), export(path));
+  }
+
+  @Test
+  public void ringWrapsAndKeepsTheNewestBlocks() throws IOException {
+    File path = folder.newFile("stats.rtcs");
+    StatsRecorder recorder = new StatsRecorder(path, BLOCK_SIZE, BLOCK_COUNT);
+    append(recorder, 100);
+    recorder.close();
+    assertEquals(BLOCK_COUNT, blocks.size());
+    assertRecords(path);
+    assertEquals(csv(), export(path));
+  }
+
+  @Test
+  public void reopenedRingContinuesAfterTheNewestBlock() throws IOException {
+    File path = folder.newFile("stats.rtcs");
+    for (int call = 0; call < 5; call++) {
+      StatsRecorder recorder = new StatsRecorder(path, BLOCK_SIZE, BLOCK_COUNT);
+      // Every recorder starts with a fresh block.
+      block = null;
+      append(recorder, 3 + call * 7);
+      recorder.close();
+      assertRecords(path);
+    }
+    assertEquals(BLOCK_SIZE * BLOCK_COUNT + StatsRecordReader.HEADER_SIZE, path.length());
+    assertEquals(csv(), export(path));
+  }
+
+  @Test
+  public void otherLayoutStartsOver() throws IOException {
+    File path = folder.newFile("stats.rtcs");
+    StatsRecorder recorder = new StatsRecorder(path, BLOCK_SIZE * 2, BLOCK_COUNT);
+    append(recorder, 20);
+    recorder.close();
+
+    blocks.clear();
+    block = null;
+    recorder = new StatsRecorder(path, BLOCK_SIZE, BLOCK_COUNT);
+    append(recorder, 5);
+    recorder.close();
+    assertRecords(path);
+  }
+
+  @Test(expected = IOException.class)
+  public void otherFilesAreRejected() throws IOException {
+    new StatsRecordReader(folder.newFile("empty"));
+  }
+
+  // Appends |count| records to |recorder| and to the model.
+  private void append(StatsRecorder recorder, int count) {
+    for (int i = 0; i < count; i++) {
+      long[] values = new long[FIELD_COUNT];
+      timestamp += 1000 + random.nextInt(50);
+      values[StatsRecordReader.FIELD_TIMESTAMP] = timestamp;
+      for (int field = 1; field < FIELD_COUNT; field++) {
+        // Missing values, small counters and large byte counts.
+        int kind = random.nextInt(4);
+        values[field] = kind == 0 ? -1 : kind == 1 ? random.nextInt(100)
+            : (long) random.nextInt(Integer.MAX_VALUE) * random.nextInt(1000);
+      }
+      recorder.append(values);
+      model(values);
+    }
+  }
+
+  private void model(long[] values) {
+    long[] previous = block == null || block.isEmpty() ? new long[FIELD_COUNT]
+        : block.get(block.size() - 1);
+    int length = encodedLength(values, previous);
+    if (block == null
+        || blockUsed + length > BLOCK_SIZE - StatsRecordReader.BLOCK_HEADER_SIZE) {
+      block = new ArrayList<long[]>();
+      blocks.add(block);
+      if (blocks.size() > BLOCK_COUNT) {
+        blocks.removeFirst();
+      }
+      blockUsed = 0;
+      length = encodedLength(values, new long[FIELD_COUNT]);
+    }
+    block.add(values);
+    blockUsed += length;
+  }
+
+  private static int encodedLength(long[] values, long[] previous) {
+    int length = 0;
+    for (int i = 0; i < FIELD_COUNT; i++) {
+      long delta = values[i] - previous[i];
+      long zigzag = (delta << 1) ^ (delta >> 63);
+      length++;
+      while ((zigzag >>>= 7) != 0) {
+        length++;
+      }
+    }
+    return length;
+  }
+
+  private void assertRecords(File path) throws IOException {
+    StatsRecordReader reader = new StatsRecordReader(path);
+    int index = 0;
+    for (List<long[]> expectedBlock : blocks) {
+      for (long[] expected : expectedBlock) {
+        long[] actual = reader.next();
+        assertTrue("record " + index + " missing", actual != null);
+        assertEquals("record " + index, Arrays.toString(expected), Arrays.toString(actual));
+        index++;
+      }
+    }
+    assertNull(reader.next());
+  }
+
+  private String csv() {
+    StringBuilder csv = new StringBuilder();
+    for (int i = 0; i < FIELD_COUNT; i++) {
+      csv.append(i > 0 ? "," : "").append(StatsRecordReader.FIELD_NAMES[i]);
+    }
+    csv.append('\n');
+    for (List<long[]> expectedBlock : blocks) {
+      for (long[] record : expectedBlock) {
+        for (int i = 0; i < FIELD_COUNT; i++) {
+          csv.append(i > 0 ? "," : "").append(record[i]);
+        }
+        csv.append('\n');
+      }
+    }
+    return csv.toString();
+  }
+
+  private static String export(File path) throws IOException {
+    StringWriter out = new StringWriter();
+    new StatsRecordReader(path).exportCsv(out);
+    return out.toString();
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.PeerConnection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link TurnServerCache} against a local TURN credentials server that
+ * counts its requests, and can fail them or hold them back.
+ */
+public class TurnServerCacheTest {
+    private static final String ROOM_SERVER = "https://room.test";
+    private static final String TURN_URI = "turn:127.0.0.1:3478";
+    private static final long TIMEOUT_S = 10;
+    // Longer than the cache's expiry margin.
+    private static final long FRESH_TTL_S = 3600;
+
+    private final TurnServerCache cache = TurnServerCache.getInstance();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final ExecutorService joins = Executors.newFixedThreadPool(2);
+    private HttpServer server;
+    private String turnUrl;
+    private volatile int failures;
+    private volatile long ttlS = FRESH_TTL_S;
+    private volatile CountDownLatch gate;
+
+    @Before
+    public void setUp() throws IOException {
+        cache.clear();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/turn", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                CountDownLatch gate = TurnServerCacheTest.this.gate;
+                if (gate != null) {
+                    try {
+                        gate.await(TIMEOUT_S, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                boolean fail;
+                synchronized (TurnServerCacheTest.this) {
+                    fail = failures > 0;
+                    if (fail) {
+                        failures--;
+                    }
+                }
+                byte[] body = (fail ? "unavailable" : "{\"username\": \"user\", \"password\":"
+                        + " \"pass\", \"ttl\": " + ttlS + ", \"uris\": [\"" + TURN_URI + "\"]}")
+                        .getBytes("UTF-8");
+                exchange.sendResponseHeaders(fail ? 503 : 200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        turnUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/turn";
+    }
+
+    @After
+    public void tearDown() {
+        joins.shutdownNow();
+        server.stop(0);
+        cache.clear();
+    }
+
+    @Test
+    public void freshServersAreCached() throws Exception {
+        assertServers(cache.get(ROOM_SERVER, turnUrl));
+        assertServers(cache.get(ROOM_SERVER, turnUrl));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void expiredServersAreFetchedAgain() throws Exception {
+        // Within the expiry margin, so expired as soon as they arrive.
+        ttlS = 10;
+        assertServers(cache.get(ROOM_SERVER, turnUrl));
+        assertServers(cache.get(ROOM_SERVER, turnUrl));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void nonPositiveTtlIsNotCached() throws Exception {
+        ttlS = 0;
+        assertServers(cache.get(ROOM_SERVER, turnUrl));
+        ttlS = -5;
+        assertServers(cache.get(ROOM_SERVER, turnUrl));
+        assertServers(cache.get(ROOM_SERVER, turnUrl));
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void joinsShareOneRequest() throws Exception {
+        // Learns the TURN URL; expired right away so the prefetch fetches again.
+        ttlS = 10;
+        cache.get(ROOM_SERVER, turnUrl);
+        ttlS = FRESH_TTL_S;
+        gate = new CountDownLatch(1);
+        cache.prefetch(ROOM_SERVER);
+        List<Future<LinkedList<PeerConnection.IceServer>>> results =
+                new ArrayList<Future<LinkedList<PeerConnection.IceServer>>>();
+        for (int i = 0; i < 2; i++) {
+            results.add(joins.submit(new Callable<LinkedList<PeerConnection.IceServer>>() {
+                @Override
+                public LinkedList<PeerConnection.IceServer> call() throws Exception {
+                    return cache.get(ROOM_SERVER, turnUrl);
+                }
+            }));
+        }
+        gate.countDown();
+        for (Future<LinkedList<PeerConnection.IceServer>> result : results) {
+            assertServers(result.get(TIMEOUT_S, TimeUnit.SECONDS));
+        }
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void failedPrefetchIsRetriedOnce() throws Exception {
+        ttlS = 10;
+        cache.get(ROOM_SERVER, turnUrl);
+        ttlS = FRESH_TTL_S;
+        failures = 1;
+        gate = new CountDownLatch(1);
+        cache.prefetch(ROOM_SERVER);
+        Future<LinkedList<PeerConnection.IceServer>> result =
+                joins.submit(new Callable<LinkedList<PeerConnection.IceServer>>() {
+                    @Override
+                    public LinkedList<PeerConnection.IceServer> call() throws Exception {
+                        return cache.get(ROOM_SERVER, turnUrl);
+                    }
+                });
+        gate.countDown();
+        // The join's own request after the failed prefetch.
+        assertServers(result.get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void failingRequestThrowsAndIsNotCached() throws Exception {
+        failures = 2;
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get(ROOM_SERVER, turnUrl);
+                fail("Expected an IOException");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("503"));
+            }
+        }
+        assertServers(cache.get(ROOM_SERVER, turnUrl));
+        assertEquals(3, requests.get());
+    }
+
+    private static void assertServers(LinkedList<PeerConnection.IceServer> servers) {
+        assertEquals(1, servers.size());
+        assertEquals(TURN_URI, servers.get(0).uri);
+        assertEquals("user", servers.get(0).username);
+        assertEquals("pass", servers.get(0).password);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory WebSocket for tests: records what the client sends, and lets the
+ * test open, feed and drop the connection. Its factory hands out a new one for
+ * every connect and reconnect.
+ */
+class FakeSignalingTransport implements SignalingTransport {
+    /**
+     * Creates the connections and keeps them, newest last.
+     */
+    static class Factory implements SignalingTransport.Factory {
+        final List<FakeSignalingTransport> transports = new ArrayList<FakeSignalingTransport>();
+
+        @Override
+        public SignalingTransport createTransport() {
+            FakeSignalingTransport transport = new FakeSignalingTransport();
+            transports.add(transport);
+            return transport;
+        }
+
+        FakeSignalingTransport last() {
+            return transports.get(transports.size() - 1);
+        }
+    }
+
+    final List<String> sent = new ArrayList<String>();
+    String url;
+    boolean disconnected;
+    private Observer observer;
+
+    @Override
+    public void connect(String url, Observer observer) {
+        this.url = url;
+        this.observer = observer;
+    }
+
+    @Override
+    public void sendTextMessage(String message) {
+        if (disconnected) {
+            throw new IllegalStateException("Send on a closed connection: " + message);
+        }
+        sent.add(message);
+    }
+
+    @Override
+    public void disconnect() {
+        disconnected = true;
+    }
+
+    void open() {
+        observer.onOpen();
+    }
+
+    void receive(String message) {
+        try {
+            observer.onMessage(message.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // The server or the network closed the connection.
+    void drop() {
+        disconnected = true;
+        observer.onClose("dropped");
+    }
+}
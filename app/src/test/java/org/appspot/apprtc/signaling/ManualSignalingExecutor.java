@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link SignalingExecutor} for tests that runs tasks only when the test says
+ * so, on the test thread, with a fake clock for delayed ones.
+ */
+class ManualSignalingExecutor implements SignalingExecutor {
+    private static class Task {
+        private final Runnable runnable;
+        private final long runAtMs;
+
+        private Task(Runnable runnable, long runAtMs) {
+            this.runnable = runnable;
+            this.runAtMs = runAtMs;
+        }
+    }
+
+    private final List<Task> tasks = new ArrayList<Task>();
+    private long nowMs;
+
+    @Override
+    public void execute(Runnable runnable) {
+        tasks.add(new Task(runnable, nowMs));
+    }
+
+    @Override
+    public void executeDelayed(Runnable runnable, long delayMs) {
+        tasks.add(new Task(runnable, nowMs + delayMs));
+    }
+
+    @Override
+    public boolean checkOnExecutorThread() {
+        return true;
+    }
+
+    /**
+     * Runs the tasks that are due, including those they post, in the order
+     * they are due.
+     */
+    void runPending() {
+        while (true) {
+            Task next = null;
+            for (Task task : tasks) {
+                if (task.runAtMs <= nowMs && (next == null || task.runAtMs < next.runAtMs)) {
+                    next = task;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            tasks.remove(next);
+            next.runnable.run();
+        }
+    }
+
+    /**
+     * Moves the clock forward by |ms| and runs what became due.
+     */
+    void advance(long ms) {
+        nowMs += ms;
+        runPending();
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests {@link SignalingMessages}, {@link SignalingMessageDecoder} and
+ * {@link RoomJoinResponse}: what the clients send must be valid JSON, and what
+ * the server forwards of it must decode to the same values.
+ */
+public class SignalingMessagesTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SDP = "v=0\r\no=- 1 2 IN IP4 127.0.0.1\r\ns=\"quoted\" \\ é\r\n";
+
+    private final List<String> events = new ArrayList<String>();
+    private final SignalingMessageDecoder decoder =
+            new SignalingMessageDecoder(new SignalingMessageDecoder.Events() {
+                @Override
+                public void onRemoteOffer(long peerId, String sdp) {
+                    events.add("offer " + peerId + " " + sdp);
+                }
+
+                @Override
+                public void onRemoteAnswer(long peerId, String sdp) {
+                    events.add("answer " + peerId + " " + sdp);
+                }
+
+                @Override
+                public void onRemoteIceCandidate(long peerId, String sdpMid, int sdpMLineIndex,
+                        String candidate) {
+                    events.add("candidate " + peerId + " " + sdpMid + " " + sdpMLineIndex + " "
+                            + candidate);
+                }
+
+                @Override
+                public void onRemoteLeave(long peerId) {
+                    events.add("leave " + peerId);
+                }
+
+                @Override
+                public void onClientJoin(long peerId, String deviceType) {
+                    events.add("join " + peerId + " " + deviceType);
+                }
+
+                @Override
+                public void onRoom(long[] clientIds, String[] deviceTypes) {
+                    events.add("room " + Arrays.toString(clientIds) + " "
+                            + Arrays.toString(deviceTypes));
+                }
+            });
+
+    @Test
+    public void offerRoundTrips() throws JSONException {
+        String offer = SignalingMessages.offer(7, SDP, true);
+        JSONObject json = new JSONObject(offer);
+        assertEquals("offer", json.getString("cmd"));
+        assertTrue(json.getBoolean("isHelper"));
+        assertEquals(SDP, json.getJSONObject("content").getString("sdp"));
+        receive(forwarded(offer, 3));
+        assertEquals(Arrays.asList("offer 3 " + SDP), events);
+    }
+
+    @Test
+    public void answerRoundTrips() {
+        receive(forwarded(SignalingMessages.answer(7, SDP), 3));
+        receive(forwarded(SignalingMessages.answer(7, null), 4));
+        assertEquals(Arrays.asList("answer 3 " + SDP, "answer 4 null"), events);
+    }
+
+    @Test
+    public void candidatesRoundTrip() throws JSONException {
+        SignalingMessages.Candidate audio =
+                new SignalingMessages.Candidate("audio", 0, "candidate:1 1 udp 1 10.0.0.1 5000");
+        SignalingMessages.Candidate video =
+                new SignalingMessages.Candidate("video", 1, "candidate:2 1 udp 1 10.0.0.1 5002");
+        String one = SignalingMessages.candidates(7, Collections.singletonList(audio));
+        String two = SignalingMessages.candidates(7, Arrays.asList(audio, video));
+        assertEquals("candidate", new JSONObject(one).getString("cmd"));
+        assertEquals(2, new JSONObject(two).getJSONObject("content")
+                .getJSONArray("candidates").length());
+        receive(forwarded(one, 3));
+        receive(forwarded(two, 3));
+        assertEquals(Arrays.asList("candidate 3 audio 0 " + audio.sdp,
+                "candidate 3 audio 0 " + audio.sdp, "candidate 3 video 1 " + video.sdp), events);
+    }
+
+    @Test
+    public void serverMessagesDecode() {
+        receive("{\"seq\": 4, \"type\": \"join\", \"id\": 11, \"device\": \"android\"}");
+        receive("{\"type\": \"leave\", \"id\": 11}");
+        receive("{\"type\": \"room\", \"clients\": [{\"id\": 10, \"device\": \"android\"},"
+                + " {\"id\": 11, \"device\": \"headless\"}]}");
+        assertEquals(Arrays.asList("join 11 android", "leave 11",
+                "room [10, 11] [android, headless]"), events);
+    }
+
+    @Test
+    public void ackIsDecodedWithoutCallback() {
+        assertTrue(decode("{\"type\": \"ack\", \"ack\": 3}"));
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void malformedAndUnknownMessagesAreRejected() {
+        assertFalse(decode("{\"type\": \"offer\", \"from\": 3"));
+        assertFalse(decode("{\"type\": \"offer\", \"from\": 3}"));
+        assertFalse(decode("{\"type\": \"bye\", \"from\": 3}"));
+        assertFalse(decode("[]"));
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void badEscapesAreRejected() {
+        assertFalse(decode("{\"type\": \"room\", \"clients\": [{\"id\": 10,"
+                + " \"device\": \"\\uZZZZ\"}]}"));
+        assertFalse(decode("{\"type\": \"offer\", \"from\": 3,"
+                + " \"content\": {\"sdp\": \"\\uZZZZ\"}}"));
+        assertFalse(decode("{\"type\": \"offer\", \"from\": 3,"
+                + " \"content\": {\"sdp\": \"v=0\\u12\"}}"));
+        assertFalse(decode("{\"type\": \"join\", \"id\": 3, \"device\": \"a\\\"}"));
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void stringValueChecksEscapes() {
+        assertEquals("a\u00e9\"/", Json.stringValue("\"a\\u00e9\\\"\\/\""));
+        assertNull(Json.stringValue("\"\\uZZZZ\""));
+        assertNull(Json.stringValue("\"\\u12\""));
+        assertNull(Json.stringValue("\"ab\\\""));
+        assertNull(Json.stringValue("\"\\x\""));
+        assertNull(Json.stringValue("\"unterminated"));
+    }
+
+    @Test
+    public void registerAsksToResumeOnlyWithAnAck() throws JSONException {
+        JSONObject fresh = new JSONObject(SignalingMessages.register("android", 1, 2, -1));
+        assertEquals(2, fresh.getLong("clientid"));
+        assertFalse(fresh.has("resume"));
+        JSONObject resume = new JSONObject(SignalingMessages.register("android", 1, 2, 5));
+        assertTrue(resume.getBoolean("resume"));
+        assertEquals(5, resume.getLong("ack"));
+    }
+
+    @Test
+    public void joinResponseWithStringPcConfig() {
+        RoomJoinResponse join = RoomJoinResponse.parse("{\"room_id\": 42, \"client_id\": 10000,"
+                + " \"wss_url\": \"ws://127.0.0.1:80/ws\", \"wss_post_url\": \"http://127.0.0.1\","
+                + " \"pc_config\": \"{\\\"iceServers\\\": [{\\\"urls\\\": \\\"stun:s:3478\\\"},"
+                + " {\\\"urls\\\": \\\"turn:t:3478\\\", \\\"credential\\\": \\\"pw\\\"}]}\","
+                + " \"turn_url\": \"http://127.0.0.1/turn\"}");
+        assertEquals(42, join.roomId);
+        assertEquals(10000, join.clientId);
+        assertEquals("ws://127.0.0.1:80/ws", join.wssUrl);
+        assertEquals("http://127.0.0.1", join.wssPostUrl);
+        assertEquals("http://127.0.0.1/turn", join.turnUrl);
+        assertEquals(2, join.iceServers.size());
+        assertEquals("stun:s:3478", join.iceServers.get(0).url);
+        assertEquals("", join.iceServers.get(0).credential);
+        assertEquals("pw", join.iceServers.get(1).credential);
+    }
+
+    @Test
+    public void joinResponseWithObjectPcConfig() {
+        RoomJoinResponse join = RoomJoinResponse.parse("{\"client_id\": 5, \"wss_url\": \"ws://h\","
+                + " \"pc_config\": {\"iceServers\": []}}");
+        assertEquals(5, join.clientId);
+        assertEquals(-1, join.roomId);
+        assertNull(join.turnUrl);
+        assertTrue(join.iceServers.isEmpty());
+    }
+
+    @Test
+    public void incompleteJoinResponsesAreRejected() {
+        assertNull(RoomJoinResponse.parse("{\"wss_url\": \"ws://h\"}"));
+        assertNull(RoomJoinResponse.parse("{\"client_id\": 5}"));
+        assertNull(RoomJoinResponse.parse("{\"client_id\": 5, \"wss_url\": \"ws://h\","
+                + " \"pc_config\": \"{\\\"iceServers\\\": [{}]}\"}"));
+        assertNull(RoomJoinResponse.parse("<html>"));
+    }
+
+    // |message| the way LoopbackSignalingServer forwards it from |from|.
+    private static String forwarded(String message, long from) {
+        StringBuilder body = new StringBuilder();
+        for (Map.Entry<String, String> field : Json.parseObject(message).entrySet()) {
+            if (field.getKey().equals("cmd")) {
+                body.append("\"type\": ").append(field.getValue()).append(", \"from\": ")
+                        .append(from);
+            } else if (!field.getKey().equals("to")) {
+                body.append(", ").append(Json.quote(field.getKey())).append(": ")
+                        .append(field.getValue());
+            }
+        }
+        return "{" + body + "}";
+    }
+
+    private void receive(String message) {
+        assertTrue(message, decode(message));
+    }
+
+    private boolean decode(String message) {
+        byte[] bytes = message.getBytes(UTF_8);
+        return decoder.decode(bytes, 0, bytes.length);
+    }
+}
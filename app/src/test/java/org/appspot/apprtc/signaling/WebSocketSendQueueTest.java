@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.appspot.apprtc.signaling.WebSocketSendQueue.MessageClass;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the {@link WebSocketSendQueue} of a {@link WebSocketChannelClient} by
+ * what reaches a fake WebSocket.
+ */
+public class WebSocketSendQueueTest {
+    private static final long PEER_A = 101;
+    private static final long PEER_B = 102;
+    // The CAPACITY of the client's queue.
+    private static final int CAPACITY = 128;
+
+    private final ManualSignalingExecutor executor = new ManualSignalingExecutor();
+    private final FakeSignalingTransport.Factory transports = new FakeSignalingTransport.Factory();
+    private WebSocketChannelClient client;
+
+    @Before
+    public void setUp() {
+        client = new WebSocketChannelClient(executor,
+                new WebSocketChannelClient.WebSocketChannelEvents() {
+                    @Override
+                    public void onWebSocketRawMessage(byte[] message) {
+                    }
+
+                    @Override
+                    public void onWebSocketClose() {
+                    }
+
+                    @Override
+                    public void onWebSocketError(String description) {
+                    }
+                }, transports, SignalingLogger.NONE);
+        client.connect("ws://signaling.test/ws", "http://signaling.test");
+    }
+
+    @Test
+    public void nothingIsSentBeforeRegistering() {
+        send("candidate-1", MessageClass.CANDIDATE, PEER_A);
+        transports.last().open();
+        executor.runPending();
+        assertEquals(0, transports.last().sent.size());
+        assertEquals(1, client.getSendQueueDepth());
+    }
+
+    @Test
+    public void queuedMessagesGoOutByClassOnRegister() {
+        send("candidate-1", MessageClass.CANDIDATE, PEER_A);
+        send("sdp-a", MessageClass.SDP, PEER_A);
+        send("candidate-2", MessageClass.CANDIDATE, PEER_A);
+        send("room", MessageClass.CONTROL, WebSocketSendQueue.NO_PEER);
+        register();
+        assertEquals(Arrays.asList("register", "room", "sdp-a", "candidate-1", "candidate-2"),
+                sentTags());
+    }
+
+    @Test
+    public void messagesSentInOneTurnGoOutByClass() {
+        register();
+        send("candidate-1", MessageClass.CANDIDATE, PEER_A);
+        send("candidate-2", MessageClass.CANDIDATE, PEER_A);
+        send("sdp-a", MessageClass.SDP, PEER_A);
+        // Nothing goes out until the posted flush runs.
+        assertEquals(Arrays.asList("register"), sentTags());
+        executor.runPending();
+        assertEquals(Arrays.asList("register", "sdp-a", "candidate-1", "candidate-2"),
+                sentTags());
+        assertEquals(0, client.getSendQueueDepth());
+    }
+
+    @Test
+    public void newerSdpReplacesAnUnsentOneToTheSamePeer() {
+        send("sdp-a1", MessageClass.SDP, PEER_A);
+        send("sdp-b", MessageClass.SDP, PEER_B);
+        send("sdp-a2", MessageClass.SDP, PEER_A);
+        register();
+        assertEquals(Arrays.asList("register", "sdp-b", "sdp-a2"), sentTags());
+        assertTrue(client.getSendQueueStatistics().contains("coalesced 1"));
+    }
+
+    @Test
+    public void sentSdpIsNotReplaced() {
+        register();
+        send("sdp-a1", MessageClass.SDP, PEER_A);
+        executor.runPending();
+        send("sdp-a2", MessageClass.SDP, PEER_A);
+        executor.runPending();
+        assertEquals(Arrays.asList("register", "sdp-a1", "sdp-a2"), sentTags());
+    }
+
+    @Test
+    public void leaveDropsUnsentSdpsAndCandidates() {
+        send("sdp-a", MessageClass.SDP, PEER_A);
+        send("candidate-1", MessageClass.CANDIDATE, PEER_A);
+        send("room", MessageClass.CONTROL, WebSocketSendQueue.NO_PEER);
+        send("leave", MessageClass.LEAVE, WebSocketSendQueue.NO_PEER);
+        register();
+        assertEquals(Arrays.asList("register", "room", "leave"), sentTags());
+        assertTrue(client.getSendQueueStatistics().contains("coalesced 2"));
+    }
+
+    @Test
+    public void candidatesAreRejectedWhenFull() {
+        fill(MessageClass.CANDIDATE);
+        assertFalse(client.send(message("candidate-late"), MessageClass.CANDIDATE, PEER_A));
+        assertEquals(CAPACITY, client.getSendQueueDepth());
+        register();
+        List<String> tags = sentTags();
+        assertEquals(CAPACITY + 1, tags.size());
+        assertFalse(tags.contains("candidate-late"));
+    }
+
+    @Test
+    public void fullQueueDropsTheNewestCandidateForOtherClasses() {
+        fill(MessageClass.CANDIDATE);
+        assertTrue(client.send(message("sdp-a"), MessageClass.SDP, PEER_A));
+        assertEquals(CAPACITY, client.getSendQueueDepth());
+        register();
+        List<String> tags = sentTags();
+        assertEquals("sdp-a", tags.get(1));
+        assertEquals("fill-" + (CAPACITY - 2), tags.get(tags.size() - 1));
+        assertTrue(client.getSendQueueStatistics().contains("rejected 1"));
+    }
+
+    @Test
+    public void everythingIsRejectedWhenFullWithoutCandidates() {
+        fill(MessageClass.CONTROL);
+        assertFalse(client.send(message("sdp-a"), MessageClass.SDP, PEER_A));
+        assertFalse(client.send(message("leave"), MessageClass.LEAVE, WebSocketSendQueue.NO_PEER));
+        assertEquals(CAPACITY, client.getSendQueueDepth());
+        assertTrue(client.getSendQueueStatistics().contains("rejected 2"));
+    }
+
+    // Fills the queue of the unregistered client with |messageClass| messages
+    // fill-0, fill-1 and so on.
+    private void fill(MessageClass messageClass) {
+        for (int i = 0; i < CAPACITY; i++) {
+            send("fill-" + i, messageClass, PEER_A);
+        }
+        assertEquals(CAPACITY, client.getSendQueueDepth());
+    }
+
+    private void send(String tag, MessageClass messageClass, long peerId) {
+        assertTrue(client.send(message(tag), messageClass, peerId));
+    }
+
+    private void register() {
+        transports.last().open();
+        executor.runPending();
+        client.register(1234, 5678);
+        executor.runPending();
+    }
+
+    // A message carrying |tag|, shaped like the ones WebSocketRTCClient sends.
+    private static String message(String tag) {
+        return "{\"cmd\":\"send\",\"msg\":\"" + tag + "\"}";
+    }
+
+    // The tags of the messages on the fake WebSocket, or their command for
+    // those without one.
+    private List<String> sentTags() {
+        List<String> tags = new ArrayList<String>();
+        try {
+            for (String sent : transports.last().sent) {
+                JSONObject json = new JSONObject(sent);
+                tags.add(json.has("msg") ? json.getString("msg") : json.getString("cmd"));
+            }
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.appspot.apprtc.signaling.WebSocketSendQueue.MessageClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests how {@link WebSocketChannelClient} numbers, acknowledges and replays
+ * messages through its {@link WebSocketSession}, with and without a server
+ * that confirms sessions, on a fake WebSocket that the test drops.
+ */
+public class WebSocketSessionTest {
+    private static final long PEER = 101;
+    private static final String OFFER = "{\"cmd\":\"offer\",\"to\":101}";
+    private static final String ANSWER = "{\"cmd\":\"answer\",\"to\":101}";
+    // Longer than any reconnect delay of the first attempt.
+    private static final long RECONNECT_WAIT_MS = 1000;
+    private static final long ACK_WAIT_MS = 1000;
+
+    private final ManualSignalingExecutor executor = new ManualSignalingExecutor();
+    private final FakeSignalingTransport.Factory transports = new FakeSignalingTransport.Factory();
+    private final List<String> received = new ArrayList<String>();
+    private WebSocketChannelClient client;
+
+    @Before
+    public void setUp() {
+        client = new WebSocketChannelClient(executor,
+                new WebSocketChannelClient.WebSocketChannelEvents() {
+                    @Override
+                    public void onWebSocketRawMessage(byte[] message) {
+                        try {
+                            received.add(new String(message, "UTF-8"));
+                        } catch (UnsupportedEncodingException e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+
+                    @Override
+                    public void onWebSocketClose() {
+                    }
+
+                    @Override
+                    public void onWebSocketError(String description) {
+                    }
+                }, transports, SignalingLogger.NONE);
+        client.connect("ws://signaling.test/ws", "http://signaling.test");
+        transports.last().open();
+        executor.runPending();
+        client.register(1234, 5678);
+    }
+
+    @Test
+    public void messagesAreNotNumberedWithoutConfirmation() {
+        send(OFFER);
+        assertEquals(Arrays.asList(register(), OFFER), transports.last().sent);
+    }
+
+    @Test
+    public void nothingIsReplayedWithoutConfirmation() {
+        send(OFFER);
+        reconnect();
+        // A plain register again, and the offer is not sent twice.
+        assertEquals(Arrays.asList(register()), transports.last().sent);
+        assertEquals(1, client.getReconnectCount());
+    }
+
+    @Test
+    public void nothingIsAcknowledgedWithoutConfirmation() {
+        transports.last().receive("{\"seq\":1,\"type\":\"join\",\"id\":7}");
+        executor.advance(ACK_WAIT_MS);
+        assertEquals(Arrays.asList(register()), transports.last().sent);
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    public void confirmedSessionNumbersMessages() {
+        confirm();
+        send(OFFER);
+        send(ANSWER);
+        assertEquals(Arrays.asList(register(), "{\"seq\":1,\"cmd\":\"offer\",\"to\":101}",
+                "{\"seq\":2,\"cmd\":\"answer\",\"to\":101}"), transports.last().sent);
+    }
+
+    @Test
+    public void confirmedSessionResumesAndReplaysUnacknowledged() {
+        confirm();
+        send(OFFER);
+        send(ANSWER);
+        transports.last().receive("{\"type\":\"ack\",\"ack\":1}");
+        executor.runPending();
+        reconnect();
+        assertEquals(Arrays.asList(
+                "{\"cmd\":\"register\",\"device\":\"android\",\"roomid\":1234,\"clientid\":5678"
+                        + ",\"resume\":true,\"ack\":0}",
+                "{\"seq\":2,\"cmd\":\"answer\",\"to\":101}"), transports.last().sent);
+        assertTrue(client.getReconnectStatistics().contains("replayed 1"));
+    }
+
+    @Test
+    public void confirmedSessionAcknowledgesAndDropsDuplicates() {
+        confirm();
+        transports.last().receive("{\"seq\":1,\"type\":\"join\",\"id\":7}");
+        transports.last().receive("{\"seq\":1,\"type\":\"join\",\"id\":7}");
+        executor.advance(ACK_WAIT_MS);
+        // The ack confirming the session, then the join once.
+        assertEquals(2, received.size());
+        List<String> sent = transports.last().sent;
+        assertEquals("{\"cmd\":\"ack\",\"ack\":1}", sent.get(sent.size() - 1));
+        assertTrue(client.getReconnectStatistics().contains("duplicates dropped 1"));
+    }
+
+    @Test
+    public void sessionNotResumedStartsOver() {
+        confirm();
+        transports.last().receive("{\"seq\":1,\"type\":\"join\",\"id\":7}");
+        transports.last().receive("{\"seq\":2,\"type\":\"leave\",\"id\":7}");
+        send(OFFER);
+        reconnect();
+        // The server lost the session and numbers from 1 again.
+        transports.last().receive("{\"type\":\"ack\",\"ack\":0,\"resumed\":false}");
+        transports.last().receive("{\"seq\":1,\"type\":\"join\",\"id\":8}");
+        executor.runPending();
+        executor.advance(ACK_WAIT_MS);
+        assertEquals(5, received.size());
+        List<String> sent = transports.last().sent;
+        assertEquals("{\"cmd\":\"ack\",\"ack\":1}", sent.get(sent.size() - 1));
+        String statistics = client.getReconnectStatistics();
+        assertTrue(statistics, statistics.contains("duplicates dropped 0"));
+        assertTrue(statistics, statistics.contains("unacked 0 (1 dropped), sessions lost 1"));
+    }
+
+    @Test
+    public void messagesBeforeConfirmationAreNotReplayed() {
+        send(OFFER);
+        confirm();
+        send(ANSWER);
+        reconnect();
+        List<String> sent = transports.last().sent;
+        assertEquals(2, sent.size());
+        assertEquals("{\"seq\":1,\"cmd\":\"answer\",\"to\":101}", sent.get(1));
+        assertFalse(sent.get(1).contains("offer"));
+    }
+
+    private void confirm() {
+        // What a server that supports sessions answers to register.
+        transports.last().receive("{\"type\":\"ack\",\"ack\":0}");
+        executor.runPending();
+    }
+
+    private void send(String message) {
+        assertTrue(client.send(message, MessageClass.SDP, PEER));
+        executor.runPending();
+    }
+
+    // Drops the connection and lets the client register again.
+    private void reconnect() {
+        transports.last().drop();
+        executor.runPending();
+        assertEquals(WebSocketChannelClient.WebSocketConnectionState.RECONNECTING,
+                client.getState());
+        executor.advance(RECONNECT_WAIT_MS);
+        transports.last().open();
+        executor.runPending();
+        assertEquals(WebSocketChannelClient.WebSocketConnectionState.REGISTERED,
+                client.getState());
+    }
+
+    private static String register() {
+        return "{\"cmd\":\"register\",\"device\":\"android\",\"roomid\":1234,\"clientid\":5678}";
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compares the contention of {@link TaskQueue} with the synchronized executor
+ * it replaced:
+ * java -cp &lt;test classpath&gt; org.appspot.apprtc.util.ExecutorBenchmark
+ * [iterations] [max producers]
+ * <p/>
+ * <p>Both run on a stand-in for the Android message queue: a synchronized list
+ * that one consumer thread waits on, as Handler.post() locks the MessageQueue.
+ * "synchronized" is the old LooperExecutor.execute(), which held the executor
+ * lock and posted every task; "taskqueue" adds tasks to a TaskQueue and posts
+ * a drain only when the queue was idle, and "taskqueue_nostats" does so with
+ * the wait and run time statistics off.
+ * <p/>
+ * <p>{@link MicroBenchmark} times execute() on the main thread while the other
+ * producers call it in a loop, for 1, 2, 4 ... max producers. Contention only
+ * shows with a CPU for each producer and the consumer; on fewer CPUs the
+ * threads take turns, and the numbers mostly measure the scheduler. The CPU
+ * count is printed first for that reason.
+ */
+public class ExecutorBenchmark {
+  private static final int DEFAULT_ITERATIONS = 200000;
+  private static final int DEFAULT_MAX_PRODUCERS = 8;
+  private static final int MAX_BATCH = 32;
+
+  private interface TestExecutor {
+    void execute(Runnable runnable);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+    int maxProducers = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MAX_PRODUCERS;
+    int cpus = Runtime.getRuntime().availableProcessors();
+    System.out.println("cpus: " + cpus + (cpus <= maxProducers
+        ? ", too few for " + maxProducers + " producers and the consumer to contend" : ""));
+    for (int producers = 1; producers <= maxProducers; producers *= 2) {
+      run("synchronized", iterations, producers, false, false);
+      run("taskqueue", iterations, producers, true, true);
+      run("taskqueue_nostats", iterations, producers, true, false);
+    }
+  }
+
+  private static void run(String name, int iterations, int producers, boolean useTaskQueue,
+      boolean statistics) throws Exception {
+    final MessageQueue messageQueue = new MessageQueue();
+    Thread consumer = new Thread(messageQueue, "ExecutorBenchmarkLooper");
+    consumer.start();
+    final int[] counter = new int[1];
+    final Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        counter[0]++;
+      }
+    };
+    final TaskQueue taskQueue = new TaskQueue();
+    taskQueue.setStatisticsEnabled(statistics);
+    TestExecutor executor;
+    if (useTaskQueue) {
+      final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+          if (taskQueue.drain(MAX_BATCH)) {
+            messageQueue.post(this);
+          }
+        }
+      };
+      executor = new TestExecutor() {
+        @Override
+        public void execute(Runnable runnable) {
+          if (taskQueue.offer(runnable, null)) {
+            messageQueue.post(drainTask);
+          }
+        }
+      };
+    } else {
+      executor = new TestExecutor() {
+        @Override
+        public synchronized void execute(Runnable runnable) {
+          messageQueue.post(runnable);
+        }
+      };
+    }
+
+    final TestExecutor testExecutor = executor;
+    // The other producers run until the measurement is over, or for twice as
+    // many calls as the main thread makes, so that a consumer that falls
+    // behind does not fill the memory.
+    final int limit = 4 * iterations;
+    final AtomicBoolean stop = new AtomicBoolean();
+    final CountDownLatch stopped = new CountDownLatch(producers - 1);
+    for (int p = 1; p < producers; p++) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < limit && !stop.get(); i++) {
+            testExecutor.execute(task);
+          }
+          stopped.countDown();
+        }
+      }, "ExecutorBenchmarkProducer").start();
+    }
+    MicroBenchmark.measure(name + " producers " + producers, iterations,
+        new MicroBenchmark.Operation() {
+          @Override
+          public void run() {
+            testExecutor.execute(task);
+          }
+        });
+    stop.set(true);
+    stopped.await();
+    // Wait for the consumer to run everything.
+    final CountDownLatch drained = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        drained.countDown();
+      }
+    });
+    drained.await();
+    messageQueue.quit();
+    consumer.join();
+    System.out.println(name + " producers " + producers + " queue: {\"ran\": " + counter[0]
+        + ", \"posts\": " + messageQueue.posts + "}");
+    if (statistics && producers == 1) {
+      System.out.println(taskQueue.getStatistics());
+    }
+  }
+
+  // Stand-in for the Android MessageQueue and Looper.
+  private static class MessageQueue implements Runnable {
+    private final LinkedList<Runnable> messages = new LinkedList<Runnable>();
+    private boolean quit;
+    private int posts;
+
+    synchronized void post(Runnable runnable) {
+      messages.add(runnable);
+      posts++;
+      notify();
+    }
+
+    synchronized void quit() {
+      quit = true;
+      notify();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        Runnable runnable;
+        synchronized (this) {
+          while (messages.isEmpty() && !quit) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          if (messages.isEmpty()) {
+            return;
+          }
+          runnable = messages.removeFirst();
+        }
+        runnable.run();
+      }
+    }
+  }
+}
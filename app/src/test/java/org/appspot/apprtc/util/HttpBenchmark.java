@@ -0,0 +1,231 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Measures {@link AsyncHttpURLConnection} against a local HTTP/1.1 server:
+ * java -cp &lt;test classpath&gt; org.appspot.apprtc.util.HttpBenchmark
+ * [requests] [concurrency]
+ * <p/>
+ * <p>The server answers every request with a room join sized JSON body. It is
+ * run three ways: closing the connection after each response (every request
+ * pays for a new connection, as before keep-alive), keeping connections alive,
+ * and keeping them alive with gzip. Each {@link MicroBenchmark} iteration is a
+ * batch of |concurrency| requests in flight, like a few joins, leaves and TURN
+ * requests at once; a second line per run has the mean connect time, response
+ * size and errors from the requests' {@link AsyncHttpURLConnection.Timing}.
+ */
+public class HttpBenchmark {
+  private static final int DEFAULT_REQUESTS = 500;
+  private static final int DEFAULT_CONCURRENCY = 4;
+  private static final int BODY_REPEAT = 24;
+
+  public static void main(String[] args) throws Exception {
+    int requests = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_REQUESTS;
+    int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CONCURRENCY;
+    StringBuilder body = new StringBuilder("{\"params\": [");
+    for (int i = 0; i < BODY_REPEAT; i++) {
+      body.append(i == 0 ? "" : ", ").append("{\"wss_url\": \"wss://apprtc-ws.webrtc.org:443/ws\","
+          + " \"client_id\": \"").append(10000000 + i).append("\"}");
+    }
+    body.append("]}");
+    byte[] response = body.toString().getBytes("UTF-8");
+
+    LocalServer closing = new LocalServer(response, false);
+    LocalServer keepAlive = new LocalServer(response, true);
+    try {
+      run("close", closing.getUrl(), requests, concurrency, false);
+      run("keepalive", keepAlive.getUrl(), requests, concurrency, false);
+      run("keepalive_gzip", keepAlive.getUrl(), requests, concurrency, true);
+    } finally {
+      closing.close();
+      keepAlive.close();
+    }
+  }
+
+  private static void run(String name, final String url, int requests, final int concurrency,
+      final boolean gzip) throws Exception {
+    final AtomicInteger completed = new AtomicInteger();
+    final AtomicInteger errors = new AtomicInteger();
+    final AtomicLong connectMs = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    MicroBenchmark.measure(name, Math.max(1, requests / concurrency),
+        new MicroBenchmark.Operation() {
+          @Override
+          public void run() throws InterruptedException {
+            final CountDownLatch done = new CountDownLatch(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+              final AsyncHttpURLConnection[] connection = new AsyncHttpURLConnection[1];
+              connection[0] = new AsyncHttpURLConnection("POST", url, "{}",
+                  new AsyncHttpEvents() {
+                    @Override
+                    public void onHttpError(String errorMessage) {
+                      errors.incrementAndGet();
+                      done.countDown();
+                    }
+
+                    @Override
+                    public void onHttpComplete(String response) {
+                      AsyncHttpURLConnection.Timing timing = connection[0].getTiming();
+                      completed.incrementAndGet();
+                      connectMs.addAndGet(timing.connectMs);
+                      bytes.addAndGet(timing.responseBytes);
+                      done.countDown();
+                    }
+                  });
+              connection[0].setGzipEnabled(gzip);
+              connection[0].send();
+            }
+            done.await();
+          }
+        });
+    // Over the warm up and the measured batches.
+    int count = Math.max(1, completed.get());
+    System.out.println(name + " requests: {\"completed\": " + completed.get()
+        + ", \"errors\": " + errors.get()
+        + ", \"meanConnectMs\": " + (double) connectMs.get() / count
+        + ", \"responseBytes\": " + bytes.get() / count + "}");
+  }
+
+  // A minimal HTTP/1.1 server answering every request with the same body.
+  private static class LocalServer implements Runnable {
+    private final byte[] body;
+    private final byte[] gzipBody;
+    private final boolean keepAlive;
+    private final ServerSocket serverSocket;
+
+    LocalServer(byte[] body, boolean keepAlive) throws IOException {
+      this.body = body;
+      this.keepAlive = keepAlive;
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+      gzip.write(body);
+      gzip.close();
+      gzipBody = compressed.toByteArray();
+      serverSocket = new ServerSocket(0, 64, InetAddress.getByName("127.0.0.1"));
+      Thread thread = new Thread(this, "HttpBenchmarkServer");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    String getUrl() {
+      return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/join/1";
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        final Socket socket;
+        try {
+          socket = serverSocket.accept();
+        } catch (IOException e) {
+          return;
+        }
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            serve(socket);
+          }
+        });
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+
+    private void serve(Socket socket) {
+      try {
+        socket.setTcpNoDelay(true);
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        while (true) {
+          String requestLine = readLine(in);
+          if (requestLine == null || requestLine.length() == 0) {
+            break;
+          }
+          int contentLength = 0;
+          boolean gzip = false;
+          String header;
+          while ((header = readLine(in)) != null && header.length() > 0) {
+            String lower = header.toLowerCase();
+            if (lower.startsWith("content-length:")) {
+              contentLength = Integer.parseInt(header.substring(15).trim());
+            } else if (lower.startsWith("accept-encoding:") && lower.contains("gzip")) {
+              gzip = true;
+            }
+          }
+          for (int i = 0; i < contentLength; i++) {
+            if (in.read() < 0) {
+              break;
+            }
+          }
+          byte[] response = gzip ? gzipBody : body;
+          String headers = "HTTP/1.1 200 OK\r\n"
+              + "Content-Type: application/json\r\n"
+              + "Content-Length: " + response.length + "\r\n"
+              + (gzip ? "Content-Encoding: gzip\r\n" : "")
+              + (keepAlive ? "" : "Connection: close\r\n")
+              + "\r\n";
+          out.write(headers.getBytes("US-ASCII"));
+          out.write(response);
+          out.flush();
+          if (!keepAlive) {
+            break;
+          }
+        }
+      } catch (IOException e) {
+        // The client went away.
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // continue
+        }
+      }
+    }
+
+    // Returns a CRLF terminated line without its terminator, or null at the end.
+    private static String readLine(InputStream in) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = in.read()) != -1) {
+        if (c == '\n') {
+          int length = line.length();
+          if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+          }
+          return line.toString();
+        }
+        line.append((char) c);
+      }
+      return line.length() > 0 ? line.toString() : null;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Minimal timing loop for the benchmarks in the unit test source set, which
+ * run as plain main() classes on the unit test classpath, e.g.
+ * java -cp &lt;test classpath&gt; org.appspot.apprtc.SdpRewriterBenchmark
+ * <p/>
+ * <p>measure() runs an operation for a warm up round, then times every
+ * iteration and reports the latency percentiles and the bytes allocated per
+ * iteration as one line of JSON. Allocation is read from the HotSpot per
+ * thread allocation counter, or reported as -1 where that is not available.
+ */
+public final class MicroBenchmark {
+  private static Object threadBean;
+  private static Method allocatedBytesMethod;
+
+  static {
+    try {
+      Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+      Object bean = factory.getMethod("getThreadMXBean").invoke(null);
+      Method method = Class.forName("com.sun.management.ThreadMXBean")
+          .getMethod("getThreadAllocatedBytes", long.class);
+      method.invoke(bean, Thread.currentThread().getId());
+      threadBean = bean;
+      allocatedBytesMethod = method;
+    } catch (Exception e) {
+      System.err.println("No allocation counter on this VM: " + e);
+    }
+  }
+
+  /**
+   * The measured operation.
+   */
+  public interface Operation {
+    void run() throws Exception;
+  }
+
+  private MicroBenchmark() {
+  }
+
+  /**
+   * Runs |operation| |iterations| times to warm up and |iterations| times
+   * measured, prints the result line prefixed with |name| and returns it.
+   */
+  public static String measure(String name, int iterations, Operation operation)
+      throws Exception {
+    for (int i = 0; i < iterations; i++) {
+      operation.run();
+    }
+    long[] samples = new long[iterations];
+    long allocatedBefore = getAllocatedBytes();
+    long startNs = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      long before = System.nanoTime();
+      operation.run();
+      samples[i] = System.nanoTime() - before;
+    }
+    long elapsedNs = System.nanoTime() - startNs;
+    long allocated = getAllocatedBytes() - allocatedBefore;
+    Arrays.sort(samples);
+    String result = name + ": {\"iterations\": " + iterations
+        + ", \"meanNs\": " + elapsedNs / iterations
+        + ", \"p50Ns\": " + samples[iterations / 2]
+        + ", \"p90Ns\": " + samples[iterations * 9 / 10]
+        + ", \"p99Ns\": " + samples[iterations * 99 / 100]
+        + ", \"bytesPerIteration\": " + (threadBean == null ? -1 : allocated / iterations)
+        + "}";
+    System.out.println(result);
+    return result;
+  }
+
+  /**
+   * Whether getAllocatedBytes() counts anything on this VM.
+   */
+  public static boolean hasAllocationCounter() {
+    return threadBean != null;
+  }
+
+  /**
+   * Bytes the calling thread allocated so far, or 0 without an allocation
+   * counter.
+   */
+  public static long getAllocatedBytes() {
+    if (threadBean == null) {
+      return 0;
+    }
+    try {
+      return (Long) allocatedBytesMethod.invoke(threadBean, Thread.currentThread().getId());
+    } catch (Exception e) {
+      return 0;
+    }
+  }
+}
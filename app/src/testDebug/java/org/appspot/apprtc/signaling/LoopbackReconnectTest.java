@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.signaling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Drops the WebSocket connection of a {@link HeadlessSignalingClient} that
+ * sent an offer on a {@link LoopbackSignalingServer}, with and without
+ * sessions on the server, and checks that every offer reaches the peer
+ * exactly once. Also checks that a client whose session expired on the server
+ * takes messages again once it registered as a new one.
+ */
+public class LoopbackReconnectTest {
+    private static final long ROOM_ID = 4242;
+    private static final long TIMEOUT_MS = 10000;
+    private static final long ROOM_RETRY_MS = 200;
+
+    /**
+     * Keeps what one client receives, for the test thread to wait on.
+     */
+    private static class Recorder implements HeadlessSignalingClient.Events {
+        private final List<String> offers = new ArrayList<String>();
+        private long clientId = -1;
+        private int joins;
+        private int rooms;
+
+        @Override
+        public synchronized void onJoined(long clientId) {
+            this.clientId = clientId;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onClientJoin(long peerId, String deviceType) {
+            joins++;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onRoom(long[] clientIds) {
+            rooms++;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onRemoteOffer(long peerId, String sdp) {
+            offers.add(sdp);
+            notifyAll();
+        }
+
+        @Override
+        public void onRemoteAnswer(long peerId, String sdp) {
+        }
+
+        @Override
+        public void onRemoteIceCandidate(long peerId, String candidate) {
+        }
+
+        @Override
+        public void onRemoteLeave(long peerId) {
+        }
+
+        @Override
+        public void onChannelClose() {
+        }
+
+        @Override
+        public synchronized void onChannelError(String description) {
+            throw new AssertionError(description);
+        }
+
+        synchronized long awaitJoined() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (clientId < 0) {
+                await(deadline, "join");
+            }
+            return clientId;
+        }
+
+        synchronized int getJoins() {
+            return joins;
+        }
+
+        synchronized void awaitJoins(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (joins < count) {
+                await(deadline, "join " + count);
+            }
+        }
+
+        synchronized int getRooms() {
+            return rooms;
+        }
+
+        synchronized boolean awaitRooms(int count, long timeoutMs)
+                throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (rooms < count) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+            return true;
+        }
+
+        synchronized List<String> awaitOffers(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (offers.size() < count) {
+                await(deadline, "offer " + count);
+            }
+            return new ArrayList<String>(offers);
+        }
+
+        private void await(long deadline, String what) throws InterruptedException {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new AssertionError("Timed out waiting for " + what);
+            }
+            wait(left);
+        }
+    }
+
+    private LoopbackSignalingServer server;
+    private NioWebSocketTransport.Loop loop;
+    private ScheduledExecutorService pool;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LoopbackSignalingServer();
+        server.start();
+        loop = new NioWebSocketTransport.Loop();
+        pool = Executors.newScheduledThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        loop.close();
+        server.close();
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void offersArriveOnceWithSessions() throws Exception {
+        offersArriveOnceAfterDrop();
+    }
+
+    @Test
+    public void offersArriveOnceWithoutSessions() throws Exception {
+        server.setSessionsEnabled(false);
+        offersArriveOnceAfterDrop();
+    }
+
+    @Test
+    public void messagesArriveAfterSessionExpired() throws Exception {
+        Recorder callee = new Recorder();
+        HeadlessSignalingClient calleeClient = join(callee);
+        Recorder caller = new Recorder();
+        HeadlessSignalingClient callerClient = join(caller);
+        long calleeId = callee.awaitJoined();
+        long callerId = caller.awaitJoined();
+
+        calleeClient.sendOfferSdp(callerId, "sdp-1");
+        assertEquals(Arrays.asList("sdp-1"), caller.awaitOffers(1));
+
+        int joins = callee.getJoins();
+        server.expireSession(callerId);
+        // The callee sees the caller join again once it registered on a new
+        // session, which numbers its messages from 1 again. The caller must
+        // not drop them as duplicates.
+        callee.awaitJoins(joins + 1);
+        int rooms = caller.getRooms();
+        callerClient.requestRoomInfo();
+        assertTrue(caller.awaitRooms(rooms + 1, TIMEOUT_MS));
+        calleeClient.sendOfferSdp(callerId, "sdp-2");
+        assertEquals(Arrays.asList("sdp-1", "sdp-2"), caller.awaitOffers(2));
+        callerClient.sendOfferSdp(calleeId, "sdp-3");
+        assertEquals(Arrays.asList("sdp-3"), callee.awaitOffers(1));
+
+        callerClient.disconnectFromRoom();
+        calleeClient.disconnectFromRoom();
+    }
+
+    private void offersArriveOnceAfterDrop() throws Exception {
+        Recorder callee = new Recorder();
+        HeadlessSignalingClient calleeClient = join(callee);
+        Recorder caller = new Recorder();
+        HeadlessSignalingClient callerClient = join(caller);
+        long calleeId = callee.awaitJoined();
+        long callerId = caller.awaitJoined();
+
+        callerClient.sendOfferSdp(calleeId, "sdp-1");
+        assertEquals(Arrays.asList("sdp-1"), callee.awaitOffers(1));
+
+        server.dropConnection(callerId);
+        // Answered once the caller registered again.
+        awaitRoom(callerClient, caller);
+
+        // A replayed sdp-1 would reach the callee before sdp-2.
+        callerClient.sendOfferSdp(calleeId, "sdp-2");
+        assertEquals(Arrays.asList("sdp-1", "sdp-2"), callee.awaitOffers(2));
+
+        callerClient.disconnectFromRoom();
+        calleeClient.disconnectFromRoom();
+    }
+
+    // Joins the room and waits until the client is registered.
+    private HeadlessSignalingClient join(Recorder recorder) throws InterruptedException {
+        HeadlessSignalingClient client = new HeadlessSignalingClient(new SerialExecutor(pool),
+                loop, SignalingLogger.NONE, recorder);
+        client.joinRoom(server.getRoomServerUrl(), ROOM_ID);
+        recorder.awaitJoined();
+        awaitRoom(client, recorder);
+        return client;
+    }
+
+    // Requests the room until the server answers. Requests sent before the
+    // client noticed a dropped connection are lost without sessions.
+    private void awaitRoom(HeadlessSignalingClient client, Recorder recorder)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        int rooms = recorder.getRooms();
+        while (System.currentTimeMillis() < deadline) {
+            client.requestRoomInfo();
+            if (recorder.awaitRooms(rooms + 1, ROOM_RETRY_MS)) {
+                return;
+            }
+        }
+        throw new AssertionError("Timed out waiting for the room");
+    }
+}
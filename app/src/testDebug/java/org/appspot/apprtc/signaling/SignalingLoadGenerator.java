@@ -0,0 +1,308 @@
+/*
+ *  Copyright 2015 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+package org.appspot.apprtc.signaling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for signaling servers, run from the debug unit test classpath:
+ * java -cp &lt;test classpath&gt; org.appspot.apprtc.signaling.SignalingLoadGenerator
+ * [clients] [room size] [room server URL]
+ * <p/>
+ * <p>Runs |clients| {@link HeadlessSignalingClient}s in rooms of |room size|,
+ * all on one {@link NioWebSocketTransport.Loop} and a small thread pool.
+ * Without a URL it starts a {@link LoopbackSignalingServer} in the JVM. The
+ * clients join all at once; then, for ROUNDS rounds, the last client of every
+ * room sends an offer to the others, which answer; then the others send
+ * CANDIDATES candidates each to it; then everybody leaves. Each line has the
+ * latency percentiles of one phase, in milliseconds, and the last ones the
+ * message rates of the clients and of a loopback server.
+ */
+public class SignalingLoadGenerator {
+    private static final int DEFAULT_CLIENTS = 1000;
+    private static final int DEFAULT_ROOM_SIZE = 4;
+    private static final int ROUNDS = 3;
+    private static final int CANDIDATES = 4;
+    private static final long TIMEOUT_S = 120;
+    private static final String FAKE_SDP = "v=0\r\no=- 0 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n";
+
+    private final String roomServerUrl;
+    private final int roomSize;
+    private final Client[] clients;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    // Latencies of the current phase, in nanoseconds.
+    private final List<Long> latencies = new ArrayList<Long>();
+    private volatile CountDownLatch phase;
+    private volatile long phaseStartNs;
+
+    private class Client implements HeadlessSignalingClient.Events {
+        private final int index;
+        private final long roomId;
+        private SignalingExecutor executor;
+        private HeadlessSignalingClient signaling;
+        private volatile long clientId = -1;
+        private long joinStartNs;
+        private boolean ready;
+
+        private Client(int index, long roomId) {
+            this.index = index;
+            this.roomId = roomId;
+        }
+
+        @Override
+        public void onJoined(long clientId) {
+            this.clientId = clientId;
+            // Answered once registered, so the answer marks the end of the join.
+            signaling.requestRoomInfo();
+            sent.incrementAndGet();
+        }
+
+        @Override
+        public void onRoom(long[] clientIds) {
+            received.incrementAndGet();
+            if (!ready) {
+                ready = true;
+                arrived(System.nanoTime() - joinStartNs);
+            }
+        }
+
+        @Override
+        public void onClientJoin(long peerId, String deviceType) {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void onRemoteOffer(long peerId, String sdp) {
+            received.incrementAndGet();
+            signaling.sendAnswerSdp(peerId, sdp);
+            sent.incrementAndGet();
+        }
+
+        @Override
+        public void onRemoteAnswer(long peerId, String sdp) {
+            received.incrementAndGet();
+            arrived(System.nanoTime() - phaseStartNs);
+        }
+
+        @Override
+        public void onRemoteIceCandidate(long peerId, String candidate) {
+            received.incrementAndGet();
+            arrived(System.nanoTime() - phaseStartNs);
+        }
+
+        @Override
+        public void onRemoteLeave(long peerId) {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void onChannelClose() {
+        }
+
+        @Override
+        public void onChannelError(String description) {
+            errors.incrementAndGet();
+            System.err.println("Client " + index + ": " + description);
+            if (!ready) {
+                // Do not wait for it to join.
+                ready = true;
+                phase.countDown();
+            }
+        }
+    }
+
+    private SignalingLoadGenerator(String roomServerUrl, int clientCount, int roomSize) {
+        this.roomServerUrl = roomServerUrl;
+        this.roomSize = roomSize;
+        clients = new Client[clientCount];
+        // Rooms of an earlier run may still be open on a real server.
+        long firstRoomId = (new Random().nextInt(900000) + 100000) * 1000L;
+        for (int i = 0; i < clientCount; i++) {
+            clients[i] = new Client(i, firstRoomId + i / roomSize);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+        int roomSize = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROOM_SIZE;
+        LoopbackSignalingServer server = null;
+        String roomServerUrl;
+        if (args.length > 2) {
+            roomServerUrl = args[2];
+        } else {
+            server = new LoopbackSignalingServer();
+            server.start();
+            roomServerUrl = server.getRoomServerUrl();
+        }
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+        ScheduledExecutorService pool = Executors.newScheduledThreadPool(threads,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "SignalingLoadGenerator");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        NioWebSocketTransport.Loop loop = new NioWebSocketTransport.Loop();
+        System.out.println("clients: {\"clients\": " + clientCount + ", \"roomSize\": " + roomSize
+                + ", \"threads\": " + threads + ", \"server\": \"" + roomServerUrl + "\"}");
+        try {
+            new SignalingLoadGenerator(roomServerUrl, clientCount, roomSize).run(pool, loop);
+        } finally {
+            loop.close();
+            pool.shutdown();
+            pool.awaitTermination(TIMEOUT_S, TimeUnit.SECONDS);
+            if (server != null) {
+                System.out.println("server: " + server.getStatistics());
+                server.close();
+            }
+        }
+    }
+
+    private void run(ScheduledExecutorService pool, NioWebSocketTransport.Loop loop)
+            throws InterruptedException {
+        long startNs = System.nanoTime();
+
+        // Everybody joins at once.
+        startPhase(clients.length);
+        for (Client client : clients) {
+            client.executor = new SerialExecutor(pool);
+            client.signaling = new HeadlessSignalingClient(client.executor, loop,
+                    SignalingLogger.NONE, client);
+            client.joinStartNs = System.nanoTime();
+            client.signaling.joinRoom(roomServerUrl, client.roomId);
+        }
+        endPhase("join", clients.length);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            int answers = 0;
+            for (Client client : clients) {
+                answers += isCaller(client) ? roomOf(client).size() - 1 : 0;
+            }
+            startPhase(answers);
+            for (Client client : clients) {
+                if (isCaller(client)) {
+                    for (Client peer : roomOf(client)) {
+                        if (peer != client) {
+                            client.signaling.sendOfferSdp(peer.clientId,
+                                    FAKE_SDP + "a=round:" + round + "\r\n");
+                            sent.incrementAndGet();
+                        }
+                    }
+                }
+            }
+            endPhase("offer/answer", answers);
+        }
+
+        int candidates = 0;
+        for (Client client : clients) {
+            candidates += isCaller(client) ? (roomOf(client).size() - 1) * CANDIDATES : 0;
+        }
+        startPhase(candidates);
+        for (Client client : clients) {
+            List<Client> room = roomOf(client);
+            Client caller = room.get(room.size() - 1);
+            if (caller == client) {
+                continue;
+            }
+            for (int c = 0; c < CANDIDATES; c++) {
+                client.signaling.sendLocalIceCandidate(caller.clientId, "audio", 0,
+                        "candidate:" + c + " 1 udp 2122260223 127.0.0.1 " + (50000 + c)
+                        + " typ host");
+                sent.incrementAndGet();
+            }
+        }
+        endPhase("candidates", candidates);
+
+        // Everybody leaves; a client has once its executor gets past the leave.
+        startPhase(clients.length);
+        for (Client client : clients) {
+            client.signaling.disconnectFromRoom();
+            sent.incrementAndGet();
+            client.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    arrived(System.nanoTime() - phaseStartNs);
+                }
+            });
+        }
+        endPhase("leave", clients.length);
+        double seconds = (System.nanoTime() - startNs) / 1e9;
+        System.out.println("messages: {\"sent\": " + sent.get() + ", \"received\": "
+                + received.get() + ", \"perSecond\": "
+                + Math.round((sent.get() + received.get()) / seconds)
+                + ", \"errors\": " + errors.get() + "}");
+    }
+
+    // The last client of a room calls the others.
+    private boolean isCaller(Client client) {
+        List<Client> room = roomOf(client);
+        return room.size() > 1 && room.get(room.size() - 1) == client;
+    }
+
+    private List<Client> roomOf(Client client) {
+        int first = client.index / roomSize * roomSize;
+        int end = Math.min(clients.length, first + roomSize);
+        return Arrays.asList(clients).subList(first, end);
+    }
+
+    private void startPhase(int count) {
+        synchronized (latencies) {
+            latencies.clear();
+        }
+        phase = new CountDownLatch(count);
+        phaseStartNs = System.nanoTime();
+    }
+
+    private void arrived(long latencyNs) {
+        synchronized (latencies) {
+            latencies.add(latencyNs);
+        }
+        phase.countDown();
+    }
+
+    private void endPhase(String name, int count) throws InterruptedException {
+        boolean done = phase.await(TIMEOUT_S, TimeUnit.SECONDS);
+        long elapsedNs = System.nanoTime() - phaseStartNs;
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = new long[latencies.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = latencies.get(i);
+            }
+        }
+        Arrays.sort(sorted);
+        StringBuilder line = new StringBuilder();
+        line.append(name).append(": {\"expected\": ").append(count)
+                .append(", \"completed\": ").append(sorted.length)
+                .append(", \"timedOut\": ").append(!done)
+                .append(", \"elapsedMs\": ").append(elapsedNs / 1000000)
+                .append(", \"perSecond\": ").append(sorted.length * 1000000000L / elapsedNs);
+        if (sorted.length > 0) {
+            line.append(", \"p50Ms\": ").append(sorted[sorted.length / 2] / 1000000)
+                    .append(", \"p90Ms\": ").append(sorted[sorted.length * 9 / 10] / 1000000)
+                    .append(", \"p99Ms\": ").append(sorted[sorted.length * 99 / 100] / 1000000)
+                    .append(", \"maxMs\": ").append(sorted[sorted.length - 1] / 1000000);
+        }
+        System.out.println(line.append('}'));
+    }
+}